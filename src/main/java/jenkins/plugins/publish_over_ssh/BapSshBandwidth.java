@@ -0,0 +1,212 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bandwidth limits on uploads, for each publisher, each host configuration and for all uploads from this JVM.
+ *
+ * Each limit is a token bucket. The buckets of the host configurations and the global bucket are shared by all of the
+ * builds that publish from this JVM, so the total stays under the limit however many builds publish at once. Uploads
+ * take their bytes from a bucket in the order that they ask for them, a slice at a time, so concurrent uploads share
+ * the bandwidth evenly. Bulk uploads give way: they only take from a shared bucket once no other upload has been
+ * waiting on it for a moment.
+ *
+ * The JVM is the one that uploads, the controller when publishing from the controller, otherwise the agent, so the
+ * limits apply to the link of the machine that sends the files.
+ */
+public final class BapSshBandwidth {
+
+    /** Bytes taken from the buckets at a time, small enough for uploads to interleave. */
+    static final int SLICE = 32 * 1024;
+    /** Time that a shared bucket has to be free of other uploads before a bulk upload takes from it. */
+    static final long BULK_YIELD_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long BULK_POLL_MILLIS = 20;
+
+    private static final TokenBucket GLOBAL = new TokenBucket();
+    private static final Map<String, TokenBucket> HOSTS = new HashMap<>();
+
+    private BapSshBandwidth() { }
+
+    /**
+     * @param publisherKilobytesPerSecond limit for the publisher alone, zero or less for none
+     * @param configName name of the host configuration
+     * @param hostKilobytesPerSecond limit for all of the uploads to the host, zero or less for none
+     * @param globalKilobytesPerSecond limit for all of the uploads from this JVM, zero or less for none
+     * @param bulk true if the uploads give way to other uploads
+     * @return the throttle for the uploads of one client, or null if there is no limit
+     */
+    public static Throttle throttle(final int publisherKilobytesPerSecond, final String configName, final int hostKilobytesPerSecond,
+                                    final int globalKilobytesPerSecond, final boolean bulk) {
+        final List<TokenBucket> buckets = new ArrayList<>();
+        if (publisherKilobytesPerSecond > 0)
+            buckets.add(new TokenBucket().setRate(toBytes(publisherKilobytesPerSecond)));
+        if (hostKilobytesPerSecond > 0) {
+            synchronized (HOSTS) {
+                buckets.add(HOSTS.computeIfAbsent(configName, k -> new TokenBucket()).setRate(toBytes(hostKilobytesPerSecond)));
+            }
+        }
+        if (globalKilobytesPerSecond > 0)
+            buckets.add(GLOBAL.setRate(toBytes(globalKilobytesPerSecond)));
+        return buckets.isEmpty() ? null : new Throttle(buckets, bulk);
+    }
+
+    private static long toBytes(final int kilobytesPerSecond) {
+        return kilobytesPerSecond * 1024L;
+    }
+
+    private static void sleepNanos(final long nanos) throws InterruptedIOException {
+        if (nanos <= 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            final InterruptedIOException iioe = new InterruptedIOException(ie.getMessage());
+            iioe.initCause(ie);
+            throw iioe;
+        }
+    }
+
+    /**
+     * A token bucket that holds up to a second of bandwidth. Bytes are reserved in the order that they are asked for,
+     * the caller then waits until its bytes are available.
+     */
+    static final class TokenBucket {
+
+        private final long created = System.nanoTime();
+        private long bytesPerSecond;
+        /** Time, relative to created, at which all of the bytes reserved so far will have been sent. */
+        private long sentNanos;
+        /** Time, relative to created, at which the last upload that does not give way is done waiting for its bytes. */
+        private long busyNanos = -BULK_YIELD_NANOS;
+
+        synchronized TokenBucket setRate(final long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * @param bytes number of bytes to send
+         * @param bulk true if the caller gives way to other uploads
+         * @return time in nanoseconds to wait before sending the bytes, or -1 if a bulk caller has to give way and ask again
+         */
+        synchronized long reserve(final int bytes, final boolean bulk) {
+            final long now = System.nanoTime() - created;
+            if (bulk && now - busyNanos < BULK_YIELD_NANOS)
+                return -1;
+            final long burst = TimeUnit.SECONDS.toNanos(1);
+            sentNanos = Math.max(sentNanos, now - burst) + TimeUnit.SECONDS.toNanos(bytes) / bytesPerSecond;
+            final long wait = Math.max(0, sentNanos - burst - now);
+            if (!bulk)
+                busyNanos = now + wait;
+            return wait;
+        }
+
+    }
+
+    /**
+     * The buckets that the uploads of one client take their bytes from, from the most to the least specific.
+     */
+    public static final class Throttle {
+
+        private final List<TokenBucket> buckets;
+        private final boolean bulk;
+
+        Throttle(final List<TokenBucket> buckets, final boolean bulk) {
+            this.buckets = Collections.unmodifiableList(buckets);
+            this.bulk = bulk;
+        }
+
+        public boolean isBulk() {
+            return bulk;
+        }
+
+        /**
+         * Wait until the bytes may be sent.
+         *
+         * @param bytes number of bytes about to be sent
+         * @throws InterruptedIOException if interrupted while waiting
+         */
+        public void acquire(final int bytes) throws InterruptedIOException {
+            for (int remaining = bytes; remaining > 0; remaining -= SLICE) {
+                final int slice = Math.min(remaining, SLICE);
+                for (TokenBucket bucket : buckets) {
+                    long wait;
+                    while ((wait = bucket.reserve(slice, bulk)) < 0)
+                        sleepNanos(TimeUnit.MILLISECONDS.toNanos(BULK_POLL_MILLIS));
+                    sleepNanos(wait);
+                }
+            }
+        }
+
+        public InputStream wrap(final InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    final int read = super.read();
+                    if (read >= 0) acquire(1);
+                    return read;
+                }
+
+                @Override
+                public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+                    final int read = super.read(buffer, offset, length);
+                    if (read > 0) acquire(read);
+                    return read;
+                }
+            };
+        }
+
+        public OutputStream wrap(final OutputStream out) {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(final int b) throws IOException {
+                    acquire(1);
+                    out.write(b);
+                }
+
+                @Override
+                public void write(final byte[] buffer, final int offset, final int length) throws IOException {
+                    acquire(length);
+                    out.write(buffer, offset, length);
+                }
+            };
+        }
+
+    }
+
+}
@@ -38,6 +38,7 @@ import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -58,6 +59,33 @@ public class BapSshBuilderPlugin extends Builder {
         return delegate;
     }
 
+    public boolean isParallel() {
+        return delegate.isParallel();
+    }
+
+    @DataBoundSetter
+    public void setParallel(final boolean parallel) {
+        delegate.setParallel(parallel);
+    }
+
+    public int getMaxConcurrency() {
+        return delegate.getMaxConcurrency();
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrency(final int maxConcurrency) {
+        delegate.setMaxConcurrency(maxConcurrency);
+    }
+
+    public int getConnectionPriority() {
+        return delegate.getConnectionPriority();
+    }
+
+    @DataBoundSetter
+    public void setConnectionPriority(final int connectionPriority) {
+        delegate.setConnectionPriority(connectionPriority);
+    }
+
     @Override
     public boolean perform(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener)
                     throws InterruptedException, IOException {
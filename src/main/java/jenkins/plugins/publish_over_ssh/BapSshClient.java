@@ -33,33 +33,74 @@ import jenkins.plugins.publish_over.BPBuildEnv;
 import jenkins.plugins.publish_over.BPBuildInfo;
 import jenkins.plugins.publish_over.BPDefaultClient;
 import jenkins.plugins.publish_over.BapPublisherException;
+import jenkins.plugins.publish_over_ssh.options.SshTransferOptions;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.FileOutputStream;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.Stack;
 import java.util.Vector;
+import java.util.function.Supplier;
 
 @SuppressWarnings("PMD.TooManyMethods")
 public class BapSshClient extends BPDefaultClient<BapSshTransfer> {
 
     private static final transient Log LOG = LogFactory.getLog(BapSshClient.class);
+    private static final String DEFAULT_PATTERN_SEPARATOR = "[, ]+";
+    /** Number of missing directory levels from which one mkdir -p is cheaper than a mkdir request for each level. */
+    private static final int MKDIR_EXEC_LEVELS = 3;
 
     private final BPBuildInfo buildInfo;
     private final Stack<Session> sessions = new Stack<>();
     private final boolean disableExec;
     private ChannelSftp sftp;
     private final boolean avoidSameFileUpload;
+    private final BapSshRemoteDirectories remoteDirectories = new BapSshRemoteDirectories();
+    private final BapSshPermissions permissions = new BapSshPermissions();
+    private String workingDirectory;
+    private boolean channelDirectoryChanged;
 
     private BapSshTransferCache remoteResourceCache;
+    private BapSshSessionPool.PooledSession pooledSession;
+    private BapSshConnectionLimiter.Permit permit;
+    private BapSshConnectionLimiter.Permit uncompressedPermit;
+    private BapSshBandwidth.Throttle throttle;
+    private BapSshParallelUpload parallelUpload;
+    private int sftpChannels = 1;
+    private int connectTimeout;
+    private boolean cleanRemoteInBackground;
+    private int execTimeout;
+    private int sftpOutstandingRequests;
+    private int sftpChunkSize;
+    private BapSshFileDigest fileDigest = BapSshFileDigest.MD5;
+    private String transferCacheTarget = "";
+    private BapSshRemoteCompare remoteCompare = BapSshRemoteCompare.NONE;
+    private BapSshTargetFiles targetFiles;
+    private BapSshDeltaUpload deltaUpload;
+    private BapSshResumableUpload resumableUpload;
+    private BapSshFileInfo fileInfo;
+    private BapSshCompression compression = BapSshCompression.NONE;
+    private Supplier<Session> uncompressedSessionFactory;
+    private Session uncompressedSession;
+    private ChannelSftp uncompressedSftp;
+    private final BapSshTransferStatistics statistics = new BapSshTransferStatistics();
+    private BapSshTransferStatistics.Transfer transferStatistics;
+    private long transferStart;
+    private boolean statisticsSent;
 
     public BapSshClient(final BPBuildInfo buildInfo, final Session session) {
         this(buildInfo, session, false, false);
@@ -92,14 +133,139 @@ public class BapSshClient extends BPDefaultClient<BapSshTransfer> {
         return buildInfo;
     }
 
+    BapSshTransferStatistics getStatistics() {
+        return statistics;
+    }
+
+    private BapSshTransferStatistics.Transfer transferStatistics() {
+        if (transferStatistics == null)
+            transferStatistics = statistics.beginTransfer();
+        return transferStatistics;
+    }
+
     public void setSftp(final ChannelSftp sftp) {
         this.sftp = sftp;
+        workingDirectory = null;
+        channelDirectoryChanged = false;
+        remoteDirectories.clear();
+    }
+
+    /**
+     * The directory that the transfer is in. Files are addressed with absolute paths under it, so changing directory
+     * does not change the working directory of the SFTP channel.
+     *
+     * @return absolute path of the current directory
+     * @throws SftpException if the working directory of the channel could not be read
+     */
+    String getWorkingDirectory() throws SftpException {
+        if (workingDirectory == null) {
+            workingDirectory = sftp.pwd();
+            remoteDirectories.add(workingDirectory);
+        }
+        return workingDirectory;
+    }
+
+    ChannelSftp getSftp() {
+        return sftp;
     }
 
     public Session getSession() {
         return sessions.peek();
     }
 
+    /**
+     * @return the session chain, jump hosts first and the target session last
+     */
+    List<Session> getSessions() {
+        return new ArrayList<>(sessions);
+    }
+
+    /** Hand the sessions back to the pool instead of disconnecting them when this client is disconnected.
+     * @param pooledSession the pool entry that this client has borrowed
+     */
+    void setPooledSession(final BapSshSessionPool.PooledSession pooledSession) {
+        this.pooledSession = pooledSession;
+    }
+
+    /** @param permit the turn to connect to the host, released when this client disconnects */
+    void setPermit(final BapSshConnectionLimiter.Permit permit) {
+        this.permit = permit;
+    }
+
+    /** @param uncompressedPermit the turn of the session without compression, released when it is disconnected */
+    void setUncompressedPermit(final BapSshConnectionLimiter.Permit uncompressedPermit) {
+        this.uncompressedPermit = uncompressedPermit;
+    }
+
+    /** @param throttle limits the bandwidth of the uploads, null for no limit */
+    void setThrottle(final BapSshBandwidth.Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    /** Configure how files are uploaded.
+     * @param sftpChannels number of SFTP channels to use, one to upload, and clean the remote directory, over the main channel only
+     * @param sftpOutstandingRequests number of write requests to keep in flight on each channel, zero for the JSch default
+     * @param sftpChunkSize number of bytes to read from the source file at a time, zero to let JSch read directly
+     * @param connectTimeout timeout in milliseconds to connect each additional channel
+     */
+    void configureUploads(final int sftpChannels, final int sftpOutstandingRequests, final int sftpChunkSize, final int connectTimeout) {
+        this.sftpOutstandingRequests = sftpOutstandingRequests;
+        this.sftpChunkSize = sftpChunkSize;
+        this.sftpChannels = sftpChannels;
+        this.connectTimeout = connectTimeout;
+        if (parallelUpload != null)
+            parallelUpload.disconnect();
+        parallelUpload = sftpChannels > 1 ? new BapSshParallelUpload(buildInfo, sftpChannels, connectTimeout) : null;
+    }
+
+    /** Select the digest used by avoidSameFileUpload to detect changed files.
+     * @param fileDigest the digest to use
+     */
+    void setFileDigest(final BapSshFileDigest fileDigest) {
+        this.fileDigest = fileDigest;
+    }
+
+    /** Set the name of the cache that records the files uploaded by this client, see {@link BapSshTransferCache#createTarget}.
+     * @param transferCacheTarget the name of the cache
+     */
+    void setTransferCacheTarget(final String transferCacheTarget) {
+        this.transferCacheTarget = transferCacheTarget;
+    }
+
+    /** Select how files are compared with the files already on the server before they are uploaded.
+     * @param remoteCompare the comparison to use
+     */
+    void setRemoteCompare(final BapSshRemoteCompare remoteCompare) {
+        this.remoteCompare = remoteCompare;
+    }
+
+    /** Select the compression of the session, with {@link BapSshCompression#ADAPTIVE} the files that are already
+     * compressed are sent over a second session that does not compress, connected when the first one is needed.
+     * @param compression the compression of the session
+     * @param uncompressedSessionFactory connects a session to the same host that does not compress
+     */
+    void setCompression(final BapSshCompression compression, final Supplier<Session> uncompressedSessionFactory) {
+        this.compression = compression;
+        this.uncompressedSessionFactory = uncompressedSessionFactory;
+    }
+
+    /** Apply the upload settings to a newly opened SFTP channel.
+     * @param channel the channel to configure
+     */
+    void configureSftpChannel(final ChannelSftp channel) {
+        if (sftpOutstandingRequests <= 0) return;
+        try {
+            channel.setBulkRequests(sftpOutstandingRequests);
+        } catch (JSchException jse) {
+            throw new BapPublisherException(Messages.exception_sftp_bulkRequests(sftpOutstandingRequests, jse.getLocalizedMessage()), jse);
+        }
+    }
+
+    private InputStream bufferForUpload(final InputStream inputStream) {
+        final InputStream throttled = throttle == null ? inputStream : throttle.wrap(inputStream);
+        return sftpChunkSize > 0 ? new BufferedInputStream(throttled, sftpChunkSize) : throttled;
+    }
+
     public void beginTransfers(final BapSshTransfer transfer) {
         if (disableExec) {
             if (!transfer.hasConfiguredSourceFiles())
@@ -108,19 +274,201 @@ public class BapSshClient extends BPDefaultClient<BapSshTransfer> {
             if (!transfer.hasConfiguredSourceFiles() && !transfer.hasExecCommand())
                 throw new BapPublisherException(Messages.exception_badTransferConfig());
         }
+        transferStatistics = statistics.beginTransfer();
+        transferStart = System.currentTimeMillis();
+
+        if (remoteCompare != BapSshRemoteCompare.NONE) {
+            // the server is authoritative, there is no need to also consult the history of uploads
+            targetFiles = new BapSshTargetFiles(buildInfo, remoteCompare, fileDigest, !disableExec);
+        } else if( isAvoidSameFileUpload() ) {
+          this.remoteResourceCache = new BapSshTransferCache(getJobDirectory(), transferCacheTarget, fileDigest);
+        }
+        cleanRemoteInBackground = transfer.isCleanRemoteInBackground();
+        execTimeout = transfer.getExecTimeout();
+        permissions.clear();
+        fileInfo = null;
+        if (transfer.hasConfiguredSourceFiles() && (targetFiles != null || remoteResourceCache != null
+                || transfer.isKeepFilePermissions() || BapSshTransport.fromName(transfer.getTransport()).isTar()
+                || compression == BapSshCompression.ADAPTIVE))
+            describeFiles(transfer);
+        deltaUpload = transfer.getDeltaThreshold() > 0 && !disableExec
+                ? new BapSshDeltaUpload(buildInfo, getSession(), transfer.getDeltaThreshold() * 1024L * 1024L, throttle) : null;
+        resumableUpload = transfer.getResumeThreshold() > 0
+                ? new BapSshResumableUpload(buildInfo, getSession(), transfer.getResumeThreshold() * 1024L * 1024L, fileDigest,
+                        !disableExec, getCompletedUploads()) : null;
+        if (parallelUpload != null)
+            parallelUpload.clear();
+    }
 
-        BPBuildEnv buildEnv = getBuildInfo().getCurrentBuildEnv();
-        String jobName = buildEnv.getEnvVars().get(BPBuildEnv.ENV_JOB_NAME);
+    /**
+     * @return the files completed by the attempts of this build, kept in the build info so that a retry can skip them
+     */
+    private BapSshResumableUpload.Completed getCompletedUploads() {
+        final Object completed = buildInfo.get(BapSshPublisherPlugin.COMPLETED_UPLOADS_CONTEXT_KEY);
+        if (completed instanceof BapSshResumableUpload.Completed)
+            return (BapSshResumableUpload.Completed) completed;
+        final BapSshResumableUpload.Completed created = new BapSshResumableUpload.Completed();
+        buildInfo.put(BapSshPublisherPlugin.COMPLETED_UPLOADS_CONTEXT_KEY, created);
+        return created;
+    }
 
-        FilePath jobConfigPath = getBuildInfo().getConfigDir()
+    private FilePath getJobDirectory() {
+        final Object jobDirectory = buildInfo.get(BapSshPublisherPlugin.JOB_DIRECTORY_CONTEXT_KEY);
+        if (jobDirectory instanceof FilePath)
+            return (FilePath) jobDirectory;
+        final BPBuildEnv buildEnv = getBuildInfo().getCurrentBuildEnv();
+        final String jobName = buildEnv.getEnvVars().get(BPBuildEnv.ENV_JOB_NAME);
+        return getBuildInfo().getConfigDir()
           .child("jobs")
           .child(jobName);
+    }
 
-        if( isAvoidSameFileUpload() )
-          this.remoteResourceCache = new BapSshTransferCache(jobConfigPath);
+    private void describeFiles(final BapSshTransfer transfer) {
+        final FilePath baseDirectory = buildInfo.getBaseDirectory();
+        if (baseDirectory == null) return;
+        try {
+            fileInfo = BapSshFileInfo.scan(baseDirectory, toAntPatterns(transfer.getSourceFiles(), transfer),
+                    toAntPatterns(transfer.getExcludes(), transfer), !transfer.isNoDefaultExcludes());
+            if (targetFiles != null)
+                targetFiles.setFileInfo(fileInfo);
+            if (remoteResourceCache != null)
+                remoteResourceCache.prepare(fileInfo);
+        } catch (IOException ioe) {
+            // the files are described and hashed one at a time as they are transferred instead
+            LOG.warn(Messages.log_fileInfo_scan(ioe.getLocalizedMessage()), ioe);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new BapPublisherException(Messages.log_fileInfo_scan(ie.getLocalizedMessage()), ie);
+        }
+    }
+
+    /**
+     * Send the files of a transfer as one tar stream extracted by {@code tar} on the server, see {@link BapSshTarUpload}.
+     *
+     * @param transfer the transfer
+     * @return number of files sent, -1 if the files must be transferred one at a time over SFTP instead
+     */
+    int transferAsTar(final BapSshTransfer transfer) {
+        if (disableExec || transfer.isMakeEmptyDirs() || fileInfo == null) {
+            buildInfo.printIfVerbose(Messages.console_tar_sftp());
+            return -1;
+        }
+        final String remoteDirectory = BapSshTarUpload.toRemoteDirectory(getAbsoluteRemoteRoot(), expandRemoteDirectory(transfer));
+        try {
+            if (transfer.isCleanRemote() && changeDirectory(remoteDirectory)) {
+                deleteTree();
+                changeToInitialDirectory();
+            }
+            final String removePrefix = Util.replaceMacro(transfer.getRemovePrefix(), buildInfo.getEnvVars());
+            final Set<String> flattened = new HashSet<>();
+            final List<Integer> selected = new ArrayList<>();
+            final List<String> names = new ArrayList<>();
+            final List<Integer> skipped = new ArrayList<>();
+            final long checkStart = System.currentTimeMillis();
+            for (int i = 0; i < fileInfo.size(); i++) {
+                final String name = BapSshTarUpload.toName(fileInfo.getPath(i), removePrefix, transfer.isFlatten());
+                if (transfer.isFlatten() && !flattened.add(name))
+                    throw new BapPublisherException(Messages.exception_tar_flattenDuplicate(name));
+                if (resumableUpload != null && resumableUpload.isComplete(sftp, fileInfo.getFilePath(i), toRemotePath(remoteDirectory, name))) {
+                    buildInfo.printIfVerbose(Messages.console_resume_complete(name));
+                    skipped.add(i);
+                    continue;
+                }
+                if (remoteResourceCache != null && !remoteResourceCache.checkCachedResource(fileInfo.getFilePath(i),
+                        BapSshTarUpload.toParentDirectory(remoteDirectory, name))) {
+                    buildInfo.printIfVerbose(Messages.console_skip(name));
+                    skipped.add(i);
+                    continue;
+                }
+                selected.add(i);
+                names.add(name);
+            }
+            if (remoteResourceCache != null)
+                transferStatistics().addSkipCheck(System.currentTimeMillis() - checkStart);
+            if (selected.isEmpty()) {
+                recordTarSkipped(skipped);
+                return 0;
+            }
+            final int[] indexes = selected.stream().mapToInt(Integer::intValue).toArray();
+            final BapSshTransport transport = BapSshTransport.fromName(transfer.getTransport());
+            // a compressed archive gains nothing from the compression of the session
+            final Session uncompressed = transport.isCompressed() ? getUncompressedSession() : null;
+            final BapSshTarUpload tarUpload = new BapSshTarUpload(buildInfo, uncompressed == null ? getSession() : uncompressed, transport,
+                    throttle);
+            if (tarUpload.upload(fileInfo, indexes, names.toArray(new String[0]), remoteDirectory,
+                    transfer.isKeepFilePermissions(), transfer.getExecTimeout())) {
+                recordTarSkipped(skipped);
+                for (int j = 0; j < indexes.length; j++) {
+                    transferStatistics().uploaded(fileInfo.getSize(indexes[j]));
+                    // tar keeps the modification times of the files it extracts
+                    if (resumableUpload != null)
+                        resumableUpload.completed(fileInfo.getFilePath(indexes[j]), toRemotePath(remoteDirectory, names.get(j)),
+                                fileInfo.getSize(indexes[j]), fileInfo.getLastModified(indexes[j]));
+                }
+                return indexes.length;
+            }
+            if (remoteResourceCache != null) {
+                // forget the files recorded as sent in the archive, they are checked again as they are uploaded
+                remoteResourceCache = new BapSshTransferCache(getJobDirectory(), transferCacheTarget, fileDigest);
+                remoteResourceCache.prepare(fileInfo);
+            }
+            return -1;
+        } catch (IOException | JSchException | SftpException e) {
+            throw new BapPublisherException(Messages.exception_tar(remoteDirectory, e.getLocalizedMessage()), e);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new BapPublisherException(Messages.exception_tar(remoteDirectory, ie.getLocalizedMessage()), ie);
+        }
+    }
+
+    private void recordTarSkipped(final List<Integer> skipped) {
+        // when the archive fails the files are checked, and counted, again as they are uploaded one at a time
+        for (int index : skipped)
+            transferStatistics().skipped(fileInfo.getSize(index));
+    }
+
+    private String expandRemoteDirectory(final BapSshTransfer transfer) {
+        final String expanded = Util.replaceMacro(Util.fixNull(transfer.getRemoteDirectory()), buildInfo.getEnvVars());
+        if (!transfer.isRemoteDirectorySDF())
+            return expanded;
+        return new SimpleDateFormat(expanded).format(buildInfo.getBuildTime().getTime());
+    }
+
+    private String toAntPatterns(final String patterns, final BapSshTransfer transfer) {
+        final String expanded = Util.fixEmptyAndTrim(Util.replaceMacro(patterns, buildInfo.getEnvVars()));
+        if (expanded == null) return null;
+        final String separator = StringUtils.defaultIfEmpty(transfer.getPatternSeparator(), DEFAULT_PATTERN_SEPARATOR);
+        return StringUtils.join(expanded.split(separator), ',');
     }
 
     public boolean changeDirectory(final String directory) {
+        // the first change is to the remote root, its absolute path is then read back from the channel
+        if (workingDirectory == null && !channelDirectoryChanged)
+            return changeChannelDirectory(directory);
+        final String target;
+        try {
+            target = BapSshRemoteDirectories.resolve(getWorkingDirectory(), directory);
+        } catch (SftpException sftpe) {
+            throw new BapPublisherException(Messages.exception_cwdException(directory, sftpe.getLocalizedMessage()), sftpe);
+        }
+        if (!remoteDirectories.isKnown(target)) {
+            try {
+                if (!sftp.stat(target).isDir()) return false;
+            } catch (SftpException sftpe) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug(Messages.log_sftp_stat(target, sftpe.getLocalizedMessage()));
+                }
+                return false;
+            }
+            remoteDirectories.add(target);
+        }
+        buildInfo.printIfVerbose(Messages.console_cd(directory));
+        workingDirectory = target;
+        success();
+        return true;
+    }
+
+    private boolean changeChannelDirectory(final String directory) {
         try {
             if (!sftp.stat(directory).isDir()) return false;
         } catch (SftpException sftpe) {
@@ -132,6 +480,7 @@ public class BapSshClient extends BPDefaultClient<BapSshTransfer> {
         try {
             buildInfo.printIfVerbose(Messages.console_cd(directory));
             sftp.cd(directory);
+            channelDirectoryChanged = true;
             success();
             return true;
         } catch (SftpException sftpe) {
@@ -139,107 +488,375 @@ public class BapSshClient extends BPDefaultClient<BapSshTransfer> {
         }
     }
 
+    /**
+     * Change the working directory of the SFTP channel to the current directory, for commands that take paths
+     * relative to it.
+     */
+    private void syncWorkingDirectory() {
+        try {
+            final String directory = getWorkingDirectory();
+            if (!directory.equals(sftp.pwd()))
+                sftp.cd(directory);
+        } catch (SftpException sftpe) {
+            throw new BapPublisherException(Messages.exception_cwdException(workingDirectory, sftpe.getLocalizedMessage()), sftpe);
+        }
+    }
+
+    /**
+     * Delete the contents of the current directory, see {@link BapSshRemoteDelete}.
+     */
     @Override
     public void deleteTree() throws SftpException {
-        delete();
+        final String directory = getWorkingDirectory();
+        remoteDirectories.forgetContents(directory);
+        final BapSshRemoteDelete remoteDelete = new BapSshRemoteDelete(buildInfo, getSession(), !disableExec, sftpChannels, connectTimeout);
+        if (cleanRemoteInBackground && remoteDelete.deleteInBackground(sftp, directory, getAbsoluteRemoteRoot()))
+            return;
+        remoteDelete.deleteContents(sftp, directory, getAbsoluteRemoteRoot());
     }
 
-    private void delete() throws SftpException {
-        // List source directory structure.
-        Vector<ChannelSftp.LsEntry> fileAndFolderList = sftp.ls(sftp.pwd());
-
-        // Iterate objects in the list to get file/folder names.
-        for (ChannelSftp.LsEntry item : fileAndFolderList) {
-            delete(item);
+    /**
+     * Create a directory, and any missing parents, under the current directory or at an absolute path.
+     */
+    public boolean makeDirectory(final String directory) {
+        if (directory.contains("\\")) return false;
+        final String target;
+        try {
+            target = BapSshRemoteDirectories.resolve(getWorkingDirectory(), directory);
+        } catch (SftpException sftpe) {
+            buildInfo.printIfVerbose(Messages.console_failure(sftpe.getLocalizedMessage()));
+            return false;
         }
-    }
-
-    private void delete(ChannelSftp.LsEntry entry) throws SftpException {
-        if (entry == null)
-            throw new BapPublisherException(Messages.exception_client_entryIsNull());
-        final String entryName = entry.getFilename();
-        if (".".equals(entryName) || "..".equals(entryName))
-            return;
-        if (entry.getAttrs().isDir()) {
-            if (!changeDirectory(entryName))
-                throw new BapPublisherException(Messages.exception_cwdException(entryName, "Error occurred changing directory"));
-            delete();
-            if (!changeDirectory(".."))
-                throw new BapPublisherException(Messages.exception_client_cdup());
-            try {
-                sftp.rmdir(entryName);
-            } catch(SftpException e) {
-                throw new BapPublisherException(Messages.exception_client_rmdir(entryName));
-            }
-        } else {
+        buildInfo.printIfVerbose(Messages.console_mkdir(directory));
+        final List<String> missing = remoteDirectories.missing(target);
+        if (missing.size() >= MKDIR_EXEC_LEVELS && !disableExec
+                && execQuietly("mkdir -p -- " + BapSshTargetFiles.quote(target))) {
+            missing.forEach(remoteDirectories::add);
+            success();
+            return true;
+        }
+        for (int i = missing.size() - 1; i >= 0; i--) {
+            final String path = missing.get(i);
             try {
-                sftp.rm(entryName);
-            } catch (SftpException e) {
-                throw new BapPublisherException(Messages.exception_client_dele(entryName));
+                sftp.mkdir(path);
+            } catch (SftpException sftpe) {
+                // a parent that is not known yet may already exist
+                if (i == 0 || !isDirectory(path)) {
+                    buildInfo.printIfVerbose(Messages.console_failure(sftpe.getLocalizedMessage()));
+                    return false;
+                }
             }
+            remoteDirectories.add(path);
         }
+        success();
+        return true;
     }
 
-    public boolean makeDirectory(final String directory) {
-        if (hasSubDirs(directory)) return false;
+    private boolean isDirectory(final String path) {
         try {
-            buildInfo.printIfVerbose(Messages.console_mkdir(directory));
-            sftp.mkdir(directory);
-            success();
-            return true;
+            return sftp.stat(path).isDir();
         } catch (SftpException sftpe) {
-            buildInfo.printIfVerbose(Messages.console_failure(sftpe.getLocalizedMessage()));
             return false;
         }
     }
 
+    /**
+     * Run a command that the client can do without, falling back to SFTP when it fails or does not complete within the
+     * exec timeout of the transfer, or the timeout of the session if the transfer has none.
+     */
+    private boolean execQuietly(final String command) {
+        final ChannelExec exec;
+        try {
+            exec = (ChannelExec) getSession().openChannel("exec");
+        } catch (JSchException jse) {
+            LOG.warn(Messages.exception_exec_open(jse.getLocalizedMessage()), jse);
+            return false;
+        }
+        try {
+            exec.setCommand(command);
+            exec.setInputStream(null);
+            buildInfo.printIfVerbose(Messages.console_exec_connecting(command));
+            exec.connect(getSession().getTimeout());
+            final long timeout = execTimeout > 0 ? execTimeout : getSession().getTimeout() > 0
+                    ? getSession().getTimeout() : SshTransferOptions.DEFAULT_EXEC_TIMEOUT;
+            if (!BapSshExecMonitor.await(exec, timeout)) {
+                buildInfo.println(Messages.console_exec_quietTimeout(command, timeout));
+                return false;
+            }
+            return exec.getExitStatus() == 0;
+        } catch (JSchException jse) {
+            LOG.warn(Messages.exception_exec_connect(jse.getLocalizedMessage()), jse);
+            return false;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new BapPublisherException(Messages.exception_exec_interrupted(command), ie);
+        } finally {
+            disconnectExecQuietly(exec);
+        }
+    }
+
     public void transferFile(final BapSshTransfer bapSshTransfer, final FilePath filePath,
                              final InputStream inputStream) throws SftpException, IOException, InterruptedException {
+        final String remoteDirectory = getWorkingDirectory();
+        if (resumableUpload != null && resumableUpload.isComplete(sftp, filePath, toRemotePath(remoteDirectory, filePath.getName()))) {
+            buildInfo.printIfVerbose(Messages.console_resume_complete(filePath.getName()));
+            transferStatistics().skipped(sizeOf(filePath));
+            return;
+        }
+        if (targetFiles != null) {
+            final long checkStart = System.currentTimeMillis();
+            final BapSshTargetFiles.Decision decision = targetFiles.check(sftp, filePath, remoteDirectory,
+                    sizeOf(filePath), lastModified(filePath, indexOf(filePath)));
+            transferStatistics().addSkipCheck(System.currentTimeMillis() - checkStart);
+            if (decision == BapSshTargetFiles.Decision.SKIP) {
+                buildInfo.printIfVerbose(Messages.console_remoteCompare_skip(filePath.getName()));
+                transferStatistics().skipped(sizeOf(filePath));
+            }
+            if (decision != BapSshTargetFiles.Decision.UPLOAD)
+                return;
+        } else if (remoteResourceCache != null) {
+            final long checkStart = System.currentTimeMillis();
+            final boolean changed = remoteResourceCache.checkCachedResource(filePath, remoteDirectory);
+            transferStatistics().addSkipCheck(System.currentTimeMillis() - checkStart);
+            if (!changed) {
+                buildInfo.printIfVerbose(Messages.console_skip(filePath.getName()));
+                transferStatistics().skipped(sizeOf(filePath));
+                return;
+            }
+        }
+        final ChannelSftp channel = channelFor(filePath, sftp);
+        if (channel != sftp) {
+            uploadQueuedFile(channel, bapSshTransfer, filePath, remoteDirectory);
+            return;
+        }
+        if (parallelUpload != null) {
+            // the stream is not used, the file is read again when the queued files are uploaded in endTransfers
+            parallelUpload.queue(bapSshTransfer, filePath, remoteDirectory);
+            return;
+        }
         final String fileName = filePath.getName();
+        final String remotePath = toRemotePath(remoteDirectory, fileName);
+        if (deltaUpload != null && deltaUpload.upload(sftp, filePath, remotePath, bapSshTransfer.getExecTimeout())) {
+            afterUpload(sftp, bapSshTransfer, filePath, remoteDirectory, remotePath);
+            return;
+        }
         buildInfo.printIfVerbose(Messages.console_put(fileName));
-        sftp.put(inputStream, fileName);
-
-        if (bapSshTransfer.isKeepFilePermissions()) {
-          final FilePath parentFle = filePath.getParent();
-          if (parentFle != null) {
-            final FilePath directory = parentFle.absolutize();
-            final String remoteDir = sftp.pwd();
-            int directoryMode = directory.mode();
-            if (directoryMode >= 0) {
-              buildInfo.printIfVerbose(Messages.console_chmod(Integer.toString(directoryMode, 8), fileName));
-              sftp.chmod(directoryMode, remoteDir);
-              success();
-            }
+        if (resumableUpload != null && resumableUpload.isResumable(sizeOf(filePath)))
+            resumableUpload.upload(sftp, filePath, remotePath, this::bufferForUpload, bapSshTransfer.getExecTimeout());
+        else
+            sftp.put(bufferForUpload(inputStream), remotePath);
+        afterUpload(sftp, bapSshTransfer, filePath, remoteDirectory, remotePath);
+    }
 
-            int fileMode = filePath.mode();
-            if (fileMode >= 0) {
-              buildInfo.printIfVerbose(Messages.console_chmod(Integer.toString(fileMode, 8), fileName));
-              sftp.chmod(fileMode, fileName);
-              success();
+    private void uploadQueuedFile(final ChannelSftp channel, final BapSshTransfer bapSshTransfer, final FilePath filePath,
+                                  final String remoteDirectory) throws SftpException, IOException, InterruptedException {
+        final String fileName = filePath.getName();
+        final String remotePath = toRemotePath(remoteDirectory, fileName);
+        if (deltaUpload == null || !deltaUpload.upload(channel, filePath, remotePath, bapSshTransfer.getExecTimeout())) {
+            buildInfo.printIfVerbose(Messages.console_put(remotePath));
+            if (resumableUpload != null && resumableUpload.isResumable(sizeOf(filePath))) {
+                resumableUpload.upload(channel, filePath, remotePath, this::bufferForUpload, bapSshTransfer.getExecTimeout());
+            } else {
+                try (InputStream inputStream = bufferForUpload(filePath.read())) {
+                    channel.put(inputStream, remotePath);
+                }
             }
-          }
         }
+        afterUpload(channel, bapSshTransfer, filePath, remoteDirectory, remotePath);
     }
 
-    private void success() {
-        buildInfo.printIfVerbose(Messages.console_success());
+    /**
+     * @return the channel of the session that does not compress for a large file that is already compressed, otherwise
+     * the given channel
+     */
+    private ChannelSftp channelFor(final FilePath filePath, final ChannelSftp channel) throws IOException, InterruptedException {
+        if (compression != BapSshCompression.ADAPTIVE)
+            return channel;
+        if (!compression.isSentUncompressed(filePath.getName(), sizeOf(filePath)))
+            return channel;
+        final ChannelSftp uncompressed = getUncompressedSftp();
+        return uncompressed == null ? channel : uncompressed;
+    }
+
+    private Session getUncompressedSession() {
+        if (uncompressedSession != null || uncompressedSessionFactory == null)
+            return uncompressedSession;
+        final Supplier<Session> factory = uncompressedSessionFactory;
+        // a failure is reported once, the files then all go over the compressed session
+        uncompressedSessionFactory = null;
+        try {
+            uncompressedSession = factory.get();
+            buildInfo.printIfVerbose(Messages.console_compression_uncompressed());
+        } catch (BapPublisherException bpe) {
+            buildInfo.println(Messages.console_compression_failed(bpe.getLocalizedMessage()));
+        }
+        return uncompressedSession;
     }
 
-    private boolean hasSubDirs(final String directory) {
-        return directory.contains("/") || directory.contains("\\");
+    private ChannelSftp getUncompressedSftp() {
+        if (uncompressedSftp != null || getUncompressedSession() == null)
+            return uncompressedSftp;
+        try {
+            final ChannelSftp channel = (ChannelSftp) uncompressedSession.openChannel("sftp");
+            channel.connect(getSession().getTimeout());
+            configureSftpChannel(channel);
+            uncompressedSftp = channel;
+        } catch (JSchException | BapPublisherException e) {
+            buildInfo.println(Messages.console_compression_failed(e.getLocalizedMessage()));
+            disconnectUncompressed();
+        }
+        return uncompressedSftp;
+    }
+
+    private void disconnectUncompressed() {
+        final Session session = uncompressedSession;
+        uncompressedSession = null;
+        uncompressedSessionFactory = null;
+        if (uncompressedSftp != null && uncompressedSftp.isConnected())
+            uncompressedSftp.disconnect();
+        uncompressedSftp = null;
+        try {
+            if (session != null && session.isConnected())
+                session.disconnect();
+        } finally {
+            if (uncompressedPermit != null)
+                uncompressedPermit.release();
+            uncompressedPermit = null;
+        }
+    }
+
+    private static String toRemotePath(final String remoteDirectory, final String fileName) {
+        return remoteDirectory.endsWith("/") ? remoteDirectory + fileName : remoteDirectory + "/" + fileName;
+    }
+
+    private void afterUpload(final ChannelSftp channel, final BapSshTransfer bapSshTransfer, final FilePath filePath,
+                             final String remoteDirectory, final String remotePath) throws SftpException, IOException, InterruptedException {
+        transferStatistics().uploaded(sizeOf(filePath));
+        if (remoteCompare != BapSshRemoteCompare.NONE || resumableUpload != null)
+            keepModificationTime(channel, filePath, remotePath);
+        // a retry of the build skips the file, however it was uploaded, while it is unchanged on the server
+        if (resumableUpload != null)
+            resumableUpload.completed(filePath, remotePath, sizeOf(filePath), lastModified(filePath, indexOf(filePath)));
+
+        if (bapSshTransfer.isKeepFilePermissions())
+            keepFilePermissions(filePath, remoteDirectory, remotePath);
+    }
+
+    private void keepModificationTime(final ChannelSftp channel, final FilePath filePath, final String remotePath)
+            throws SftpException, IOException, InterruptedException {
+        // the comparison with the server, and the check of a retry for completed files, rely on the uploaded file
+        // having the modification time of the local file
+        channel.setMtime(remotePath, BapSshTargetFiles.toSeconds(lastModified(filePath, indexOf(filePath))));
+    }
+
+    private int indexOf(final FilePath filePath) {
+        return fileInfo == null ? -1 : fileInfo.indexOf(filePath);
+    }
+
+    private long sizeOf(final FilePath filePath) throws IOException, InterruptedException {
+        final int index = indexOf(filePath);
+        return index < 0 ? filePath.length() : fileInfo.getSize(index);
+    }
+
+    private long lastModified(final FilePath filePath, final int index) throws IOException, InterruptedException {
+        return index < 0 ? filePath.lastModified() : fileInfo.getLastModified(index);
+    }
+
+    private void keepFilePermissions(final FilePath filePath, final String remoteDirectory, final String remotePath)
+            throws IOException, InterruptedException {
+        final FilePath parent = filePath.getParent();
+        if (parent == null) return;
+        final int index = indexOf(filePath);
+        final int directoryMode = index < 0 ? parent.absolutize().mode() : fileInfo.getDirectoryMode(index);
+        if (directoryMode >= 0)
+            permissions.setDirectoryMode(remoteDirectory, directoryMode);
+        final int fileMode = index < 0 ? filePath.mode() : fileInfo.getMode(index);
+        if (fileMode >= 0)
+            permissions.setFileMode(remotePath, fileMode);
+    }
+
+    private void applyPermissions() {
+        try {
+            final List<ChannelSftp> channels = parallelUpload == null
+                    ? Collections.singletonList(sftp) : parallelUpload.getChannels(sftp);
+            permissions.apply(buildInfo, channels, disableExec ? null : this::execQuietly);
+            success();
+        } catch (SftpException sftpe) {
+            throw new BapPublisherException(Messages.exception_permissions(sftpe.getLocalizedMessage()), sftpe);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new BapPublisherException(Messages.exception_permissions(ie.getLocalizedMessage()), ie);
+        }
+    }
+
+    private void success() {
+        buildInfo.printIfVerbose(Messages.console_success());
     }
 
     public void endTransfers(final BapSshTransfer transfer) {
-        if( isAvoidSameFileUpload() ) {
+        if (targetFiles != null) {
+            if (targetFiles.hasCandidates())
+                uploadChangedFiles(transfer);
+            targetFiles = null;
+        }
+
+        if (parallelUpload != null && parallelUpload.hasQueuedFiles()) {
+            try {
+                parallelUpload.upload(sftp, getSession(), this::configureSftpChannel, this::uploadQueuedFile);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new BapPublisherException(Messages.exception_parallelUpload(ie.getLocalizedMessage()), ie);
+            }
+        }
+
+        if (!permissions.isEmpty())
+            applyPermissions();
+
+        if (remoteResourceCache != null) {
           remoteResourceCache.save();
           remoteResourceCache = null;
         }
 
+        if (transferStart > 0) {
+            transferStatistics().addUpload(System.currentTimeMillis() - transferStart);
+            transferStart = 0;
+        }
+
         if (!disableExec && transfer.hasExecCommand()) {
-            if (transfer.isUseSftpForExec())
-                sftpExec(transfer);
-            else
-                exec(transfer);
+            final long execStart = System.currentTimeMillis();
+            try {
+                if (transfer.isUseSftpForExec())
+                    sftpExec(transfer);
+                else
+                    exec(transfer);
+            } finally {
+                // the commands may have removed or replaced any of the directories known to exist
+                remoteDirectories.clear();
+                transferStatistics().addExec(System.currentTimeMillis() - execStart);
+            }
+        }
+    }
+
+    private void uploadChangedFiles(final BapSshTransfer transfer) {
+        try {
+            final List<BapSshTargetFiles.Candidate> held = targetFiles.getCandidates();
+            final long checkStart = System.currentTimeMillis();
+            final List<BapSshTargetFiles.Candidate> verified = targetFiles.verify(sftp, getSession(), transfer.getExecTimeout());
+            transferStatistics().addSkipCheck(System.currentTimeMillis() - checkStart);
+            held.removeAll(verified);
+            for (BapSshTargetFiles.Candidate same : held)
+                transferStatistics().skipped(sizeOf(same.getFilePath()));
+            for (BapSshTargetFiles.Candidate changed : verified) {
+                if (parallelUpload != null)
+                    parallelUpload.queue(transfer, changed.getFilePath(), changed.getRemoteDirectory());
+                else
+                    uploadQueuedFile(channelFor(changed.getFilePath(), sftp), transfer, changed.getFilePath(), changed.getRemoteDirectory());
+            }
+        } catch (SftpException | IOException e) {
+            throw new BapPublisherException(Messages.exception_remoteCompare_upload(e.getLocalizedMessage()), e);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new BapPublisherException(Messages.exception_remoteCompare_upload(ie.getLocalizedMessage()), ie);
         }
     }
 
@@ -267,6 +884,7 @@ public class BapSshClient extends BPDefaultClient<BapSshTransfer> {
         try {
             buildInfo.printIfVerbose(Messages.sftpExec_deleteDirectory(pathName));
             sftp.rmdir(pathName);
+            remoteDirectories.forget(BapSshRemoteDirectories.resolve(getWorkingDirectory(), pathName));
             success();
         } catch (SftpException sftpe) {
             buildInfo.println(Messages.console_failure(sftpe.getLocalizedMessage()));
@@ -422,13 +1040,15 @@ public class BapSshClient extends BPDefaultClient<BapSshTransfer> {
         int maxSize;
 
         changeDirectory(getAbsoluteRemoteRoot());
+        syncWorkingDirectory();
 
         for (String commandToken:parseAllCommands(transfer)) {
             String[] command = parseCommand(commandToken);
             try {
                 switch (command[0]) {
                     case "cd" :
-                        changeDirectory(command[1]);
+                        if (changeDirectory(command[1]))
+                            syncWorkingDirectory();
                         break;
                     case "symlink" :
                         makeSymlink(command[1], command[2]);
@@ -468,22 +1088,24 @@ public class BapSshClient extends BPDefaultClient<BapSshTransfer> {
 
     private void exec(final BapSshTransfer transfer) {
         ChannelExec exec = null;
+        final BapSshExecOutput output = new BapSshExecOutput(buildInfo);
         try {
             exec = openExecChannel();
             exec.setPty(transfer.isUsePty());
             exec.setAgentForwarding(transfer.isUseAgentForwarding());
             exec.setInputStream(null);
-            if(buildInfo.isVerbose()) {
-                exec.setOutputStream(buildInfo.getListener().getLogger(), true);
-                exec.setErrStream(buildInfo.getListener().getLogger(), true);
-            }
+            exec.setOutputStream(output, true);
+            exec.setErrStream(output, true);
             connectExecChannel(exec, Util.replaceMacro(transfer.getExecCommand(), buildInfo.getEnvVars()));
-            waitForExec(exec, transfer.getExecTimeout());
+            waitForExec(exec, transfer.getExecTimeout(), output);
             final int status = exec.getExitStatus();
-            if (status != 0)
+            if (status != 0) {
+                output.printTail();
                 throw new BapPublisherException(Messages.exception_exec_exitStatus(status));
+            }
         } finally {
             disconnectExecQuietly(exec);
+            output.finish();
         }
     }
 
@@ -527,12 +1149,69 @@ public class BapSshClient extends BPDefaultClient<BapSshTransfer> {
             exec.disconnect();
     }
 
+    /**
+     * Send the statistics of this client to the build, once, see {@link BapSshTransferStatisticsAction}.
+     */
+    private void sendStatistics() {
+        if (statisticsSent) return;
+        statisticsSent = true;
+        final Object collector = buildInfo.get(BapSshPublisherPlugin.STATISTICS_CONTEXT_KEY);
+        if (!(collector instanceof OutputStream)) return;
+        try {
+            final OutputStream out = (OutputStream) collector;
+            out.write(statistics.toJson());
+            out.flush();
+        } catch (IOException ioe) {
+            LOG.warn(Messages.log_statistics_send(statistics.getConfigName(), ioe.getLocalizedMessage()), ioe);
+        }
+    }
+
     public void disconnect() {
-        disconnectSftp();
-        disconnectSession();
+        sendStatistics();
+        try {
+            if (pooledSession != null) {
+                releasePooledSession(true);
+                return;
+            }
+            disconnectSftp();
+            disconnectSession();
+        } finally {
+            releasePermit();
+        }
+    }
+
+    private void releasePermit() {
+        if (permit != null)
+            permit.release();
+    }
+
+    private void releasePooledSession(final boolean keepSftp) {
+        final BapSshSessionPool.PooledSession pooled = pooledSession;
+        pooledSession = null;
+        disconnectUploadChannels();
+        if (keepSftp) {
+            pooled.setSftp(sftp, getAbsoluteRemoteRoot());
+        } else {
+            try {
+                disconnectSftp();
+            } catch (Exception e) {
+                LOG.warn(Messages.exception_disconnect_sftp(e.getLocalizedMessage()));
+            }
+            pooled.setSftp(null, null);
+        }
+        sftp = null;
+        sessions.clear();
+        BapSshSessionPool.get().release(pooled);
+    }
+
+    private void disconnectUploadChannels() {
+        if (parallelUpload != null)
+            parallelUpload.disconnect();
+        disconnectUncompressed();
     }
 
     private void disconnectSftp() {
+        disconnectUploadChannels();
         if (sftp == null) return;
         if (sftp.isConnected())
             sftp.disconnect();
@@ -547,55 +1226,43 @@ public class BapSshClient extends BPDefaultClient<BapSshTransfer> {
     }
 
     public void disconnectQuietly() {
+        sendStatistics();
         try {
-            disconnectSftp();
-        } catch (Exception e) {
-            LOG.warn(Messages.exception_disconnect_sftp(e.getLocalizedMessage()));
-        }
-        try {
-            disconnectSession();
-        } catch (Exception e) {
-            LOG.warn(Messages.exception_disconnect_session(e.getLocalizedMessage()));
+            if (pooledSession != null) {
+                // the state of the SFTP channel is unknown after a failure, the session itself can still be reused
+                releasePooledSession(false);
+                return;
+            }
+            try {
+                disconnectSftp();
+            } catch (Exception e) {
+                LOG.warn(Messages.exception_disconnect_sftp(e.getLocalizedMessage()));
+            }
+            try {
+                disconnectSession();
+            } catch (Exception e) {
+                LOG.warn(Messages.exception_disconnect_session(e.getLocalizedMessage()));
+            }
+        } finally {
+            releasePermit();
         }
     }
 
-    private void waitForExec(final ChannelExec exec, final long timeout) {
+    private void waitForExec(final ChannelExec exec, final long timeout, final BapSshExecOutput output) {
         final long start = System.currentTimeMillis();
-        final Thread waiter = new ExecCheckThread(exec);
-        waiter.start();
         try {
-            waiter.join(timeout);
+            BapSshExecMonitor.await(exec, timeout);
         } catch (InterruptedException ie) {
-            waiter.interrupt();
+            Thread.currentThread().interrupt();
             LOG.warn(ie.getMessage(), ie);
         }
         final long duration = System.currentTimeMillis() - start;
-        if (waiter.isAlive()) {
-            waiter.interrupt();
-        }
-        if (!exec.isClosed())
+        output.finish();
+        if (!exec.isClosed()) {
+            output.printTail();
             throw new BapPublisherException(Messages.exception_exec_timeout(duration));
-        buildInfo.println(Messages.console_exec_completed(duration));
-    }
-
-    private static final class ExecCheckThread extends Thread {
-        private static final int POLL_TIME = 200;
-        private final ChannelExec exec;
-
-        ExecCheckThread(final ChannelExec exec) {
-            this.exec = exec;
-        }
-        @Override
-        public void run() {
-            try {
-                while (!exec.isClosed()) {
-                    Thread.sleep(POLL_TIME);
-                }
-            } catch (InterruptedException ie) {
-                interrupt();
-                LOG.warn(ie.getMessage(), ie);
-            }
         }
+        buildInfo.println(Messages.console_exec_completed(duration));
     }
 
 }
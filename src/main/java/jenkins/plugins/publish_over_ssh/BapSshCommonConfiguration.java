@@ -32,12 +32,14 @@ import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 public class BapSshCommonConfiguration extends BapSshKeyInfo implements Describable<BapSshCommonConfiguration> {
 
     private static final long serialVersionUID = 1L;
 
     private final boolean disableAllExec;
+    private int maxBandwidth;
 
     @DataBoundConstructor
     public BapSshCommonConfiguration(final String encryptedPassphrase, final String key, 
@@ -50,23 +52,35 @@ public class BapSshCommonConfiguration extends BapSshKeyInfo implements Describa
         return disableAllExec;
     }
 
+    public int getMaxBandwidth() {
+        return maxBandwidth;
+    }
+
+    @DataBoundSetter
+    public void setMaxBandwidth(final int maxBandwidth) {
+        this.maxBandwidth = maxBandwidth;
+    }
+
     public BapSshCommonConfigurationDescriptor getDescriptor() {
         return Jenkins.getInstance().getDescriptorByType(BapSshCommonConfigurationDescriptor.class);
     }
 
     protected EqualsBuilder addToEquals(final EqualsBuilder builder, final BapSshCommonConfiguration that) {
         return super.addToEquals(builder, that)
-            .append(disableAllExec, that.disableAllExec);
+            .append(disableAllExec, that.disableAllExec)
+            .append(maxBandwidth, that.maxBandwidth);
     }
 
     protected HashCodeBuilder addToHashCode(final HashCodeBuilder builder) {
         return super.addToHashCode(builder)
-            .append(disableAllExec);
+            .append(disableAllExec)
+            .append(maxBandwidth);
     }
 
     protected ToStringBuilder addToToString(final ToStringBuilder builder) {
         return super.addToToString(builder)
-            .append("disableAllExec", disableAllExec);
+            .append("disableAllExec", disableAllExec)
+            .append("maxBandwidth", maxBandwidth);
     }
 
     public boolean equals(final Object that) {
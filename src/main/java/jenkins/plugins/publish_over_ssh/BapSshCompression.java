@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Compression of the SSH connection to a host.
+ */
+public enum BapSshCompression {
+
+    /** Do not compress. */
+    NONE(null),
+
+    /** Compress from the start of the connection. */
+    ZLIB("zlib"),
+
+    /** Compress once authenticated, as OpenSSH prefers. */
+    ZLIB_OPENSSH("zlib@openssh.com"),
+
+    /**
+     * As {@link #ZLIB_OPENSSH}, and send the files that are already compressed over a second connection that does not
+     * compress, so that CPU is not spent compressing them again.
+     */
+    ADAPTIVE("zlib@openssh.com");
+
+    public static final int DEFAULT_LEVEL = 6;
+
+    /** Files smaller than this are sent over the compressed connection, whatever they hold. */
+    static final long ADAPTIVE_MIN_SIZE = 64 * 1024;
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "7z", "apk", "avi", "br", "bz2", "deb", "ear", "gif", "gz", "jar", "jpeg", "jpg", "lz4", "lzma", "mkv", "mov",
+            "mp3", "mp4", "nupkg", "ogg", "png", "rar", "rpm", "tbz2", "tgz", "txz", "war", "webm", "webp", "whl",
+            "woff", "woff2", "xz", "zip", "zst"));
+
+    private final String algorithm;
+
+    BapSshCompression(final String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Add the compression settings to the configuration of a session.
+     *
+     * @param properties configuration of the session
+     * @param level zlib compression level, 1 to 9, 0 for {@link #DEFAULT_LEVEL}
+     */
+    void configure(final Properties properties, final int level) {
+        if (algorithm == null) return;
+        // a server that does not offer compression can still be used
+        properties.put("compression.s2c", algorithm + ",none");
+        properties.put("compression.c2s", algorithm + ",none");
+        properties.put("compression_level", Integer.toString(level > 0 ? level : DEFAULT_LEVEL));
+    }
+
+    /**
+     * @param fileName name of a file
+     * @param size size of the file in bytes
+     * @return true if the file should be sent over the connection that does not compress
+     */
+    boolean isSentUncompressed(final String fileName, final long size) {
+        if (this != ADAPTIVE || size < ADAPTIVE_MIN_SIZE)
+            return false;
+        final int dot = fileName.lastIndexOf('.');
+        return dot >= 0 && COMPRESSED_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Find the compression by name, falling back to NONE for an empty or unknown name.
+     *
+     * @param name the name of the compression
+     * @return the compression
+     */
+    public static BapSshCompression fromName(final String name) {
+        for (BapSshCompression compression : values()) {
+            if (compression.name().equals(name))
+                return compression;
+        }
+        return NONE;
+    }
+
+}
@@ -0,0 +1,418 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import hudson.remoting.Channel;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import jenkins.plugins.publish_over.BapPublisherException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.WeakHashMap;
+
+/**
+ * Controller wide limit on the number of connections open to each host configuration at the same time.
+ *
+ * Publishers that would go over the limit queue for their turn instead of connecting, so that the server sees a steady
+ * number of sessions rather than a storm of connections that it drops. The queue of a host is ordered by priority,
+ * highest first, and then by arrival. A publisher holds its place from before it connects until its client disconnects.
+ * The second session of adaptive compression takes a place of its own, and is not opened when none is free. Sessions
+ * left idle in the {@link BapSshSessionPool} are outside of the limit, they are bounded by the pool's maxSessions.
+ *
+ * Publishers that run on an agent go through the {@link Gate} that the build step puts in the build info, which calls
+ * back to the controller, so the limit holds whichever node the builds publish from. The connections of an agent are
+ * given back when its channel closes, so an agent that goes away does not keep its place.
+ */
+public final class BapSshConnectionLimiter {
+
+    private static final Log LOG = LogFactory.getLog(BapSshConnectionLimiter.class);
+    private static final BapSshConnectionLimiter INSTANCE = new BapSshConnectionLimiter();
+    private static final Map<Channel, ChannelGate> CHANNEL_GATES = new WeakHashMap<>();
+
+    private final Map<String, Host> hosts = new HashMap<>();
+    private long arrivals;
+    private long tickets;
+
+    BapSshConnectionLimiter() { }
+
+    public static BapSshConnectionLimiter get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return a gate to this limiter, which can be sent to an agent to reach the limiter of the controller
+     */
+    public static Gate gate() {
+        return new RemoteGate();
+    }
+
+    /**
+     * Take a connection to the host if one is free and nobody is queued for it.
+     *
+     * @param configName name of the host configuration
+     * @param maxConnections the most connections to the host at the same time
+     * @return the ticket to release, or null if the caller has to queue with {@link #acquire}
+     */
+    public synchronized Ticket tryAcquire(final String configName, final int maxConnections) {
+        final Host host = hosts.computeIfAbsent(configName, k -> new Host());
+        host.maxConnections = maxConnections;
+        if (!host.queue.isEmpty() || host.active >= maxConnections) {
+            removeIfUnused(configName, host);
+            return null;
+        }
+        host.active++;
+        return new Ticket(tickets++, configName, 0, 0);
+    }
+
+    /**
+     * Wait in the queue of the host until a connection is free.
+     *
+     * @param configName name of the host configuration
+     * @param maxConnections the most connections to the host at the same time
+     * @param priority publishers with a higher priority are let in first, in order of arrival within a priority
+     * @param timeout time in milliseconds to wait
+     * @return the ticket to release once the connection is closed
+     * @throws BapPublisherException if no connection was free in time, or the wait was interrupted
+     */
+    public synchronized Ticket acquire(final String configName, final int maxConnections, final int priority, final long timeout) {
+        final Host host = hosts.computeIfAbsent(configName, k -> new Host());
+        host.maxConnections = maxConnections;
+        final Waiter waiter = new Waiter(priority, arrivals++);
+        final int queued = host.queue.size();
+        host.queue.add(waiter);
+        admit(host);
+        final long start = System.currentTimeMillis();
+        final long deadline = start + timeout;
+        try {
+            while (!waiter.admitted) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    throw new BapPublisherException(Messages.exception_limiter_timeout(configName, timeout, maxConnections));
+                wait(remaining);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new BapPublisherException(Messages.exception_limiter_interrupted(configName), ie);
+        } finally {
+            if (!waiter.admitted) {
+                host.queue.remove(waiter);
+                admit(host);
+                removeIfUnused(configName, host);
+            }
+        }
+        return new Ticket(tickets++, configName, System.currentTimeMillis() - start, queued);
+    }
+
+    /**
+     * Give the connection back and let the next publisher in the queue in.
+     *
+     * @param ticket the ticket returned by {@link #tryAcquire} or {@link #acquire}
+     */
+    public synchronized void release(final Ticket ticket) {
+        final Host host = hosts.get(ticket.configName);
+        if (host == null) return;
+        host.active--;
+        admit(host);
+        removeIfUnused(ticket.configName, host);
+    }
+
+    /**
+     * @param configName name of the host configuration
+     * @return the number of connections to the host that are let in
+     */
+    public synchronized int getActive(final String configName) {
+        final Host host = hosts.get(configName);
+        return host == null ? 0 : host.active;
+    }
+
+    /**
+     * @param configName name of the host configuration
+     * @return the number of publishers waiting for a connection to the host
+     */
+    public synchronized int getQueued(final String configName) {
+        final Host host = hosts.get(configName);
+        return host == null ? 0 : host.queue.size();
+    }
+
+    private void admit(final Host host) {
+        boolean admitted = false;
+        while (!host.queue.isEmpty() && host.active < host.maxConnections) {
+            host.queue.poll().admitted = true;
+            host.active++;
+            admitted = true;
+        }
+        if (admitted) notifyAll();
+    }
+
+    private void removeIfUnused(final String configName, final Host host) {
+        if (host.active <= 0 && host.queue.isEmpty())
+            hosts.remove(configName);
+    }
+
+    /**
+     * Take a connection to a host for a client, printing to the console while the publisher waits for its turn.
+     *
+     * @param gate the limiter, or a gate to the limiter on the controller
+     * @param buildInfo the build info of the publisher
+     * @param configName name of the host configuration
+     * @param maxConnections the most connections to the host at the same time, zero or less for no limit
+     * @param priority the priority of the publisher in the queue
+     * @param timeout time in milliseconds to wait
+     * @return the permit that the client releases when it disconnects
+     */
+    static Permit enter(final Gate gate, final BPBuildInfo buildInfo, final String configName,
+                        final int maxConnections, final int priority, final long timeout) {
+        if (maxConnections <= 0) return new Permit(null, null);
+        Ticket ticket = gate.tryAcquire(configName, maxConnections);
+        if (ticket == null) {
+            buildInfo.println(Messages.console_limiter_waiting(configName, maxConnections));
+            ticket = gate.acquire(configName, maxConnections, priority, timeout);
+            buildInfo.println(Messages.console_limiter_admitted(configName, ticket.getWaitedMillis(), ticket.getQueuedAhead()));
+        }
+        return new Permit(gate, ticket);
+    }
+
+    /**
+     * Take one more connection to a host for a client that already holds a permit, without queueing, as a client
+     * waiting for a second connection while holding the first could wait for itself.
+     *
+     * @param gate the limiter, or a gate to the limiter on the controller
+     * @param configName name of the host configuration
+     * @param maxConnections the most connections to the host at the same time, zero or less for no limit
+     * @return the permit that the client releases when it disconnects the connection, or null if none is free
+     */
+    static Permit tryEnter(final Gate gate, final String configName, final int maxConnections) {
+        if (maxConnections <= 0) return new Permit(null, null);
+        final Ticket ticket = gate.tryAcquire(configName, maxConnections);
+        return ticket == null ? null : new Permit(gate, ticket);
+    }
+
+    /**
+     * The operations of the limiter, so that an agent can reach the limiter of the controller.
+     */
+    public interface Gate {
+
+        Ticket tryAcquire(String configName, int maxConnections);
+
+        Ticket acquire(String configName, int maxConnections, int priority, long timeout);
+
+        void release(Ticket ticket);
+
+    }
+
+    /**
+     * A connection to a host that has been let in.
+     */
+    public static final class Ticket implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long id;
+        private final String configName;
+        private final long waitedMillis;
+        private final int queuedAhead;
+
+        Ticket(final long id, final String configName, final long waitedMillis, final int queuedAhead) {
+            this.id = id;
+            this.configName = configName;
+            this.waitedMillis = waitedMillis;
+            this.queuedAhead = queuedAhead;
+        }
+
+        public String getConfigName() {
+            return configName;
+        }
+
+        public long getWaitedMillis() {
+            return waitedMillis;
+        }
+
+        /**
+         * @return the number of publishers that were already waiting when this one joined the queue
+         */
+        public int getQueuedAhead() {
+            return queuedAhead;
+        }
+
+    }
+
+    /**
+     * Held by a client until it disconnects, releasing it more than once has no effect.
+     */
+    static final class Permit {
+
+        private final Gate gate;
+        private Ticket ticket;
+
+        Permit(final Gate gate, final Ticket ticket) {
+            this.gate = gate;
+            this.ticket = ticket;
+        }
+
+        synchronized void release() {
+            if (ticket == null) return;
+            final Ticket released = ticket;
+            ticket = null;
+            try {
+                gate.release(released);
+            } catch (RuntimeException re) {
+                // the controller gives the connections of an agent back when the channel closes
+                LOG.warn(Messages.log_limiter_release(released.getConfigName(), re.getLocalizedMessage()));
+            }
+        }
+
+    }
+
+    private static final class Host {
+        private final PriorityQueue<Waiter> queue = new PriorityQueue<>(
+                Comparator.comparingInt((Waiter waiter) -> -waiter.priority).thenComparingLong(waiter -> waiter.arrival));
+        private int active;
+        private int maxConnections;
+    }
+
+    private static final class Waiter {
+        private final int priority;
+        private final long arrival;
+        private boolean admitted;
+
+        Waiter(final int priority, final long arrival) {
+            this.priority = priority;
+            this.arrival = arrival;
+        }
+    }
+
+    /**
+     * Used as is when the publisher runs on the controller, and replaced by a proxy to the {@link ChannelGate} of the
+     * channel when it is sent to an agent.
+     */
+    private static final class RemoteGate implements Gate, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Ticket tryAcquire(final String configName, final int maxConnections) {
+            return INSTANCE.tryAcquire(configName, maxConnections);
+        }
+
+        @Override
+        public Ticket acquire(final String configName, final int maxConnections, final int priority, final long timeout) {
+            return INSTANCE.acquire(configName, maxConnections, priority, timeout);
+        }
+
+        @Override
+        public void release(final Ticket ticket) {
+            INSTANCE.release(ticket);
+        }
+
+        private Object writeReplace() throws ObjectStreamException {
+            final Channel channel = Channel.current();
+            if (channel == null) return this;
+            final ChannelGate gate;
+            synchronized (CHANNEL_GATES) {
+                gate = CHANNEL_GATES.computeIfAbsent(channel, ChannelGate::new);
+            }
+            return channel.export(Gate.class, gate);
+        }
+
+    }
+
+    /**
+     * The limiter as seen by one agent, which remembers the connections the agent holds to give them back if the
+     * channel closes before the agent does.
+     */
+    private static final class ChannelGate implements Gate {
+
+        private final Map<Long, Ticket> held = new HashMap<>();
+        private boolean closed;
+
+        ChannelGate(final Channel channel) {
+            channel.addListener(new Channel.Listener() {
+                @Override
+                public void onClosed(final Channel closed, final IOException cause) {
+                    synchronized (CHANNEL_GATES) {
+                        CHANNEL_GATES.remove(closed);
+                    }
+                    releaseAll();
+                }
+            });
+        }
+
+        @Override
+        public Ticket tryAcquire(final String configName, final int maxConnections) {
+            return hold(INSTANCE.tryAcquire(configName, maxConnections));
+        }
+
+        @Override
+        public Ticket acquire(final String configName, final int maxConnections, final int priority, final long timeout) {
+            return hold(INSTANCE.acquire(configName, maxConnections, priority, timeout));
+        }
+
+        @Override
+        public void release(final Ticket ticket) {
+            final Ticket released;
+            synchronized (held) {
+                released = held.remove(ticket.id);
+            }
+            if (released != null)
+                INSTANCE.release(released);
+        }
+
+        private Ticket hold(final Ticket ticket) {
+            if (ticket == null) return null;
+            synchronized (held) {
+                if (!closed) {
+                    held.put(ticket.id, ticket);
+                    return ticket;
+                }
+            }
+            // let in after the agent went away
+            INSTANCE.release(ticket);
+            return ticket;
+        }
+
+        private void releaseAll() {
+            final List<Ticket> released;
+            synchronized (held) {
+                closed = true;
+                released = new ArrayList<>(held.values());
+                held.clear();
+            }
+            for (Ticket ticket : released)
+                INSTANCE.release(ticket);
+        }
+
+    }
+
+}
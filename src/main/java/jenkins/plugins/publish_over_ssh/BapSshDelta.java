@@ -0,0 +1,358 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+
+/**
+ * Block matching for delta transfers, after the rsync algorithm.
+ *
+ * The existing remote file is described by a {@link Signature}, an Adler-32 and an MD5 for each block. The new file is
+ * then read once: at every offset the Adler-32 of the window is rolled forward by one byte and only when it matches a
+ * block is the MD5 of the window computed. Matching windows become copies of the remote block, everything else is sent
+ * as literal data.
+ */
+final class BapSshDelta {
+
+    static final int MIN_BLOCK_SIZE = 4 * 1024;
+    static final int MAX_BLOCK_SIZE = 128 * 1024;
+    static final int STRONG_LENGTH = 16;
+    static final int SIGNATURE_ENTRY_SIZE = Integer.BYTES + STRONG_LENGTH;
+    private static final int ADLER_MOD = 65521;
+
+    /** Receives the instructions to rebuild the new file from the remote file. */
+    interface Sink {
+        /**
+         * Copy a range of the remote file.
+         *
+         * @param offset offset in the remote file
+         * @param length number of bytes to copy
+         * @throws IOException if the instruction could not be sent
+         */
+        void copy(long offset, long length) throws IOException;
+
+        /**
+         * Write data that is not in the remote file.
+         *
+         * @param data buffer holding the data
+         * @param offset offset of the data in the buffer
+         * @param length number of bytes to write
+         * @throws IOException if the data could not be sent
+         */
+        void literal(byte[] data, int offset, int length) throws IOException;
+    }
+
+    private BapSshDelta() { }
+
+    /**
+     * Choose the block size for a remote file, about the square root of its size like rsync.
+     *
+     * @param size size of the remote file
+     * @return the block size
+     */
+    static int blockSize(final long size) {
+        final long root = (long) Math.sqrt((double) size) & ~1023L;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, root));
+    }
+
+    /** Block checksums of the remote file. */
+    static final class Signature {
+        private final int blockSize;
+        private final long size;
+        private final int[] weak;
+        private final byte[] strong;
+        private final int[] head;
+        private final int[] next;
+
+        private Signature(final int blockSize, final long size, final int[] weak, final byte[] strong) {
+            this.blockSize = blockSize;
+            this.size = size;
+            this.weak = weak;
+            this.strong = strong;
+            head = new int[Integer.highestOneBit(Math.max(1, weak.length)) * 2];
+            next = new int[weak.length];
+            Arrays.fill(head, -1);
+            // only whole blocks can match a rolling window, a shorter last block is matched at the end of the file
+            for (int block = fullBlocks() - 1; block >= 0; block--) {
+                final int bucket = bucket(weak[block]);
+                next[block] = head[bucket];
+                head[bucket] = block;
+            }
+        }
+
+        /**
+         * Compute the signature of a file.
+         *
+         * @param in content of the file, read until the end
+         * @param blockSize the block size
+         * @return the signature
+         * @throws IOException if the content could not be read
+         */
+        static Signature compute(final InputStream in, final int blockSize) throws IOException {
+            final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(entries);
+            final byte[] block = new byte[blockSize];
+            final MessageDigest md5 = md5();
+            final Adler32 adler = new Adler32();
+            long size = 0;
+            int length;
+            while ((length = readBlock(in, block)) > 0) {
+                size += length;
+                adler.reset();
+                adler.update(block, 0, length);
+                md5.update(block, 0, length);
+                out.writeInt((int) adler.getValue());
+                out.write(md5.digest());
+            }
+            return parse(entries.toByteArray(), size, blockSize);
+        }
+
+        /**
+         * Read a signature in the format written by the remote helper, for each block the Adler-32 as a big endian
+         * int followed by the MD5.
+         *
+         * @param entries the signature entries
+         * @param size size of the remote file
+         * @param blockSize the block size
+         * @return the signature
+         * @throws IOException if the number of entries does not match the size
+         */
+        static Signature parse(final byte[] entries, final long size, final int blockSize) throws IOException {
+            final long blocks = (size + blockSize - 1) / blockSize;
+            if (entries.length != blocks * SIGNATURE_ENTRY_SIZE)
+                throw new EOFException(Messages.exception_delta_signature(entries.length, blocks));
+            final ByteBuffer buffer = ByteBuffer.wrap(entries);
+            final int[] weak = new int[(int) blocks];
+            final byte[] strong = new byte[(int) blocks * STRONG_LENGTH];
+            for (int block = 0; block < weak.length; block++) {
+                weak[block] = buffer.getInt();
+                buffer.get(strong, block * STRONG_LENGTH, STRONG_LENGTH);
+            }
+            return new Signature(blockSize, size, weak, strong);
+        }
+
+        int getBlockSize() {
+            return blockSize;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        private int fullBlocks() {
+            return (int) (size / blockSize);
+        }
+
+        private int lastLength() {
+            return (int) (size % blockSize);
+        }
+
+        private int bucket(final int checksum) {
+            final int hash = checksum * 0x9E3779B1;
+            return (hash ^ hash >>> 16) & (head.length - 1);
+        }
+
+        private boolean strongEquals(final int block, final byte[] digest) {
+            for (int i = 0; i < STRONG_LENGTH; i++) {
+                if (strong[block * STRONG_LENGTH + i] != digest[i])
+                    return false;
+            }
+            return true;
+        }
+
+        int find(final int checksum, final byte[] data, final int offset, final MessageDigest md5) {
+            byte[] digest = null;
+            for (int block = head[bucket(checksum)]; block >= 0; block = next[block]) {
+                if (weak[block] != checksum)
+                    continue;
+                if (digest == null) {
+                    md5.update(data, offset, blockSize);
+                    digest = md5.digest();
+                }
+                if (strongEquals(block, digest))
+                    return block;
+            }
+            return -1;
+        }
+
+        boolean matchesLast(final byte[] data, final int offset, final int length, final MessageDigest md5) {
+            if (length == 0 || length != lastLength())
+                return false;
+            md5.update(data, offset, length);
+            return strongEquals(weak.length - 1, md5.digest());
+        }
+    }
+
+    /**
+     * Compute the instructions to rebuild a new file from the remote file.
+     *
+     * @param signature signature of the remote file
+     * @param in content of the new file, read until the end
+     * @param sink receives the instructions, adjacent copies are merged
+     * @return the number of literal bytes
+     * @throws IOException if the content could not be read or the sink failed
+     */
+    static long diff(final Signature signature, final InputStream in, final Sink sink) throws IOException {
+        final int blockSize = signature.blockSize;
+        final Emitter out = new Emitter(sink);
+        final MessageDigest md5 = md5();
+        final byte[] buffer = new byte[blockSize * 4];
+        int length = 0;
+        int position = 0;
+        int literal = 0;
+        boolean eof = false;
+        boolean rolling = false;
+        long a = 0;
+        long b = 0;
+        while (true) {
+            if (length - position <= blockSize && !eof) {
+                if (literal > 0) {
+                    System.arraycopy(buffer, literal, buffer, 0, length - literal);
+                    position -= literal;
+                    length -= literal;
+                    literal = 0;
+                }
+                while (length < buffer.length) {
+                    final int read = in.read(buffer, length, buffer.length - length);
+                    if (read < 0) {
+                        eof = true;
+                        break;
+                    }
+                    length += read;
+                }
+                continue;
+            }
+            if (length - position < blockSize) {
+                final int remaining = length - position;
+                if (signature.matchesLast(buffer, position, remaining, md5)) {
+                    out.literal(buffer, literal, position - literal);
+                    out.copy((long) signature.fullBlocks() * blockSize, remaining);
+                } else {
+                    out.literal(buffer, literal, length - literal);
+                }
+                break;
+            }
+            if (!rolling) {
+                a = 1;
+                b = 0;
+                for (int i = position; i < position + blockSize; i++) {
+                    a += buffer[i] & 0xff;
+                    b += a;
+                }
+                a %= ADLER_MOD;
+                b %= ADLER_MOD;
+                rolling = true;
+            }
+            final int block = signature.find((int) (b << 16 | a), buffer, position, md5);
+            if (block >= 0) {
+                out.literal(buffer, literal, position - literal);
+                out.copy((long) block * blockSize, blockSize);
+                position += blockSize;
+                literal = position;
+                rolling = false;
+                continue;
+            }
+            if (position + blockSize == length) {
+                // end of the file and the last window did not match
+                out.literal(buffer, literal, length - literal);
+                break;
+            }
+            final int removed = buffer[position] & 0xff;
+            final int added = buffer[position + blockSize] & 0xff;
+            a = Math.floorMod(a - removed + added, ADLER_MOD);
+            b = Math.floorMod(b - (long) blockSize * removed + a - 1, ADLER_MOD);
+            position++;
+            if (position - literal >= blockSize * 2) {
+                out.literal(buffer, literal, position - literal);
+                literal = position;
+            }
+        }
+        out.flush();
+        return out.literalBytes;
+    }
+
+    private static int readBlock(final InputStream in, final byte[] block) throws IOException {
+        int length = 0;
+        while (length < block.length) {
+            final int read = in.read(block, length, block.length - length);
+            if (read < 0)
+                break;
+            length += read;
+        }
+        return length;
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    private static final class Emitter {
+        private final Sink sink;
+        private long copyOffset;
+        private long copyLength;
+        private long literalBytes;
+
+        Emitter(final Sink sink) {
+            this.sink = sink;
+        }
+
+        void copy(final long offset, final long length) throws IOException {
+            if (copyLength > 0 && copyOffset + copyLength == offset) {
+                copyLength += length;
+                return;
+            }
+            flush();
+            copyOffset = offset;
+            copyLength = length;
+        }
+
+        void literal(final byte[] data, final int offset, final int length) throws IOException {
+            if (length == 0) return;
+            flush();
+            sink.literal(data, offset, length);
+            literalBytes += length;
+        }
+
+        void flush() throws IOException {
+            if (copyLength == 0) return;
+            sink.copy(copyOffset, copyLength);
+            copyLength = 0;
+        }
+    }
+
+}
@@ -0,0 +1,235 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import hudson.FilePath;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Upload a file as the difference to the file it replaces on the server, see {@link BapSshDelta}.
+ *
+ * A small Perl helper, using only core modules, computes the signature of the remote file and rebuilds the new file
+ * from the instructions streamed to its standard input. The new file is written next to the old one under a temporary
+ * name, gets the permissions of the old file, and is renamed over it, so the file on the server is never seen half
+ * written.
+ *
+ * Without the helper there is no delta transfer: assembling the file over SFTP would have to read every unchanged
+ * block back from the server and write it again, which costs more than uploading the file whole.
+ */
+final class BapSshDeltaUpload {
+
+    private static final Log LOG = LogFactory.getLog(BapSshDeltaUpload.class);
+    private static final int INSTRUCTION_BUFFER_SIZE = 64 * 1024;
+
+    static final String HELPER = String.join("\n",
+            "use strict; use Digest::MD5 qw(md5); use Compress::Zlib qw(adler32); use IO::Handle;",
+            "sub readn { my ($fh, $len) = @_; my $buf = ''; while (length($buf) < $len) {",
+            "  my $n = read($fh, $buf, $len - length($buf), length($buf)); die \"truncated\\n\" unless $n; } return $buf; }",
+            "my $mode = shift @ARGV; binmode STDIN; binmode STDOUT;",
+            "if ($mode eq 'sig') { my ($file, $bs) = @ARGV; open(my $in, '<', $file) or die \"$file: $!\\n\"; binmode $in;",
+            "  my $block; while (read($in, $block, $bs)) { print pack('N', adler32($block)), md5($block); } exit 0; }",
+            "my ($old, $tmp, $dst) = @ARGV; open(my $src, '<', $old) or die \"$old: $!\\n\"; binmode $src;",
+            "open(my $out, '>', $tmp) or die \"$tmp: $!\\n\"; binmode $out;",
+            "eval { while (1) { my $op = readn(\\*STDIN, 1);",
+            "  if ($op eq 'C') { my ($oh, $ol, $lh, $ll) = unpack('NNNN', readn(\\*STDIN, 16));",
+            "    my $len = $lh * 4294967296 + $ll; seek($src, $oh * 4294967296 + $ol, 0) or die \"$old: $!\\n\";",
+            "    while ($len > 0) { my $buf = readn($src, $len > 1048576 ? 1048576 : $len); print $out $buf or die \"$tmp: $!\\n\"; $len -= length($buf); } }",
+            "  elsif ($op eq 'L') { print $out readn(\\*STDIN, unpack('N', readn(\\*STDIN, 4))) or die \"$tmp: $!\\n\"; }",
+            "  elsif ($op eq 'E') { last; } else { die \"bad instruction\\n\"; } }",
+            "  $out->flush or die \"$tmp: $!\\n\"; $out->sync; close($out) or die \"$tmp: $!\\n\";",
+            "  chmod((stat($src))[2] & 07777, $tmp); rename($tmp, $dst) or die \"$dst: $!\\n\"; };",
+            "if ($@) { unlink $tmp; die $@; }");
+
+    private final BPBuildInfo buildInfo;
+    private final Session session;
+    private final long threshold;
+    private final BapSshBandwidth.Throttle throttle;
+    private boolean helperAvailable = true;
+
+    /**
+     * @param buildInfo the build info
+     * @param session session used to run the helper
+     * @param threshold files smaller than this many bytes are uploaded whole
+     * @param throttle limits the bandwidth of the instructions sent to the helper, null for no limit
+     */
+    BapSshDeltaUpload(final BPBuildInfo buildInfo, final Session session, final long threshold,
+                      final BapSshBandwidth.Throttle throttle) {
+        this.buildInfo = buildInfo;
+        this.session = session;
+        this.threshold = threshold;
+        this.throttle = throttle;
+    }
+
+    /**
+     * Upload a file as the difference to the remote file it replaces.
+     *
+     * @param channel channel used to stat and replace the remote file
+     * @param filePath the file to upload
+     * @param remotePath absolute path of the remote file
+     * @param timeout time to wait for the helper to complete in milliseconds, 0 to wait until it completes
+     * @return false if the file is too small, does not exist on the server, the helper cannot run or the delta transfer
+     * failed, then the file must be uploaded whole
+     * @throws IOException if the local file could not be read
+     * @throws InterruptedException if interrupted while waiting for the helper
+     */
+    boolean upload(final ChannelSftp channel, final FilePath filePath, final String remotePath, final int timeout)
+            throws IOException, InterruptedException {
+        if (!isHelperAvailable())
+            return false;
+        final long size = filePath.length();
+        if (size < threshold)
+            return false;
+        final SftpATTRS old;
+        try {
+            old = channel.stat(remotePath);
+        } catch (SftpException sftpe) {
+            return false;
+        }
+        if (!old.isReg() || old.getSize() == 0)
+            return false;
+        final int blockSize = BapSshDelta.blockSize(old.getSize());
+        final String tempPath = tempPath(remotePath);
+        try {
+            final long literalBytes = uploadWithHelper(filePath, remotePath, tempPath, old.getSize(), blockSize, timeout);
+            if (literalBytes < 0)
+                return false;
+            buildInfo.printIfVerbose(Messages.console_delta(remotePath, literalBytes, size));
+            return true;
+        } catch (IOException | JSchException e) {
+            buildInfo.println(Messages.console_delta_failed(remotePath, e.getLocalizedMessage()));
+            try {
+                channel.rm(tempPath);
+            } catch (SftpException sftpe) {
+                if (LOG.isDebugEnabled())
+                    LOG.debug(Messages.log_delta_cleanup(tempPath, sftpe.getLocalizedMessage()));
+            }
+            return false;
+        }
+    }
+
+    private synchronized boolean isHelperAvailable() {
+        return helperAvailable;
+    }
+
+    private synchronized void helperUnavailable(final String reason) {
+        if (!helperAvailable) return;
+        helperAvailable = false;
+        buildInfo.printIfVerbose(Messages.console_delta_noHelper(reason));
+    }
+
+    static String tempPath(final String remotePath) {
+        final int slash = remotePath.lastIndexOf('/');
+        return remotePath.substring(0, slash + 1) + "." + remotePath.substring(slash + 1) + ".delta-"
+                + Long.toHexString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE);
+    }
+
+    private long uploadWithHelper(final FilePath filePath, final String remotePath, final String tempPath, final long oldSize,
+                                  final int blockSize, final int timeout) throws IOException, JSchException, InterruptedException {
+        final ByteArrayOutputStream signatureOutput = new ByteArrayOutputStream();
+        final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        final ChannelExec sig = openHelper(errors, "sig", remotePath, Integer.toString(blockSize));
+        try {
+            sig.setOutputStream(signatureOutput, true);
+            sig.connect(session.getTimeout());
+            await(sig, timeout);
+            if (sig.getExitStatus() != 0) {
+                helperUnavailable(errorMessage(sig, errors));
+                return -1;
+            }
+        } finally {
+            sig.disconnect();
+        }
+        final BapSshDelta.Signature signature = BapSshDelta.Signature.parse(signatureOutput.toByteArray(), oldSize, blockSize);
+
+        errors.reset();
+        final ChannelExec patch = openHelper(errors, "patch", remotePath, tempPath, remotePath);
+        try {
+            patch.setOutputStream(new ByteArrayOutputStream(), true);
+            final OutputStream stdin = throttle == null ? patch.getOutputStream() : throttle.wrap(patch.getOutputStream());
+            patch.connect(session.getTimeout());
+            final long literalBytes;
+            try (InputStream in = filePath.read();
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stdin, INSTRUCTION_BUFFER_SIZE))) {
+                literalBytes = BapSshDelta.diff(signature, in, new BapSshDelta.Sink() {
+                    public void copy(final long offset, final long length) throws IOException {
+                        out.writeByte('C');
+                        out.writeLong(offset);
+                        out.writeLong(length);
+                    }
+                    public void literal(final byte[] data, final int offset, final int length) throws IOException {
+                        out.writeByte('L');
+                        out.writeInt(length);
+                        out.write(data, offset, length);
+                    }
+                });
+                out.writeByte('E');
+            }
+            await(patch, timeout);
+            if (patch.getExitStatus() != 0)
+                throw new IOException(errorMessage(patch, errors));
+            return literalBytes;
+        } finally {
+            patch.disconnect();
+        }
+    }
+
+    private ChannelExec openHelper(final OutputStream errors, final String... arguments) throws JSchException {
+        final StringBuilder command = new StringBuilder("perl -e ").append(BapSshTargetFiles.quote(HELPER));
+        for (String argument : arguments)
+            command.append(' ').append(BapSshTargetFiles.quote(argument));
+        final ChannelExec exec = (ChannelExec) session.openChannel("exec");
+        exec.setCommand(command.toString());
+        exec.setErrStream(errors, true);
+        return exec;
+    }
+
+    private static void await(final ChannelExec exec, final int timeout) throws IOException, InterruptedException {
+        if (!BapSshExecMonitor.await(exec, timeout))
+            throw new IOException(Messages.exception_exec_timeout(timeout));
+    }
+
+    private static String errorMessage(final ChannelExec exec, final ByteArrayOutputStream errors) {
+        final String message = new String(errors.toByteArray(), StandardCharsets.UTF_8).trim();
+        return message.isEmpty() ? Messages.exception_exec_exitStatus(exec.getExitStatus()) : message;
+    }
+
+}
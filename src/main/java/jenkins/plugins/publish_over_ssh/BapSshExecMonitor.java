@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import com.jcraft.jsch.ChannelExec;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wait for an exec channel to close without a thread per command.
+ *
+ * JSch offers no notification when a channel closes, so the channel is checked from {@link BapSshTimer}, which also
+ * works on agents. Checks start a few milliseconds after the command is sent and back off to {@link #MAX_POLL_TIME},
+ * so short commands are seen to complete almost immediately and long running ones cost one cheap check every interval.
+ */
+final class BapSshExecMonitor implements Runnable {
+
+    static final long MIN_POLL_TIME = 5;
+    static final long MAX_POLL_TIME = 200;
+
+    private final ChannelExec exec;
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private long pollTime = MIN_POLL_TIME;
+    private volatile boolean cancelled;
+
+    private BapSshExecMonitor(final ChannelExec exec) {
+        this.exec = exec;
+    }
+
+    /**
+     * Wait for the exec channel to close.
+     *
+     * @param exec the connected exec channel
+     * @param timeout maximum time to wait in milliseconds, 0 to wait until the channel closes
+     * @return true if the channel closed
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    static boolean await(final ChannelExec exec, final long timeout) throws InterruptedException {
+        final BapSshExecMonitor monitor = new BapSshExecMonitor(exec);
+        monitor.schedule();
+        try {
+            if (timeout == 0) {
+                monitor.closed.await();
+                return true;
+            }
+            return monitor.closed.await(timeout, TimeUnit.MILLISECONDS);
+        } finally {
+            monitor.cancelled = true;
+        }
+    }
+
+    private void schedule() {
+        BapSshTimer.get().schedule(this, pollTime, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run() {
+        if (cancelled) return;
+        if (exec.isClosed()) {
+            closed.countDown();
+            return;
+        }
+        pollTime = Math.min(pollTime * 2, MAX_POLL_TIME);
+        schedule();
+    }
+
+}
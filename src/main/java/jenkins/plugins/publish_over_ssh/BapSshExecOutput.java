@@ -0,0 +1,546 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import jenkins.plugins.publish_over.BPBuildInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Captures the STDOUT and STDERR of an exec command.
+ *
+ * JSch writes the output from its session thread, so nothing here may block on the build log or on the saved output.
+ * Every write is kept in a small ring buffer so that the last lines can be shown if the command fails, offered to a
+ * bounded buffer for the saved file and, when verbose, offered to a bounded console buffer. Both buffers are drained
+ * from {@link BapSshTimer}. The saved output is compressed and sent to a file in the build directory as fast as the
+ * stream allows; output that does not fit in its buffer meanwhile is dropped, and the file says how many bytes are
+ * missing. The console buffer is drained into the build log at a limited rate and up to a limited size; output that
+ * does not fit is skipped on the console but is still in the saved file.
+ *
+ * The build directory is on the controller, so the compressed output is written as frames to the stream made by
+ * {@link #collector}, which reaches the agent as a remote stream in the build info. Each frame names the command it
+ * belongs to, so the commands of every host in a build can share the one stream.
+ */
+final class BapSshExecOutput extends OutputStream {
+
+    private static final Log LOG = LogFactory.getLog(BapSshExecOutput.class);
+    private static final String PROPERTY_PREFIX = BapSshExecOutput.class.getName() + ".";
+    static final String OUTPUT_DIRECTORY = "publish-over-ssh";
+    static final int CONSOLE_BUFFER_SIZE = Integer.getInteger(PROPERTY_PREFIX + "consoleBufferSize", 64 * 1024);
+    static final int CONSOLE_BYTES_PER_SECOND = Integer.getInteger(PROPERTY_PREFIX + "consoleBytesPerSecond", 256 * 1024);
+    static final long CONSOLE_LIMIT = Long.getLong(PROPERTY_PREFIX + "consoleLimit", 1024 * 1024);
+    static final int SPILL_BUFFER_SIZE = Integer.getInteger(PROPERTY_PREFIX + "spillBufferSize", 1024 * 1024);
+    static final int TAIL_LINES = Integer.getInteger(PROPERTY_PREFIX + "tailLines", 50);
+    static final int TAIL_BUFFER_SIZE = 16 * 1024;
+    static final long DRAIN_INTERVAL = 100;
+    static final int FRAME_HEADER_SIZE = Long.BYTES + Integer.BYTES;
+    static final int MAX_FRAME_SIZE = 64 * 1024;
+    static final int MAX_OPEN_FILES = 256;
+
+    private final BPBuildInfo buildInfo;
+    private final PrintStream console;
+    private final Object consoleLock = new Object();
+    private final RingBuffer pending;
+    private final RingBuffer tail = new RingBuffer(TAIL_BUFFER_SIZE);
+    private final Object spillLock = new Object();
+    private RingBuffer spillPending;
+    private long spillDropped;
+    private boolean spillDrainQueued;
+    private final long consoleLimit;
+    private final int bytesPerDrain;
+    private File outputFile;
+    private OutputStream spill;
+    private ScheduledFuture<?> drainer;
+    private long consoleWritten;
+    private long skipped;
+    private boolean truncated;
+    private boolean finished;
+
+    BapSshExecOutput(final BPBuildInfo buildInfo) {
+        this(buildInfo, CONSOLE_BUFFER_SIZE, CONSOLE_BYTES_PER_SECOND, CONSOLE_LIMIT);
+    }
+
+    BapSshExecOutput(final BPBuildInfo buildInfo, final int consoleBufferSize, final int bytesPerSecond, final long consoleLimit) {
+        this(buildInfo, consoleBufferSize, bytesPerSecond, consoleLimit, SPILL_BUFFER_SIZE);
+    }
+
+    BapSshExecOutput(final BPBuildInfo buildInfo, final int consoleBufferSize, final int bytesPerSecond, final long consoleLimit,
+                     final int spillBufferSize) {
+        this.buildInfo = buildInfo;
+        this.console = buildInfo.getListener().getLogger();
+        this.consoleLimit = consoleLimit;
+        this.bytesPerDrain = (int) Math.max(1, bytesPerSecond * DRAIN_INTERVAL / 1000);
+        pending = buildInfo.isVerbose() ? new RingBuffer(Math.max(1, consoleBufferSize)) : null;
+        openSpill();
+        if (spill != null)
+            spillPending = new RingBuffer(Math.max(1, spillBufferSize));
+        if (pending != null || spill != null)
+            drainer = BapSshTimer.get().scheduleWithFixedDelay(this::drain, DRAIN_INTERVAL, DRAIN_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private void openSpill() {
+        final Object collector = buildInfo.get(BapSshPublisherPlugin.EXEC_OUTPUT_CONTEXT_KEY);
+        final Object buildDirectory = buildInfo.get(BapSshPublisherPlugin.BUILD_DIRECTORY_CONTEXT_KEY);
+        if (!(collector instanceof OutputStream) || buildDirectory == null)
+            return;
+        final long id = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+        outputFile = new File(new File(buildDirectory.toString(), OUTPUT_DIRECTORY), fileName(id));
+        final OutputStream frames = new FrameOutputStream((OutputStream) collector, id);
+        try {
+            spill = new GZIPOutputStream(new BufferedOutputStream(frames, MAX_FRAME_SIZE));
+        } catch (IOException ioe) {
+            LOG.warn(Messages.exception_exec_output(outputFile, ioe.getLocalizedMessage()), ioe);
+            outputFile = null;
+        }
+    }
+
+    static String fileName(final long id) {
+        return "exec-" + Long.toHexString(id) + ".log.gz";
+    }
+
+    /**
+     * @param buildDirectory the root directory of the build that publishes
+     * @return stream that saves the compressed output of each exec command in the build directory
+     */
+    static OutputStream collector(final File buildDirectory) {
+        return new Collector(new File(buildDirectory, OUTPUT_DIRECTORY));
+    }
+
+    /**
+     * @return the compressed file holding the complete output, or null if the output is not being saved
+     */
+    File getOutputFile() {
+        return outputFile;
+    }
+
+    @Override
+    public void write(final int b) {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(final byte[] b, final int off, final int len) {
+        if (finished) return;
+        tail.overwrite(b, off, len);
+        if (pending != null && !truncated)
+            skipped += len - pending.offer(b, off, len);
+        if (spillPending != null) {
+            spillDropped += len - spillPending.offer(b, off, len);
+            // drain a buffer filling up straight away rather than waiting for the next turn
+            if (!spillDrainQueued && spillPending.size() > spillPending.capacity() / 2) {
+                spillDrainQueued = true;
+                BapSshTimer.get().execute(this::drainToSpill);
+            }
+        }
+    }
+
+    private void drain() {
+        synchronized (consoleLock) {
+            drainToConsole(bytesPerDrain);
+        }
+        drainToSpill();
+    }
+
+    /**
+     * Compress and send the output waiting for the saved file. Only the buffer is taken under the monitor of this
+     * stream, so the JSch thread writing to it never waits for the remote stream.
+     */
+    private void drainToSpill() {
+        synchronized (spillLock) {
+            final byte[] output;
+            final long dropped;
+            synchronized (this) {
+                spillDrainQueued = false;
+                if (spillPending == null) return;
+                output = spillPending.take(spillPending.size());
+                dropped = spillDropped;
+                spillDropped = 0;
+            }
+            if (spill == null) return;
+            try {
+                if (dropped > 0)
+                    spill.write(("\n" + Messages.console_exec_dropped(dropped) + "\n").getBytes(StandardCharsets.UTF_8));
+                spill.write(output);
+            } catch (IOException ioe) {
+                LOG.warn(Messages.exception_exec_output(outputFile, ioe.getLocalizedMessage()), ioe);
+                closeSpill();
+            }
+        }
+    }
+
+    private void drainToConsole(final int max) {
+        final long skippedBytes;
+        final byte[] output;
+        final boolean truncatedNow;
+        synchronized (this) {
+            if (pending == null || truncated) return;
+            skippedBytes = skipped;
+            skipped = 0;
+            output = pending.take((int) Math.min(max, consoleLimit - consoleWritten));
+            consoleWritten += output.length;
+            truncatedNow = consoleWritten >= consoleLimit && pending.size() > 0;
+            if (truncatedNow) {
+                truncated = true;
+                pending.clear();
+            }
+        }
+        if (skippedBytes > 0) {
+            console.println();
+            console.println(Messages.console_exec_skipped(skippedBytes, (long) bytesPerDrain * 1000 / DRAIN_INTERVAL));
+        }
+        console.write(output, 0, output.length);
+        if (truncatedNow) {
+            console.println();
+            console.println(Messages.console_exec_truncated(consoleWritten));
+        }
+        console.flush();
+    }
+
+    /**
+     * Stop capturing, write whatever is still waiting for the console and close the saved output.
+     */
+    public void finish() {
+        synchronized (consoleLock) {
+            synchronized (this) {
+                if (finished) return;
+                finished = true;
+                if (drainer != null)
+                    drainer.cancel(false);
+            }
+            drainToSpill();
+            closeSpill();
+            drainToConsole(Integer.MAX_VALUE);
+            if (truncated && outputFile != null)
+                console.println(Messages.console_exec_saved(outputFile));
+        }
+    }
+
+    /**
+     * Print the last lines of output, unless they have already been shown on the console.
+     */
+    public synchronized void printTail() {
+        if (pending != null && !truncated) return;
+        final String[] lines = getTailLines();
+        if (lines.length == 0) return;
+        buildInfo.println(Messages.console_exec_tail(lines.length));
+        for (String line : lines)
+            console.println(line);
+        if (outputFile != null && !truncated)
+            buildInfo.println(Messages.console_exec_saved(outputFile));
+    }
+
+    synchronized String[] getTailLines() {
+        final String text = new String(tail.toByteArray(), StandardCharsets.UTF_8);
+        String[] lines = text.split("\r?\n");
+        if (tail.isWrapped() && lines.length > 1)
+            lines = Arrays.copyOfRange(lines, 1, lines.length);
+        if (lines.length == 1 && lines[0].isEmpty())
+            return new String[0];
+        if (lines.length <= TAIL_LINES)
+            return lines;
+        return Arrays.copyOfRange(lines, lines.length - TAIL_LINES, lines.length);
+    }
+
+    private void closeSpill() {
+        synchronized (spillLock) {
+            synchronized (this) {
+                spillPending = null;
+            }
+            if (spill == null) return;
+            try {
+                spill.close();
+            } catch (IOException ioe) {
+                LOG.warn(Messages.exception_exec_output(outputFile, ioe.getLocalizedMessage()), ioe);
+            }
+            spill = null;
+        }
+    }
+
+    /**
+     * Sends the bytes written to it as frames of one command on a stream that other commands may share. A frame is the
+     * id of the command, the length of the data and the data; a frame with a negative length ends the command.
+     */
+    static final class FrameOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private final long id;
+
+        FrameOutputStream(final OutputStream out, final long id) {
+            this.out = out;
+            this.id = id;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            for (int written = 0; written < len; written += MAX_FRAME_SIZE) {
+                final int length = Math.min(MAX_FRAME_SIZE, len - written);
+                final ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + length);
+                frame.putLong(id).putInt(length).put(b, off + written, length);
+                writeFrame(frame.array());
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            writeFrame(ByteBuffer.allocate(FRAME_HEADER_SIZE).putLong(id).putInt(-1).array());
+            flush();
+        }
+
+        private void writeFrame(final byte[] frame) throws IOException {
+            synchronized (out) {
+                out.write(frame);
+            }
+        }
+
+    }
+
+    /**
+     * Writes the frames sent by {@link FrameOutputStream} to one file per command.
+     */
+    private static final class Collector extends OutputStream {
+
+        private final File directory;
+        private final ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        private final Map<Long, OutputStream> files = new HashMap<>();
+        private final Set<Long> failed = new HashSet<>();
+        private long id;
+        private int remaining;
+        private boolean corrupt;
+
+        Collector(final File directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public void write(final int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(final byte[] b, final int off, final int len) {
+            int offset = off;
+            final int end = off + len;
+            while (offset < end && !corrupt) {
+                if (remaining == 0) {
+                    final int count = Math.min(header.remaining(), end - offset);
+                    header.put(b, offset, count);
+                    offset += count;
+                    if (!header.hasRemaining())
+                        startFrame();
+                } else {
+                    final int count = Math.min(remaining, end - offset);
+                    append(b, offset, count);
+                    offset += count;
+                    remaining -= count;
+                }
+            }
+        }
+
+        private void startFrame() {
+            header.flip();
+            id = header.getLong();
+            final int length = header.getInt();
+            header.clear();
+            if (id < 0 || length > MAX_FRAME_SIZE) {
+                // not a frame sent by this plugin, nothing after it can be trusted
+                corrupt = true;
+                closeAll();
+            } else if (length < 0) {
+                close(id);
+                failed.remove(id);
+            } else {
+                remaining = length;
+            }
+        }
+
+        private void append(final byte[] b, final int off, final int len) {
+            if (failed.contains(id)) return;
+            final File file = new File(directory, fileName(id));
+            try {
+                OutputStream out = files.get(id);
+                if (out == null) {
+                    if (files.size() >= MAX_OPEN_FILES)
+                        throw new IOException(Messages.exception_exec_output_files(MAX_OPEN_FILES));
+                    Files.createDirectories(directory.toPath());
+                    out = new BufferedOutputStream(Files.newOutputStream(file.toPath()));
+                    files.put(id, out);
+                }
+                out.write(b, off, len);
+            } catch (IOException ioe) {
+                LOG.warn(Messages.exception_exec_output(file, ioe.getLocalizedMessage()), ioe);
+                close(id);
+                failed.add(id);
+            }
+        }
+
+        private void close(final long fileId) {
+            final OutputStream out = files.remove(fileId);
+            if (out == null) return;
+            try {
+                out.close();
+            } catch (IOException ioe) {
+                LOG.warn(Messages.exception_exec_output(new File(directory, fileName(fileId)), ioe.getLocalizedMessage()), ioe);
+            }
+        }
+
+        private void closeAll() {
+            for (Long fileId : new HashSet<>(files.keySet()))
+                close(fileId);
+        }
+
+        @Override
+        public synchronized void close() {
+            closeAll();
+        }
+
+    }
+
+    /**
+     * Fixed size byte buffer that can either keep the newest bytes, overwriting the oldest, or refuse bytes when full.
+     */
+    static final class RingBuffer {
+
+        private final byte[] buffer;
+        private int start;
+        private int size;
+        private boolean wrapped;
+
+        RingBuffer(final int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int capacity() {
+            return buffer.length;
+        }
+
+        boolean isWrapped() {
+            return wrapped;
+        }
+
+        void clear() {
+            start = 0;
+            size = 0;
+        }
+
+        /**
+         * Add as many bytes as there is room for.
+         *
+         * @return the number of bytes added
+         */
+        int offer(final byte[] b, final int off, final int len) {
+            final int accepted = Math.min(len, buffer.length - size);
+            put(b, off, accepted);
+            return accepted;
+        }
+
+        /**
+         * Add the bytes, dropping the oldest bytes to make room.
+         */
+        void overwrite(final byte[] b, final int off, final int len) {
+            int offset = off;
+            int length = len;
+            if (length >= buffer.length) {
+                wrapped |= length > buffer.length;
+                offset += length - buffer.length;
+                length = buffer.length;
+            }
+            final int overflow = size + length - buffer.length;
+            if (overflow > 0) {
+                start = (start + overflow) % buffer.length;
+                size -= overflow;
+                wrapped = true;
+            }
+            put(b, offset, length);
+        }
+
+        private void put(final byte[] b, final int off, final int len) {
+            final int end = (start + size) % buffer.length;
+            final int first = Math.min(len, buffer.length - end);
+            System.arraycopy(b, off, buffer, end, first);
+            System.arraycopy(b, off + first, buffer, 0, len - first);
+            size += len;
+        }
+
+        /**
+         * Remove up to max of the oldest bytes from the buffer.
+         *
+         * @return the bytes removed
+         */
+        byte[] take(final int max) {
+            final byte[] taken = copy(Math.min(max, size));
+            start = (start + taken.length) % buffer.length;
+            size -= taken.length;
+            return taken;
+        }
+
+        byte[] toByteArray() {
+            return copy(size);
+        }
+
+        private byte[] copy(final int count) {
+            final byte[] copy = new byte[count];
+            final int first = Math.min(count, buffer.length - start);
+            System.arraycopy(buffer, start, copy, 0, first);
+            System.arraycopy(buffer, 0, copy, first, count - first);
+            return copy;
+        }
+
+    }
+
+}
@@ -0,0 +1,221 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Digests used to detect changed files, locally for avoidSameFileUploads and on the server for
+ * {@link BapSshRemoteCompare#CHECKSUM}.
+ *
+ * Files are read through a direct buffer reused by each thread, so that no file content is copied onto the heap. They
+ * are not memory mapped, as on Windows a mapped file stays locked until the mapping is garbage collected and the
+ * next build step could not delete or overwrite it.
+ */
+public enum BapSshFileDigest {
+
+    /** The default. */
+    MD5(16, "md5sum") {
+        @Override
+        Hasher createHasher() {
+            return messageDigest("MD5");
+        }
+    },
+
+    /** Cryptographic, available as sha256sum on most servers. */
+    SHA256(32, "sha256sum") {
+        @Override
+        Hasher createHasher() {
+            return messageDigest("SHA-256");
+        }
+    },
+
+    /** Non cryptographic and many times faster than MD5. */
+    XXH64(BapSshXxHash64.DIGEST_LENGTH, "xxhsum -H1") {
+        @Override
+        Hasher createHasher() {
+            final BapSshXxHash64 hash = new BapSshXxHash64();
+            return new Hasher() {
+                public void update(final ByteBuffer buffer) { hash.update(buffer); }
+                public byte[] digest() { return hash.digest(); }
+            };
+        }
+    };
+
+    static final int READ_BUFFER_SIZE = 1024 * 1024;
+    private static final ThreadLocal<ByteBuffer> READ_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(READ_BUFFER_SIZE));
+
+    private final int length;
+    private final String remoteCommand;
+
+    BapSshFileDigest(final int length, final String remoteCommand) {
+        this.length = length;
+        this.remoteCommand = remoteCommand;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the command that prints the digest of the files given as arguments on the server, one per line in the
+     * format of md5sum
+     */
+    public String getRemoteCommand() {
+        return remoteCommand;
+    }
+
+    /**
+     * Find the digest by name, falling back to MD5 for an empty or unknown name.
+     *
+     * @param name the name of the digest
+     * @return the digest
+     */
+    public static BapSshFileDigest fromName(final String name) {
+        for (BapSshFileDigest digest : values()) {
+            if (digest.name().equals(name))
+                return digest;
+        }
+        return MD5;
+    }
+
+    abstract Hasher createHasher();
+
+    private static Hasher messageDigest(final String algorithm) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+        return new Hasher() {
+            public void update(final ByteBuffer buffer) { digest.update(buffer); }
+            public byte[] digest() { return digest.digest(); }
+        };
+    }
+
+    /**
+     * Digest the content of a file.
+     *
+     * @param file the file to read
+     * @return the digest
+     * @throws IOException if the file could not be read
+     */
+    public byte[] digest(final File file) throws IOException {
+        return digest(file, Long.MAX_VALUE);
+    }
+
+    /**
+     * Digest the start of a file.
+     *
+     * @param file the file to read
+     * @param length number of bytes to digest from the start of the file, all of them if the file is shorter
+     * @return the digest
+     * @throws IOException if the file could not be read
+     */
+    public byte[] digest(final File file, final long length) throws IOException {
+        final Hasher hasher = createHasher();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = Math.min(channel.size(), length);
+            for (long position = 0; position < size; position += READ_BUFFER_SIZE) {
+                if (!read(channel, hasher, (int) Math.min(READ_BUFFER_SIZE, size - position)))
+                    break;
+            }
+        }
+        return hasher.digest();
+    }
+
+    /**
+     * Digest the content of a file on the node that holds it.
+     *
+     * @param filePath the file to read
+     * @return the digest
+     * @throws IOException if the file could not be read
+     * @throws InterruptedException if interrupted while waiting for the node
+     */
+    public byte[] digest(final FilePath filePath) throws IOException, InterruptedException {
+        return digest(filePath, Long.MAX_VALUE);
+    }
+
+    /**
+     * Digest the start of a file on the node that holds it.
+     *
+     * @param filePath the file to read
+     * @param length number of bytes to digest from the start of the file, all of them if the file is shorter
+     * @return the digest
+     * @throws IOException if the file could not be read
+     * @throws InterruptedException if interrupted while waiting for the node
+     */
+    public byte[] digest(final FilePath filePath, final long length) throws IOException, InterruptedException {
+        return filePath.act(new DigestCallable(this, length));
+    }
+
+    /**
+     * @return false if the file ended before the buffer was filled
+     */
+    private static boolean read(final FileChannel channel, final Hasher hasher, final int size) throws IOException {
+        final ByteBuffer buffer = READ_BUFFER.get();
+        buffer.clear();
+        buffer.limit(size);
+        boolean more = true;
+        while (buffer.hasRemaining() && more)
+            more = channel.read(buffer) >= 0;
+        buffer.flip();
+        hasher.update(buffer);
+        return more;
+    }
+
+    private static final class DigestCallable extends MasterToSlaveFileCallable<byte[]> {
+        private static final long serialVersionUID = 1L;
+        private final BapSshFileDigest digest;
+        private final long length;
+
+        DigestCallable(final BapSshFileDigest digest, final long length) {
+            this.digest = digest;
+            this.length = length;
+        }
+
+        @Override
+        public byte[] invoke(final File file, final VirtualChannel channel) throws IOException {
+            return digest.digest(file, length);
+        }
+    }
+
+    interface Hasher {
+        void update(ByteBuffer buffer);
+        byte[] digest();
+    }
+
+}
@@ -0,0 +1,243 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Size, modification time and permissions of the files of a transfer, collected on the node that holds them.
+ *
+ * The whole file set is listed and described by one remoting call instead of several calls per file, and digests are
+ * computed, in parallel, on that node by one more call for all the files that need one.
+ */
+final class BapSshFileInfo implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    static final int UNKNOWN_MODE = -1;
+
+    private final String[] paths;
+    private final long[] sizes;
+    private final long[] lastModified;
+    private final int[] modes;
+    private final int[] directoryModes;
+    private transient FilePath baseDirectory;
+    private transient Map<String, Integer> index;
+
+    private BapSshFileInfo(final int count) {
+        paths = new String[count];
+        sizes = new long[count];
+        lastModified = new long[count];
+        modes = new int[count];
+        directoryModes = new int[count];
+    }
+
+    /**
+     * Describe the files matching the patterns, the same files as {@link FilePath#list(String, String, boolean)}.
+     *
+     * @param baseDirectory directory the patterns are relative to
+     * @param includes comma separated Ant patterns of the files to include
+     * @param excludes comma separated Ant patterns of the files to exclude, or null
+     * @param defaultExcludes true to apply the Ant default excludes
+     * @return the files
+     * @throws IOException if the files could not be listed
+     * @throws InterruptedException if interrupted while waiting for the node
+     */
+    static BapSshFileInfo scan(final FilePath baseDirectory, final String includes, final String excludes,
+                               final boolean defaultExcludes) throws IOException, InterruptedException {
+        final BapSshFileInfo files = baseDirectory.act(new Scan(includes, excludes, defaultExcludes));
+        files.baseDirectory = baseDirectory;
+        return files;
+    }
+
+    int size() {
+        return paths.length;
+    }
+
+    /**
+     * @param filePath a file of the transfer
+     * @return the index of the file, -1 if it was not part of the scan
+     */
+    int indexOf(final FilePath filePath) {
+        if (index == null) {
+            final Map<String, Integer> byPath = new HashMap<>();
+            for (int i = 0; i < paths.length; i++)
+                byPath.put(getFilePath(i).getRemote(), i);
+            index = byPath;
+        }
+        final Integer i = index.get(filePath.getRemote());
+        return i == null ? -1 : i;
+    }
+
+    FilePath getBaseDirectory() {
+        return baseDirectory;
+    }
+
+    /**
+     * @param i index of the file
+     * @return path of the file relative to the base directory, with the separators of the node
+     */
+    String getPath(final int i) {
+        return paths[i];
+    }
+
+    FilePath getFilePath(final int i) {
+        return baseDirectory.child(paths[i]);
+    }
+
+    long getSize(final int i) {
+        return sizes[i];
+    }
+
+    long getLastModified(final int i) {
+        return lastModified[i];
+    }
+
+    /**
+     * @param i index of the file
+     * @return the permissions of the file, {@link #UNKNOWN_MODE} if the file system does not have POSIX permissions
+     */
+    int getMode(final int i) {
+        return modes[i];
+    }
+
+    /**
+     * @param i index of the file
+     * @return the permissions of the directory holding the file, {@link #UNKNOWN_MODE} if the file system does not have
+     * POSIX permissions
+     */
+    int getDirectoryMode(final int i) {
+        return directoryModes[i];
+    }
+
+    /**
+     * Digest some of the files on the node that holds them.
+     *
+     * @param digest the digest to compute
+     * @param indexes indexes of the files to digest
+     * @return the digests in the order of the indexes, null for a file that could not be read
+     * @throws IOException if the node could not be reached
+     * @throws InterruptedException if interrupted while waiting for the node
+     */
+    byte[][] digest(final BapSshFileDigest digest, final int[] indexes) throws IOException, InterruptedException {
+        if (indexes.length == 0)
+            return new byte[0][];
+        final String[] selected = new String[indexes.length];
+        for (int i = 0; i < indexes.length; i++)
+            selected[i] = paths[indexes[i]];
+        return baseDirectory.act(new Digest(digest, selected));
+    }
+
+    static int mode(final Path path) throws IOException {
+        try {
+            int mode = 0;
+            for (PosixFilePermission permission : Files.getPosixFilePermissions(path))
+                mode |= 0400 >> permission.ordinal();
+            return mode;
+        } catch (UnsupportedOperationException uoe) {
+            return UNKNOWN_MODE;
+        }
+    }
+
+    private static final class Scan extends MasterToSlaveFileCallable<BapSshFileInfo> {
+        private static final long serialVersionUID = 1L;
+        private final String includes;
+        private final String excludes;
+        private final boolean defaultExcludes;
+
+        Scan(final String includes, final String excludes, final boolean defaultExcludes) {
+            this.includes = includes;
+            this.excludes = excludes;
+            this.defaultExcludes = defaultExcludes;
+        }
+
+        @Override
+        public BapSshFileInfo invoke(final File baseDirectory, final VirtualChannel channel) throws IOException {
+            final FileSet fileSet = Util.createFileSet(baseDirectory, includes, excludes);
+            fileSet.setDefaultexcludes(defaultExcludes);
+            final DirectoryScanner scanner = fileSet.getDirectoryScanner(new Project());
+            final String[] included = scanner.getIncludedFiles();
+            final BapSshFileInfo files = new BapSshFileInfo(included.length);
+            final Map<Path, Integer> directoryModes = new HashMap<>();
+            for (int i = 0; i < included.length; i++) {
+                final Path path = new File(baseDirectory, included[i]).toPath();
+                final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                files.paths[i] = included[i];
+                files.sizes[i] = attributes.size();
+                files.lastModified[i] = attributes.lastModifiedTime().toMillis();
+                files.modes[i] = mode(path);
+                final Path directory = path.toAbsolutePath().getParent();
+                Integer directoryMode = directoryModes.get(directory);
+                if (directoryMode == null) {
+                    directoryMode = mode(directory);
+                    directoryModes.put(directory, directoryMode);
+                }
+                files.directoryModes[i] = directoryMode;
+            }
+            return files;
+        }
+    }
+
+    private static final class Digest extends MasterToSlaveFileCallable<byte[][]> {
+        private static final long serialVersionUID = 1L;
+        private final BapSshFileDigest digest;
+        private final String[] paths;
+
+        Digest(final BapSshFileDigest digest, final String[] paths) {
+            this.digest = digest;
+            this.paths = paths;
+        }
+
+        @Override
+        public byte[][] invoke(final File baseDirectory, final VirtualChannel channel) {
+            final byte[][] digests = new byte[paths.length][];
+            IntStream.range(0, paths.length).parallel().forEach(i -> {
+                try {
+                    digests[i] = digest.digest(new File(baseDirectory, paths[i]));
+                } catch (IOException ioe) {
+                    // left null, the file is digested again on its own and the failure reported then
+                }
+            });
+            return digests;
+        }
+    }
+
+}
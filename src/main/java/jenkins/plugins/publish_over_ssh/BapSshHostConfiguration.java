@@ -30,6 +30,7 @@ import hudson.model.Describable;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.Properties;
 
@@ -63,6 +64,14 @@ public class BapSshHostConfiguration extends BPHostConfiguration<BapSshClient, B
     public static final String SOCKS_5_PROXY_TYPE = "socks5";
 
     public static final boolean DEFAULT_AVOID_SAME_FILES_UPLOAD = false;
+    public static final int DEFAULT_MAX_SESSIONS = 10;
+    public static final int DEFAULT_SESSION_IDLE_TIMEOUT = 300000;
+    /** Time in milliseconds to wait for a pooled session when all of the sessions of the host are lent out. */
+    public static final int DEFAULT_SESSION_WAIT_TIMEOUT = 600000;
+    public static final int DEFAULT_SFTP_CHANNELS = 1;
+    public static final int DEFAULT_SFTP_OUTSTANDING_REQUESTS = 0;
+    public static final int DEFAULT_SFTP_CHUNK_SIZE = 0;
+    public static final int DEFAULT_CONNECTION_QUEUE_TIMEOUT = 600000;
 
     private int timeout;
     private boolean overrideKey;
@@ -81,6 +90,20 @@ public class BapSshHostConfiguration extends BPHostConfiguration<BapSshClient, B
     private Secret secretProxyPassword;
 
     private boolean avoidSameFileUploads;
+    private String fileDigest;
+    private String remoteCompare;
+
+    private boolean reuseSessions;
+    private int maxSessions;
+    private int sessionIdleTimeout;
+    private int sftpChannels;
+    private int sftpOutstandingRequests;
+    private int sftpChunkSize;
+    private String compression;
+    private int compressionLevel;
+    private int maxConnections;
+    private int connectionQueueTimeout;
+    private int maxBandwidth;
 
     public BapSshHostConfiguration() {
         // use this constructor instead of the default w/o parameters because there is some
@@ -241,6 +264,206 @@ public class BapSshHostConfiguration extends BPHostConfiguration<BapSshClient, B
       return avoidSameFileUploads;
     }
 
+    public String getFileDigest() {
+        return fileDigest;
+    }
+
+    @DataBoundSetter
+    public void setFileDigest(final String fileDigest) {
+        this.fileDigest = Util.fixEmptyAndTrim(fileDigest);
+    }
+
+    public String getRemoteCompare() {
+        return remoteCompare;
+    }
+
+    @DataBoundSetter
+    public void setRemoteCompare(final String remoteCompare) {
+        this.remoteCompare = Util.fixEmptyAndTrim(remoteCompare);
+    }
+
+    public String getCompression() {
+        return compression;
+    }
+
+    @DataBoundSetter
+    public void setCompression(final String compression) {
+        this.compression = Util.fixEmptyAndTrim(compression);
+    }
+
+    /**
+     * @return zlib compression level, 1 to 9, 0 for {@link BapSshCompression#DEFAULT_LEVEL}
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    @DataBoundSetter
+    public void setCompressionLevel(final int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public boolean isReuseSessions() {
+        return reuseSessions;
+    }
+
+    @DataBoundSetter
+    public void setReuseSessions(final boolean reuseSessions) {
+        this.reuseSessions = reuseSessions;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    @DataBoundSetter
+    public void setMaxSessions(final int maxSessions) {
+        this.maxSessions = maxSessions;
+    }
+
+    public int getSessionIdleTimeout() {
+        return sessionIdleTimeout;
+    }
+
+    @DataBoundSetter
+    public void setSessionIdleTimeout(final int sessionIdleTimeout) {
+        this.sessionIdleTimeout = sessionIdleTimeout;
+    }
+
+    private int getEffectiveSessionIdleTimeout() {
+        return sessionIdleTimeout > 0 ? sessionIdleTimeout : DEFAULT_SESSION_IDLE_TIMEOUT;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    @DataBoundSetter
+    public void setMaxConnections(final int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getConnectionQueueTimeout() {
+        return connectionQueueTimeout;
+    }
+
+    @DataBoundSetter
+    public void setConnectionQueueTimeout(final int connectionQueueTimeout) {
+        this.connectionQueueTimeout = connectionQueueTimeout;
+    }
+
+    private int getEffectiveConnectionQueueTimeout() {
+        return connectionQueueTimeout > 0 ? connectionQueueTimeout : DEFAULT_CONNECTION_QUEUE_TIMEOUT;
+    }
+
+    public int getMaxBandwidth() {
+        return maxBandwidth;
+    }
+
+    @DataBoundSetter
+    public void setMaxBandwidth(final int maxBandwidth) {
+        this.maxBandwidth = maxBandwidth;
+    }
+
+    public int getSftpChannels() {
+        return sftpChannels;
+    }
+
+    @DataBoundSetter
+    public void setSftpChannels(final int sftpChannels) {
+        this.sftpChannels = sftpChannels;
+    }
+
+    private int getEffectiveSftpChannels() {
+        return sftpChannels > 0 ? sftpChannels : DEFAULT_SFTP_CHANNELS;
+    }
+
+    public int getSftpOutstandingRequests() {
+        return sftpOutstandingRequests;
+    }
+
+    @DataBoundSetter
+    public void setSftpOutstandingRequests(final int sftpOutstandingRequests) {
+        this.sftpOutstandingRequests = sftpOutstandingRequests;
+    }
+
+    public int getSftpChunkSize() {
+        return sftpChunkSize;
+    }
+
+    @DataBoundSetter
+    public void setSftpChunkSize(final int sftpChunkSize) {
+        this.sftpChunkSize = sftpChunkSize;
+    }
+
+    /**
+     * @return the name of the cache that records the files uploaded through this configuration
+     */
+    public String getTransferCacheTarget() {
+        return BapSshTransferCache.createTarget(getName(), getHostnameTrimmed(), getPort(), getUsername(), getRemoteRootDir());
+    }
+
+    private void configureUploads(final BapSshClient bapClient) {
+        bapClient.configureUploads(getEffectiveSftpChannels(), sftpOutstandingRequests, sftpChunkSize, getTimeout());
+        bapClient.setFileDigest(BapSshFileDigest.fromName(fileDigest));
+        bapClient.setRemoteCompare(BapSshRemoteCompare.fromName(remoteCompare));
+        bapClient.setTransferCacheTarget(getTransferCacheTarget());
+        final BapSshCompression effectiveCompression = BapSshCompression.fromName(compression);
+        if (effectiveCompression == BapSshCompression.ADAPTIVE)
+            bapClient.setCompression(effectiveCompression, () -> connectUncompressedSession(bapClient));
+    }
+
+    /**
+     * Open a second session to the target host, through the same jump hosts, that does not compress. The session takes
+     * a connection of its own from the limiter, held by the client until the session is disconnected.
+     */
+    private Session connectUncompressedSession(final BapSshClient bapClient) {
+        final BPBuildInfo buildInfo = bapClient.getBuildInfo();
+        final BapSshConnectionLimiter.Permit permit = BapSshConnectionLimiter.tryEnter(getLimiterGate(buildInfo), getName(), maxConnections);
+        if (permit == null)
+            throw new BapPublisherException(Messages.exception_limiter_full(getName(), maxConnections));
+        try {
+            final Session session = connectUncompressedSession(bapClient, buildInfo);
+            bapClient.setUncompressedPermit(permit);
+            return session;
+        } catch (RuntimeException re) {
+            permit.release();
+            throw re;
+        }
+    }
+
+    private Session connectUncompressedSession(final BapSshClient bapClient, final BPBuildInfo buildInfo) {
+        final JSch ssh = createJSch();
+        final List<Session> sessions = bapClient.getSessions();
+        final String[] hosts = getHosts();
+        if (sessions.size() == 1) {
+            final Session session = createSession(buildInfo, ssh, hosts[0], getPort());
+            configureAuthentication(buildInfo, ssh, session, BapSshCompression.NONE);
+            connect(buildInfo, session, bapClient.getStatistics());
+            return session;
+        }
+        final Session lastHop = sessions.get(sessions.size() - 2);
+        final int assignedPort;
+        try {
+            assignedPort = lastHop.setPortForwardingL(0, hosts[hosts.length - 1], getPort());
+        } catch (JSchException jse) {
+            throw new BapPublisherException(Messages.exception_session_connect(getName(), jse.getLocalizedMessage()), jse);
+        }
+        try {
+            final Session session = createSession(buildInfo, ssh, LOCALHOST, assignedPort);
+            configureAuthentication(buildInfo, ssh, session, BapSshCompression.NONE);
+            connect(buildInfo, session, bapClient.getStatistics());
+            return session;
+        } finally {
+            // the connection is established, the forwarding is not needed anymore and would outlive a pooled session
+            try {
+                lastHop.delPortForwardingL(assignedPort);
+            } catch (JSchException jse) {
+                LOG.warn(jse.getLocalizedMessage(), jse);
+            }
+        }
+    }
+
     @Override
     public Object readResolve() {
         if(StringUtils.isNotEmpty(proxyPassword)) {
@@ -263,7 +486,10 @@ public class BapSshHostConfiguration extends BPHostConfiguration<BapSshClient, B
     @Override
     public BapSshClient createClient(final BPBuildInfo buildInfo, final BapPublisher publisher) {
         if(publisher instanceof BapSshPublisher) {
-            return createClient(buildInfo, ((BapSshPublisher) publisher).isSftpRequired());
+            final BapSshPublisher sshPublisher = (BapSshPublisher) publisher;
+            final BapSshClient bapClient = createClient(buildInfo, sshPublisher.isSftpRequired());
+            bapClient.setThrottle(createThrottle(sshPublisher.getMaxBandwidth(), sshPublisher.isBulkTransfer()));
+            return bapClient;
         }
         throw new IllegalArgumentException("Invalid type passed to createClient");
     }
@@ -274,20 +500,77 @@ public class BapSshHostConfiguration extends BPHostConfiguration<BapSshClient, B
     }
 
     public BapSshClient createClient(final BPBuildInfo buildInfo, final boolean connectSftp) {
+        final BapSshConnectionLimiter.Permit permit = enterLimiter(buildInfo);
+        try {
+            final BapSshClient bapClient = createLimitedClient(buildInfo, connectSftp);
+            bapClient.setPermit(permit);
+            bapClient.setThrottle(createThrottle(0, false));
+            return bapClient;
+        } catch (RuntimeException re) {
+            permit.release();
+            throw re;
+        }
+    }
 
+    /**
+     * Uploads take their bandwidth from the buckets of the publisher, of this host and of all hosts, see {@link BapSshBandwidth}.
+     */
+    private BapSshBandwidth.Throttle createThrottle(final int publisherBandwidth, final boolean bulk) {
+        final BapSshCommonConfiguration commonConfig = getCommonConfig();
+        return BapSshBandwidth.throttle(publisherBandwidth, getName(), maxBandwidth,
+                commonConfig == null ? 0 : commonConfig.getMaxBandwidth(), bulk);
+    }
+
+    /**
+     * Wait for a turn to connect when the number of connections to this host is limited, see {@link BapSshConnectionLimiter}.
+     * The limiter of the controller is reached through the build info when the publisher runs on an agent.
+     */
+    private BapSshConnectionLimiter.Permit enterLimiter(final BPBuildInfo buildInfo) {
+        final Object priority = buildInfo.get(BapSshPublisherPlugin.CONNECTION_PRIORITY_CONTEXT_KEY);
+        return BapSshConnectionLimiter.enter(getLimiterGate(buildInfo), buildInfo, getName(), maxConnections,
+                priority instanceof Integer ? (Integer) priority : 0, getEffectiveConnectionQueueTimeout());
+    }
+
+    private static BapSshConnectionLimiter.Gate getLimiterGate(final BPBuildInfo buildInfo) {
+        final Object gate = buildInfo.get(BapSshPublisherPlugin.CONNECTION_LIMITER_CONTEXT_KEY);
+        return gate instanceof BapSshConnectionLimiter.Gate ? (BapSshConnectionLimiter.Gate) gate : BapSshConnectionLimiter.gate();
+    }
+
+    private BapSshClient createLimitedClient(final BPBuildInfo buildInfo, final boolean connectSftp) {
+        if (!reuseSessions)
+            return connectClient(buildInfo, connectSftp);
+
+        final BapSshSessionPool.PooledSession pooled = BapSshSessionPool.get().borrow(getName(), getPoolKey(buildInfo), maxSessions,
+                getEffectiveSessionIdleTimeout(), DEFAULT_SESSION_WAIT_TIMEOUT);
+        if (pooled.isConnected())
+            return createClientFromPool(buildInfo, connectSftp, pooled);
+        final BapSshClient bapClient;
+        try {
+            bapClient = connectClient(buildInfo, connectSftp);
+        } catch (RuntimeException re) {
+            BapSshSessionPool.get().discard(pooled);
+            throw re;
+        }
+        pooled.attach(bapClient.getSessions());
+        bapClient.setPooledSession(pooled);
+        return bapClient;
+    }
+
+    private BapSshClient connectClient(final BPBuildInfo buildInfo, final boolean connectSftp) {
         final JSch ssh = createJSch();
         String[] hosts = getHosts();
         Session session = createSession(buildInfo, ssh, hosts[0], getPort());
-        configureAuthentication(buildInfo, ssh, session);
-        final BapSshClient bapClient = new BapSshClient(buildInfo, session, isEffectiveDisableExec(), isAvoidSameFileUploads());
+        configureAuthentication(buildInfo, ssh, session, getSessionCompression(0, hosts.length));
+        final BapSshClient bapClient = newClient(buildInfo, session);
+        configureUploads(bapClient);
         try {
-            connect(buildInfo, session);
+            connect(buildInfo, session, bapClient.getStatistics());
             for (int i = 1; i < hosts.length; i++) {
                 int assignedPort = session.setPortForwardingL(0, hosts[i], getPort());
                 session = createSession(buildInfo, ssh, LOCALHOST, assignedPort);
                 bapClient.addSession(session);
-                configureAuthentication(buildInfo, ssh, session);
-                connect(buildInfo, session);
+                configureAuthentication(buildInfo, ssh, session, getSessionCompression(i, hosts.length));
+                connect(buildInfo, session, bapClient.getStatistics());
             }
             if (connectSftp)
                 setupSftp(bapClient);
@@ -298,6 +581,50 @@ public class BapSshHostConfiguration extends BPHostConfiguration<BapSshClient, B
         return bapClient;
     }
 
+    private BapSshClient newClient(final BPBuildInfo buildInfo, final Session session) {
+        final BapSshClient bapClient = new BapSshClient(buildInfo, session, isEffectiveDisableExec(), isAvoidSameFileUploads());
+        bapClient.getStatistics().setConfigName(getName());
+        return bapClient;
+    }
+
+    private BapSshClient createClientFromPool(final BPBuildInfo buildInfo, final boolean connectSftp,
+                                              final BapSshSessionPool.PooledSession pooled) {
+        buildInfo.printIfVerbose(Messages.console_session_reused(getName()));
+        final List<Session> sessions = pooled.getSessions();
+        final BapSshClient bapClient = newClient(buildInfo, sessions.get(0));
+        bapClient.getStatistics().setSessionReused(true);
+        for (int i = 1; i < sessions.size(); i++)
+            bapClient.addSession(sessions.get(i));
+        bapClient.setPooledSession(pooled);
+        configureUploads(bapClient);
+        try {
+            if (pooled.hasSftp()) {
+                bapClient.setSftp(pooled.getSftp());
+                bapClient.setAbsoluteRemoteRoot(pooled.getAbsoluteRemoteRoot());
+                if (!bapClient.changeDirectory(pooled.getAbsoluteRemoteRoot()))
+                    throw new BapPublisherException(Messages.exception_pool_cdRoot(pooled.getAbsoluteRemoteRoot()));
+            } else if (connectSftp) {
+                setupSftp(bapClient);
+            }
+        } catch (IOException | BapPublisherException e) {
+            bapClient.disconnectQuietly();
+            throw new BapPublisherException(Messages.exception_failedToCreateClient(e.getLocalizedMessage()), e);
+        }
+        return bapClient;
+    }
+
+    /**
+     * Key that identifies sessions that can be shared - the target, jump hosts, proxy, remote root and effective credentials.
+     */
+    private String getPoolKey(final BPBuildInfo buildInfo) {
+        final BapSshKeyInfo effectiveKeyInfo = getEffectiveKeyInfo(buildInfo);
+        final BapSshCredentials overrideCreds = getPublisherOverrideCredentials(buildInfo);
+        final String username = overrideCreds == null ? getUsername() : overrideCreds.getUsername();
+        return BapSshSessionPool.createKey(getName(), username, getHostnameTrimmed(), getPort(), jumpHost, getRemoteRootDir(), getTimeout(),
+                proxyType, proxyHost, proxyPort, proxyUser, Secret.toString(secretProxyPassword),
+                effectiveKeyInfo.getKey(), effectiveKeyInfo.getKeyPath(), effectiveKeyInfo.getPassphrase(), compression, compressionLevel);
+    }
+
     /**
      * create a list of hosts from the explicit stated target host and an optional list of jumphosts
      *
@@ -322,9 +649,18 @@ public class BapSshHostConfiguration extends BPHostConfiguration<BapSshClient, B
         }
     }
 
-    private void configureAuthentication(final BPBuildInfo buildInfo, final JSch ssh, Session session) {
+    /**
+     * Only the session to the target host compresses, jump hosts would only compress its traffic a second time.
+     */
+    private BapSshCompression getSessionCompression(final int hop, final int hops) {
+        return hop == hops - 1 ? BapSshCompression.fromName(compression) : BapSshCompression.NONE;
+    }
+
+    private void configureAuthentication(final BPBuildInfo buildInfo, final JSch ssh, final Session session,
+                                         final BapSshCompression sessionCompression) {
         final BapSshKeyInfo keyInfo = getEffectiveKeyInfo(buildInfo);
         final Properties sessionProperties = getSessionProperties();
+        sessionCompression.configure(sessionProperties, compressionLevel);
         if (keyInfo.useKey()) {
             setKey(buildInfo, ssh, keyInfo);
             sessionProperties.put(CONFIG_KEY_PREFERRED_AUTHENTICATIONS, "publickey");
@@ -337,16 +673,24 @@ public class BapSshHostConfiguration extends BPHostConfiguration<BapSshClient, B
 
     private void setupSftp(final BapSshClient bapClient) throws IOException {
         final BPBuildInfo buildInfo = bapClient.getBuildInfo();
+        final long start = System.currentTimeMillis();
         final ChannelSftp sftp = openSftpChannel(buildInfo, bapClient.getSession());
         bapClient.setSftp(sftp);
         connectSftpChannel(buildInfo, sftp);
+        bapClient.getStatistics().addSftpOpen(System.currentTimeMillis() - start);
+        bapClient.configureSftpChannel(sftp);
         changeToRootDirectory(bapClient);
         setRootDirectoryInClient(bapClient, sftp);
     }
 
     private void setKey(final BPBuildInfo buildInfo, final JSch ssh, final BapSshKeyInfo keyInfo) {
         try {
-            ssh.addIdentity("TheKey", keyInfo.getEffectiveKey(buildInfo), null, BapSshUtil.toBytes(keyInfo.getPassphrase()));
+            final Identity identity = BapSshIdentityCache.get().getIdentity(buildInfo, keyInfo);
+            if (identity == null)
+                ssh.addIdentity(BapSshIdentityCache.IDENTITY_NAME, keyInfo.getEffectiveKey(buildInfo), null,
+                        BapSshUtil.toBytes(keyInfo.getPassphrase()));
+            else
+                ssh.addIdentity(identity, null);
         } catch (JSchException jsche) {
             throw new BapPublisherException(Messages.exception_addIdentity(jsche.getLocalizedMessage()), jsche);
         }
@@ -407,8 +751,11 @@ public class BapSshHostConfiguration extends BPHostConfiguration<BapSshClient, B
         return props;
     }
 
-    private void connect(final BPBuildInfo buildInfo, final Session session) {
+    private void connect(final BPBuildInfo buildInfo, final Session session, final BapSshTransferStatistics statistics) {
         buildInfo.printIfVerbose(Messages.console_session_connecting());
+        final BapSshTimedSocketFactory socketFactory = new BapSshTimedSocketFactory(getTimeout());
+        session.setSocketFactory(socketFactory);
+        final long start = System.currentTimeMillis();
         try {
             session.connect(getTimeout());
         } catch (JSchException jse) {
@@ -416,6 +763,8 @@ public class BapSshHostConfiguration extends BPHostConfiguration<BapSshClient, B
             LOG.warn(message, jse);
             throw new BapPublisherException(message); // NOPMD - it's in the log!
         }
+        final long connectMillis = socketFactory.getConnectMillis();
+        statistics.addConnect(connectMillis, Math.max(0, System.currentTimeMillis() - start - connectMillis));
         buildInfo.printIfVerbose(Messages.console_session_connected());
     }
 
@@ -484,7 +833,20 @@ public class BapSshHostConfiguration extends BPHostConfiguration<BapSshClient, B
                 .append(proxyPort, that.proxyPort)
                 .append(proxyUser, that.proxyUser)
                 .append(secretProxyPassword, that.secretProxyPassword)
-                .append(avoidSameFileUploads, that.avoidSameFileUploads);
+                .append(avoidSameFileUploads, that.avoidSameFileUploads)
+                .append(fileDigest, that.fileDigest)
+                .append(remoteCompare, that.remoteCompare)
+                .append(reuseSessions, that.reuseSessions)
+                .append(maxSessions, that.maxSessions)
+                .append(sessionIdleTimeout, that.sessionIdleTimeout)
+                .append(sftpChannels, that.sftpChannels)
+                .append(sftpOutstandingRequests, that.sftpOutstandingRequests)
+                .append(sftpChunkSize, that.sftpChunkSize)
+                .append(compression, that.compression)
+                .append(compressionLevel, that.compressionLevel)
+                .append(maxConnections, that.maxConnections)
+                .append(connectionQueueTimeout, that.connectionQueueTimeout)
+                .append(maxBandwidth, that.maxBandwidth);
     }
 
     @Override
@@ -500,7 +862,20 @@ public class BapSshHostConfiguration extends BPHostConfiguration<BapSshClient, B
                 .append(proxyPort)
                 .append(proxyUser)
                 .append(secretProxyPassword.getPlainText())
-                .append(avoidSameFileUploads);
+                .append(avoidSameFileUploads)
+                .append(fileDigest)
+                .append(remoteCompare)
+                .append(reuseSessions)
+                .append(maxSessions)
+                .append(sessionIdleTimeout)
+                .append(sftpChannels)
+                .append(sftpOutstandingRequests)
+                .append(sftpChunkSize)
+                .append(compression)
+                .append(compressionLevel)
+                .append(maxConnections)
+                .append(connectionQueueTimeout)
+                .append(maxBandwidth);
     }
 
     @Override
@@ -516,7 +891,20 @@ public class BapSshHostConfiguration extends BPHostConfiguration<BapSshClient, B
                 .append("proxyPort", proxyPort)
                 .append("proxyUser", proxyUser)
                 .append("proxyPassword", "xxxxxxx")
-                .append("avoidSameFileUploads", avoidSameFileUploads);
+                .append("avoidSameFileUploads", avoidSameFileUploads)
+                .append("fileDigest", fileDigest)
+                .append("remoteCompare", remoteCompare)
+                .append("reuseSessions", reuseSessions)
+                .append("maxSessions", maxSessions)
+                .append("sessionIdleTimeout", sessionIdleTimeout)
+                .append("sftpChannels", sftpChannels)
+                .append("sftpOutstandingRequests", sftpOutstandingRequests)
+                .append("sftpChunkSize", sftpChunkSize)
+                .append("compression", compression)
+                .append("compressionLevel", compressionLevel)
+                .append("maxConnections", maxConnections)
+                .append("connectionQueueTimeout", connectionQueueTimeout)
+                .append("maxBandwidth", maxBandwidth);
     }
 
     @Override
@@ -0,0 +1,220 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import com.jcraft.jsch.Identity;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.KeyPair;
+import hudson.remoting.VirtualChannel;
+import jenkins.SlaveToMasterFileCallable;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Controller wide cache of decoded private keys.
+ *
+ * Parsing a private key, and especially decrypting one protected by a passphrase, is paid again by every connection
+ * and every jump hop. The cache holds the decrypted key pair so that all host configurations, the common
+ * configuration and credential overrides that use the same key share one decoded {@link Identity}.
+ *
+ * Inline keys are keyed by a digest of the key and passphrase, so changing either the key or the {@code Secret}
+ * passphrase creates a new entry. Keys read from a file are keyed by the resolved path and passphrase and are
+ * reloaded when the last modified time or size of the file changes, which costs one call to the controller per lookup.
+ * Files are read and keys decoded outside the lock of the cache.
+ */
+public final class BapSshIdentityCache {
+
+    private static final Log LOG = LogFactory.getLog(BapSshIdentityCache.class);
+    private static final BapSshIdentityCache INSTANCE = new BapSshIdentityCache();
+    static final int MAX_ENTRIES = 64;
+    static final String IDENTITY_NAME = "TheKey";
+
+    private final Map<String, CachedIdentity> identities = new LinkedHashMap<String, CachedIdentity>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, CachedIdentity> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    BapSshIdentityCache() { }
+
+    public static BapSshIdentityCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get the decoded identity for the key described by keyInfo.
+     *
+     * @param buildInfo the build used to resolve and read a key path
+     * @param keyInfo the key configuration
+     * @return the shared identity, or null if the key could not be decoded here and should be given to JSch as it is
+     */
+    public Identity getIdentity(final BPBuildInfo buildInfo, final BapSshKeyInfo keyInfo) {
+        final String passphrase = keyInfo.getPassphrase();
+        if (keyInfo.hasKey()) {
+            final String cacheKey = BapSshSessionPool.createKey("key", keyInfo.getKey(), passphrase);
+            final CachedIdentity cached = lookup(cacheKey, null);
+            if (cached != null)
+                return cached;
+            return store(cacheKey, load(null, BapSshUtil.toBytes(keyInfo.getKey()), passphrase));
+        }
+        final String keyPath = keyInfo.getEffectiveKeyPath(buildInfo);
+        final String version = getFileVersion(buildInfo, keyPath);
+        if (version == null)
+            return null;
+        final String cacheKey = BapSshSessionPool.createKey("keyPath", keyPath, passphrase);
+        final CachedIdentity cached = lookup(cacheKey, version);
+        if (cached != null)
+            return cached;
+        return store(cacheKey, load(version, buildInfo.readFileFromMaster(keyPath), passphrase));
+    }
+
+    /**
+     * @return the cached identity, or null if there is none or it was decoded from another version of the key file
+     */
+    private synchronized CachedIdentity lookup(final String cacheKey, final String version) {
+        final CachedIdentity cached = identities.get(cacheKey);
+        if (cached == null || Objects.equals(version, cached.version))
+            return cached;
+        identities.remove(cacheKey);
+        return null;
+    }
+
+    private synchronized CachedIdentity store(final String cacheKey, final CachedIdentity identity) {
+        if (identity != null)
+            identities.put(cacheKey, identity);
+        return identity;
+    }
+
+    public synchronized int size() {
+        return identities.size();
+    }
+
+    public synchronized void clear() {
+        identities.clear();
+    }
+
+    private static CachedIdentity load(final String version, final byte[] keyBytes, final String passphrase) {
+        final KeyPair keyPair;
+        try {
+            keyPair = KeyPair.load(new JSch(), keyBytes, null);
+        } catch (JSchException jsche) {
+            if (LOG.isDebugEnabled())
+                LOG.debug("Unable to decode private key, leaving it to JSch: " + jsche.getLocalizedMessage());
+            return null;
+        }
+        if (keyPair.isEncrypted() && !keyPair.decrypt(BapSshUtil.toBytes(passphrase))) {
+            keyPair.dispose();
+            return null;
+        }
+        return new CachedIdentity(keyPair, version);
+    }
+
+    private static String getFileVersion(final BPBuildInfo buildInfo, final String keyPath) {
+        if (buildInfo.getConfigDir() == null)
+            return null;
+        try {
+            return buildInfo.getConfigDir().child(keyPath).act(new FileVersionCallable());
+        } catch (IOException ioe) {
+            return null;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * The last modified time and size of a key file on the controller in one call, null if the file does not exist.
+     */
+    private static final class FileVersionCallable extends SlaveToMasterFileCallable<String> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public String invoke(final File file, final VirtualChannel channel) {
+            return file.isFile() ? file.lastModified() + ":" + file.length() : null;
+        }
+    }
+
+    /**
+     * A decrypted key pair shared between connections. Clearing is ignored as other sessions may still use the key.
+     */
+    static final class CachedIdentity implements Identity {
+
+        private final KeyPair keyPair;
+        private final String version;
+
+        CachedIdentity(final KeyPair keyPair, final String version) {
+            this.keyPair = keyPair;
+            this.version = version;
+        }
+
+        public boolean setPassphrase(final byte[] passphrase) {
+            return true;
+        }
+
+        public byte[] getPublicKeyBlob() {
+            return keyPair.getPublicKeyBlob();
+        }
+
+        public byte[] getSignature(final byte[] data) {
+            return keyPair.getSignature(data);
+        }
+
+        @Override
+        public byte[] getSignature(final byte[] data, final String algorithm) {
+            return keyPair.getSignature(data, algorithm);
+        }
+
+        @Override
+        public boolean decrypt() {
+            return true;
+        }
+
+        public String getAlgName() {
+            return keyPair.getKeyTypeString();
+        }
+
+        public String getName() {
+            return IDENTITY_NAME;
+        }
+
+        public boolean isEncrypted() {
+            return false;
+        }
+
+        public void clear() { }
+
+    }
+
+}
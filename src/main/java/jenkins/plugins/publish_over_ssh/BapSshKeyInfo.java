@@ -66,15 +66,24 @@ public class BapSshKeyInfo implements Serializable {
     public byte[] getEffectiveKey(final BPBuildInfo buildInfo) {
         if (hasKey())
             return BapSshUtil.toBytes(key);
-        keyPath = Util.replaceMacro(keyPath, buildInfo.getEnvVars());
-        return buildInfo.readFileFromMaster(keyPath.trim());
+        return buildInfo.readFileFromMaster(getEffectiveKeyPath(buildInfo));
+    }
+
+    /**
+     * Expand the key path for the build without changing the configured value.
+     *
+     * @param buildInfo the build to resolve variables from
+     * @return the trimmed key path
+     */
+    String getEffectiveKeyPath(final BPBuildInfo buildInfo) {
+        return Util.replaceMacro(keyPath, buildInfo.getEnvVars()).trim();
     }
 
     public boolean useKey() {
         return hasKey() || hasKeyPath();
     }
 
-    private boolean hasKey() {
+    boolean hasKey() {
         return Util.fixEmptyAndTrim(key) != null;
     }
 
@@ -0,0 +1,412 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import hudson.FilePath;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the publishers of one build step concurrently, at most maxConcurrency at a time.
+ *
+ * publish-over runs the publishers one after another on the node that publishes, which is the agent of the workspace
+ * unless the build step publishes from the controller. The build step puts its {@link Settings} in the build info, and
+ * {@link BapSshPublisher#perform} submits the publish to the parallel publish of those settings on the node it runs on
+ * instead of running it inline. Once publish-over has gone through all of the publishers, the build step waits for
+ * them with {@link #finish} on the same node.
+ *
+ * Each host gets its own copy of the build info with a listener that prefixes every line with the configuration name
+ * and writes whole lines only, so that the output of the hosts does not interleave.
+ */
+public class BapSshParallelPublish {
+
+    private static final Log LOG = LogFactory.getLog(BapSshParallelPublish.class);
+    private static final Map<String, BapSshParallelPublish> ACTIVE = new ConcurrentHashMap<>();
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    private final PrintStream console;
+    private final boolean continueOnError;
+    private final ExecutorService executor;
+    private final List<HostResult> results = new ArrayList<>();
+    private volatile boolean failed;
+
+    public BapSshParallelPublish(final TaskListener listener, final int maxConcurrency, final boolean continueOnError) {
+        this.console = listener.getLogger();
+        this.continueOnError = continueOnError;
+        executor = Executors.newFixedThreadPool(maxConcurrency,
+                new NamingThreadFactory(new DaemonThreadFactory(), BapSshParallelPublish.class.getSimpleName()));
+    }
+
+    /**
+     * @param buildInfo the build info of a publisher
+     * @return the parallel publish of the build step on this node, started by the first publisher, or null if the
+     * publishers of the build step run inline
+     */
+    public static BapSshParallelPublish get(final BPBuildInfo buildInfo) {
+        final Object settings = buildInfo.get(BapSshPublisherPlugin.PARALLEL_PUBLISH_CONTEXT_KEY);
+        if (!(settings instanceof Settings)) return null;
+        final Settings parallel = (Settings) settings;
+        return ACTIVE.computeIfAbsent(parallel.id,
+                id -> new BapSshParallelPublish(buildInfo.getListener(), parallel.maxConcurrency, parallel.continueOnError));
+    }
+
+    /**
+     * Wait for the hosts of a build step to finish, on the node that they were published from.
+     *
+     * @param workspace the workspace of the build, the publishers ran on its node unless they ran on the controller
+     * @param settings the settings of the build step
+     * @param failResult the result to return if any host failed
+     * @return SUCCESS if all hosts were published to successfully, or no publisher ran, otherwise failResult
+     * @throws IOException if the node of the workspace could not be reached
+     * @throws InterruptedException if the build was aborted while waiting, the outstanding publishes are cancelled
+     */
+    public static Result finish(final FilePath workspace, final Settings settings, final Result failResult)
+            throws IOException, InterruptedException {
+        final BapSshParallelPublish local = ACTIVE.remove(settings.id);
+        if (local != null)
+            return local.await(failResult);
+        if (workspace == null || !workspace.isRemote())
+            return Result.SUCCESS;
+        return workspace.act(new Finish(settings.id, failResult));
+    }
+
+    /**
+     * Stop the outstanding publishes of a build step, used when the build step fails before all publishers have been
+     * submitted.
+     *
+     * @param workspace the workspace of the build
+     * @param settings the settings of the build step
+     */
+    public static void cancel(final FilePath workspace, final Settings settings) {
+        final BapSshParallelPublish local = ACTIVE.remove(settings.id);
+        if (local != null) {
+            local.cancel();
+            return;
+        }
+        if (workspace == null || !workspace.isRemote())
+            return;
+        try {
+            workspace.act(new Finish(settings.id, null));
+        } catch (IOException ioe) {
+            LOG.warn(Messages.log_parallel_cancel(ioe.getLocalizedMessage()), ioe);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Create a copy of the build info for one host, so that per host state such as the effective environment and
+     * overridden credentials is not shared between the publishers. All of the context that the build step puts in the
+     * build info is copied, see {@link BapSshPublisherPlugin#getContextKeys}.
+     *
+     * @param configName name of the host configuration, used to prefix the console output
+     * @param buildInfo the build info for the build step
+     * @return the build info for the host
+     */
+    public BPBuildInfo createHostBuildInfo(final String configName, final BPBuildInfo buildInfo) {
+        final HostResult result = new HostResult(configName, new PrefixedLineOutputStream(console, "[" + configName + "] "));
+        final BPBuildInfo hostBuildInfo = new BPBuildInfo(result.listener, Messages.console_message_prefix(),
+                buildInfo.getConfigDir(), buildInfo.getCurrentBuildEnv(), buildInfo.getTargetBuildEnv());
+        hostBuildInfo.setEnvVars(buildInfo.getEnvVars());
+        hostBuildInfo.setBaseDirectory(buildInfo.getBaseDirectory());
+        hostBuildInfo.setBuildTime(buildInfo.getBuildTime());
+        final List<String> keys = new ArrayList<>(BapSshPublisherPlugin.getContextKeys());
+        keys.add(BPBuildInfo.OVERRIDE_CREDENTIALS_CONTEXT_KEY);
+        for (String key : keys) {
+            final Object value = buildInfo.get(key);
+            if (value != null)
+                hostBuildInfo.put(key, value);
+        }
+        synchronized (results) {
+            results.add(result);
+        }
+        return hostBuildInfo;
+    }
+
+    /**
+     * Queue the publish to a host. The host must have been registered with {@link #createHostBuildInfo} first.
+     *
+     * @param configName name of the host configuration
+     * @param publish the publish to run
+     */
+    public void submit(final String configName, final HostPublish publish) {
+        final HostResult result = getResult(configName);
+        result.future = executor.submit(() -> {
+            if (failed && !continueOnError)
+                throw new CancellationException();
+            final long start = System.currentTimeMillis();
+            try {
+                publish.perform();
+            } catch (Exception e) {
+                failed = true;
+                result.listener.getLogger().println(Messages.console_message_prefix() + Messages.console_failure(e.getLocalizedMessage()));
+                throw e;
+            } finally {
+                result.elapsed = System.currentTimeMillis() - start;
+                result.listener.getLogger().flush();
+                result.output.finish();
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Stop the outstanding publishes, used when the build step fails before all publishers have been submitted.
+     */
+    public void cancel() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Wait for all of the hosts to finish and print a summary.
+     *
+     * @param failResult the result to return if any host failed
+     * @return SUCCESS if all hosts were published to successfully, otherwise failResult
+     * @throws InterruptedException if the build was aborted while waiting, the outstanding publishes are cancelled
+     */
+    public Result await(final Result failResult) throws InterruptedException {
+        executor.shutdown();
+        Result overall = Result.SUCCESS;
+        try {
+            for (HostResult result : getResults()) {
+                if (result.future == null) continue;
+                try {
+                    result.future.get();
+                    result.status = Messages.console_parallel_success(result.configName, result.elapsed);
+                } catch (CancellationException ce) {
+                    result.status = Messages.console_parallel_skipped(result.configName);
+                    overall = failResult;
+                } catch (ExecutionException ee) {
+                    final Throwable cause = ee.getCause() instanceof CancellationException ? null : ee.getCause();
+                    result.status = cause == null ? Messages.console_parallel_skipped(result.configName)
+                            : Messages.console_parallel_failure(result.configName, result.elapsed, cause.getLocalizedMessage());
+                    overall = failResult;
+                }
+            }
+        } catch (InterruptedException ie) {
+            executor.shutdownNow();
+            throw ie;
+        }
+        console.println(Messages.console_message_prefix() + Messages.console_parallel_summary());
+        for (HostResult result : getResults()) {
+            if (result.status != null)
+                console.println(Messages.console_message_prefix() + "  " + result.status);
+        }
+        return overall;
+    }
+
+    private List<HostResult> getResults() {
+        synchronized (results) {
+            return new ArrayList<>(results);
+        }
+    }
+
+    private HostResult getResult(final String configName) {
+        synchronized (results) {
+            for (int i = results.size() - 1; i >= 0; i--) {
+                final HostResult result = results.get(i);
+                if (result.configName.equals(configName) && result.future == null)
+                    return result;
+            }
+        }
+        throw new IllegalStateException(configName);
+    }
+
+    /**
+     * A publish to a single host.
+     */
+    public interface HostPublish {
+        void perform() throws Exception;
+    }
+
+    /**
+     * The settings of the parallel publish of one run of a build step, sent to the node that publishes in the build info.
+     */
+    public static final class Settings implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String id = UUID.randomUUID().toString();
+        private final int maxConcurrency;
+        private final boolean continueOnError;
+
+        public Settings(final int maxConcurrency, final boolean continueOnError) {
+            this.maxConcurrency = maxConcurrency;
+            this.continueOnError = continueOnError;
+        }
+    }
+
+    /**
+     * The listener that the build step passes to publish-over, which hands it to the build info, so that the settings
+     * reach {@link BapSshPublisherPlugin#fixup}.
+     */
+    public static final class Listener implements TaskListener {
+        private static final long serialVersionUID = 1L;
+        private final TaskListener listener;
+        private final Settings settings;
+
+        public Listener(final TaskListener listener, final Settings settings) {
+            this.listener = listener;
+            this.settings = settings;
+        }
+
+        @Override
+        public PrintStream getLogger() {
+            return listener.getLogger();
+        }
+
+        public Settings getSettings() {
+            return settings;
+        }
+    }
+
+    /**
+     * Waits for, or cancels when there is no result to fail with, the parallel publish of a build step on an agent.
+     */
+    private static final class Finish extends MasterToSlaveFileCallable<Result> {
+        private static final long serialVersionUID = 1L;
+        private final String id;
+        private final Result failResult;
+
+        Finish(final String id, final Result failResult) {
+            this.id = id;
+            this.failResult = failResult;
+        }
+
+        @Override
+        public Result invoke(final File workspace, final VirtualChannel channel) throws InterruptedException {
+            final BapSshParallelPublish parallelPublish = ACTIVE.remove(id);
+            if (parallelPublish == null)
+                return Result.SUCCESS;
+            if (failResult == null) {
+                parallelPublish.cancel();
+                return Result.SUCCESS;
+            }
+            return parallelPublish.await(failResult);
+        }
+    }
+
+    private static final class HostResult {
+        private final String configName;
+        private final PrefixedLineOutputStream output;
+        private final StreamTaskListener listener;
+        private Future<Void> future;
+        private long elapsed;
+        private String status;
+
+        HostResult(final String configName, final PrefixedLineOutputStream output) {
+            this.configName = configName;
+            this.output = output;
+            this.listener = new StreamTaskListener(output, CHARSET);
+        }
+    }
+
+    /**
+     * Buffers output until a complete line is available, then writes the line with a prefix to the build console.
+     * Writes are synchronized on the console so that lines from different hosts are never mixed.
+     */
+    static final class PrefixedLineOutputStream extends OutputStream {
+
+        private final PrintStream target;
+        private final byte[] prefix;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        PrefixedLineOutputStream(final PrintStream target, final String prefix) {
+            this.target = target;
+            this.prefix = prefix.getBytes(CHARSET);
+        }
+
+        @Override
+        public synchronized void write(final int b) {
+            line.write(b);
+            if (b == '\n')
+                writeLine();
+        }
+
+        @Override
+        public synchronized void write(final byte[] b, final int off, final int len) {
+            int start = off;
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == '\n') {
+                    line.write(b, start, i + 1 - start);
+                    writeLine();
+                    start = i + 1;
+                }
+            }
+            line.write(b, start, off + len - start);
+        }
+
+        /**
+         * Write out any incomplete last line. Flush is deliberately a no-op, as the listener flushes after every write.
+         */
+        synchronized void finish() {
+            if (line.size() > 0) {
+                line.write('\n');
+                writeLine();
+            }
+        }
+
+        @Override
+        public void close() {
+            finish();
+        }
+
+        private void writeLine() {
+            synchronized (target) {
+                target.write(prefix, 0, prefix.length);
+                target.write(line.toByteArray(), 0, line.size());
+                target.flush();
+            }
+            line.reset();
+        }
+
+    }
+
+}
@@ -0,0 +1,232 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import hudson.FilePath;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import jenkins.plugins.publish_over.BapPublisherException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Uploads the files of a transfer over several SFTP channels on the same session.
+ *
+ * While the transfer walks the file set, the client creates the remote directories on its own channel and queues the
+ * files with the absolute remote directory that they belong in. When the transfer ends, the queued files are
+ * uploaded largest first by one worker per channel, so every directory already exists and the current directory of
+ * the extra channels does not matter.
+ *
+ * The workers run on an executor that is created once for the client and shut down when it disconnects. When an
+ * upload fails or is interrupted, the extra channels may have been stopped in the middle of a put, so they are
+ * disconnected and opened again for the next transfer instead of being handed on.
+ */
+class BapSshParallelUpload {
+
+    private static final Log LOG = LogFactory.getLog(BapSshParallelUpload.class);
+
+    private final BPBuildInfo buildInfo;
+    private final int channelCount;
+    private final int connectTimeout;
+    private final List<ChannelSftp> extraChannels = new ArrayList<>();
+    private final List<QueuedFile> queue = new ArrayList<>();
+    private ExecutorService executor;
+
+    BapSshParallelUpload(final BPBuildInfo buildInfo, final int channelCount, final int connectTimeout) {
+        this.buildInfo = buildInfo;
+        this.channelCount = channelCount;
+        this.connectTimeout = connectTimeout;
+    }
+
+    void queue(final BapSshTransfer transfer, final FilePath filePath, final String remoteDirectory)
+            throws IOException, InterruptedException {
+        queue.add(new QueuedFile(transfer, filePath, remoteDirectory, filePath.length()));
+    }
+
+    boolean hasQueuedFiles() {
+        return !queue.isEmpty();
+    }
+
+    void clear() {
+        queue.clear();
+    }
+
+    /**
+     * Upload all of the queued files.
+     *
+     * @param primary the channel that the client already has open, used as one of the workers
+     * @param session the session to open the extra channels on
+     * @param channelSetup applies the upload settings to each extra channel once it is connected
+     * @param uploader uploads a single file over the given channel
+     * @throws InterruptedException if the build was interrupted while waiting for the workers
+     */
+    void upload(final ChannelSftp primary, final Session session, final Consumer<ChannelSftp> channelSetup, final Uploader uploader)
+            throws InterruptedException {
+        final ConcurrentLinkedQueue<QueuedFile> pending = new ConcurrentLinkedQueue<>(sortLargestFirst());
+        queue.clear();
+        final List<ChannelSftp> channels = new ArrayList<>();
+        channels.add(primary);
+        channels.addAll(openExtraChannels(session, channelSetup, Math.min(channelCount, pending.size()) - 1));
+        final CompletionService<Void> completion = new ExecutorCompletionService<>(getExecutor());
+        final List<Future<Void>> workers = new ArrayList<>();
+        for (ChannelSftp channel : channels) {
+            workers.add(completion.submit(() -> {
+                QueuedFile file;
+                while ((file = pending.poll()) != null)
+                    uploader.upload(channel, file.transfer, file.filePath, file.remoteDirectory);
+                return null;
+            }));
+        }
+        try {
+            // take the workers as they finish so that the first failure stops the others straight away
+            for (int i = 0; i < workers.size(); i++)
+                completion.take().get();
+        } catch (ExecutionException ee) {
+            abort(pending, workers);
+            final Throwable cause = ee.getCause();
+            if (cause instanceof BapPublisherException)
+                throw (BapPublisherException) cause;
+            throw new BapPublisherException(Messages.exception_parallelUpload(cause.getLocalizedMessage()), cause);
+        } catch (InterruptedException ie) {
+            abort(pending, workers);
+            throw ie;
+        }
+    }
+
+    private ExecutorService getExecutor() {
+        if (executor == null)
+            executor = Executors.newFixedThreadPool(channelCount,
+                    new NamingThreadFactory(new DaemonThreadFactory(), BapSshParallelUpload.class.getSimpleName()));
+        return executor;
+    }
+
+    private void abort(final ConcurrentLinkedQueue<QueuedFile> pending, final List<Future<Void>> workers) {
+        pending.clear();
+        for (Future<Void> worker : workers)
+            worker.cancel(true);
+        // a worker may have been stopped part way through a put, do not trust the state of its channel
+        disconnectExtraChannels();
+    }
+
+    private List<QueuedFile> sortLargestFirst() {
+        final List<QueuedFile> sorted = new ArrayList<>(queue);
+        sorted.sort(Comparator.comparingLong((QueuedFile file) -> file.size).reversed());
+        return sorted;
+    }
+
+    private List<ChannelSftp> openExtraChannels(final Session session, final Consumer<ChannelSftp> channelSetup, final int required) {
+        while (extraChannels.size() < required) {
+            final ChannelSftp channel;
+            try {
+                buildInfo.printIfVerbose(Messages.console_sftp_opening());
+                channel = (ChannelSftp) session.openChannel("sftp");
+                channel.connect(connectTimeout);
+            } catch (JSchException jse) {
+                // the server may limit the number of channels per session, carry on with the channels we have
+                buildInfo.printIfVerbose(Messages.console_warning(Messages.exception_sftp_open(jse.getLocalizedMessage())));
+                LOG.warn(Messages.exception_sftp_open(jse.getLocalizedMessage()), jse);
+                break;
+            }
+            buildInfo.printIfVerbose(Messages.console_sftp_connected());
+            extraChannels.add(channel);
+            channelSetup.accept(channel);
+        }
+        return new ArrayList<>(extraChannels.subList(0, Math.max(0, Math.min(required, extraChannels.size()))));
+    }
+
+    /**
+     * @param primary the channel that the client already has open
+     * @return the primary channel and the extra channels that are open, none of them busy once {@link #upload} returns
+     */
+    List<ChannelSftp> getChannels(final ChannelSftp primary) {
+        final List<ChannelSftp> channels = new ArrayList<>();
+        channels.add(primary);
+        for (ChannelSftp channel : extraChannels) {
+            if (channel.isConnected())
+                channels.add(channel);
+        }
+        return channels;
+    }
+
+    void disconnect() {
+        disconnectExtraChannels();
+        queue.clear();
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private void disconnectExtraChannels() {
+        for (ChannelSftp channel : extraChannels) {
+            try {
+                if (channel.isConnected())
+                    channel.disconnect();
+            } catch (Exception e) {
+                LOG.warn(Messages.exception_disconnect_sftp(e.getLocalizedMessage()));
+            }
+        }
+        extraChannels.clear();
+    }
+
+    /**
+     * Uploads one file to the given absolute remote directory over the given channel.
+     */
+    interface Uploader {
+        void upload(ChannelSftp channel, BapSshTransfer transfer, FilePath filePath, String remoteDirectory) throws Exception;
+    }
+
+    private static final class QueuedFile {
+        private final BapSshTransfer transfer;
+        private final FilePath filePath;
+        private final String remoteDirectory;
+        private final long size;
+
+        QueuedFile(final BapSshTransfer transfer, final FilePath filePath, final String remoteDirectory, final long size) {
+            this.transfer = transfer;
+            this.filePath = filePath;
+            this.remoteDirectory = remoteDirectory;
+            this.size = size;
+        }
+    }
+
+}
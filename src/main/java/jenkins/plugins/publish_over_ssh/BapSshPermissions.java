@@ -0,0 +1,224 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpException;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import jenkins.plugins.publish_over.BapPublisherException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+
+/**
+ * The permissions to give to the files and directories uploaded by a transfer with keepFilePermissions.
+ *
+ * The modes are recorded as the files are uploaded and set once the transfer has uploaded all of its files, so a
+ * directory holding many files is only changed once, and a directory that is made read only does not stop the files
+ * from being uploaded into it. When exec is allowed all the modes are set by a few {@code chmod} commands, otherwise
+ * with one SFTP request for each file and directory. JSch waits for the reply to each request, so the requests are
+ * spread over the channels that the files were uploaded on: first all the files, then the directories one depth at a
+ * time, deepest first.
+ */
+final class BapSshPermissions {
+
+    /** Commands are kept well below the smallest argument length limit of the usual shells. */
+    static final int MAX_COMMAND_LENGTH = 32 * 1024;
+    private static final int PERMISSIONS_MASK = 07777;
+
+    private final Map<String, Integer> files = new HashMap<>();
+    private final Map<String, Integer> directories = new HashMap<>();
+
+    synchronized void setFileMode(final String remotePath, final int mode) {
+        files.put(remotePath, mode & PERMISSIONS_MASK);
+    }
+
+    synchronized void setDirectoryMode(final String remoteDirectory, final int mode) {
+        directories.put(remoteDirectory, mode & PERMISSIONS_MASK);
+    }
+
+    synchronized boolean isEmpty() {
+        return files.isEmpty() && directories.isEmpty();
+    }
+
+    synchronized void clear() {
+        files.clear();
+        directories.clear();
+    }
+
+    /**
+     * Set all of the recorded modes and forget them.
+     *
+     * @param buildInfo the build info
+     * @param channels channels to set the modes over when they cannot be set with a command, in use by nothing else
+     * @param exec runs a command on the server and returns true if it succeeded, null if exec is not allowed
+     * @throws SftpException if a mode could not be set
+     * @throws InterruptedException if interrupted while waiting for the modes to be set
+     */
+    synchronized void apply(final BPBuildInfo buildInfo, final List<ChannelSftp> channels, final Predicate<String> exec)
+            throws SftpException, InterruptedException {
+        final Map<String, Integer> targets = targets();
+        buildInfo.printIfVerbose(Messages.console_permissions(files.size(), directories.size()));
+        final List<Map<String, Integer>> levels = levels();
+        clear();
+        if (exec != null && commands(targets).stream().allMatch(exec))
+            return;
+        if (channels.size() == 1) {
+            for (Map.Entry<String, Integer> target : targets.entrySet())
+                chmod(buildInfo, channels.get(0), target);
+            return;
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(channels.size(),
+                new NamingThreadFactory(new DaemonThreadFactory(), BapSshPermissions.class.getSimpleName()));
+        try {
+            for (Map<String, Integer> level : levels)
+                chmod(buildInfo, channels, executor, level);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void chmod(final BPBuildInfo buildInfo, final ChannelSftp channel, final Map.Entry<String, Integer> target)
+            throws SftpException {
+        buildInfo.printIfVerbose(Messages.console_chmod(Integer.toOctalString(target.getValue()), target.getKey()));
+        channel.chmod(target.getValue(), target.getKey());
+    }
+
+    private static void chmod(final BPBuildInfo buildInfo, final List<ChannelSftp> channels, final ExecutorService executor,
+                              final Map<String, Integer> targets) throws SftpException, InterruptedException {
+        final ConcurrentLinkedQueue<Map.Entry<String, Integer>> pending = new ConcurrentLinkedQueue<>(targets.entrySet());
+        final List<Future<Void>> workers = new ArrayList<>();
+        for (ChannelSftp channel : channels.subList(0, Math.min(channels.size(), targets.size()))) {
+            workers.add(executor.submit(() -> {
+                Map.Entry<String, Integer> target;
+                while ((target = pending.poll()) != null)
+                    chmod(buildInfo, channel, target);
+                return null;
+            }));
+        }
+        try {
+            for (Future<Void> worker : workers)
+                worker.get();
+        } catch (ExecutionException ee) {
+            pending.clear();
+            final Throwable cause = ee.getCause();
+            if (cause instanceof SftpException)
+                throw (SftpException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new BapPublisherException(Messages.exception_permissions(cause.getLocalizedMessage()), cause);
+        } catch (InterruptedException ie) {
+            pending.clear();
+            throw ie;
+        }
+    }
+
+    /**
+     * @return the paths that can be changed at the same time: all of the files, then the directories of each depth,
+     * deepest first
+     */
+    private List<Map<String, Integer>> levels() {
+        final List<Map<String, Integer>> levels = new ArrayList<>();
+        if (!files.isEmpty())
+            levels.add(new HashMap<>(files));
+        final Map<Integer, Map<String, Integer>> byDepth = new TreeMap<>(Comparator.reverseOrder());
+        for (Map.Entry<String, Integer> directory : directories.entrySet()) {
+            byDepth.computeIfAbsent(depth(directory.getKey()), depth -> new HashMap<>())
+                    .put(directory.getKey(), directory.getValue());
+        }
+        levels.addAll(byDepth.values());
+        return levels;
+    }
+
+    /**
+     * @return the paths to change in order, the files grouped by mode and then the directories deepest first, so that
+     * every directory is still searchable when the paths under it are changed
+     */
+    private Map<String, Integer> targets() {
+        final Map<String, Integer> targets = new LinkedHashMap<>();
+        files.entrySet().stream()
+                .sorted(Map.Entry.<String, Integer>comparingByValue().thenComparing(Map.Entry.comparingByKey()))
+                .forEach(entry -> targets.put(entry.getKey(), entry.getValue()));
+        directories.entrySet().stream()
+                .sorted(Comparator.comparingInt((Map.Entry<String, Integer> entry) -> depth(entry.getKey())).reversed()
+                        .thenComparing(Map.Entry.comparingByKey()))
+                .forEach(entry -> targets.put(entry.getKey(), entry.getValue()));
+        return targets;
+    }
+
+    private static int depth(final String path) {
+        int depth = 0;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/')
+                depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * @param targets the paths to change in order, with their modes
+     * @return the commands that set the modes in the same order, each one no longer than {@link #MAX_COMMAND_LENGTH}
+     * unless a single path is longer
+     */
+    static List<String> commands(final Map<String, Integer> targets) {
+        final List<String> commands = new ArrayList<>();
+        final StringBuilder command = new StringBuilder();
+        int currentMode = -1;
+        for (Map.Entry<String, Integer> target : targets.entrySet()) {
+            final String path = " " + BapSshTargetFiles.quote(target.getKey());
+            final boolean sameMode = target.getValue() == currentMode;
+            final String chmod = "chmod " + Integer.toOctalString(target.getValue()) + " --";
+            final int length = command.length() + path.length() + (sameMode ? 0 : chmod.length() + 4);
+            if (command.length() > 0 && length > MAX_COMMAND_LENGTH) {
+                commands.add(command.toString());
+                command.setLength(0);
+            }
+            if (command.length() == 0 || !sameMode) {
+                if (command.length() > 0)
+                    command.append(" && ");
+                command.append(chmod);
+                currentMode = target.getValue();
+            }
+            command.append(path);
+        }
+        if (command.length() > 0)
+            commands.add(command.toString());
+        return commands;
+    }
+
+}
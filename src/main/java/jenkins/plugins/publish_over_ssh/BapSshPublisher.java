@@ -26,6 +26,8 @@ package jenkins.plugins.publish_over_ssh;
 
 import hudson.model.Describable;
 import jenkins.model.Jenkins;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import jenkins.plugins.publish_over.BPHostConfiguration;
 import jenkins.plugins.publish_over.BapPublisher;
 import jenkins.plugins.publish_over_ssh.descriptor.BapSshPublisherDescriptor;
 import org.apache.commons.lang.builder.EqualsBuilder;
@@ -33,6 +35,7 @@ import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import java.util.ArrayList;
 
@@ -44,6 +47,9 @@ public class BapSshPublisher extends BapPublisher<BapSshTransfer> implements Des
 
     private static final long serialVersionUID = 1L;
 
+    private int maxBandwidth;
+    private boolean bulkTransfer;
+
     @DataBoundConstructor
     public BapSshPublisher(final String configName, final boolean verbose, final ArrayList<BapSshTransfer> transfers,
                            final boolean useWorkspaceInPromotion, final boolean usePromotionTimestamp, final BapSshRetry sshRetry,
@@ -58,6 +64,38 @@ public class BapSshPublisher extends BapPublisher<BapSshTransfer> implements Des
         return false;
     }
 
+    /**
+     * Publish to the host, or queue the publish if the build step is publishing to its hosts in parallel.
+     */
+    @Override
+    public void perform(final BPHostConfiguration hostConfig, final BPBuildInfo buildInfo) throws Exception {
+        final BapSshParallelPublish parallelPublish = BapSshParallelPublish.get(buildInfo);
+        if (parallelPublish == null) {
+            super.perform(hostConfig, buildInfo);
+            return;
+        }
+        final BPBuildInfo hostBuildInfo = parallelPublish.createHostBuildInfo(getConfigName(), buildInfo);
+        parallelPublish.submit(getConfigName(), () -> super.perform(hostConfig, hostBuildInfo));
+    }
+
+    public int getMaxBandwidth() {
+        return maxBandwidth;
+    }
+
+    @DataBoundSetter
+    public void setMaxBandwidth(final int maxBandwidth) {
+        this.maxBandwidth = maxBandwidth;
+    }
+
+    public boolean isBulkTransfer() {
+        return bulkTransfer;
+    }
+
+    @DataBoundSetter
+    public void setBulkTransfer(final boolean bulkTransfer) {
+        this.bulkTransfer = bulkTransfer;
+    }
+
     public BapSshRetry getSshRetry() {
         return (BapSshRetry) super.getRetry();
     }
@@ -74,6 +112,24 @@ public class BapSshPublisher extends BapPublisher<BapSshTransfer> implements Des
         return Jenkins.getInstance().getDescriptorByType(BapSshPublisherDescriptor.class);
     }
 
+    protected EqualsBuilder addToEquals(final EqualsBuilder builder, final BapSshPublisher that) {
+        return super.addToEquals(builder, that)
+            .append(maxBandwidth, that.maxBandwidth)
+            .append(bulkTransfer, that.bulkTransfer);
+    }
+
+    protected HashCodeBuilder addToHashCode(final HashCodeBuilder builder) {
+        return super.addToHashCode(builder)
+            .append(maxBandwidth)
+            .append(bulkTransfer);
+    }
+
+    protected ToStringBuilder addToToString(final ToStringBuilder builder) {
+        return super.addToToString(builder)
+            .append("maxBandwidth", maxBandwidth)
+            .append("bulkTransfer", bulkTransfer);
+    }
+
     public boolean equals(final Object that) {
         if (this == that) return true;
         if (that == null || getClass() != that.getClass()) return false;
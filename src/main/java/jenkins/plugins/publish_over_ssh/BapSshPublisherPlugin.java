@@ -25,11 +25,20 @@
 package jenkins.plugins.publish_over_ssh;
 
 import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.RemoteOutputStream;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import jenkins.model.Jenkins;
+import jenkins.plugins.publish_over.BPBuildInfo;
 import jenkins.plugins.publish_over.BPPlugin;
 import jenkins.plugins.publish_over.BPPluginDescriptor;
 import jenkins.plugins.publish_over_ssh.descriptor.BapSshPublisherPluginDescriptor;
@@ -47,6 +56,21 @@ public class BapSshPublisherPlugin extends BPPlugin<BapSshPublisher, BapSshClien
 
     private static final long serialVersionUID = 1L;
 
+    public static final int DEFAULT_MAX_CONCURRENCY = 10;
+    private static final List<String> CONTEXT_KEYS = new ArrayList<>();
+    public static final String BUILD_DIRECTORY_CONTEXT_KEY = contextKey("publish-over-ssh.buildDirectory");
+    public static final String JOB_DIRECTORY_CONTEXT_KEY = contextKey("publish-over-ssh.jobDirectory");
+    public static final String STATISTICS_CONTEXT_KEY = contextKey("publish-over-ssh.statistics");
+    public static final String CONNECTION_LIMITER_CONTEXT_KEY = contextKey("publish-over-ssh.connectionLimiter");
+    public static final String CONNECTION_PRIORITY_CONTEXT_KEY = contextKey("publish-over-ssh.connectionPriority");
+    public static final String EXEC_OUTPUT_CONTEXT_KEY = contextKey("publish-over-ssh.execOutput");
+    public static final String COMPLETED_UPLOADS_CONTEXT_KEY = contextKey("publish-over-ssh.completedUploads");
+    public static final String PARALLEL_PUBLISH_CONTEXT_KEY = contextKey("publish-over-ssh.parallelPublish");
+
+    private boolean parallel;
+    private int maxConcurrency;
+    private int connectionPriority;
+
     public BapSshPublisherPlugin(final ArrayList<BapSshPublisher> publishers, final boolean continueOnError, final boolean failOnError,
                                  final boolean alwaysPublishFromMaster, final String masterNodeName,
                                  final BapSshParamPublish paramPublish) {
@@ -113,22 +137,115 @@ public class BapSshPublisherPlugin extends BPPlugin<BapSshPublisher, BapSshClien
         this.getDelegate().setMasterNodeName(masterNodeName);
     }
 
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    @DataBoundSetter
+    public void setParallel(final boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrency(final int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    public int getConnectionPriority() {
+        return connectionPriority;
+    }
+
+    @DataBoundSetter
+    public void setConnectionPriority(final int connectionPriority) {
+        this.connectionPriority = connectionPriority;
+    }
+
+    /**
+     * Declare a key of the context that the publishers of this plugin keep in the build info, so that it is copied to
+     * the build info of each host when publishing in parallel.
+     */
+    private static String contextKey(final String key) {
+        CONTEXT_KEYS.add(key);
+        return key;
+    }
+
+    /**
+     * @return the keys of the context that the publishers of this plugin keep in the build info
+     */
+    public static List<String> getContextKeys() {
+        return Collections.unmodifiableList(CONTEXT_KEYS);
+    }
+
+    private int getEffectiveMaxConcurrency() {
+        return maxConcurrency > 0 ? maxConcurrency : DEFAULT_MAX_CONCURRENCY;
+    }
+
+    @Override
+    protected void fixup(final Run<?, ?> run, final BPBuildInfo buildInfo) {
+        super.fixup(run, buildInfo);
+        buildInfo.put(BUILD_DIRECTORY_CONTEXT_KEY, run.getRootDir().getAbsolutePath());
+        buildInfo.put(JOB_DIRECTORY_CONTEXT_KEY, new FilePath(run.getParent().getRootDir()));
+        buildInfo.put(STATISTICS_CONTEXT_KEY, new RemoteOutputStream(BapSshTransferStatisticsAction.collector(run)));
+        buildInfo.put(EXEC_OUTPUT_CONTEXT_KEY, new RemoteOutputStream(BapSshExecOutput.collector(run.getRootDir())));
+        buildInfo.put(CONNECTION_LIMITER_CONTEXT_KEY, BapSshConnectionLimiter.gate());
+        buildInfo.put(CONNECTION_PRIORITY_CONTEXT_KEY, connectionPriority);
+        if (buildInfo.getListener() instanceof BapSshParallelPublish.Listener)
+            buildInfo.put(PARALLEL_PUBLISH_CONTEXT_KEY, ((BapSshParallelPublish.Listener) buildInfo.getListener()).getSettings());
+    }
+
+    @Override
+    public void perform(final Run<?, ?> run, final FilePath workspace, final Launcher launcher, final TaskListener listener)
+                    throws InterruptedException, IOException {
+        if (!parallel) {
+            super.perform(run, workspace, launcher, listener);
+            return;
+        }
+        // publish-over runs the publishers on the node of the workspace, the settings go with the build info
+        final BapSshParallelPublish.Settings settings = new BapSshParallelPublish.Settings(getEffectiveMaxConcurrency(), isContinueOnError());
+        try {
+            super.perform(run, workspace, launcher, new BapSshParallelPublish.Listener(listener, settings));
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            BapSshParallelPublish.cancel(workspace, settings);
+            throw e;
+        }
+        final Result result = BapSshParallelPublish.finish(workspace, settings, isFailOnError() ? Result.FAILURE : Result.UNSTABLE);
+        if (result != Result.SUCCESS)
+            run.setResult(result);
+    }
+
     @Override
     public boolean equals(final Object that) {
         if (this == that) return true;
         if (that == null || getClass() != that.getClass()) return false;
 
-        return addToEquals(new EqualsBuilder(), (BapSshPublisherPlugin) that).isEquals();
+        final BapSshPublisherPlugin thatPlugin = (BapSshPublisherPlugin) that;
+        return addToEquals(new EqualsBuilder(), thatPlugin)
+                .append(parallel, thatPlugin.parallel)
+                .append(maxConcurrency, thatPlugin.maxConcurrency)
+                .append(connectionPriority, thatPlugin.connectionPriority)
+                .isEquals();
     }
 
     @Override
     public int hashCode() {
-        return addToHashCode(new HashCodeBuilder()).toHashCode();
+        return addToHashCode(new HashCodeBuilder())
+                .append(parallel)
+                .append(maxConcurrency)
+                .append(connectionPriority)
+                .toHashCode();
     }
 
     @Override
     public String toString() {
-        return addToToString(new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)).toString();
+        return addToToString(new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE))
+                .append("parallel", parallel)
+                .append("maxConcurrency", maxConcurrency)
+                .append("connectionPriority", connectionPriority)
+                .toString();
     }
 
     @Override
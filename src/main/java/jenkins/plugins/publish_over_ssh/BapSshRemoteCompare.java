@@ -0,0 +1,58 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+/**
+ * How the files about to be uploaded are compared with the files already on the server.
+ */
+public enum BapSshRemoteCompare {
+
+    /** Always upload. */
+    NONE,
+
+    /** Skip files that have the same size and modification time on the server. */
+    STAT,
+
+    /**
+     * As {@link #STAT}, and also skip files of the same size whose digest, computed by one command for each remote
+     * directory, matches. Behaves as {@link #STAT} when exec is disabled.
+     */
+    CHECKSUM;
+
+    /**
+     * Find the comparison by name, falling back to NONE for an empty or unknown name.
+     *
+     * @param name the name of the comparison
+     * @return the comparison
+     */
+    public static BapSshRemoteCompare fromName(final String name) {
+        for (BapSshRemoteCompare compare : values()) {
+            if (compare.name().equals(name))
+                return compare;
+        }
+        return NONE;
+    }
+
+}
@@ -0,0 +1,364 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import jenkins.plugins.publish_over.BapPublisherException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Delete the contents of a remote directory for cleanRemote.
+ *
+ * When exec is allowed, and the directory is the remote root or under it, one {@code rm -rf} run on the server deletes
+ * the whole tree. Otherwise the tree is walked over SFTP with absolute paths, so there is no change of directory for
+ * every sub directory, and the listings and removals are spread over several channels when the host configuration
+ * uploads over several channels.
+ */
+final class BapSshRemoteDelete {
+
+    private static final Log LOG = LogFactory.getLog(BapSshRemoteDelete.class);
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final int PERMISSIONS_MASK = 07777;
+
+    private final BPBuildInfo buildInfo;
+    private final Session session;
+    private final boolean execAllowed;
+    private final int channelCount;
+    private final int connectTimeout;
+
+    /**
+     * @param buildInfo the build info
+     * @param session session used to run the commands and to open the extra channels
+     * @param execAllowed false to only delete over SFTP
+     * @param channelCount number of SFTP channels to walk the tree with, including the channel of the client
+     * @param connectTimeout timeout in milliseconds to connect each additional channel
+     */
+    BapSshRemoteDelete(final BPBuildInfo buildInfo, final Session session, final boolean execAllowed, final int channelCount,
+                       final int connectTimeout) {
+        this.buildInfo = buildInfo;
+        this.session = session;
+        this.execAllowed = execAllowed;
+        this.channelCount = Math.max(1, channelCount);
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Delete everything in a directory, leaving the directory itself in place.
+     *
+     * @param sftp the channel of the client
+     * @param directory absolute path of the directory
+     * @param root absolute path of the remote root directory, or null if not known
+     * @throws SftpException if the directory could not be listed
+     */
+    void deleteContents(final ChannelSftp sftp, final String directory, final String root) throws SftpException {
+        if (isInsideRoot(directory, root, true) && execute(command(directory), directory)) {
+            buildInfo.printIfVerbose(Messages.console_cleanRemote_exec(directory));
+            return;
+        }
+        walk(sftp, directory);
+    }
+
+    /**
+     * Move a directory aside, put an empty directory with the same permissions in its place and delete the old one in
+     * the background on the server.
+     *
+     * @param sftp the channel of the client
+     * @param directory absolute path of the directory
+     * @param root absolute path of the remote root directory, or null if not known
+     * @return false if the directory was left as it was and must be cleaned with {@link #deleteContents}
+     */
+    boolean deleteInBackground(final ChannelSftp sftp, final String directory, final String root) {
+        if (!execAllowed || !isInsideRoot(directory, root, false)) {
+            buildInfo.printIfVerbose(Messages.console_cleanRemote_notInBackground(directory));
+            return false;
+        }
+        final String aside = toAsideName(directory, Long.toHexString(RANDOM.nextLong()));
+        final SftpATTRS attrs;
+        try {
+            attrs = sftp.stat(directory);
+            sftp.rename(directory, aside);
+        } catch (SftpException sftpe) {
+            buildInfo.printIfVerbose(Messages.console_cleanRemote_notMoved(directory, sftpe.getLocalizedMessage()));
+            return false;
+        }
+        try {
+            sftp.mkdir(directory);
+            sftp.chmod(attrs.getPermissions() & PERMISSIONS_MASK, directory);
+        } catch (SftpException sftpe) {
+            throw new BapPublisherException(Messages.exception_cleanRemote_recreate(directory, aside, sftpe.getLocalizedMessage()), sftpe);
+        }
+        if (execute(backgroundCommand(aside), aside)) {
+            buildInfo.println(Messages.console_cleanRemote_background(directory, aside));
+            return true;
+        }
+        try {
+            walk(sftp, aside);
+            sftp.rmdir(aside);
+        } catch (SftpException sftpe) {
+            throw new BapPublisherException(Messages.exception_client_rmdir(aside), sftpe);
+        }
+        return true;
+    }
+
+    /**
+     * @param directory absolute path of a directory
+     * @param root absolute path of the remote root directory
+     * @param allowRoot true if the directory may be the root itself
+     * @return true if the directory is the root, or under it, and is safe to delete with one command
+     */
+    static boolean isInsideRoot(final String directory, final String root, final boolean allowRoot) {
+        if (!isPlainAbsolute(directory) || !isPlainAbsolute(root)) return false;
+        final String dir = trimTrailingSlashes(directory);
+        final String top = trimTrailingSlashes(root);
+        if (dir.isEmpty()) return false;
+        if (dir.equals(top)) return allowRoot;
+        return dir.startsWith(top + "/");
+    }
+
+    private static boolean isPlainAbsolute(final String path) {
+        if (path == null || !path.startsWith("/")) return false;
+        for (String segment : path.split("/")) {
+            if (".".equals(segment) || "..".equals(segment)) return false;
+        }
+        return true;
+    }
+
+    private static String trimTrailingSlashes(final String path) {
+        int end = path.length();
+        while (end > 0 && path.charAt(end - 1) == '/')
+            end--;
+        return path.substring(0, end);
+    }
+
+    static String command(final String directory) {
+        // -P resolves symbolic links, the tree deleted is never the root of the file system
+        return "cd -P -- " + BapSshTargetFiles.quote(directory) + " && [ \"$(pwd -P)\" != / ]"
+                + " && find . -mindepth 1 -maxdepth 1 -exec rm -rf -- {} +";
+    }
+
+    static String backgroundCommand(final String directory) {
+        return "nohup rm -rf -- " + BapSshTargetFiles.quote(directory) + " </dev/null >/dev/null 2>&1 &";
+    }
+
+    static String toAsideName(final String directory, final String suffix) {
+        final String dir = trimTrailingSlashes(directory);
+        final int slash = dir.lastIndexOf('/');
+        return dir.substring(0, slash + 1) + "." + dir.substring(slash + 1) + ".deleting-" + suffix;
+    }
+
+    private boolean execute(final String command, final String directory) {
+        if (!execAllowed) return false;
+        final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        ChannelExec exec = null;
+        try {
+            exec = (ChannelExec) session.openChannel("exec");
+            buildInfo.printIfVerbose(Messages.console_exec_connecting(command));
+            exec.setCommand(command);
+            exec.setInputStream(null);
+            exec.setOutputStream(errors, true);
+            exec.setErrStream(errors, true);
+            exec.connect(session.getTimeout());
+            BapSshExecMonitor.await(exec, 0);
+            if (exec.getExitStatus() == 0)
+                return true;
+            final String message = new String(errors.toByteArray(), StandardCharsets.UTF_8).trim();
+            buildInfo.printIfVerbose(Messages.console_cleanRemote_execFailed(directory,
+                    message.isEmpty() ? Messages.exception_exec_exitStatus(exec.getExitStatus()) : message));
+        } catch (JSchException jse) {
+            buildInfo.printIfVerbose(Messages.console_cleanRemote_execFailed(directory, jse.getLocalizedMessage()));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new BapPublisherException(Messages.exception_cleanRemote(directory, ie.getLocalizedMessage()), ie);
+        } finally {
+            if (exec != null)
+                exec.disconnect();
+        }
+        return false;
+    }
+
+    private void walk(final ChannelSftp sftp, final String directory) throws SftpException {
+        final List<ChannelSftp> extraChannels = openExtraChannels(channelCount - 1);
+        final BlockingQueue<ChannelSftp> idle = new LinkedBlockingQueue<>(extraChannels);
+        idle.add(sftp);
+        buildInfo.printIfVerbose(Messages.console_cleanRemote_sftp(directory, idle.size()));
+        // with one channel every request is made in turn on this thread
+        final ExecutorService executor = idle.size() > 1 ? Executors.newFixedThreadPool(idle.size(),
+                new NamingThreadFactory(new DaemonThreadFactory(), BapSshRemoteDelete.class.getSimpleName())) : null;
+        final Walk walk = new Walk(idle, executor == null ? Runnable::run : executor);
+        try {
+            walk.clear(directory).get();
+        } catch (ExecutionException ee) {
+            final Throwable cause = ee.getCause();
+            if (cause instanceof SftpException)
+                throw (SftpException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new BapPublisherException(Messages.exception_cleanRemote(directory, cause.getLocalizedMessage()), cause);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new BapPublisherException(Messages.exception_cleanRemote(directory, ie.getLocalizedMessage()), ie);
+        } finally {
+            if (executor != null)
+                executor.shutdownNow();
+            for (ChannelSftp channel : extraChannels) {
+                try {
+                    channel.disconnect();
+                } catch (Exception e) {
+                    LOG.warn(Messages.exception_disconnect_sftp(e.getLocalizedMessage()));
+                }
+            }
+        }
+    }
+
+    private List<ChannelSftp> openExtraChannels(final int required) {
+        final List<ChannelSftp> channels = new ArrayList<>();
+        while (channels.size() < required) {
+            try {
+                buildInfo.printIfVerbose(Messages.console_sftp_opening());
+                final ChannelSftp channel = (ChannelSftp) session.openChannel("sftp");
+                channel.connect(connectTimeout);
+                buildInfo.printIfVerbose(Messages.console_sftp_connected());
+                channels.add(channel);
+            } catch (JSchException jse) {
+                // the server may limit the number of channels per session, carry on with the channels we have
+                buildInfo.printIfVerbose(Messages.console_warning(Messages.exception_sftp_open(jse.getLocalizedMessage())));
+                LOG.warn(Messages.exception_sftp_open(jse.getLocalizedMessage()), jse);
+                break;
+            }
+        }
+        return channels;
+    }
+
+    private static String child(final String directory, final String name) {
+        return directory.endsWith("/") ? directory + name : directory + "/" + name;
+    }
+
+    /**
+     * A request made over whichever channel is free.
+     */
+    private interface Request<T> {
+        T run(ChannelSftp channel) throws SftpException;
+    }
+
+    /**
+     * One walk of a tree. Each listing, removal and directory removal is a separate task, so the requests for
+     * different directories are in flight at the same time on different channels, and a directory is removed once
+     * everything in it has been.
+     */
+    private static final class Walk {
+        private final BlockingQueue<ChannelSftp> idle;
+        private final Executor executor;
+        private volatile Throwable failure;
+
+        Walk(final BlockingQueue<ChannelSftp> idle, final Executor executor) {
+            this.idle = idle;
+            this.executor = executor;
+        }
+
+        CompletableFuture<Void> clear(final String directory) {
+            return submit(channel -> channel.ls(directory)).thenCompose(entries -> removeAll(directory, entries));
+        }
+
+        private CompletableFuture<Void> removeAll(final String directory, final Vector<ChannelSftp.LsEntry> entries) {
+            final List<CompletableFuture<?>> removals = new ArrayList<>();
+            for (ChannelSftp.LsEntry entry : entries) {
+                if (entry == null)
+                    throw new BapPublisherException(Messages.exception_client_entryIsNull());
+                final String name = entry.getFilename();
+                if (".".equals(name) || "..".equals(name))
+                    continue;
+                final String path = child(directory, name);
+                if (entry.getAttrs().isDir()) {
+                    removals.add(clear(path).thenCompose(done -> submit(channel -> {
+                        try {
+                            channel.rmdir(path);
+                        } catch (SftpException sftpe) {
+                            throw new BapPublisherException(Messages.exception_client_rmdir(path), sftpe);
+                        }
+                        return null;
+                    })));
+                } else {
+                    removals.add(submit(channel -> {
+                        try {
+                            channel.rm(path);
+                        } catch (SftpException sftpe) {
+                            throw new BapPublisherException(Messages.exception_client_dele(path), sftpe);
+                        }
+                        return null;
+                    }));
+                }
+            }
+            return CompletableFuture.allOf(removals.toArray(new CompletableFuture<?>[0]));
+        }
+
+        private <T> CompletableFuture<T> submit(final Request<T> request) {
+            return CompletableFuture.supplyAsync(() -> {
+                if (failure != null)
+                    throw new CompletionException(failure);
+                final ChannelSftp channel;
+                try {
+                    channel = idle.take();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new CompletionException(ie);
+                }
+                try {
+                    return request.run(channel);
+                } catch (SftpException | RuntimeException e) {
+                    // stop issuing requests, the walk fails with the first error
+                    failure = e;
+                    throw new CompletionException(e);
+                } finally {
+                    idle.add(channel);
+                }
+            }, executor);
+        }
+    }
+
+}
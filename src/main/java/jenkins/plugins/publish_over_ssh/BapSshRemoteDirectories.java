@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The remote directories that a client knows to exist, so that changing to one of them, or creating a directory
+ * under one of them, does not need to ask the server again.
+ *
+ * Paths are absolute and normalized with {@link #resolve}. Entries are only added after the server has confirmed the
+ * directory, and are forgotten when the client deletes them.
+ */
+final class BapSshRemoteDirectories {
+
+    private final Set<String> known = new HashSet<>();
+
+    /**
+     * @param workingDirectory absolute path of the current directory
+     * @param path absolute path, or path relative to the current directory
+     * @return the absolute path without empty, . or .. segments
+     */
+    static String resolve(final String workingDirectory, final String path) {
+        final String combined = path.startsWith("/") ? path : workingDirectory + "/" + path;
+        final Deque<String> segments = new ArrayDeque<>();
+        for (String segment : combined.split("/")) {
+            if (segment.isEmpty() || ".".equals(segment))
+                continue;
+            if ("..".equals(segment))
+                segments.pollLast();
+            else
+                segments.addLast(segment);
+        }
+        return "/" + String.join("/", segments);
+    }
+
+    static String parent(final String directory) {
+        final int slash = directory.lastIndexOf('/');
+        return slash <= 0 ? "/" : directory.substring(0, slash);
+    }
+
+    boolean isKnown(final String directory) {
+        return known.contains(directory);
+    }
+
+    void add(final String directory) {
+        known.add(directory);
+    }
+
+    /**
+     * @param directory absolute path of a directory
+     * @return the directory and its parents up to the first one known to exist, the deepest first
+     */
+    List<String> missing(final String directory) {
+        final List<String> missing = new ArrayList<>();
+        String current = directory;
+        while (!"/".equals(current) && !known.contains(current)) {
+            missing.add(current);
+            current = parent(current);
+        }
+        return missing;
+    }
+
+    /**
+     * Forget the directories under a directory that has been emptied.
+     *
+     * @param directory absolute path of the directory
+     */
+    void forgetContents(final String directory) {
+        final String prefix = directory.endsWith("/") ? directory : directory + "/";
+        known.removeIf(path -> path.startsWith(prefix));
+    }
+
+    /**
+     * Forget a directory that has been deleted, and everything under it.
+     *
+     * @param directory absolute path of the directory
+     */
+    void forget(final String directory) {
+        known.remove(directory);
+        forgetContents(directory);
+    }
+
+    void clear() {
+        known.clear();
+    }
+
+}
@@ -0,0 +1,309 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import hudson.FilePath;
+import hudson.Util;
+import jenkins.plugins.publish_over.BPBuildInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+
+/**
+ * Upload a file so that a retry continues where a failed upload stopped.
+ *
+ * The file is written next to its destination under a temporary name that a retry can find, and renamed over the
+ * destination once it is complete. A retry checks that the partial file is the start of the local file and appends the
+ * rest. When exec is allowed the digest of the partial file is computed on the server and compared with the digest of the
+ * same number of bytes of the local file. Without exec, or when the digest command cannot run, the last megabyte of the
+ * partial file is read back and compared instead.
+ *
+ * Every file that an attempt uploads, whichever way it was sent, is recorded in the build info, so a retry of the same
+ * build skips it while it is unchanged on the server.
+ */
+final class BapSshResumableUpload {
+
+    static final String PART_SUFFIX = ".part";
+    static final int VERIFY_WINDOW = 1024 * 1024;
+
+    private final BPBuildInfo buildInfo;
+    private final Session session;
+    private final long threshold;
+    private final BapSshFileDigest digest;
+    private final Completed completed;
+    private boolean digestAvailable;
+
+    /**
+     * @param buildInfo the build info
+     * @param session session used to compute the digest of partial files
+     * @param threshold files smaller than this many bytes are uploaded from the start
+     * @param digest the digest used to compare partial files with the local files
+     * @param execAllowed false to never compute digests on the server
+     * @param completed the files completed by earlier attempts
+     */
+    BapSshResumableUpload(final BPBuildInfo buildInfo, final Session session, final long threshold, final BapSshFileDigest digest,
+                          final boolean execAllowed, final Completed completed) {
+        this.buildInfo = buildInfo;
+        this.session = session;
+        this.threshold = threshold;
+        this.digest = digest;
+        this.digestAvailable = execAllowed;
+        this.completed = completed;
+    }
+
+    /**
+     * @param size size of the file in bytes
+     * @return true if the file is large enough to be uploaded by {@link #upload}
+     */
+    boolean isResumable(final long size) {
+        return size >= threshold;
+    }
+
+    /**
+     * @param channel channel used to stat the remote file
+     * @param filePath the file to upload
+     * @param remotePath absolute path of the remote file
+     * @return true if an earlier attempt of this build completed the upload and the remote file has not changed since
+     * @throws IOException if the local file could not be read
+     * @throws InterruptedException if interrupted while waiting for the node that holds the file
+     */
+    boolean isComplete(final ChannelSftp channel, final FilePath filePath, final String remotePath)
+            throws IOException, InterruptedException {
+        final String uploaded = completed.get(key(remotePath));
+        if (uploaded == null)
+            return false;
+        final long size = filePath.length();
+        final long lastModified = filePath.lastModified();
+        if (!uploaded.equals(identity(filePath, size, lastModified)))
+            return false;
+        try {
+            final SftpATTRS attrs = channel.stat(remotePath);
+            return attrs.isReg() && attrs.getSize() == size && attrs.getMTime() == BapSshTargetFiles.toSeconds(lastModified);
+        } catch (SftpException sftpe) {
+            return false;
+        }
+    }
+
+    /**
+     * Upload a file, continuing a partial upload left by an earlier attempt if it matches the local file.
+     *
+     * @param channel channel used to write the remote file
+     * @param filePath the file to upload
+     * @param remotePath absolute path of the remote file
+     * @param forUpload wraps the stream of the local file before it is uploaded
+     * @param timeout time to wait for the digest of the partial file in milliseconds, 0 to wait until it completes
+     * @throws IOException if the local file could not be read
+     * @throws SftpException if the file could not be written or renamed
+     * @throws InterruptedException if interrupted while waiting for the node that holds the file
+     */
+    void upload(final ChannelSftp channel, final FilePath filePath, final String remotePath,
+                final UnaryOperator<InputStream> forUpload, final int timeout)
+            throws IOException, SftpException, InterruptedException {
+        final long size = filePath.length();
+        final long lastModified = filePath.lastModified();
+        final String partPath = partPath(remotePath);
+        final long offset = resumeFrom(channel, filePath, remotePath, partPath, size, timeout);
+        if (offset < size) {
+            try (InputStream in = forUpload.apply(filePath.readFromOffset(offset))) {
+                channel.put(in, partPath, offset > 0 ? ChannelSftp.APPEND : ChannelSftp.OVERWRITE);
+            }
+        }
+        channel.setMtime(partPath, BapSshTargetFiles.toSeconds(lastModified));
+        replace(channel, partPath, remotePath);
+        completed(filePath, remotePath, size, lastModified);
+    }
+
+    /**
+     * Record a file as uploaded, so that a retry of the build skips it. The remote file must have the modification time
+     * of the local file.
+     *
+     * @param filePath the uploaded file
+     * @param remotePath absolute path of the remote file
+     * @param size size of the file in bytes
+     * @param lastModified modification time of the local file in milliseconds
+     */
+    void completed(final FilePath filePath, final String remotePath, final long size, final long lastModified) {
+        completed.put(key(remotePath), identity(filePath, size, lastModified));
+    }
+
+    static String partPath(final String remotePath) {
+        final int slash = remotePath.lastIndexOf('/');
+        return remotePath.substring(0, slash + 1) + "." + remotePath.substring(slash + 1) + PART_SUFFIX;
+    }
+
+    private String key(final String remotePath) {
+        return session.getUserName() + "@" + session.getHost() + ":" + session.getPort() + remotePath;
+    }
+
+    private static String identity(final FilePath filePath, final long size, final long lastModified) {
+        return filePath.getRemote() + "\n" + size + "\n" + lastModified;
+    }
+
+    /**
+     * @return number of bytes of the partial upload that match the local file, 0 to upload from the start
+     */
+    private long resumeFrom(final ChannelSftp channel, final FilePath filePath, final String remotePath, final String partPath,
+                            final long size, final int timeout) throws InterruptedException {
+        final long partSize;
+        try {
+            partSize = channel.stat(partPath).getSize();
+        } catch (SftpException sftpe) {
+            return 0;
+        }
+        if (partSize == 0 || partSize > size)
+            return 0;
+        try {
+            if (!matches(channel, filePath, partPath, partSize, timeout)) {
+                buildInfo.println(Messages.console_resume_mismatch(remotePath));
+                return 0;
+            }
+        } catch (IOException | JSchException | SftpException e) {
+            buildInfo.println(Messages.console_resume_failed(remotePath, e.getLocalizedMessage()));
+            return 0;
+        }
+        buildInfo.printIfVerbose(Messages.console_resume(remotePath, partSize, size));
+        return partSize;
+    }
+
+    private boolean matches(final ChannelSftp channel, final FilePath filePath, final String partPath, final long length,
+                            final int timeout) throws IOException, JSchException, SftpException, InterruptedException {
+        final String remoteDigest = isDigestAvailable() ? remoteDigest(partPath, length, timeout) : null;
+        if (remoteDigest != null)
+            return remoteDigest.equalsIgnoreCase(Util.toHexString(digest.digest(filePath, length)));
+        final int window = (int) Math.min(length, VERIFY_WINDOW);
+        final byte[] remote;
+        try (InputStream in = channel.get(partPath, null, length - window)) {
+            remote = readFully(in, window);
+        }
+        final byte[] local;
+        try (InputStream in = filePath.readFromOffset(length - window)) {
+            local = readFully(in, window);
+        }
+        return Arrays.equals(remote, local);
+    }
+
+    private synchronized boolean isDigestAvailable() {
+        return digestAvailable;
+    }
+
+    private synchronized void digestUnavailable(final String reason) {
+        if (!digestAvailable) return;
+        digestAvailable = false;
+        buildInfo.printIfVerbose(Messages.console_resume_noDigest(reason));
+    }
+
+    /**
+     * @return the digest in hex of the first bytes of the partial file, or null if it cannot be computed on the server
+     */
+    private String remoteDigest(final String partPath, final long length, final int timeout)
+            throws IOException, JSchException, InterruptedException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        final ChannelExec exec = (ChannelExec) session.openChannel("exec");
+        try {
+            exec.setInputStream(null);
+            exec.setOutputStream(output, true);
+            exec.setErrStream(errors, true);
+            exec.setCommand("head -c " + length + " " + BapSshTargetFiles.quote(partPath) + " | " + digest.getRemoteCommand());
+            exec.connect(session.getTimeout());
+            if (!BapSshExecMonitor.await(exec, timeout))
+                throw new IOException(Messages.exception_exec_timeout(timeout));
+        } finally {
+            exec.disconnect();
+        }
+        final String line = new String(output.toByteArray(), StandardCharsets.UTF_8).trim();
+        final int separator = line.indexOf(' ');
+        if (exec.getExitStatus() != 0 || separator <= 0) {
+            final String message = new String(errors.toByteArray(), StandardCharsets.UTF_8).trim();
+            digestUnavailable(message.isEmpty() ? Messages.exception_exec_exitStatus(exec.getExitStatus()) : message);
+            return null;
+        }
+        return line.substring(0, separator);
+    }
+
+    /**
+     * Rename the complete file over its destination, keeping the permissions of the file it replaces.
+     */
+    private static void replace(final ChannelSftp channel, final String partPath, final String remotePath) throws SftpException {
+        final SftpATTRS old;
+        try {
+            old = channel.stat(remotePath);
+        } catch (SftpException sftpe) {
+            channel.rename(partPath, remotePath);
+            return;
+        }
+        channel.chmod(old.getPermissions() & 07777, partPath);
+        try {
+            channel.rename(partPath, remotePath);
+        } catch (SftpException sftpe) {
+            // without the posix-rename extension a server refuses to rename over an existing file
+            channel.rm(remotePath);
+            channel.rename(partPath, remotePath);
+        }
+    }
+
+    private static byte[] readFully(final InputStream in, final int length) throws IOException {
+        final byte[] buffer = new byte[length];
+        int read = 0;
+        while (read < length) {
+            final int count = in.read(buffer, read, length - read);
+            if (count < 0)
+                throw new EOFException();
+            read += count;
+        }
+        return buffer;
+    }
+
+    /**
+     * The files that the attempts of a build have completed, by server and remote path, kept in the build info.
+     */
+    static final class Completed implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final Map<String, String> files = new ConcurrentHashMap<>();
+
+        String get(final String key) {
+            return files.get(key);
+        }
+
+        void put(final String key, final String identity) {
+            files.put(key, identity);
+        }
+    }
+
+}
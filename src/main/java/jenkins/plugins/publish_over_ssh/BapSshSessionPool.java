@@ -0,0 +1,354 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.Session;
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import jenkins.plugins.publish_over.BapPublisherException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Controller wide pool of connected SSH sessions.
+ *
+ * Sessions are keyed by the effective connection settings of a host configuration (target, jump hosts, proxy,
+ * remote root and credentials) so that any publisher that would have opened an identical connection can borrow
+ * an already authenticated session, together with its SFTP channel and resolved remote root, instead of paying
+ * for a new TCP connect, key exchange and authentication.
+ *
+ * A session is only ever lent to one client at a time. Idle sessions are health checked with a request that the server
+ * answers before they are lent out, and are disconnected by {@link IdleSessionReaper} once they have been idle for
+ * longer than their idle timeout. Health checks and disconnects happen outside the lock of the pool, so a slow or dead
+ * host does not hold up the clients of other hosts.
+ */
+public final class BapSshSessionPool {
+
+    private static final Log LOG = LogFactory.getLog(BapSshSessionPool.class);
+    private static final BapSshSessionPool INSTANCE = new BapSshSessionPool();
+    /** Time in milliseconds that the health check of a session without an SFTP channel waits for a channel to open. */
+    static final int HEALTH_CHECK_TIMEOUT = 10000;
+
+    private final Map<String, List<PooledSession>> pools = new HashMap<>();
+
+    BapSshSessionPool() { }
+
+    public static BapSshSessionPool get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Create a pool key from the connection settings. The values are digested so that secrets are not held in the key.
+     *
+     * @param values the settings that identify an equivalent connection
+     * @return the pool key
+     */
+    static String createKey(final Object... values) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (Object value : values) {
+                digest.update(BapSshUtil.toBytes(value == null ? "" : value.toString()));
+                digest.update((byte) 0);
+            }
+            final StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest())
+                key.append(String.format("%02x", b));
+            return key.toString();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    /**
+     * Borrow a session for the given key.
+     *
+     * An idle, healthy session is returned if there is one. Otherwise, if the number of sessions for the key is below
+     * maxSessions, an unconnected entry is reserved that the caller must connect and {@link PooledSession#attach attach}.
+     * If the limit has been reached, wait for another client to release a session.
+     *
+     * @param configName name of the host configuration, for messages
+     * @param key the pool key
+     * @param maxSessions maximum number of sessions for the key, zero or less for no limit
+     * @param idleTimeout time in milliseconds that the session may stay idle in the pool
+     * @param waitTimeout maximum time in milliseconds to wait for a session, zero to wait forever, see
+     * {@link BapSshHostConfiguration#DEFAULT_SESSION_WAIT_TIMEOUT}
+     * @return a leased session, which may not yet be connected
+     */
+    public PooledSession borrow(final String configName, final String key, final int maxSessions,
+                                final long idleTimeout, final long waitTimeout) {
+        final long deadline = System.currentTimeMillis() + waitTimeout;
+        while (true) {
+            final PooledSession entry = lease(configName, key, maxSessions, idleTimeout, waitTimeout, deadline);
+            if (entry.sessions.isEmpty() || entry.isHealthy())
+                return entry;
+            discard(entry);
+        }
+    }
+
+    /**
+     * @return an idle session, not yet health checked, or a reserved entry without sessions
+     */
+    private synchronized PooledSession lease(final String configName, final String key, final int maxSessions,
+                                             final long idleTimeout, final long waitTimeout, final long deadline) {
+        while (true) {
+            final List<PooledSession> entries = pools.computeIfAbsent(key, k -> new ArrayList<>());
+            for (PooledSession entry : entries) {
+                if (entry.leased) continue;
+                entry.leased = true;
+                entry.idleTimeout = idleTimeout;
+                return entry;
+            }
+            if (maxSessions <= 0 || entries.size() < maxSessions) {
+                final PooledSession entry = new PooledSession(key, idleTimeout);
+                entry.leased = true;
+                entries.add(entry);
+                return entry;
+            }
+            final long remaining = deadline - System.currentTimeMillis();
+            if (waitTimeout > 0 && remaining <= 0)
+                throw new BapPublisherException(Messages.exception_pool_timeout(configName, waitTimeout));
+            try {
+                wait(waitTimeout > 0 ? remaining : 0);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new BapPublisherException(Messages.exception_pool_timeout(configName, waitTimeout), ie);
+            }
+        }
+    }
+
+    /**
+     * Return a session to the pool. Sessions that are no longer connected are closed and dropped.
+     *
+     * @param entry the session that was borrowed
+     */
+    public void release(final PooledSession entry) {
+        if (!entry.isConnected()) {
+            discard(entry);
+            return;
+        }
+        synchronized (this) {
+            entry.leased = false;
+            entry.lastUsed = System.currentTimeMillis();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Close and drop a session, for example when it could not be connected or is in an unknown state.
+     *
+     * @param entry the session that was borrowed
+     */
+    public void discard(final PooledSession entry) {
+        // the entry is still leased, so no other client uses it while it is closed
+        entry.close();
+        synchronized (this) {
+            entry.leased = false;
+            final List<PooledSession> entries = pools.get(entry.key);
+            if (entries != null) {
+                entries.remove(entry);
+                if (entries.isEmpty())
+                    pools.remove(entry.key);
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Disconnect all idle sessions that have exceeded their idle timeout.
+     *
+     * @param now the current time in milliseconds
+     * @return the number of sessions that were evicted
+     */
+    public int evictIdle(final long now) {
+        final List<PooledSession> evicted = new ArrayList<>();
+        synchronized (this) {
+            final Iterator<List<PooledSession>> poolIterator = pools.values().iterator();
+            while (poolIterator.hasNext()) {
+                final List<PooledSession> entries = poolIterator.next();
+                final Iterator<PooledSession> iterator = entries.iterator();
+                while (iterator.hasNext()) {
+                    final PooledSession entry = iterator.next();
+                    if (!entry.leased && (now - entry.lastUsed >= entry.idleTimeout || !entry.isConnected())) {
+                        iterator.remove();
+                        evicted.add(entry);
+                    }
+                }
+                if (entries.isEmpty())
+                    poolIterator.remove();
+            }
+            if (!evicted.isEmpty())
+                notifyAll();
+        }
+        for (PooledSession entry : evicted)
+            entry.close();
+        if (!evicted.isEmpty())
+            LOG.debug(Messages.log_pool_evicted(evicted.size()));
+        return evicted.size();
+    }
+
+    /**
+     * @param key the pool key
+     * @return the number of open or reserved sessions for the key
+     */
+    public synchronized int size(final String key) {
+        final List<PooledSession> entries = pools.get(key);
+        return entries == null ? 0 : entries.size();
+    }
+
+    /**
+     * A session chain (jump hosts first, target last) with its SFTP channel and resolved remote root.
+     */
+    public static final class PooledSession {
+
+        private final String key;
+        private final List<Session> sessions = new ArrayList<>();
+        private ChannelSftp sftp;
+        private String absoluteRemoteRoot;
+        private boolean leased;
+        private long lastUsed;
+        private long idleTimeout;
+
+        PooledSession(final String key, final long idleTimeout) {
+            this.key = key;
+            this.idleTimeout = idleTimeout;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @param connectedSessions the connected session chain, jump hosts first and the target session last
+         */
+        public void attach(final List<Session> connectedSessions) {
+            sessions.clear();
+            sessions.addAll(connectedSessions);
+        }
+
+        public List<Session> getSessions() {
+            return new ArrayList<>(sessions);
+        }
+
+        public ChannelSftp getSftp() {
+            return sftp;
+        }
+
+        public String getAbsoluteRemoteRoot() {
+            return absoluteRemoteRoot;
+        }
+
+        public void setSftp(final ChannelSftp sftp, final String absoluteRemoteRoot) {
+            this.sftp = sftp;
+            this.absoluteRemoteRoot = absoluteRemoteRoot;
+        }
+
+        public boolean hasSftp() {
+            return sftp != null && sftp.isConnected() && !sftp.isClosed();
+        }
+
+        public boolean isConnected() {
+            if (sessions.isEmpty()) return false;
+            for (Session session : sessions) {
+                if (!session.isConnected()) return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return true if the server answered a request on the session, a stat of the remote root over the SFTP
+         * channel, or opening a channel when there is no SFTP channel
+         */
+        boolean isHealthy() {
+            if (!isConnected()) return false;
+            try {
+                if (hasSftp()) {
+                    sftp.stat(absoluteRemoteRoot == null ? "." : absoluteRemoteRoot);
+                } else {
+                    final Channel channel = sessions.get(sessions.size() - 1).openChannel("sftp");
+                    try {
+                        channel.connect(HEALTH_CHECK_TIMEOUT);
+                    } finally {
+                        channel.disconnect();
+                    }
+                }
+                return true;
+            } catch (Exception e) {
+                LOG.debug(Messages.log_pool_unhealthy(e.getLocalizedMessage()));
+                return false;
+            }
+        }
+
+        void close() {
+            try {
+                if (sftp != null && sftp.isConnected())
+                    sftp.disconnect();
+            } catch (Exception e) {
+                LOG.warn(Messages.exception_disconnect_sftp(e.getLocalizedMessage()));
+            }
+            sftp = null;
+            for (int i = sessions.size() - 1; i >= 0; i--) {
+                try {
+                    if (sessions.get(i).isConnected())
+                        sessions.get(i).disconnect();
+                } catch (Exception e) {
+                    LOG.warn(Messages.exception_disconnect_session(e.getLocalizedMessage()));
+                }
+            }
+            sessions.clear();
+        }
+
+    }
+
+    /**
+     * Disconnects pooled sessions that have been idle for too long.
+     */
+    @Extension
+    public static final class IdleSessionReaper extends PeriodicWork {
+
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void doRun() {
+            get().evictIdle(System.currentTimeMillis());
+        }
+
+    }
+
+}
@@ -0,0 +1,303 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import hudson.FilePath;
+import hudson.remoting.Channel;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import jenkins.plugins.publish_over.BapPublisherException;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Upload the files of a transfer as one tar archive, streamed from the node that holds the files into {@code tar}
+ * running on the server under the remote directory.
+ *
+ * A tree of many small files costs one exec channel instead of a put, and the directory changes around it, for every
+ * file. The archive is built, and compressed if required, on the node so the files are read there in one remoting call.
+ */
+final class BapSshTarUpload {
+
+    /** Exit status of a shell for a command that could not be found. */
+    static final int COMMAND_NOT_FOUND = 127;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int DEFAULT_FILE_MODE = 0644;
+    private static final int DEFAULT_DIRECTORY_MODE = 0755;
+
+    private final BPBuildInfo buildInfo;
+    private final Session session;
+    private final BapSshTransport transport;
+    private final BapSshBandwidth.Throttle throttle;
+
+    /**
+     * @param buildInfo the build info
+     * @param session session used to run {@code tar}
+     * @param transport the tar transport to use
+     * @param throttle limits the bandwidth of the archive, null for no limit
+     */
+    BapSshTarUpload(final BPBuildInfo buildInfo, final Session session, final BapSshTransport transport,
+                    final BapSshBandwidth.Throttle throttle) {
+        this.buildInfo = buildInfo;
+        this.session = session;
+        this.transport = transport;
+        this.throttle = throttle;
+    }
+
+    /**
+     * Stream files into {@code tar} on the server.
+     *
+     * @param files the files of the transfer
+     * @param indexes indexes of the files to send
+     * @param names path of each file to send relative to the remote directory, see {@link #toName}
+     * @param remoteDirectory absolute path of the directory the archive is extracted in, created if it does not exist
+     * @param keepPermissions true to keep the permissions of the files and of the directories holding them
+     * @param timeout time to wait for {@code tar} to complete in milliseconds, 0 to wait until it completes
+     * @return false if {@code tar} cannot run on the server, then the files must be uploaded over SFTP
+     * @throws IOException if the files could not be read or {@code tar} failed
+     * @throws JSchException if the exec channel could not be opened
+     * @throws InterruptedException if interrupted while streaming the files
+     */
+    boolean upload(final BapSshFileInfo files, final int[] indexes, final String[] names, final String remoteDirectory,
+                   final boolean keepPermissions, final int timeout) throws IOException, JSchException, InterruptedException {
+        final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        final ChannelExec exec = (ChannelExec) session.openChannel("exec");
+        try {
+            final String command = command(remoteDirectory, transport.isCompressed(), keepPermissions);
+            buildInfo.printIfVerbose(Messages.console_exec_connecting(command));
+            exec.setCommand(command);
+            exec.setOutputStream(errors, true);
+            exec.setErrStream(errors, true);
+            final OutputStream stdin = throttle == null ? exec.getOutputStream() : throttle.wrap(exec.getOutputStream());
+            exec.connect(session.getTimeout());
+            long bytes = 0;
+            IOException failure = null;
+            try {
+                bytes = pack(files, indexes, names, keepPermissions, stdin);
+            } catch (IOException ioe) {
+                // tar exiting early closes the stream, its exit status explains why
+                failure = ioe;
+            } finally {
+                stdin.close();
+            }
+            if (!BapSshExecMonitor.await(exec, timeout))
+                throw new IOException(Messages.exception_exec_timeout(timeout));
+            if (exec.getExitStatus() == COMMAND_NOT_FOUND) {
+                buildInfo.println(Messages.console_tar_noTar(errorMessage(exec, errors)));
+                return false;
+            }
+            if (exec.getExitStatus() != 0)
+                throw new IOException(errorMessage(exec, errors), failure);
+            if (failure != null)
+                throw failure;
+            buildInfo.println(Messages.console_tar(indexes.length, bytes, remoteDirectory));
+            return true;
+        } finally {
+            exec.disconnect();
+        }
+    }
+
+    static String command(final String remoteDirectory, final boolean compressed, final boolean keepPermissions) {
+        final String directory = BapSshTargetFiles.quote(remoteDirectory);
+        return "mkdir -p " + directory + " && cd " + directory + " && tar -x" + (compressed ? "z" : "")
+                + (keepPermissions ? "p" : "") + "of -";
+    }
+
+    private long pack(final BapSshFileInfo files, final int[] indexes, final String[] names, final boolean keepPermissions,
+                      final OutputStream out) throws IOException, InterruptedException {
+        final FilePath baseDirectory = files.getBaseDirectory();
+        final String[] paths = new String[indexes.length];
+        for (int i = 0; i < indexes.length; i++)
+            paths[i] = files.getPath(indexes[i]);
+        final VirtualChannel channel = baseDirectory.getChannel();
+        final long bytes = baseDirectory.act(new Pack(paths, names, transport.isCompressed(), keepPermissions,
+                baseDirectory.isRemote() ? new RemoteOutputStream(out) : out));
+        // the writes are asynchronous, make sure all of them reached the exec channel
+        if (channel instanceof Channel)
+            ((Channel) channel).syncLocalIO();
+        return bytes;
+    }
+
+    private static String errorMessage(final ChannelExec exec, final ByteArrayOutputStream errors) {
+        final String message = new String(errors.toByteArray(), StandardCharsets.UTF_8).trim();
+        return message.isEmpty() ? Messages.exception_exec_exitStatus(exec.getExitStatus()) : message;
+    }
+
+    /**
+     * Work out where a file goes under the remote directory, as the SFTP transfer does.
+     *
+     * @param path path of the file relative to the base directory
+     * @param removePrefix leading directories to remove from the path, all the files must be under it, or null
+     * @param flatten true to drop all the directories
+     * @return path of the file relative to the remote directory, with / separators
+     */
+    static String toName(final String path, final String removePrefix, final boolean flatten) {
+        String name = path.replace('\\', '/');
+        if (flatten)
+            return name.substring(name.lastIndexOf('/') + 1);
+        final String prefix = trimSlashes(removePrefix);
+        if (!prefix.isEmpty()) {
+            if (!name.startsWith(prefix + "/"))
+                throw new BapPublisherException(Messages.exception_tar_removePrefix(prefix, name));
+            name = name.substring(prefix.length() + 1);
+        }
+        return name;
+    }
+
+    /**
+     * @param root absolute path of the remote root directory
+     * @param remoteDirectory directory of the transfer relative to the root, or null
+     * @return absolute path of the directory of the transfer
+     */
+    static String toRemoteDirectory(final String root, final String remoteDirectory) {
+        final String directory = trimSlashes(remoteDirectory);
+        if (directory.isEmpty())
+            return root;
+        return root.endsWith("/") ? root + directory : root + "/" + directory;
+    }
+
+    /**
+     * @param remoteDirectory absolute path of the directory of the transfer
+     * @param name path of a file relative to it
+     * @return absolute path of the directory the file is extracted in
+     */
+    static String toParentDirectory(final String remoteDirectory, final String name) {
+        final int slash = name.lastIndexOf('/');
+        return slash < 0 ? remoteDirectory : toRemoteDirectory(remoteDirectory, name.substring(0, slash));
+    }
+
+    private static String trimSlashes(final String path) {
+        if (path == null)
+            return "";
+        String trimmed = path.trim().replace('\\', '/');
+        while (trimmed.startsWith("/"))
+            trimmed = trimmed.substring(1);
+        while (trimmed.endsWith("/"))
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        return trimmed;
+    }
+
+    private static final class Pack extends MasterToSlaveFileCallable<Long> {
+        private static final long serialVersionUID = 1L;
+        private final String[] paths;
+        private final String[] names;
+        private final boolean compressed;
+        private final boolean keepPermissions;
+        private final OutputStream out;
+
+        Pack(final String[] paths, final String[] names, final boolean compressed, final boolean keepPermissions,
+             final OutputStream out) {
+            this.paths = paths;
+            this.names = names;
+            this.compressed = compressed;
+            this.keepPermissions = keepPermissions;
+            this.out = out;
+        }
+
+        @Override
+        public Long invoke(final File baseDirectory, final VirtualChannel channel) throws IOException {
+            final CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+            try (TarArchiveOutputStream tar = new TarArchiveOutputStream(
+                    compressed ? new GZIPOutputStream(counter, BUFFER_SIZE) : counter, StandardCharsets.UTF_8.name())) {
+                tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+                tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+                final Set<String> directories = new HashSet<>();
+                for (int i = 0; i < paths.length; i++) {
+                    final Path path = new File(baseDirectory, paths[i]).toPath();
+                    if (keepPermissions)
+                        putDirectory(tar, directories, path.toAbsolutePath().getParent(), names[i]);
+                    final TarArchiveEntry entry = new TarArchiveEntry(names[i]);
+                    entry.setSize(Files.size(path));
+                    entry.setModTime(Files.getLastModifiedTime(path).toMillis());
+                    entry.setMode(TarArchiveEntry.DEFAULT_FILE_MODE & ~07777 | mode(path, DEFAULT_FILE_MODE));
+                    tar.putArchiveEntry(entry);
+                    Files.copy(path, tar);
+                    tar.closeArchiveEntry();
+                }
+            }
+            return counter.count;
+        }
+
+        /** Add the directory holding a file with the permissions of the local directory, as the SFTP transfer sets them. */
+        private void putDirectory(final TarArchiveOutputStream tar, final Set<String> directories, final Path directory,
+                                  final String name) throws IOException {
+            final int slash = name.lastIndexOf('/');
+            final String directoryName = slash < 0 ? "./" : name.substring(0, slash + 1);
+            if (!directories.add(directoryName))
+                return;
+            final TarArchiveEntry entry = new TarArchiveEntry(directoryName);
+            entry.setModTime(Files.getLastModifiedTime(directory).toMillis());
+            entry.setMode(TarArchiveEntry.DEFAULT_DIR_MODE & ~07777 | mode(directory, DEFAULT_DIRECTORY_MODE));
+            tar.putArchiveEntry(entry);
+            tar.closeArchiveEntry();
+        }
+
+        private int mode(final Path path, final int defaultMode) throws IOException {
+            if (!keepPermissions)
+                return defaultMode;
+            final int mode = BapSshFileInfo.mode(path);
+            return mode == BapSshFileInfo.UNKNOWN_MODE ? defaultMode : mode;
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+}
@@ -0,0 +1,313 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import hudson.FilePath;
+import hudson.Util;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Compare the files of a transfer with the files already on the server, see {@link BapSshRemoteCompare}.
+ *
+ * Each remote directory is listed once, so the size and modification time of all the files in it cost a single
+ * round of READDIR requests instead of a stat per file. Files whose size matches but whose modification time does not
+ * are held back until the end of the transfer, then their digests are computed on the server by one command for each
+ * directory and only the files that differ are uploaded. Files found to be the same get the local modification time,
+ * so that the next comparison does not need a digest.
+ */
+final class BapSshTargetFiles {
+
+    private static final Log LOG = LogFactory.getLog(BapSshTargetFiles.class);
+    static final int MAX_COMMAND_LENGTH = 32 * 1024;
+    private static final Pattern HEX = Pattern.compile("[0-9a-fA-F]+");
+
+    enum Decision { UPLOAD, SKIP, VERIFY }
+
+    private final BPBuildInfo buildInfo;
+    private final BapSshFileDigest digest;
+    private final boolean verifyChecksums;
+    private final Map<String, Map<String, SftpATTRS>> listings = new HashMap<>();
+    private final Map<String, List<Candidate>> candidates = new LinkedHashMap<>();
+    private BapSshFileInfo fileInfo;
+
+    /**
+     * @param buildInfo the build info
+     * @param compare how to compare the files, not NONE
+     * @param digest digest to compute on the server
+     * @param execAllowed false to only compare the size and modification time
+     */
+    BapSshTargetFiles(final BPBuildInfo buildInfo, final BapSshRemoteCompare compare, final BapSshFileDigest digest,
+                      final boolean execAllowed) {
+        this.buildInfo = buildInfo;
+        this.digest = digest;
+        this.verifyChecksums = compare == BapSshRemoteCompare.CHECKSUM && execAllowed;
+    }
+
+    /**
+     * @param fileInfo the files of the transfer, used to digest the files held back by one call
+     */
+    void setFileInfo(final BapSshFileInfo fileInfo) {
+        this.fileInfo = fileInfo;
+    }
+
+    /**
+     * Compare a file with the file of the same name in the remote directory.
+     *
+     * @param sftp channel used to list the remote directory
+     * @param filePath the file to upload
+     * @param remoteDirectory absolute remote directory the file would be uploaded to
+     * @param size size of the local file
+     * @param lastModified modification time of the local file
+     * @return whether to upload the file, skip it or wait for {@link #verify} to decide
+     */
+    Decision check(final ChannelSftp sftp, final FilePath filePath, final String remoteDirectory, final long size,
+                   final long lastModified) {
+        final SftpATTRS attrs = list(sftp, remoteDirectory).get(filePath.getName());
+        if (attrs == null || attrs.isDir() || attrs.isLink() || attrs.getSize() != size)
+            return Decision.UPLOAD;
+        if (attrs.getMTime() == toSeconds(lastModified))
+            return Decision.SKIP;
+        if (!verifyChecksums)
+            return Decision.UPLOAD;
+        candidates.computeIfAbsent(remoteDirectory, directory -> new ArrayList<>())
+                .add(new Candidate(filePath, remoteDirectory, lastModified));
+        return Decision.VERIFY;
+    }
+
+    private Map<String, SftpATTRS> list(final ChannelSftp sftp, final String remoteDirectory) {
+        Map<String, SftpATTRS> listing = listings.get(remoteDirectory);
+        if (listing == null) {
+            listing = new HashMap<>();
+            try {
+                for (ChannelSftp.LsEntry entry : sftp.ls(remoteDirectory))
+                    listing.put(entry.getFilename(), entry.getAttrs());
+            } catch (SftpException sftpe) {
+                if (LOG.isDebugEnabled())
+                    LOG.debug(Messages.log_sftp_stat(remoteDirectory, sftpe.getLocalizedMessage()));
+            }
+            listings.put(remoteDirectory, listing);
+        }
+        return listing;
+    }
+
+    /**
+     * @return true if {@link #check} held back files
+     */
+    boolean hasCandidates() {
+        return !candidates.isEmpty();
+    }
+
+    /**
+     * @return the files held back by {@link #check}
+     */
+    List<Candidate> getCandidates() {
+        final List<Candidate> held = new ArrayList<>();
+        candidates.values().forEach(held::addAll);
+        return held;
+    }
+
+    /**
+     * Compare the digests of the files held back by {@link #check} with the digests computed on the server.
+     *
+     * @param sftp channel used to set the modification time of the files that are the same
+     * @param session session to run the digest command in
+     * @param timeout time to wait for each digest command in milliseconds, 0 to wait until it completes
+     * @return the files that need to be uploaded
+     * @throws InterruptedException if interrupted while waiting for the digests
+     */
+    List<Candidate> verify(final ChannelSftp sftp, final Session session, final int timeout) throws InterruptedException {
+        final List<Candidate> changed = new ArrayList<>();
+        for (Map.Entry<String, List<Candidate>> entry : candidates.entrySet()) {
+            int from = 0;
+            int length = 0;
+            final List<Candidate> files = entry.getValue();
+            for (int i = 0; i < files.size(); i++) {
+                length += files.get(i).filePath.getName().length() + 5;
+                if (length > MAX_COMMAND_LENGTH || i == files.size() - 1) {
+                    verify(sftp, session, timeout, entry.getKey(), files.subList(from, i + 1), changed);
+                    from = i + 1;
+                    length = 0;
+                }
+            }
+        }
+        candidates.clear();
+        return changed;
+    }
+
+    private void verify(final ChannelSftp sftp, final Session session, final int timeout, final String remoteDirectory,
+                        final List<Candidate> files, final List<Candidate> changed) throws InterruptedException {
+        buildInfo.printIfVerbose(Messages.console_remoteCompare_checksum(files.size(), remoteDirectory));
+        final Map<String, String> remoteDigests;
+        try {
+            remoteDigests = parseDigests(run(session, timeout, createCommand(remoteDirectory, files)));
+        } catch (JSchException | IOException e) {
+            buildInfo.println(Messages.console_remoteCompare_checksumFailed(remoteDirectory, e.getLocalizedMessage()));
+            changed.addAll(files);
+            return;
+        }
+        final byte[][] localDigests = localDigests(files);
+        for (int i = 0; i < files.size(); i++) {
+            final Candidate file = files.get(i);
+            final String remoteDigest = remoteDigests.get(file.filePath.getName());
+            try {
+                if (remoteDigest == null || !remoteDigest.equalsIgnoreCase(Util.toHexString(
+                        localDigests[i] == null ? digest.digest(file.filePath) : localDigests[i]))) {
+                    changed.add(file);
+                    continue;
+                }
+            } catch (IOException ioe) {
+                LOG.warn(Messages.log_remoteCompare_digest(file.filePath.getRemote(), ioe.getLocalizedMessage()), ioe);
+                changed.add(file);
+                continue;
+            }
+            buildInfo.printIfVerbose(Messages.console_remoteCompare_skip(file.filePath.getName()));
+            try {
+                sftp.setMtime(file.getRemotePath(), toSeconds(file.lastModified));
+            } catch (SftpException sftpe) {
+                if (LOG.isDebugEnabled())
+                    LOG.debug(Messages.log_remoteCompare_setMtime(file.getRemotePath(), sftpe.getLocalizedMessage()));
+            }
+        }
+    }
+
+    private byte[][] localDigests(final List<Candidate> files) throws InterruptedException {
+        final int[] indexes = new int[files.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = fileInfo == null ? -1 : fileInfo.indexOf(files.get(i).filePath);
+            if (indexes[i] < 0)
+                return new byte[files.size()][];
+        }
+        try {
+            return fileInfo.digest(digest, indexes);
+        } catch (IOException ioe) {
+            // the files are digested one at a time instead
+            LOG.warn(Messages.log_remoteCompare_digest(files.get(0).filePath.getRemote(), ioe.getLocalizedMessage()), ioe);
+            return new byte[files.size()][];
+        }
+    }
+
+    String createCommand(final String remoteDirectory, final List<Candidate> files) {
+        final StringBuilder command = new StringBuilder("cd ").append(quote(remoteDirectory))
+                .append(" && ").append(digest.getRemoteCommand());
+        for (Candidate file : files)
+            command.append(' ').append(quote("./" + file.filePath.getName()));
+        return command.toString();
+    }
+
+    private static String run(final Session session, final int timeout, final String command)
+            throws JSchException, IOException, InterruptedException {
+        final ChannelExec exec = (ChannelExec) session.openChannel("exec");
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            exec.setInputStream(null);
+            exec.setOutputStream(output, true);
+            exec.setErrStream(new ByteArrayOutputStream(), true);
+            exec.setCommand(command);
+            exec.connect(session.getTimeout());
+            if (!BapSshExecMonitor.await(exec, timeout))
+                throw new IOException(Messages.exception_exec_timeout(timeout));
+            // a missing command prints nothing, files that could not be read are just left out
+            if (output.size() == 0 && exec.getExitStatus() != 0)
+                throw new IOException(Messages.exception_exec_exitStatus(exec.getExitStatus()));
+        } finally {
+            exec.disconnect();
+        }
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parse the output of md5sum and compatible commands.
+     *
+     * @param output lines of the digest in hex, two separator characters and the file name
+     * @return digest by file name, without the leading "./"
+     */
+    static Map<String, String> parseDigests(final String output) {
+        final Map<String, String> digests = new HashMap<>();
+        for (String line : output.split("\n")) {
+            // lines of names containing a backslash or a newline start with a backslash, those files are uploaded
+            final int separator = line.indexOf(' ');
+            if (separator <= 0 || line.length() < separator + 2 || !HEX.matcher(line.substring(0, separator)).matches())
+                continue;
+            String name = line.substring(separator + 2);
+            if (name.startsWith("./"))
+                name = name.substring(2);
+            digests.put(name, line.substring(0, separator));
+        }
+        return Collections.unmodifiableMap(digests);
+    }
+
+    static String quote(final String argument) {
+        return "'" + argument.replace("'", "'\\''") + "'";
+    }
+
+    static int toSeconds(final long lastModified) {
+        return (int) (lastModified / 1000);
+    }
+
+    /** A file held back until its digest has been compared. */
+    static final class Candidate {
+        private final FilePath filePath;
+        private final String remoteDirectory;
+        private final long lastModified;
+
+        Candidate(final FilePath filePath, final String remoteDirectory, final long lastModified) {
+            this.filePath = filePath;
+            this.remoteDirectory = remoteDirectory;
+            this.lastModified = lastModified;
+        }
+
+        FilePath getFilePath() {
+            return filePath;
+        }
+
+        String getRemoteDirectory() {
+            return remoteDirectory;
+        }
+
+        String getRemotePath() {
+            return remoteDirectory.endsWith("/") ? remoteDirectory + filePath.getName() : remoteDirectory + "/" + filePath.getName();
+        }
+    }
+
+}
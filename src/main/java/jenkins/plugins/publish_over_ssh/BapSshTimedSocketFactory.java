@@ -0,0 +1,84 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import com.jcraft.jsch.SocketFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens the sockets of a session like JSch does itself, and measures how long the TCP connections took so that the
+ * rest of the session connect can be told apart as the key exchange and authentication.
+ *
+ * JSch does not pass its connect timeout to a socket factory, so the factory is given the same timeout.
+ */
+final class BapSshTimedSocketFactory implements SocketFactory {
+
+    private final int timeout;
+    private long connectNanos;
+
+    BapSshTimedSocketFactory(final int timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public Socket createSocket(final String host, final int port) throws IOException {
+        final long start = System.nanoTime();
+        final Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeout);
+        } catch (IOException ioe) {
+            socket.close();
+            throw ioe;
+        }
+        synchronized (this) {
+            connectNanos += System.nanoTime() - start;
+        }
+        return socket;
+    }
+
+    @Override
+    public InputStream getInputStream(final Socket socket) throws IOException {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream(final Socket socket) throws IOException {
+        return socket.getOutputStream();
+    }
+
+    /**
+     * @return time spent opening the TCP connections, in milliseconds
+     */
+    synchronized long getConnectMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(connectNanos);
+    }
+
+}
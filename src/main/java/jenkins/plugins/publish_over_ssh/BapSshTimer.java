@@ -0,0 +1,62 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package jenkins.plugins.publish_over_ssh;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * Scheduler for the short periodic tasks of a transfer, such as checking whether an exec command has finished.
+ *
+ * The publisher usually runs on an agent, where the Jenkins timer is not available, so the plugin keeps its own small
+ * pool of daemon threads that is created the first time it is needed in each JVM.
+ */
+final class BapSshTimer {
+
+    static final int THREADS = Integer.getInteger(BapSshTimer.class.getName() + ".threads", 2);
+
+    private static final ScheduledExecutorService SCHEDULER = createScheduler();
+
+    private BapSshTimer() { }
+
+    /**
+     * @return the scheduler shared by all transfers in this JVM
+     */
+    static ScheduledExecutorService get() {
+        return SCHEDULER;
+    }
+
+    private static ScheduledExecutorService createScheduler() {
+        final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(Math.max(1, THREADS),
+                new NamingThreadFactory(new DaemonThreadFactory(), BapSshTimer.class.getSimpleName()));
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+}
@@ -27,6 +27,8 @@ package jenkins.plugins.publish_over_ssh;
 import hudson.Util;
 import hudson.model.Describable;
 import jenkins.model.Jenkins;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import jenkins.plugins.publish_over.BPClient;
 import jenkins.plugins.publish_over.BPTransfer;
 import jenkins.plugins.publish_over_ssh.descriptor.BapSshTransferDescriptor;
 import org.apache.commons.lang.builder.EqualsBuilder;
@@ -46,6 +48,10 @@ public class BapSshTransfer extends BPTransfer implements Describable<BapSshTran
     private boolean useAgentForwarding;
     private boolean useSftpForExec;
     private boolean keepFilePermissions;
+    private int deltaThreshold;
+    private int resumeThreshold;
+    private String transport;
+    private boolean cleanRemoteInBackground;
 
     BapSshTransfer(final String sourceFiles, final String remoteDirectory, final String removePrefix,
                    final boolean remoteDirectorySDF, final boolean flatten, final String execCommand, final int execTimeout) {
@@ -131,13 +137,72 @@ public class BapSshTransfer extends BPTransfer implements Describable<BapSshTran
         this.keepFilePermissions = keepFilePermissions;
     }
 
+    /**
+     * @return size in MiB from which files that already exist on the server are uploaded as a delta, 0 to never
+     */
+    public int getDeltaThreshold() {
+        return deltaThreshold;
+    }
+
+    @DataBoundSetter
+    public void setDeltaThreshold(int deltaThreshold) {
+        this.deltaThreshold = deltaThreshold;
+    }
+
+    /**
+     * @return size in MiB from which files are uploaded so that a retry continues where the failed upload stopped, 0 to never
+     */
+    public int getResumeThreshold() {
+        return resumeThreshold;
+    }
+
+    @DataBoundSetter
+    public void setResumeThreshold(int resumeThreshold) {
+        this.resumeThreshold = resumeThreshold;
+    }
+
+    /**
+     * @return name of the {@link BapSshTransport} used to send the files
+     */
+    public String getTransport() {
+        return transport;
+    }
+
+    @DataBoundSetter
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @return true to move the remote directory aside and delete it in the background when cleanRemote is set
+     */
+    public boolean isCleanRemoteInBackground() {
+        return cleanRemoteInBackground;
+    }
+
+    @DataBoundSetter
+    public void setCleanRemoteInBackground(boolean cleanRemoteInBackground) {
+        this.cleanRemoteInBackground = cleanRemoteInBackground;
+    }
+
+    @Override
+    public int transfer(final BPBuildInfo buildInfo, final BPClient client, final TransferState state) throws Exception {
+        if (BapSshTransport.fromName(transport).isTar() && client instanceof BapSshClient) {
+            final int transferred = ((BapSshClient) client).transferAsTar(this);
+            if (transferred >= 0)
+                return transferred;
+        }
+        return super.transfer(buildInfo, client, state);
+    }
+
     public BapSshTransferDescriptor getDescriptor() {
         return Jenkins.getInstance().getDescriptorByType(BapSshTransferDescriptor.class);
     }
 
     @Override
     protected HashCodeBuilder addToHashCode(final HashCodeBuilder builder) {
-        return super.addToHashCode(builder).append(execCommand).append(execTimeout).append(usePty).append(useAgentForwarding).append(useSftpForExec);
+        return super.addToHashCode(builder).append(execCommand).append(execTimeout).append(usePty).append(useAgentForwarding).append(useSftpForExec).append(deltaThreshold).append(resumeThreshold).append(transport)
+                .append(cleanRemoteInBackground);
     }
 
     protected EqualsBuilder addToEquals(final EqualsBuilder builder, final BapSshTransfer that) {
@@ -147,7 +212,11 @@ public class BapSshTransfer extends BPTransfer implements Describable<BapSshTran
                 .append(usePty, that.usePty)
                 .append(useAgentForwarding, that.useAgentForwarding)
                 .append(useSftpForExec, that.useSftpForExec)
-                .append(keepFilePermissions, that.keepFilePermissions);
+                .append(keepFilePermissions, that.keepFilePermissions)
+                .append(deltaThreshold, that.deltaThreshold)
+                .append(resumeThreshold, that.resumeThreshold)
+                .append(transport, that.transport)
+                .append(cleanRemoteInBackground, that.cleanRemoteInBackground);
     }
 
     @Override
@@ -158,7 +227,11 @@ public class BapSshTransfer extends BPTransfer implements Describable<BapSshTran
                 .append("pseudoTty", usePty)
                 .append("agentForwarding", useAgentForwarding)
                 .append("useSftpForExec", useSftpForExec)
-                .append("keepFilePermissions", keepFilePermissions);
+                .append("keepFilePermissions", keepFilePermissions)
+                .append("deltaThreshold", deltaThreshold)
+                .append("resumeThreshold", resumeThreshold)
+                .append("transport", transport)
+                .append("cleanRemoteInBackground", cleanRemoteInBackground);
     }
 
     public boolean equals(final Object that) {
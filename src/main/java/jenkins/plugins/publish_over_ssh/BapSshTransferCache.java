@@ -1,109 +1,266 @@
 package jenkins.plugins.publish_over_ssh;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.FilePath;
 import hudson.remoting.VirtualChannel;
-import org.jenkinsci.remoting.RoleChecker;
+import jenkins.SlaveToMasterFileCallable;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.file.Files;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * This class allows to handle the tracking of the files transferred to the
  * remote servers so that those upload can be skipped if possible.
  *
- * The files are tracked via a per-job json cache file ("remoteResourceCache.json")
- * which contains a map of the absolute paths of the uploaded files and the values:
- * * Last access timestamp
- * * MD5 Hash value
+ * The files are tracked per job and per target, a target being a host configuration, in a binary index
+ * ("publish-over-ssh/transfer-cache/&lt;target&gt;.bin" in the job directory, see {@link BapSshTransferCacheStore}).
+ * Each target has its own file, so publishers to different targets never contend and a target can be forgotten on its
+ * own, for example after the host has been rebuilt. Two kinds of entries are kept, both holding the
+ * last modified timestamp, the size and a digest of the content (MD5 by default or the faster XXH64, see
+ * {@link BapSshFileDigest}):
+ * * for each remote directory and local file, the file that was last uploaded there
+ * * for each local file, the file as it was last hashed, so that an unchanged file is not hashed again for another
+ *   remote directory
+ *
+ * Cache files written by earlier versions were not scoped to a target and are deleted.
+ *
+ * The cache is kept in the job directory on the controller. It is read in one call when the transfer starts and the
+ * changes are sent back in one call when it is saved, so a publisher on an agent never opens the file itself.
  *
  * The files are signaled to be uploaded in two scenarios:
- * * They were not uploaded previously, they are now tracked and uploaded
- * * They were already uploaded before, only if the file has newer access timestamp and a *different* MD5 value they are uploaded
+ * * They were not uploaded to the remote directory previously, they are now tracked and uploaded
+ * * They were already uploaded before, only if the file has newer access timestamp or another size and a *different*
+ *   digest they are uploaded
  *
- * This is done for performance reasons, large files may take a long time to compute the MD5 hash
+ * This is done for performance reasons, large files may take a long time to hash
  * so if they are not newer then there is no need to compute it because we already know that the upload
- * will be rejected.
+ * will be rejected. Given the {@link BapSshFileInfo} of the transfer, {@link #prepare} hashes the files that do need
+ * it on the node that holds them, in parallel and in one call, before the uploads start.
  */
 public class BapSshTransferCache {
-  private static final String CACHEFILENAME = "remoteResourceCache.json";
-  private HashMap<String, BapSshTransferCacheRow> data;
-  private File configFile;
-  private FilePath.FileCallable<File> callableFile;
-  public BapSshTransferCache(FilePath configPath) {
+  private static final Log LOG = LogFactory.getLog(BapSshTransferCache.class);
+  static final String CACHE_DIRECTORY = "publish-over-ssh/transfer-cache";
+  static final String CACHE_EXTENSION = ".bin";
+  static final String[] LEGACY_CACHEFILENAMES = {"remoteResourceCache.json", "remoteResourceCache.bin"};
+  private final BapSshFileDigest digest;
+  private final Map<String, byte[]> preparedHashes = new HashMap<>();
+  private BapSshFileInfo fileInfo;
+  private BapSshTransferCacheStore store;
+  private final FilePath jobDirectory;
+  private final String target;
+
+  /**
+   * @param jobDirectory root directory of the job that is publishing, on the controller
+   * @param target identifies the host configuration, see {@link #createTarget}
+   * @param digest digest used to detect changed files
+   */
+  public BapSshTransferCache(FilePath jobDirectory, String target, BapSshFileDigest digest) {
+    this.digest = digest;
+    this.jobDirectory = jobDirectory;
+    this.target = target;
     try {
-      callableFile = new FilePath.FileCallable<File>() {
-        @Override
-        public File invoke(File file, VirtualChannel virtualChannel) throws IOException, InterruptedException {
-          return file;
-        }
-        @Override
-        public void checkRoles(RoleChecker roleChecker) throws SecurityException {}
-      };
-
-      configFile = configPath.child(CACHEFILENAME).act(callableFile);
-
-      ObjectMapper mapper = new ObjectMapper();
-      data = mapper.readValue(configFile, new TypeReference<HashMap<String, BapSshTransferCacheRow>>() {});
+      store = BapSshTransferCacheStore.load(jobDirectory.act(new ReadCallable(target, digest.getLength())), digest.getLength());
     }
     catch ( IOException | InterruptedException ex )
     {
-      data = new HashMap<>();
+      LOG.warn(Messages.log_transferCache_open(getCachePath(), ex.getLocalizedMessage()), ex);
+      store = null;
     }
   }
 
   /**
-   * Writes the current memory data to the cache file as JSON
+   * Creates the name of the cache of a host configuration. The name starts with the name of the configuration and
+   * changes whenever the server or remote root the configuration points at changes.
+   *
+   * @param configName name of the host configuration
+   * @param hostname hostname of the server
+   * @param port port of the server
+   * @param username user on the server
+   * @param remoteRootDir remote root directory of the configuration
+   * @return the target name
+   */
+  public static String createTarget(String configName, String hostname, int port, String username, String remoteRootDir) {
+    final String safeName = configName == null ? "" : configName.replaceAll("[^A-Za-z0-9._-]", "_");
+    return safeName + "-" + BapSshSessionPool.createKey(configName, hostname, port, username, remoteRootDir).substring(0, 16);
+  }
+
+  static File getCacheFile(File jobDirectory, String target) {
+    return new File(new File(jobDirectory, CACHE_DIRECTORY), target + CACHE_EXTENSION);
+  }
+
+  private String getCachePath() {
+    return jobDirectory.child(CACHE_DIRECTORY).child(target + CACHE_EXTENSION).getRemote();
+  }
+
+  /**
+   * Forgets everything uploaded to a target by the given jobs.
+   *
+   * @param jobDirectories root directories of the jobs
+   * @param target the target to forget
+   * @return the number of caches deleted
+   * @throws IOException if a cache could not be deleted
+   */
+  public static int invalidate(Iterable<File> jobDirectories, String target) throws IOException {
+    int deleted = 0;
+    for (File jobDirectory : jobDirectories) {
+      if (BapSshTransferCacheStore.delete(getCacheFile(jobDirectory, target)))
+        deleted++;
+    }
+    return deleted;
+  }
+
+  /**
+   * Appends the changes made during the transfer to the cache file on the controller
    */
   public void save() {
+    if (store == null)
+      return;
+    final byte[] changes = store.takeChanges();
+    if (changes.length == 0)
+      return;
+    try {
+      jobDirectory.act(new AppendCallable(target, digest.getLength(), changes));
+    }
+    catch ( IOException | InterruptedException ex )
+    {
+      LOG.warn(Messages.log_transferCache_save(getCachePath(), ex.getLocalizedMessage()), ex);
+    }
+  }
+
+  private static String localKey(String localPath) {
+    return "L\n" + localPath;
+  }
+
+  private static String remoteKey(String remoteDirectory, String localPath) {
+    return "R\n" + remoteDirectory + "\n" + localPath;
+  }
+
+  /**
+   * Hashes, in parallel on the node that holds them, the files that are about to be checked and that have changed since
+   * they were last hashed. Must be called before, not during, the calls to {@link #checkCachedResource}.
+   *
+   * @param files the files that are going to be transferred
+   * @throws InterruptedException if interrupted while waiting for the hashes
+   */
+  public void prepare( BapSshFileInfo files ) throws InterruptedException {
+    if (store == null)
+      return;
+    fileInfo = files;
+    final int[] changed = new int[files.size()];
+    int count = 0;
+    for (int i = 0; i < files.size(); i++) {
+      final BapSshTransferCacheRow localEntry = store.get(localKey(files.getFilePath(i).getRemote()));
+      if (localEntry == null || !localEntry.isSame(files.getLastModified(i), files.getSize(i)))
+        changed[count++] = i;
+    }
     try {
-      ObjectMapper mapper = new ObjectMapper();
-      mapper.writeValue(configFile, data);
+      final byte[][] hashes = files.digest(digest, Arrays.copyOf(changed, count));
+      for (int i = 0; i < count; i++) {
+        if (hashes[i] != null)
+          preparedHashes.put(files.getFilePath(changed[i]).getRemote(), hashes[i]);
+      }
     }
     catch ( IOException ex )
     {
-      data = null;
+      // checkCachedResource will hash the files one at a time and report the failure
+      LOG.warn(Messages.log_transferCache_prepare(ex.getLocalizedMessage()), ex);
     }
   }
 
   /**
    * Checks if the resources indicated by the FilePath instance
-   * should be uploaded or not according to the cache
+   * should be uploaded to the remote directory or not according to the cache
    *
    * @param filePath  path of the resource
+   * @param remoteDirectory  absolute remote directory the resource would be uploaded to
    * @return true if the resource shall be uploaded, false otherwise
    */
-  public boolean checkCachedResource( FilePath filePath ) {
+  public boolean checkCachedResource( FilePath filePath, String remoteDirectory ) {
+    if (store == null)
+      return true;
     try {
-      File resource = filePath.act(callableFile);
-      if( !data.containsKey(resource.getAbsolutePath()) ) {
-        // the resource is tracked already, register it and let i upload
-        data.put( resource.getAbsolutePath(), new BapSshTransferCacheRow(resource) );
-        return true;
-      }
+      final String localPath = filePath.getRemote();
+      final int index = fileInfo == null ? -1 : fileInfo.indexOf(filePath);
+      final long lastModified = index < 0 ? filePath.lastModified() : fileInfo.getLastModified(index);
+      final long size = index < 0 ? filePath.length() : fileInfo.getSize(index);
+      final String key = remoteKey(remoteDirectory, localPath);
+      BapSshTransferCacheRow resourceEntry = store.get(key);
+      if (resourceEntry != null && resourceEntry.isUnchanged(lastModified, size))
+        return false; // input file is older / current with tracked one, do not upload
 
-      // the resource was already tracked, check it with the cached data
-      BapSshTransferCacheRow resourceEntry = data.get(resource.getAbsolutePath());
-      return resourceEntry.mustUpdateWith( resource );
+      final BapSshTransferCacheRow newEntry = new BapSshTransferCacheRow(lastModified, size, getHashValue(filePath, lastModified, size));
+      store.put(localKey(localPath), newEntry);
+      store.put(key, newEntry);
+      // a newer file with the same content is recorded so that it is not hashed again, but is not uploaded
+      return resourceEntry == null || !Arrays.equals(resourceEntry.HashValue, newEntry.HashValue);
     }
     catch ( IOException | InterruptedException ex )
     {
-      data = new HashMap<>();
-      configFile = new File( CACHEFILENAME );
+      LOG.warn(Messages.log_transferCache_check(filePath.getRemote(), ex.getLocalizedMessage()), ex);
     }
 
     // in case of exception than reject the upload
     return false;
   }
+
+  private byte[] getHashValue(FilePath filePath, long lastModified, long size) throws IOException, InterruptedException {
+    final String localPath = filePath.getRemote();
+    final byte[] prepared = preparedHashes.remove(localPath);
+    if (prepared != null)
+      return prepared;
+    final BapSshTransferCacheRow localEntry = store.get(localKey(localPath));
+    if (localEntry != null && localEntry.isSame(lastModified, size))
+      return localEntry.HashValue;
+    return digest.digest(filePath);
+  }
+
+  /**
+   * Reads the cache of a target in the job directory on the controller, deleting the caches of earlier versions.
+   */
+  private static final class ReadCallable extends SlaveToMasterFileCallable<byte[]> {
+    private static final long serialVersionUID = 1L;
+    private final String target;
+    private final int digestLength;
+
+    ReadCallable(String target, int digestLength) {
+      this.target = target;
+      this.digestLength = digestLength;
+    }
+
+    @Override
+    public byte[] invoke(File jobDirectory, VirtualChannel channel) throws IOException {
+      for (String legacyName : LEGACY_CACHEFILENAMES)
+        BapSshTransferCacheStore.delete(new File(jobDirectory, legacyName));
+      return BapSshTransferCacheStore.readIndex(getCacheFile(jobDirectory, target), digestLength);
+    }
+  }
+
+  /**
+   * Appends the changes made during a transfer to the cache of a target in the job directory on the controller.
+   */
+  private static final class AppendCallable extends SlaveToMasterFileCallable<Void> {
+    private static final long serialVersionUID = 1L;
+    private final String target;
+    private final int digestLength;
+    private final byte[] records;
+
+    AppendCallable(String target, int digestLength, byte[] records) {
+      this.target = target;
+      this.digestLength = digestLength;
+      this.records = records;
+    }
+
+    @Override
+    public Void invoke(File jobDirectory, VirtualChannel channel) throws IOException {
+      BapSshTransferCacheStore.append(getCacheFile(jobDirectory, target), digestLength, records);
+      return null;
+    }
+  }
 }
 
 /**
@@ -112,6 +269,7 @@ public class BapSshTransferCache {
 class BapSshTransferCacheRow {
   public byte[] HashValue;
   public long LastModified;
+  public long Size = BapSshTransferCacheStore.UNKNOWN_SIZE;
 
   /**
    * For deserialization compatibility with Jackson library
@@ -121,80 +279,40 @@ class BapSshTransferCacheRow {
 
   /**
    * Used to explicitly initialize a resource in the cache with
-   * it's current values of md5 hash and last modified time
+   * it's current values of hash, size and last modified time
    *
-   * @param fileRef
+   * @param lastModified last modified time of the file
+   * @param size size of the file
+   * @param hashValue digest of the file
    */
   @SuppressFBWarnings(value = "PA_PUBLIC_PRIMITIVE_ATTRIBUTE", justification = "Backwards compatibility")
-  public BapSshTransferCacheRow(File fileRef) {
-    HashValue = getHashValue(fileRef);
-    try {
-      LastModified = Files.getLastModifiedTime(fileRef.toPath()).toMillis();
-    }
-    catch (IOException ex) {
-      LastModified = 0;
-    }
+  BapSshTransferCacheRow(long lastModified, long size, byte[] hashValue) {
+    LastModified = lastModified;
+    Size = size;
+    HashValue = hashValue;
   }
 
   /**
-   * Calculates the MD5 hash value of a file
+   * Checks if the file can be assumed unchanged without hashing it, that is
+   * if it is not newer than the tracked one and, when the tracked size is known,
+   * has the same size.
    *
-   * @param fileRef file to be hashed
-   * @return byte array of the file's hash, null in case of error
+   * @param lastModified  last modified time of the file
+   * @param size  size of the file
+   * @return  true if the file does not need to be hashed or uploaded
    */
-  private byte[] getHashValue(File fileRef) {
-    try {
-      byte[] tmpBuffer = new byte[8192];
-
-      MessageDigest md = MessageDigest.getInstance("MD5");
-      try (InputStream is = Files.newInputStream(fileRef.toPath());
-           DigestInputStream dis = new DigestInputStream(is, md))
-      {
-        while (dis.available() > 0) {
-          dis.read(tmpBuffer, 0, 8192);
-        }
-      }
-      return md.digest();
-    }
-    catch (IOException | NoSuchAlgorithmException ex) {
-      return null;
-    }
+  boolean isUnchanged(long lastModified, long size) {
+    return lastModified <= LastModified && (Size == BapSshTransferCacheStore.UNKNOWN_SIZE || Size == size);
   }
 
   /**
-   * Checks if the current instance has to be updated with the file indicated.
-   * Returns true if both:
-   * * last modified time for the input file is newer than the tracked one
-   * * MD5 hash of the input file is different than the tracked one
-   *
-   * For performance reasons if the modified time checks fails, no hash is computed.
+   * Checks if the file has exactly the tracked last modified time and size.
    *
-   * @param fileRef  file to check
-   * @return  true if the input file updated the row
+   * @param lastModified  last modified time of the file
+   * @param size  size of the file
+   * @return  true if the tracked digest can be used for the file
    */
-  public boolean mustUpdateWith(File fileRef) {
-    try {
-      long newModifiedTime = Files.getLastModifiedTime(fileRef.toPath()).toMillis();
-      if (newModifiedTime <= LastModified)
-        return false; // input files is older / current with tracked one, do not upload
-    }
-    catch (IOException ex)
-    {
-      return false;
-    }
-
-    byte[] newHashValue = getHashValue(fileRef);
-    if( Arrays.equals( HashValue, newHashValue ) )
-      return false; // file is newer but hash is the same, don't upload
-
-    // Here both conditions are true so update the tracked data
-    try {
-      LastModified = Files.getLastModifiedTime(fileRef.toPath()).toMillis();
-    }
-    catch (IOException ex) {
-      LastModified = 0;
-    }
-    HashValue = newHashValue;
-    return true; // Let the file be uploaded
+  boolean isSame(long lastModified, long size) {
+    return lastModified == LastModified && size == Size;
   }
 }
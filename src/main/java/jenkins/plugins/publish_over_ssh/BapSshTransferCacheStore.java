@@ -0,0 +1,448 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact on-disk index of the files tracked by {@link BapSshTransferCache}.
+ *
+ * The file starts with a fixed header followed by fixed width records of a 16 byte hash of the key, the last
+ * modified time, the size and the digest of the file. The first records, up to the count in the header, are sorted by
+ * key hash; they are read in one block and looked up with a binary search in place, so opening the index creates no
+ * objects per record. The file is not memory mapped, as a mapping can not be released on demand and would stop the
+ * index being replaced or deleted on Windows. Changes are appended after the sorted records and are read into a map.
+ * Once the appended records outgrow a fraction of the sorted ones, the index is compacted by writing a new sorted
+ * file and atomically moving it over the old one.
+ *
+ * The file is only ever read and written on the controller. A publisher on an agent {@link #load}s the content of the
+ * file and sends its changes back to be {@link #append}ed.
+ *
+ * A crash while appending can only leave a partial record at the end of the file, which is ignored when reading and
+ * cut off before the next append.
+ */
+final class BapSshTransferCacheStore {
+
+    private static final Log LOG = LogFactory.getLog(BapSshTransferCacheStore.class);
+    private static final byte[] MAGIC = "POSSHTC1".getBytes(StandardCharsets.US_ASCII);
+    private static final Map<String, Object> LOCKS = new ConcurrentHashMap<>();
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int KEY_SIZE = 16;
+    static final int DIGEST_SIZE = 32;
+    static final int RECORD_SIZE = KEY_SIZE + Long.BYTES + Long.BYTES + DIGEST_SIZE;
+    static final int MIN_COMPACT_RECORDS = 1024;
+    static final int COMPACT_RATIO = 8;
+    static final long UNKNOWN_SIZE = -1;
+
+    private final File file;
+    private final int digestLength;
+    private final Map<KeyHash, BapSshTransferCacheRow> appended = new HashMap<>();
+    private final Map<KeyHash, BapSshTransferCacheRow> changes = new HashMap<>();
+    private ByteBuffer sorted;
+    private long sortedCount;
+
+    private BapSshTransferCacheStore(final File file, final int digestLength) {
+        this.file = file;
+        this.digestLength = digestLength;
+    }
+
+    /**
+     * Open the index, discarding it if it was written in another format.
+     *
+     * @param file the index file
+     * @param digestLength the length of the digests stored in the index
+     * @return the opened index
+     * @throws IOException if the index could not be read
+     */
+    static BapSshTransferCacheStore open(final File file, final int digestLength) throws IOException {
+        final BapSshTransferCacheStore store = new BapSshTransferCacheStore(file, digestLength);
+        final byte[] index = readIndex(file, digestLength);
+        if (index != null)
+            store.read(ByteBuffer.wrap(index));
+        return store;
+    }
+
+    /**
+     * Create an index from the content of an index file that was read on another node. Nothing is written by
+     * {@link #save()}; the changes are taken with {@link #takeChanges()} and appended where the file is.
+     *
+     * @param index the content of the index file, see {@link #readIndex}, or null if there is none
+     * @param digestLength the length of the digests stored in the index
+     * @return the loaded index
+     */
+    static BapSshTransferCacheStore load(final byte[] index, final int digestLength) {
+        final BapSshTransferCacheStore store = new BapSshTransferCacheStore(null, digestLength);
+        if (index != null)
+            store.read(ByteBuffer.wrap(index));
+        return store;
+    }
+
+    /**
+     * Read the content of an index, discarding it if it was written in another format.
+     *
+     * @param file the index file
+     * @param digestLength the length of the digests stored in the index
+     * @return the content of the index, or null if there is no index
+     * @throws IOException if the index could not be read
+     */
+    static byte[] readIndex(final File file, final int digestLength) throws IOException {
+        synchronized (lockFor(file)) {
+            if (!file.exists())
+                return null;
+            final byte[] index = Files.readAllBytes(file.toPath());
+            if (readSortedCount(ByteBuffer.wrap(index), digestLength) >= 0)
+                return index;
+            LOG.warn(Messages.log_transferCache_discarded(file));
+            Files.delete(file.toPath());
+            return null;
+        }
+    }
+
+    /**
+     * Delete an index, waiting for any save in progress.
+     *
+     * @param file the index file
+     * @return true if the index existed
+     * @throws IOException if the index could not be deleted
+     */
+    static boolean delete(final File file) throws IOException {
+        synchronized (lockFor(file)) {
+            return Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    private static Object lockFor(final File file) {
+        return LOCKS.computeIfAbsent(file.getAbsolutePath(), path -> new Object());
+    }
+
+    /**
+     * @return the count of sorted records in the header, or -1 if the index is not of this version and digest length
+     */
+    private static long readSortedCount(final ByteBuffer index, final int digestLength) {
+        if (index.remaining() < HEADER_SIZE)
+            return -1;
+        final byte[] magic = new byte[MAGIC.length];
+        index.get(magic);
+        final int version = index.getInt();
+        final int storedDigestLength = index.getInt();
+        final long count = index.getLong();
+        if (!Arrays.equals(MAGIC, magic) || version != VERSION || storedDigestLength != digestLength)
+            return -1;
+        return Math.max(0, count);
+    }
+
+    private static long readSortedCount(final File file, final int digestLength) throws IOException {
+        if (!file.exists())
+            return -1;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return readSortedCount(channel, digestLength);
+        }
+    }
+
+    private static long readSortedCount(final FileChannel channel, final int digestLength) throws IOException {
+        if (channel.size() < HEADER_SIZE)
+            return -1;
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0);
+        header.flip();
+        return readSortedCount(header, digestLength);
+    }
+
+    /**
+     * Keep the sorted records where they are and load the appended ones.
+     */
+    private void read(final ByteBuffer index) {
+        final long count = readSortedCount(index, digestLength);
+        if (count < 0)
+            return;
+        index.position(HEADER_SIZE);
+        sortedCount = Math.min(count, index.remaining() / RECORD_SIZE);
+        if (sortedCount > 0) {
+            sorted = index.slice();
+            sorted.limit((int) (sortedCount * RECORD_SIZE));
+        }
+        index.position(HEADER_SIZE + (int) (sortedCount * RECORD_SIZE));
+        while (index.remaining() >= RECORD_SIZE)
+            readRecord(index, appended);
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, offset);
+            if (read < 0)
+                throw new IOException(Messages.exception_transferCache_truncated(offset));
+            offset += read;
+        }
+    }
+
+    private void readRecord(final ByteBuffer buffer, final Map<KeyHash, BapSshTransferCacheRow> into) {
+        final KeyHash key = new KeyHash(buffer.getLong(), buffer.getLong());
+        into.put(key, readRow(buffer, buffer.position()));
+        buffer.position(buffer.position() + Long.BYTES + Long.BYTES + DIGEST_SIZE);
+    }
+
+    private BapSshTransferCacheRow readRow(final ByteBuffer buffer, final int position) {
+        final BapSshTransferCacheRow row = new BapSshTransferCacheRow();
+        row.LastModified = buffer.getLong(position);
+        row.Size = buffer.getLong(position + Long.BYTES);
+        final byte[] digest = new byte[digestLength];
+        for (int i = 0; i < digestLength; i++)
+            digest[i] = buffer.get(position + Long.BYTES + Long.BYTES + i);
+        row.HashValue = digest;
+        return row;
+    }
+
+    /**
+     * @param key the key of the tracked file
+     * @return the stored values for the key, or null if it is not tracked
+     */
+    BapSshTransferCacheRow get(final String key) {
+        final KeyHash hash = KeyHash.of(key);
+        BapSshTransferCacheRow row = changes.get(hash);
+        if (row == null)
+            row = appended.get(hash);
+        if (row == null)
+            row = findSorted(hash);
+        return row;
+    }
+
+    private BapSshTransferCacheRow findSorted(final KeyHash hash) {
+        long low = 0;
+        long high = sortedCount - 1;
+        while (low <= high) {
+            final long middle = (low + high) >>> 1;
+            final int position = (int) (middle * RECORD_SIZE);
+            final int compare = new KeyHash(sorted.getLong(position), sorted.getLong(position + Long.BYTES)).compareTo(hash);
+            if (compare == 0)
+                return readRow(sorted, position + KEY_SIZE);
+            if (compare < 0)
+                low = middle + 1;
+            else
+                high = middle - 1;
+        }
+        return null;
+    }
+
+    /**
+     * Record new values for a key. Nothing is written until {@link #save()}.
+     *
+     * @param key the key of the tracked file
+     * @param row the values to store
+     */
+    void put(final String key, final BapSshTransferCacheRow row) {
+        changes.put(KeyHash.of(key), row);
+    }
+
+    /**
+     * Append the changes to the index, compacting it if the appended records have grown too large.
+     *
+     * @throws IOException if the changes could not be written
+     */
+    void save() throws IOException {
+        if (changes.isEmpty()) return;
+        append(file, digestLength, takeChanges());
+    }
+
+    /**
+     * Move the changes to the records that are known to be appended to the index.
+     *
+     * @return the changes as records to {@link #append}
+     */
+    byte[] takeChanges() {
+        final ByteBuffer buffer = ByteBuffer.allocate(changes.size() * RECORD_SIZE);
+        for (Map.Entry<KeyHash, BapSshTransferCacheRow> change : changes.entrySet())
+            writeRecord(buffer, change.getKey(), change.getValue(), digestLength);
+        appended.putAll(changes);
+        changes.clear();
+        return buffer.array();
+    }
+
+    /**
+     * Append records to an index, compacting it if the appended records have grown too large.
+     *
+     * @param file the index file
+     * @param digestLength the length of the digests stored in the index
+     * @param records the records, see {@link #takeChanges()}
+     * @throws IOException if the records could not be written
+     */
+    static void append(final File file, final int digestLength, final byte[] records) throws IOException {
+        if (records.length == 0) return;
+        synchronized (lockFor(file)) {
+            final Path path = file.toPath();
+            if (readSortedCount(file, digestLength) < 0) {
+                if (file.exists())
+                    LOG.warn(Messages.log_transferCache_discarded(file));
+                writeSorted(file, digestLength, new TreeMap<>());
+            }
+            final long total;
+            final long count;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                final long end = HEADER_SIZE + (channel.size() - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+                channel.truncate(end);
+                final ByteBuffer buffer = ByteBuffer.wrap(records, 0, records.length / RECORD_SIZE * RECORD_SIZE);
+                long position = end;
+                while (buffer.hasRemaining())
+                    position += channel.write(buffer, position);
+                channel.force(false);
+                total = (position - HEADER_SIZE) / RECORD_SIZE;
+                count = readSortedCount(channel, digestLength);
+            }
+            final long tailCount = total - count;
+            if (tailCount > Math.max(MIN_COMPACT_RECORDS, count / COMPACT_RATIO))
+                compact(file, digestLength);
+        }
+    }
+
+    /**
+     * Rewrite the index as sorted records only. The file is read again so that records appended by other builds since
+     * the changes were loaded are kept.
+     */
+    private static void compact(final File file, final int digestLength) {
+        try {
+            final BapSshTransferCacheStore current = open(file, digestLength);
+            final TreeMap<KeyHash, BapSshTransferCacheRow> rows = new TreeMap<>();
+            final ByteBuffer buffer = current.sorted;
+            for (long i = 0; i < current.sortedCount; i++) {
+                final int position = (int) (i * RECORD_SIZE);
+                rows.put(new KeyHash(buffer.getLong(position), buffer.getLong(position + Long.BYTES)),
+                        current.readRow(buffer, position + KEY_SIZE));
+            }
+            rows.putAll(current.appended);
+            writeSorted(file, digestLength, rows);
+        } catch (IOException ioe) {
+            LOG.warn(Messages.log_transferCache_compact(file, ioe.getLocalizedMessage()), ioe);
+        }
+    }
+
+    private static void writeSorted(final File file, final int digestLength, final TreeMap<KeyHash, BapSshTransferCacheRow> rows)
+            throws IOException {
+        final Path path = file.toPath();
+        Files.createDirectories(path.getParent());
+        final Path temp = Files.createTempFile(path.getParent(), file.getName(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.put(MAGIC).putInt(VERSION).putInt(digestLength).putLong(rows.size());
+                header.position(HEADER_SIZE).flip();
+                channel.write(header);
+                final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 4096);
+                for (Map.Entry<KeyHash, BapSshTransferCacheRow> row : rows.entrySet()) {
+                    if (!buffer.hasRemaining())
+                        flush(channel, buffer);
+                    writeRecord(buffer, row.getKey(), row.getValue(), digestLength);
+                }
+                flush(channel, buffer);
+                channel.force(true);
+            }
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void flush(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    private static void writeRecord(final ByteBuffer buffer, final KeyHash key, final BapSshTransferCacheRow row,
+                                    final int digestLength) {
+        buffer.putLong(key.high).putLong(key.low).putLong(row.LastModified).putLong(row.Size);
+        final byte[] digest = new byte[DIGEST_SIZE];
+        if (row.HashValue != null)
+            System.arraycopy(row.HashValue, 0, digest, 0, Math.min(row.HashValue.length, digestLength));
+        buffer.put(digest);
+    }
+
+    /**
+     * Fixed width hash of a cache key, ordered as unsigned 128 bit numbers.
+     */
+    static final class KeyHash implements Comparable<KeyHash> {
+
+        private final long high;
+        private final long low;
+
+        KeyHash(final long high, final long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        static KeyHash of(final String key) {
+            try {
+                final ByteBuffer hash = ByteBuffer.wrap(MessageDigest.getInstance("MD5").digest(BapSshUtil.toBytes(key)));
+                return new KeyHash(hash.getLong(), hash.getLong());
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new IllegalStateException(nsae);
+            }
+        }
+
+        @Override
+        public int compareTo(final KeyHash that) {
+            final int compare = Long.compareUnsigned(high, that.high);
+            return compare == 0 ? Long.compareUnsigned(low, that.low) : compare;
+        }
+
+        @Override
+        public boolean equals(final Object that) {
+            if (this == that) return true;
+            if (!(that instanceof KeyHash)) return false;
+            return high == ((KeyHash) that).high && low == ((KeyHash) that).low;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(high ^ low);
+        }
+
+    }
+
+}
@@ -0,0 +1,296 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What publishing to one host cost: how long it took to connect, to agree the keys and authenticate, and to open the
+ * SFTP channel, then for each transfer how many files and bytes were uploaded or skipped and how long the upload and
+ * the exec command took.
+ *
+ * The client records into it as it goes, from the upload threads too, and sends it to the build when it disconnects,
+ * see {@link BapSshTransferStatisticsAction}. It crosses from the agent as one line of JSON.
+ */
+@ExportedBean(defaultVisibility = 2)
+public class BapSshTransferStatistics implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE)
+            .setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private static final double BYTES_PER_MEGABYTE = 1024 * 1024;
+
+    private String configName;
+    private boolean sessionReused;
+    private long connectMillis;
+    private long handshakeMillis;
+    private long sftpOpenMillis;
+    private final List<Transfer> transfers = new ArrayList<>();
+
+    static BapSshTransferStatistics fromJson(final byte[] line) throws IOException {
+        return MAPPER.readValue(line, BapSshTransferStatistics.class);
+    }
+
+    /**
+     * @return this as one line of JSON, ending with a new line
+     */
+    synchronized byte[] toJson() throws IOException {
+        return (MAPPER.writeValueAsString(this) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    synchronized void setConfigName(final String configName) {
+        this.configName = configName;
+    }
+
+    synchronized void setSessionReused(final boolean sessionReused) {
+        this.sessionReused = sessionReused;
+    }
+
+    /**
+     * @param connectMillis time to open the TCP connection, through the proxy if there is one
+     * @param handshakeMillis time for the rest of the session connect - key exchange and authentication
+     */
+    synchronized void addConnect(final long connectMillis, final long handshakeMillis) {
+        this.connectMillis += connectMillis;
+        this.handshakeMillis += handshakeMillis;
+    }
+
+    synchronized void addSftpOpen(final long millis) {
+        sftpOpenMillis += millis;
+    }
+
+    synchronized Transfer beginTransfer() {
+        final Transfer transfer = new Transfer(transfers.size() + 1);
+        transfers.add(transfer);
+        return transfer;
+    }
+
+    @Exported
+    public synchronized String getConfigName() {
+        return configName;
+    }
+
+    @Exported
+    public synchronized boolean isSessionReused() {
+        return sessionReused;
+    }
+
+    @Exported
+    public synchronized long getConnectMillis() {
+        return connectMillis;
+    }
+
+    @Exported
+    public synchronized long getHandshakeMillis() {
+        return handshakeMillis;
+    }
+
+    @Exported
+    public synchronized long getSftpOpenMillis() {
+        return sftpOpenMillis;
+    }
+
+    @Exported(inline = true)
+    public synchronized List<Transfer> getTransfers() {
+        return new ArrayList<>(transfers);
+    }
+
+    @Exported
+    public long getFilesUploaded() {
+        long total = 0;
+        for (Transfer transfer : getTransfers())
+            total += transfer.getFilesUploaded();
+        return total;
+    }
+
+    @Exported
+    public long getBytesUploaded() {
+        long total = 0;
+        for (Transfer transfer : getTransfers())
+            total += transfer.getBytesUploaded();
+        return total;
+    }
+
+    @Exported
+    public long getFilesSkipped() {
+        long total = 0;
+        for (Transfer transfer : getTransfers())
+            total += transfer.getFilesSkipped();
+        return total;
+    }
+
+    @Exported
+    public long getBytesSkipped() {
+        long total = 0;
+        for (Transfer transfer : getTransfers())
+            total += transfer.getBytesSkipped();
+        return total;
+    }
+
+    @Exported
+    public long getUploadMillis() {
+        long total = 0;
+        for (Transfer transfer : getTransfers())
+            total += transfer.getUploadMillis();
+        return total;
+    }
+
+    @Exported
+    public long getSkipCheckMillis() {
+        long total = 0;
+        for (Transfer transfer : getTransfers())
+            total += transfer.getSkipCheckMillis();
+        return total;
+    }
+
+    @Exported
+    public long getExecMillis() {
+        long total = 0;
+        for (Transfer transfer : getTransfers())
+            total += transfer.getExecMillis();
+        return total;
+    }
+
+    /**
+     * @return megabytes uploaded per second of upload time
+     */
+    @Exported
+    public double getMegabytesPerSecond() {
+        return megabytesPerSecond(getBytesUploaded(), getUploadMillis());
+    }
+
+    static double megabytesPerSecond(final long bytes, final long millis) {
+        if (millis <= 0) return 0;
+        return bytes / BYTES_PER_MEGABYTE / (millis / 1000.0);
+    }
+
+    /**
+     * One transfer set of a publisher. The upload time runs from the start of the transfer until its files, and their
+     * permissions, are all on the server, so it includes the time to make directories and to decide what to skip.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static class Transfer implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private int index;
+        private long filesUploaded;
+        private long bytesUploaded;
+        private long filesSkipped;
+        private long bytesSkipped;
+        private long uploadMillis;
+        private long skipCheckMillis;
+        private long execMillis;
+
+        Transfer() {
+        }
+
+        Transfer(final int index) {
+            this.index = index;
+        }
+
+        synchronized void uploaded(final long bytes) {
+            filesUploaded++;
+            bytesUploaded += bytes;
+        }
+
+        synchronized void skipped(final long bytes) {
+            filesSkipped++;
+            bytesSkipped += bytes;
+        }
+
+        synchronized void addUpload(final long millis) {
+            uploadMillis += millis;
+        }
+
+        synchronized void addSkipCheck(final long millis) {
+            skipCheckMillis += millis;
+        }
+
+        synchronized void addExec(final long millis) {
+            execMillis += millis;
+        }
+
+        @Exported
+        public synchronized int getIndex() {
+            return index;
+        }
+
+        @Exported
+        public synchronized long getFilesUploaded() {
+            return filesUploaded;
+        }
+
+        @Exported
+        public synchronized long getBytesUploaded() {
+            return bytesUploaded;
+        }
+
+        @Exported
+        public synchronized long getFilesSkipped() {
+            return filesSkipped;
+        }
+
+        @Exported
+        public synchronized long getBytesSkipped() {
+            return bytesSkipped;
+        }
+
+        @Exported
+        public synchronized long getUploadMillis() {
+            return uploadMillis;
+        }
+
+        @Exported
+        public synchronized long getSkipCheckMillis() {
+            return skipCheckMillis;
+        }
+
+        @Exported
+        public synchronized long getExecMillis() {
+            return execMillis;
+        }
+
+        @Exported
+        public double getMegabytesPerSecond() {
+            return megabytesPerSecond(getBytesUploaded(), getUploadMillis());
+        }
+
+    }
+
+}
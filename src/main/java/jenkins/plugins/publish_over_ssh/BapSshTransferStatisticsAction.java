@@ -0,0 +1,165 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import hudson.model.Action;
+import hudson.model.Api;
+import hudson.model.Run;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The transfer statistics of every host published to by a build, shown as a table on the build and exported as JSON
+ * by {@code api/json}.
+ *
+ * The clients may run on an agent, so they cannot add their statistics to the build directly. Instead each writes
+ * them as a line of JSON to the stream made by {@link #collector}, which reaches the agent as a remote stream in the
+ * build info, and the statistics are added to the build as each line arrives.
+ */
+@ExportedBean
+public class BapSshTransferStatisticsAction implements Action {
+
+    private static final Log LOG = LogFactory.getLog(BapSshTransferStatisticsAction.class);
+    private static final Object LOCK = new Object();
+    static final String URL_NAME = "publishOverSsh";
+    /** Longer lines are not statistics that this plugin sent and are dropped. */
+    static final int MAX_LINE_LENGTH = 1024 * 1024;
+
+    private final List<BapSshTransferStatistics> hosts = new ArrayList<>();
+
+    /**
+     * @param run the build that publishes
+     * @return stream that adds each line of JSON written to it to the statistics of the build
+     */
+    static OutputStream collector(final Run<?, ?> run) {
+        return new Collector(run);
+    }
+
+    static void add(final Run<?, ?> run, final BapSshTransferStatistics statistics) {
+        synchronized (LOCK) {
+            BapSshTransferStatisticsAction action = run.getAction(BapSshTransferStatisticsAction.class);
+            if (action == null) {
+                action = new BapSshTransferStatisticsAction();
+                run.addAction(action);
+            }
+            action.add(statistics);
+        }
+        try {
+            // a publisher may be the last step of the build, do not rely on the build being saved after it
+            run.save();
+        } catch (IOException ioe) {
+            LOG.warn(Messages.log_statistics_save(statistics.getConfigName(), ioe.getLocalizedMessage()), ioe);
+        }
+    }
+
+    synchronized void add(final BapSshTransferStatistics statistics) {
+        hosts.add(statistics);
+    }
+
+    @Exported(inline = true)
+    public synchronized List<BapSshTransferStatistics> getHosts() {
+        return new ArrayList<>(hosts);
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "graph.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.statistics_displayName();
+    }
+
+    @Override
+    public String getUrlName() {
+        return URL_NAME;
+    }
+
+    private static final class Collector extends OutputStream {
+
+        private final Run<?, ?> run;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private boolean discarding;
+
+        Collector(final Run<?, ?> run) {
+            this.run = run;
+        }
+
+        @Override
+        public void write(final int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(final byte[] b, final int off, final int len) {
+            int start = off;
+            for (int i = off; i < off + len; i++) {
+                if (b[i] != '\n') continue;
+                append(b, start, i - start);
+                endLine();
+                start = i + 1;
+            }
+            append(b, start, off + len - start);
+        }
+
+        private void append(final byte[] b, final int off, final int len) {
+            if (discarding) return;
+            if (line.size() + len > MAX_LINE_LENGTH) {
+                discarding = true;
+                line.reset();
+                return;
+            }
+            line.write(b, off, len);
+        }
+
+        private void endLine() {
+            final byte[] json = line.toByteArray();
+            final boolean discarded = discarding;
+            line.reset();
+            discarding = false;
+            if (discarded || json.length == 0) return;
+            try {
+                add(run, BapSshTransferStatistics.fromJson(json));
+            } catch (IOException ioe) {
+                LOG.warn(Messages.log_statistics_read(ioe.getLocalizedMessage()), ioe);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+/**
+ * How the files of a transfer are sent to the server.
+ */
+public enum BapSshTransport {
+
+    /** Upload the files one at a time over SFTP. */
+    SFTP(false),
+
+    /** Stream the files as one tar archive into {@code tar} run on the server, falling back to SFTP without exec. */
+    TAR(false),
+
+    /** As {@link #TAR}, compressing the archive with gzip on the node that holds the files. */
+    TAR_GZIP(true);
+
+    private final boolean compressed;
+
+    BapSshTransport(final boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    public boolean isTar() {
+        return this != SFTP;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Find the transport by name, falling back to SFTP for an empty or unknown name.
+     *
+     * @param name the name of the transport
+     * @return the transport
+     */
+    public static BapSshTransport fromName(final String name) {
+        for (BapSshTransport transport : values()) {
+            if (transport.name().equals(name))
+                return transport;
+        }
+        return SFTP;
+    }
+
+}
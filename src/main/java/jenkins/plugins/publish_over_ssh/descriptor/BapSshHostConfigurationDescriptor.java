@@ -26,17 +26,25 @@ package jenkins.plugins.publish_over_ssh.descriptor;
 
 import hudson.Extension;
 import hudson.model.Descriptor;
+import hudson.model.Job;
 import hudson.util.FormValidation;
 import jenkins.model.Jenkins;
 import jenkins.plugins.publish_over.BPValidators;
+import jenkins.plugins.publish_over_ssh.BapSshCompression;
 import jenkins.plugins.publish_over_ssh.BapSshHostConfiguration;
 import jenkins.plugins.publish_over_ssh.BapSshPublisherPlugin;
+import jenkins.plugins.publish_over_ssh.BapSshTransferCache;
 import jenkins.plugins.publish_over_ssh.Messages;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest2;
 import org.kohsuke.stapler.StaplerResponse2;
 import org.kohsuke.stapler.interceptor.RequirePOST;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 @Extension
 public class BapSshHostConfigurationDescriptor extends Descriptor<BapSshHostConfiguration> {
 
@@ -65,6 +73,34 @@ public class BapSshHostConfigurationDescriptor extends Descriptor<BapSshHostConf
       return BapSshHostConfiguration.DEFAULT_AVOID_SAME_FILES_UPLOAD;
     }
 
+    public int getDefaultMaxSessions() {
+        return BapSshHostConfiguration.DEFAULT_MAX_SESSIONS;
+    }
+
+    public int getDefaultSessionIdleTimeout() {
+        return BapSshHostConfiguration.DEFAULT_SESSION_IDLE_TIMEOUT;
+    }
+
+    public int getDefaultConnectionQueueTimeout() {
+        return BapSshHostConfiguration.DEFAULT_CONNECTION_QUEUE_TIMEOUT;
+    }
+
+    public int getDefaultSftpChannels() {
+        return BapSshHostConfiguration.DEFAULT_SFTP_CHANNELS;
+    }
+
+    public int getDefaultSftpOutstandingRequests() {
+        return BapSshHostConfiguration.DEFAULT_SFTP_OUTSTANDING_REQUESTS;
+    }
+
+    public int getDefaultSftpChunkSize() {
+        return BapSshHostConfiguration.DEFAULT_SFTP_CHUNK_SIZE;
+    }
+
+    public int getDefaultCompressionLevel() {
+        return BapSshCompression.DEFAULT_LEVEL;
+    }
+
     public FormValidation doCheckName(@QueryParameter final String value) {
         return BPValidators.validateName(value);
     }
@@ -85,6 +121,30 @@ public class BapSshHostConfigurationDescriptor extends Descriptor<BapSshHostConf
         return FormValidation.validateNonNegativeInteger(value);
     }
 
+    public FormValidation doCheckMaxSessions(@QueryParameter final String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckSessionIdleTimeout(@QueryParameter final String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckSftpChannels(@QueryParameter final String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    public FormValidation doCheckSftpOutstandingRequests(@QueryParameter final String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckSftpChunkSize(@QueryParameter final String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckCompressionLevel(@QueryParameter final String value) {
+        return FormValidation.validateIntegerInRange(value, 0, 9);
+    }
+
     @RequirePOST
     public FormValidation doCheckKeyPath(@QueryParameter final String value) {
         Jenkins.get().checkPermission(Jenkins.ADMINISTER);
@@ -106,6 +166,29 @@ public class BapSshHostConfigurationDescriptor extends Descriptor<BapSshHostConf
         return pluginDescriptor.doTestConnection(request, response);
     }
 
+    @RequirePOST
+    public FormValidation doForgetUploadedFiles(@QueryParameter final String name, @QueryParameter final String hostname,
+                                                @QueryParameter final String port, @QueryParameter final String username,
+                                                @QueryParameter final String remoteRootDir) {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        final List<File> jobDirectories = new ArrayList<>();
+        for (Job<?, ?> job : Jenkins.get().getAllItems(Job.class))
+            jobDirectories.add(job.getRootDir());
+        int portNumber = BapSshHostConfiguration.DEFAULT_PORT;
+        try {
+            if (port != null)
+                portNumber = Integer.parseInt(port.trim());
+        } catch (NumberFormatException nfe) {
+            // the connection would also fall back to the default port
+        }
+        final String target = BapSshTransferCache.createTarget(name, hostname == null ? null : hostname.trim(), portNumber, username, remoteRootDir);
+        try {
+            return FormValidation.ok(Messages.descriptor_forgetUploadedFiles_ok(BapSshTransferCache.invalidate(jobDirectories, target)));
+        } catch (IOException ioe) {
+            return FormValidation.error(ioe, Messages.descriptor_forgetUploadedFiles_error(ioe.getLocalizedMessage()));
+        }
+    }
+
     public jenkins.plugins.publish_over.view_defaults.HostConfiguration.Messages getCommonFieldNames() {
         return new jenkins.plugins.publish_over.view_defaults.HostConfiguration.Messages();
     }
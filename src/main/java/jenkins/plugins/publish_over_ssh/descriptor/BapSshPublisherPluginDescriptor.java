@@ -36,6 +36,7 @@ import hudson.init.Initializer;
 import hudson.util.Secret;
 import jenkins.plugins.publish_over.BPHostConfiguration;
 import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest2;
 import org.kohsuke.stapler.StaplerResponse2;
 
@@ -167,6 +168,14 @@ public class BapSshPublisherPluginDescriptor extends BuildStepDescriptor<Publish
         return BPInstanceConfig.DEFAULT_MASTER_NODE_NAME;
     }
 
+    public int getDefaultMaxConcurrency() {
+        return BapSshPublisherPlugin.DEFAULT_MAX_CONCURRENCY;
+    }
+
+    public FormValidation doCheckMaxConcurrency(@QueryParameter final String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
     public boolean isEnableOverrideDefaults() {
         return true;
     }
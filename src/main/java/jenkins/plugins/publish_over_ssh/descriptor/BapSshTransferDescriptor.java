@@ -53,6 +53,14 @@ public class BapSshTransferDescriptor extends Descriptor<BapSshTransfer> {
         return FormValidation.validateNonNegativeInteger(value);
     }
 
+    public FormValidation doCheckDeltaThreshold(@QueryParameter final String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    public FormValidation doCheckResumeThreshold(@QueryParameter final String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
     public FormValidation doCheckSourceFiles(@QueryParameter final String sourceFilesConfigName, @QueryParameter final String value,
                                              @QueryParameter final String execCommand) {
         if (Util.fixEmptyAndTrim(sourceFilesConfigName) != null) {
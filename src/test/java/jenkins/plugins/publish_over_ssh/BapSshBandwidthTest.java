@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BapSshBandwidthTest {
+
+    private static final int KILOBYTE = 1024;
+    private static final int RATE = 256;
+
+    @Test
+    void testNoLimitNoThrottle() {
+        assertNull(BapSshBandwidth.throttle(0, "unlimited", 0, 0, false));
+    }
+
+    @Test
+    void testUploadIsLimitedAfterTheBurst() throws Exception {
+        final BapSshBandwidth.Throttle throttle = BapSshBandwidth.throttle(RATE, "publisher", 0, 0, false);
+        final byte[] data = new byte[3 * RATE * KILOBYTE];
+        final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        final long start = System.nanoTime();
+        try (InputStream in = throttle.wrap(new ByteArrayInputStream(data))) {
+            in.transferTo(copy);
+        }
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertArrayEquals(data, copy.toByteArray());
+        // a second in the burst, then two seconds at the rate
+        assertTrue(elapsed >= 1800 && elapsed < 3000, "took " + elapsed + "ms");
+    }
+
+    @Test
+    void testHostBandwidthIsShared() throws Exception {
+        final long elapsed = upload(BapSshBandwidth.throttle(0, "shared", RATE, 0, false),
+                BapSshBandwidth.throttle(0, "shared", RATE, 0, false), 2 * RATE * KILOBYTE);
+        // four seconds of bytes less the burst
+        assertTrue(elapsed >= 2800, "took " + elapsed + "ms");
+    }
+
+    @Test
+    void testBulkTransferGivesWay() throws Exception {
+        final BapSshBandwidth.Throttle bulk = BapSshBandwidth.throttle(0, "bulk", RATE, 0, true);
+        final BapSshBandwidth.Throttle interactive = BapSshBandwidth.throttle(0, "bulk", RATE, 0, false);
+        final long[] finished = new long[1];
+        final Thread bulkUpload = new Thread(() -> {
+            try {
+                write(bulk, 2 * RATE * KILOBYTE);
+                finished[0] = System.nanoTime();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        bulkUpload.start();
+        Thread.sleep(100);
+        write(interactive, 2 * RATE * KILOBYTE);
+        final long interactiveFinished = System.nanoTime();
+        bulkUpload.join(TimeUnit.SECONDS.toMillis(30));
+        assertTrue(finished[0] > interactiveFinished);
+    }
+
+    private static long upload(final BapSshBandwidth.Throttle first, final BapSshBandwidth.Throttle second, final int bytes)
+            throws Exception {
+        final long start = System.nanoTime();
+        final Thread other = new Thread(() -> {
+            try {
+                write(second, bytes);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        other.start();
+        write(first, bytes);
+        other.join(TimeUnit.SECONDS.toMillis(30));
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static void write(final BapSshBandwidth.Throttle throttle, final int bytes) throws Exception {
+        try (OutputStream out = throttle.wrap(OutputStream.nullOutputStream())) {
+            for (int written = 0; written < bytes; written += 16 * KILOBYTE)
+                out.write(new byte[16 * KILOBYTE]);
+        }
+    }
+
+}
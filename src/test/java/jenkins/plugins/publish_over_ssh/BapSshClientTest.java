@@ -41,9 +41,12 @@ import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Vector;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -59,6 +62,7 @@ import static org.junit.jupiter.api.Assertions.fail;
 @SuppressWarnings({"PMD.SignatureDeclareThrowsException", "PMD.TooManyMethods"})
 class BapSshClientTest {
 
+    private static final String HOME = "/home/bap";
     private static final String DIRECTORY_PATH = "a/directory/with/sub/dirs";
     private static final String DIRECTORY_PATH_WIN = "a\\directory\\with\\sub\\dirs";
     private static final String DIRECTORY = "aDirectory";
@@ -139,15 +143,63 @@ class BapSshClientTest {
         testHelper.assertBPE(message, () -> bapSshClient.changeDirectory(DIRECTORY_PATH));
     }
 
+    @Test
+    void testChangeDirectoryToAKnownDirectoryDoesNotAskTheServer() throws Exception {
+        testHelper.expectDirectoryCheck(HOME, true);
+        mockSftp.cd(HOME);
+        expect(mockSftp.pwd()).andReturn(HOME);
+        testHelper.expectDirectoryCheck(HOME + "/" + DIRECTORY_PATH, true);
+        mockControl.replay();
+        assertTrue(bapSshClient.changeDirectory(HOME));
+        assertTrue(bapSshClient.changeDirectory(DIRECTORY_PATH));
+        assertTrue(bapSshClient.changeDirectory(HOME));
+        assertTrue(bapSshClient.changeDirectory(DIRECTORY_PATH));
+        assertEquals(HOME + "/" + DIRECTORY_PATH, bapSshClient.getWorkingDirectory());
+        mockControl.verify();
+    }
+
     @Test
     void testMakeDirectory() throws SftpException {
-        mockSftp.mkdir(DIRECTORY);
+        expect(mockSftp.pwd()).andReturn(HOME);
+        mockSftp.mkdir(HOME + "/" + DIRECTORY);
         assertMakeDirectory(true, DIRECTORY);
     }
 
     @Test
-    void testMakeDirectoryRefuseAttemptAtSubDirectories() {
-        assertMakeDirectory(false, DIRECTORY_PATH);
+    void testMakeDirectoryCreatesSubDirectories() throws SftpException {
+        final BapSshClient noExecClient = new BapSshClient(buildInfo, mockSession, true, false);
+        noExecClient.setSftp(mockSftp);
+        expect(mockSftp.pwd()).andReturn(HOME);
+        mockSftp.mkdir(HOME + "/a");
+        expectLastCall().andThrow(new SftpException(ChannelSftp.SSH_FX_FAILURE, "exists"));
+        testHelper.expectDirectoryCheck(HOME + "/a", true);
+        mockSftp.mkdir(HOME + "/a/directory");
+        mockSftp.mkdir(HOME + "/a/directory/with");
+        mockSftp.mkdir(HOME + "/a/directory/with/sub");
+        mockSftp.mkdir(HOME + "/a/directory/with/sub/dirs");
+        mockControl.replay();
+        assertTrue(noExecClient.makeDirectory(DIRECTORY_PATH));
+        // the new directories are known, changing to them does not ask the server
+        assertTrue(noExecClient.changeDirectory(DIRECTORY_PATH));
+        mockControl.verify();
+    }
+
+    @Test
+    void testDirectoriesAreCheckedAgainAfterExec() throws Exception {
+        final String command = "rm -rf " + DIRECTORY;
+        final int connectTimeout = 30000;
+        final TestExec exec = new TestExec(command, connectTimeout, 0, 1);
+        expect(mockSftp.pwd()).andReturn(HOME);
+        mockSftp.mkdir(HOME + "/" + DIRECTORY);
+        expect(mockSession.openChannel("exec")).andReturn(exec);
+        expect(mockSession.getTimeout()).andReturn(connectTimeout);
+        expect(mockSftp.stat(HOME + "/" + DIRECTORY)).andThrow(new SftpException(ChannelSftp.SSH_FX_NO_SUCH_FILE, "gone"));
+        mockControl.replay();
+        assertTrue(bapSshClient.makeDirectory(DIRECTORY));
+        bapSshClient.endTransfers(new BapSshTransfer("", "", "", false, false, command, 10000));
+        assertFalse(bapSshClient.changeDirectory(DIRECTORY));
+        mockControl.verify();
+        exec.assertMethodsCalled();
     }
 
     @Test
@@ -157,7 +209,8 @@ class BapSshClientTest {
 
     @Test
     void testMakeDirectoryMkdirFails() throws SftpException {
-        mockSftp.mkdir(DIRECTORY);
+        expect(mockSftp.pwd()).andReturn(HOME);
+        mockSftp.mkdir(HOME + "/" + DIRECTORY);
         expectLastCall().andThrow(new SftpException(1, "I'm sorry, Dave. I'm afraid I can't do that."));
         assertMakeDirectory(false, DIRECTORY);
     }
@@ -170,7 +223,8 @@ class BapSshClientTest {
 
     @Test
     void testTransferFile() throws Exception {
-        mockSftp.put(anInputStream, FILENAME);
+        expect(mockSftp.pwd()).andReturn(HOME);
+        mockSftp.put(anInputStream, HOME + "/" + FILENAME);
         expect(mockTransfer.isKeepFilePermissions()).andReturn(false).times(2);
         mockControl.replay();
         bapSshClient.transferFile(mockTransfer, FILE_PATH, anInputStream);
@@ -178,23 +232,78 @@ class BapSshClientTest {
         mockControl.verify();
     }
 
+    @Test
+    void testStatisticsAreSentToTheBuildOnceOnDisconnect() throws Exception {
+        final ByteArrayOutputStream collector = new ByteArrayOutputStream();
+        buildInfo.put(BapSshPublisherPlugin.STATISTICS_CONTEXT_KEY, collector);
+        bapSshClient.getStatistics().setConfigName("host");
+        mockControl.checkOrder(false);
+        expect(mockSftp.pwd()).andReturn(HOME);
+        mockSftp.put(anInputStream, HOME + "/" + FILENAME);
+        expect(mockTransfer.isKeepFilePermissions()).andReturn(false);
+        expect(mockSftp.isConnected()).andReturn(false).times(2);
+        expect(mockSession.isConnected()).andReturn(false).times(2);
+        mockControl.replay();
+        bapSshClient.transferFile(mockTransfer, FILE_PATH, anInputStream);
+        bapSshClient.disconnect();
+        bapSshClient.disconnectQuietly();
+        mockControl.verify();
+        final String[] lines = collector.toString(StandardCharsets.UTF_8.name()).split("\n");
+        assertEquals(1, lines.length);
+        final BapSshTransferStatistics sent = BapSshTransferStatistics.fromJson(lines[0].getBytes(StandardCharsets.UTF_8));
+        assertEquals("host", sent.getConfigName());
+        assertEquals(1, sent.getFilesUploaded());
+        assertEquals(0, sent.getFilesSkipped());
+    }
+
+    @Test
+    void testTransferFileReadsInChunks() throws Exception {
+        bapSshClient.configureUploads(1, 0, 1024 * 1024, 0);
+        expect(mockSftp.pwd()).andReturn(HOME);
+        mockSftp.put(EasyMock.isA(BufferedInputStream.class), EasyMock.eq(HOME + "/" + FILENAME));
+        expect(mockTransfer.isKeepFilePermissions()).andReturn(false);
+        mockControl.replay();
+        bapSshClient.transferFile(mockTransfer, FILE_PATH, anInputStream);
+        mockControl.verify();
+    }
+
+    @Test
+    void testConfigureSftpChannelSetsOutstandingRequests() throws Exception {
+        bapSshClient.configureUploads(1, 128, 0, 0);
+        mockSftp.setBulkRequests(128);
+        mockControl.replay();
+        bapSshClient.configureSftpChannel(mockSftp);
+        mockControl.verify();
+    }
+
+    @Test
+    void testConfigureSftpChannelLeavesDefault() {
+        mockControl.replay();
+        bapSshClient.configureSftpChannel(mockSftp);
+        mockControl.verify();
+    }
+
     @Test
     void testKeepPermissions() throws Exception{
+      final BapSshClient noExecClient = new BapSshClient(buildInfo, mockSession, true, false);
+      noExecClient.setSftp(mockSftp);
       File tmp = File.createTempFile("file","my");
       FilePath filePath = new FilePath(tmp);
       mockTransfer.setKeepFilePermissions(true);
-      mockSftp.put(anInputStream, tmp.getName());
+      expect(mockSftp.pwd()).andReturn(HOME);
+      mockSftp.put(anInputStream, HOME + "/" + tmp.getName());
       expect(mockTransfer.isKeepFilePermissions()).andReturn(true);
-      expect(mockSftp.pwd()).andReturn(filePath.getName());
 
       if (SystemUtils.IS_OS_LINUX){ //we can execute chmod only in Linux
+        // the modes are set once the transfer has uploaded all of its files
+        mockSftp.chmod(filePath.mode(), HOME + "/" + filePath.getName());
         if (filePath.getParent() != null){
-            mockSftp.chmod((filePath.getParent()).mode(), tmp.getName());
+            mockSftp.chmod((filePath.getParent()).mode(), HOME);
         }
-        mockSftp.chmod(filePath.mode(), filePath.getName());
       mockControl.replay();
       mockTransfer.setKeepFilePermissions(true);
-      bapSshClient.transferFile(mockTransfer, filePath, anInputStream);
+      noExecClient.transferFile(mockTransfer, filePath, anInputStream);
+      noExecClient.endTransfers(mockTransfer);
       mockControl.verify();
       assertTrue(tmp.delete());
       }
@@ -266,7 +375,7 @@ class BapSshClientTest {
         expect(mockSftp.ls("test")).andReturn(entries);
         expectLsEntry(entries, ".");
         expectLsEntry(entries, "..");
-        expectDeleteFiles(entries, "file1", "file2", "anotherOne");
+        expectDeleteFiles("test", entries, "file1", "file2", "anotherOne");
         expectLastCall();
         mockControl.replay();
         bapSshClient.deleteTree();
@@ -278,7 +387,7 @@ class BapSshClientTest {
         Vector<ChannelSftp.LsEntry> entries = new Vector<>();
         expect(mockSftp.pwd()).andReturn("test");
         expect(mockSftp.ls("test")).andReturn(entries);
-        expectDeleteFiles(entries, "file1", "file2", "anotherOne");
+        expectDeleteFiles("test", entries, "file1", "file2", "anotherOne");
         expectLastCall();
         mockControl.replay();
         bapSshClient.deleteTree();
@@ -294,20 +403,10 @@ class BapSshClientTest {
         expect(mockSftp.ls("test")).andReturn(entries);
 
         expectDirectory(entries, dirname);
-        SftpATTRS attrs = mockControl.createMock(SftpATTRS.class);
-        expect(mockSftp.stat(dirname)).andReturn(attrs);
-        expect(attrs.isDir()).andReturn(true);
-        mockSftp.cd(dirname);
-        expect(mockSftp.pwd()).andReturn(dirname);
         entries = new Vector<>();
-        expect(mockSftp.ls(dirname)).andReturn(entries);
-        expectDeleteFiles(entries, "file1", "file2", "anotherOne");
-
-        attrs = mockControl.createMock(SftpATTRS.class);
-        expect(mockSftp.stat("..")).andReturn(attrs);
-        expect(attrs.isDir()).andReturn(true);
-        mockSftp.cd("..");
-        mockSftp.rmdir(dirname);
+        expect(mockSftp.ls("test/" + dirname)).andReturn(entries);
+        expectDeleteFiles("test/" + dirname, entries, "file1", "file2", "anotherOne");
+        mockSftp.rmdir("test/" + dirname);
 
         expectLastCall();
         mockControl.replay();
@@ -315,10 +414,10 @@ class BapSshClientTest {
         mockControl.verify();
     }
 
-    private void expectDeleteFiles(final Vector<ChannelSftp.LsEntry> entries, final String... filenames) throws Exception {
+    private void expectDeleteFiles(final String directory, final Vector<ChannelSftp.LsEntry> entries, final String... filenames) throws Exception {
         for (final String filename : filenames) {
             expectFile(entries, filename);
-            mockSftp.rm(filename);
+            mockSftp.rm(directory + "/" + filename);
         }
     }
 
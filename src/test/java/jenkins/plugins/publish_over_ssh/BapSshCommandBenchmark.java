@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.publish_over_ssh;
+
+import jenkins.plugins.publish_over.BPBuildInfo;
+import jenkins.plugins.publish_over_ssh.helper.BapSshTestHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing the exec command of a transfer and the list of jump hosts, which happen for every publish.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BapSshCommandBenchmark {
+
+    private static final String COMMANDS = "cd /var/www/$JOB_NAME\n"
+            + "  mkdir -p releases/$BUILD_NUMBER\n"
+            + "  tar -xzf /tmp/$JOB_NAME-$BUILD_NUMBER.tar.gz -C releases/$BUILD_NUMBER\n"
+            + "  ln -sfn releases/$BUILD_NUMBER current\n"
+            + "  sudo systemctl reload nginx";
+    private static final String JUMP_HOSTS = "bastion.example.com, gateway.example.com;internal.example.com";
+
+    private BapSshClient client;
+    private BapSshTransfer transfer;
+
+    @Setup(Level.Trial)
+    public void createClient() {
+        final BPBuildInfo buildInfo = BapSshTestHelper.createEmpty(true);
+        buildInfo.getEnvVars().put("JOB_NAME", "website");
+        buildInfo.getEnvVars().put("BUILD_NUMBER", "1234");
+        client = new BapSshClient(buildInfo, null);
+        transfer = new BapSshTransfer("", "", "", false, false, COMMANDS, 120000);
+    }
+
+    @Benchmark
+    public String[] parseAllCommands() {
+        return client.parseAllCommands(transfer);
+    }
+
+    @Benchmark
+    public int parseEachCommand() {
+        int arguments = 0;
+        for (String command : client.parseAllCommands(transfer))
+            arguments += client.parseCommand(command).length;
+        return arguments;
+    }
+
+    @Benchmark
+    public String[] getHosts() {
+        return BapSshHostConfiguration.HostsHelper.getHosts("target.example.com", JUMP_HOSTS);
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BapSshCompressionTest {
+
+    private static final long LARGE = BapSshCompression.ADAPTIVE_MIN_SIZE;
+
+    @Test
+    void testNoCompressionLeavesTheSessionConfigurationAlone() {
+        final Properties properties = new Properties();
+        BapSshCompression.NONE.configure(properties, 9);
+        assertTrue(properties.isEmpty());
+    }
+
+    @Test
+    void testCompressionFallsBackToNone() {
+        final Properties properties = new Properties();
+        BapSshCompression.ZLIB_OPENSSH.configure(properties, 0);
+        assertEquals("zlib@openssh.com,none", properties.getProperty("compression.s2c"));
+        assertEquals("zlib@openssh.com,none", properties.getProperty("compression.c2s"));
+        assertEquals(Integer.toString(BapSshCompression.DEFAULT_LEVEL), properties.getProperty("compression_level"));
+
+        BapSshCompression.ZLIB.configure(properties, 1);
+        assertEquals("zlib,none", properties.getProperty("compression.c2s"));
+        assertEquals("1", properties.getProperty("compression_level"));
+    }
+
+    @Test
+    void testOnlyLargeCompressedFilesAreSentUncompressed() {
+        assertTrue(BapSshCompression.ADAPTIVE.isSentUncompressed("release.ZIP", LARGE));
+        assertTrue(BapSshCompression.ADAPTIVE.isSentUncompressed("logo.png", LARGE));
+        assertFalse(BapSshCompression.ADAPTIVE.isSentUncompressed("logo.png", LARGE - 1));
+        assertFalse(BapSshCompression.ADAPTIVE.isSentUncompressed("build.log", LARGE));
+        assertFalse(BapSshCompression.ADAPTIVE.isSentUncompressed("README", LARGE));
+        assertFalse(BapSshCompression.ZLIB.isSentUncompressed("release.zip", LARGE));
+    }
+
+    @Test
+    void testUnknownNamesDoNotCompress() {
+        assertEquals(BapSshCompression.NONE, BapSshCompression.fromName(null));
+        assertEquals(BapSshCompression.NONE, BapSshCompression.fromName("gzip"));
+        assertEquals(BapSshCompression.ADAPTIVE, BapSshCompression.fromName("ADAPTIVE"));
+    }
+
+}
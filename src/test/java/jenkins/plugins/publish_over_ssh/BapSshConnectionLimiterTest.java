@@ -0,0 +1,158 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import jenkins.plugins.publish_over.BapPublisherException;
+import jenkins.plugins.publish_over_ssh.helper.BapSshTestHelper;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BapSshConnectionLimiterTest {
+
+    private static final String CONFIG = "config";
+    private static final long TIMEOUT = 10000;
+
+    private final BapSshConnectionLimiter limiter = new BapSshConnectionLimiter();
+
+    @Test
+    void testConnectionsUpToTheLimitAreLetInStraightAway() {
+        final BapSshConnectionLimiter.Ticket first = limiter.tryAcquire(CONFIG, 2);
+        final BapSshConnectionLimiter.Ticket second = limiter.tryAcquire(CONFIG, 2);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(limiter.tryAcquire(CONFIG, 2));
+        assertNotNull(limiter.tryAcquire("other", 2));
+        limiter.release(first);
+        assertEquals(1, limiter.getActive(CONFIG));
+        assertNotNull(limiter.tryAcquire(CONFIG, 2));
+    }
+
+    @Test
+    void testQueueIsOrderedByPriorityThenArrival() throws Exception {
+        final BapSshConnectionLimiter.Ticket held = limiter.tryAcquire(CONFIG, 1);
+        final List<String> admitted = Collections.synchronizedList(new ArrayList<>());
+        final List<Thread> threads = new ArrayList<>();
+        threads.add(queue("first", 0, admitted));
+        threads.add(queue("second", 0, admitted));
+        threads.add(queue("urgent", 5, admitted));
+        threads.add(queue("last", -1, admitted));
+        limiter.release(held);
+        for (Thread thread : threads)
+            thread.join(TIMEOUT);
+        assertEquals(Arrays.asList("urgent", "first", "second", "last"), admitted);
+        assertEquals(0, limiter.getActive(CONFIG));
+    }
+
+    @Test
+    void testTicketRecordsTheWait() throws Exception {
+        final BapSshConnectionLimiter.Ticket held = limiter.tryAcquire(CONFIG, 1);
+        final Thread releaser = new Thread(() -> {
+            sleep(100);
+            limiter.release(held);
+        });
+        releaser.start();
+        final BapSshConnectionLimiter.Ticket ticket = limiter.acquire(CONFIG, 1, 0, TIMEOUT);
+        assertTrue(ticket.getWaitedMillis() >= 50);
+        assertEquals(0, ticket.getQueuedAhead());
+        releaser.join(TIMEOUT);
+    }
+
+    @Test
+    void testQueuedPublisherTimesOut() {
+        limiter.tryAcquire(CONFIG, 1);
+        assertThrows(BapPublisherException.class, () -> limiter.acquire(CONFIG, 1, 0, 50));
+        assertEquals(0, limiter.getQueued(CONFIG));
+        assertEquals(1, limiter.getActive(CONFIG));
+    }
+
+    @Test
+    void testNoLimitDoesNotQueue() {
+        final BapSshConnectionLimiter.Permit permit = BapSshConnectionLimiter.enter(BapSshConnectionLimiter.gate(),
+                BapSshTestHelper.createEmpty(), CONFIG, 0, 0, TIMEOUT);
+        assertEquals(0, BapSshConnectionLimiter.get().getActive(CONFIG));
+        permit.release();
+    }
+
+    @Test
+    void testPermitIsOnlyReleasedOnce() {
+        final String configName = "testPermitIsOnlyReleasedOnce";
+        final BapSshConnectionLimiter.Permit permit = BapSshConnectionLimiter.enter(BapSshConnectionLimiter.gate(),
+                BapSshTestHelper.createEmpty(), configName, 2, 0, TIMEOUT);
+        final BapSshConnectionLimiter.Ticket other = BapSshConnectionLimiter.get().tryAcquire(configName, 2);
+        assertEquals(2, BapSshConnectionLimiter.get().getActive(configName));
+        permit.release();
+        permit.release();
+        assertEquals(1, BapSshConnectionLimiter.get().getActive(configName));
+        BapSshConnectionLimiter.get().release(other);
+    }
+
+    @Test
+    void testSecondConnectionOfAClientDoesNotQueue() {
+        final String configName = "testSecondConnectionOfAClientDoesNotQueue";
+        final BapSshConnectionLimiter.Permit first = BapSshConnectionLimiter.enter(BapSshConnectionLimiter.gate(),
+                BapSshTestHelper.createEmpty(), configName, 2, 0, TIMEOUT);
+        final BapSshConnectionLimiter.Permit second = BapSshConnectionLimiter.tryEnter(BapSshConnectionLimiter.gate(), configName, 2);
+        assertNotNull(second);
+        assertEquals(2, BapSshConnectionLimiter.get().getActive(configName));
+        assertNull(BapSshConnectionLimiter.tryEnter(BapSshConnectionLimiter.gate(), configName, 2));
+        assertEquals(0, BapSshConnectionLimiter.get().getQueued(configName));
+        second.release();
+        first.release();
+        assertEquals(0, BapSshConnectionLimiter.get().getActive(configName));
+        assertNotNull(BapSshConnectionLimiter.tryEnter(BapSshConnectionLimiter.gate(), configName, 0));
+    }
+
+    private Thread queue(final String name, final int priority, final List<String> admitted) throws InterruptedException {
+        final int queued = limiter.getQueued(CONFIG);
+        final Thread thread = new Thread(() -> {
+            final BapSshConnectionLimiter.Ticket ticket = limiter.acquire(CONFIG, 1, priority, TIMEOUT);
+            admitted.add(name);
+            limiter.release(ticket);
+        });
+        thread.start();
+        while (limiter.getQueued(CONFIG) == queued)
+            Thread.sleep(5);
+        return thread;
+    }
+
+    private static void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BapSshDeltaTest {
+
+    private static final int BLOCK_SIZE = BapSshDelta.MIN_BLOCK_SIZE;
+
+    @Test
+    void testUnchangedFileIsOneCopy() throws Exception {
+        final byte[] old = randomBytes(BLOCK_SIZE * 10 + 123, 1);
+        final Rebuild rebuild = rebuild(old, old.clone());
+        assertEquals(0, rebuild.literalBytes);
+        assertEquals(1, rebuild.copies);
+    }
+
+    @Test
+    void testChangedBlockIsSentAsLiteral() throws Exception {
+        final byte[] old = randomBytes(BLOCK_SIZE * 10, 2);
+        final byte[] changed = old.clone();
+        changed[BLOCK_SIZE * 4 + 17] ^= 1;
+        final Rebuild rebuild = rebuild(old, changed);
+        assertEquals(BLOCK_SIZE, rebuild.literalBytes);
+    }
+
+    @Test
+    void testInsertedAndRemovedDataShiftsTheMatches() throws Exception {
+        final byte[] old = randomBytes(BLOCK_SIZE * 20 + 1000, 3);
+        final ByteArrayOutputStream changed = new ByteArrayOutputStream();
+        changed.write(old, 0, BLOCK_SIZE * 3 + 10);
+        changed.write(randomBytes(333, 4));
+        changed.write(old, BLOCK_SIZE * 3 + 10, BLOCK_SIZE * 5);
+        changed.write(old, BLOCK_SIZE * 9, old.length - BLOCK_SIZE * 9);
+        final Rebuild rebuild = rebuild(old, changed.toByteArray());
+        assertTrue(rebuild.literalBytes < BLOCK_SIZE * 3, "literal bytes " + rebuild.literalBytes);
+    }
+
+    @Test
+    void testNewFileWithoutCommonBlocks() throws Exception {
+        final Rebuild rebuild = rebuild(randomBytes(BLOCK_SIZE * 3, 5), randomBytes(BLOCK_SIZE * 5 + 7, 6));
+        assertEquals(BLOCK_SIZE * 5 + 7, rebuild.literalBytes);
+        assertEquals(0, rebuild.copies);
+        assertEquals(0, rebuild(randomBytes(BLOCK_SIZE, 7), new byte[0]).literalBytes);
+    }
+
+    @Test
+    void testBlockSizeGrowsWithTheFile() {
+        assertEquals(BapSshDelta.MIN_BLOCK_SIZE, BapSshDelta.blockSize(1000));
+        assertEquals(64 * 1024, BapSshDelta.blockSize(4L * 1024 * 1024 * 1024));
+        assertEquals(BapSshDelta.MAX_BLOCK_SIZE, BapSshDelta.blockSize(1L << 40));
+    }
+
+    @Test
+    void testSignatureOfTheWrongLengthIsRejected() {
+        assertThrows(EOFException.class,
+                () -> BapSshDelta.Signature.parse(new byte[BapSshDelta.SIGNATURE_ENTRY_SIZE], BLOCK_SIZE + 1, BLOCK_SIZE));
+    }
+
+    private static Rebuild rebuild(final byte[] old, final byte[] changed) throws IOException {
+        final BapSshDelta.Signature signature = BapSshDelta.Signature.compute(new ByteArrayInputStream(old), BLOCK_SIZE);
+        assertEquals(old.length, signature.getSize());
+        final Rebuild rebuild = new Rebuild(old);
+        rebuild.literalBytes = BapSshDelta.diff(signature, new ByteArrayInputStream(changed), rebuild);
+        assertArrayEquals(changed, rebuild.out.toByteArray());
+        return rebuild;
+    }
+
+    private static byte[] randomBytes(final int size, final long seed) {
+        final byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static final class Rebuild implements BapSshDelta.Sink {
+        private final byte[] old;
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private long literalBytes;
+        private int copies;
+
+        Rebuild(final byte[] old) {
+            this.old = old;
+        }
+
+        public void copy(final long offset, final long length) {
+            out.write(old, (int) offset, (int) length);
+            copies++;
+        }
+
+        public void literal(final byte[] data, final int offset, final int length) {
+            out.write(data, offset, length);
+        }
+    }
+
+}
@@ -0,0 +1,245 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import hudson.FilePath;
+import hudson.util.StreamTaskListener;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BapSshExecOutputTest {
+
+    private final ByteArrayOutputStream console = new ByteArrayOutputStream();
+    private final BPBuildInfo buildInfo = new BPBuildInfo(new StreamTaskListener(console, StandardCharsets.UTF_8), "",
+            new FilePath(new File("")), null, null);
+
+    @TempDir
+    private File buildDirectory;
+
+    @Test
+    void testOutputNotShownWhenNotVerbose() {
+        final BapSshExecOutput output = new BapSshExecOutput(buildInfo);
+        write(output, "hello\n");
+        output.finish();
+        assertEquals("", console());
+        assertNull(output.getOutputFile());
+    }
+
+    @Test
+    void testTailShownOnFailure() {
+        final BapSshExecOutput output = new BapSshExecOutput(buildInfo);
+        for (int i = 0; i < BapSshExecOutput.TAIL_LINES + 10; i++)
+            write(output, "line " + i + "\n");
+        output.finish();
+        output.printTail();
+        assertFalse(console().contains("line 9\n"));
+        assertTrue(console().contains("line 10\n"));
+        assertTrue(console().contains("line " + (BapSshExecOutput.TAIL_LINES + 9) + "\n"));
+    }
+
+    @Test
+    void testTailDropsPartialFirstLineWhenWrapped() {
+        final BapSshExecOutput output = new BapSshExecOutput(buildInfo);
+        final StringBuilder text = new StringBuilder();
+        while (text.length() < BapSshExecOutput.TAIL_BUFFER_SIZE * 2)
+            text.append("0123456789abcdef\n");
+        write(output, text.toString());
+        for (String line : output.getTailLines())
+            assertEquals("0123456789abcdef", line);
+    }
+
+    @Test
+    void testVerboseOutputWrittenToConsole() {
+        buildInfo.setVerbose(true);
+        final BapSshExecOutput output = new BapSshExecOutput(buildInfo);
+        write(output, "hello\nworld\n");
+        output.finish();
+        assertEquals("hello\nworld\n", console());
+    }
+
+    @Test
+    void testConsoleOutputLimited() {
+        buildInfo.setVerbose(true);
+        final BapSshExecOutput output = new BapSshExecOutput(buildInfo, 1024, 1024, 100);
+        for (int i = 0; i < 100; i++)
+            write(output, "0123456789");
+        output.finish();
+        assertTrue(console().startsWith("0123456789"));
+        assertTrue(console().contains(Messages.console_exec_truncated(100)));
+    }
+
+    @Test
+    void testConsoleBufferOverflowIsSkipped() {
+        buildInfo.setVerbose(true);
+        final BapSshExecOutput output = new BapSshExecOutput(buildInfo, 10, 1000, 1024 * 1024);
+        write(output, "01234567890123456789");
+        output.finish();
+        assertTrue(console().startsWith("\n" + Messages.console_exec_skipped(10, 1000)));
+        assertTrue(console().endsWith("0123456789"));
+    }
+
+    @Test
+    void testFullOutputSavedInBuildDirectory() throws Exception {
+        putCollector();
+        final BapSshExecOutput output = new BapSshExecOutput(buildInfo);
+        final byte[] text = text(100000, 'a');
+        output.write(text, 0, text.length);
+        output.finish();
+        final File saved = output.getOutputFile();
+        assertNotNull(saved);
+        assertEquals(new File(buildDirectory, BapSshExecOutput.OUTPUT_DIRECTORY), saved.getParentFile());
+        assertArrayEquals(text, readSaved(saved));
+    }
+
+    @Test
+    void testOutputOfCommandsSharingTheCollectorSavedSeparately() throws Exception {
+        putCollector();
+        final BapSshExecOutput first = new BapSshExecOutput(buildInfo);
+        final BapSshExecOutput second = new BapSshExecOutput(buildInfo);
+        final byte[] firstText = text(300000, 'a');
+        final byte[] secondText = text(200000, 'A');
+        for (int i = 0; i < firstText.length; i += 1000) {
+            first.write(firstText, i, 1000);
+            if (i < secondText.length)
+                second.write(secondText, i, 1000);
+        }
+        second.finish();
+        first.finish();
+        assertNotEquals(first.getOutputFile(), second.getOutputFile());
+        assertArrayEquals(firstText, readSaved(first.getOutputFile()));
+        assertArrayEquals(secondText, readSaved(second.getOutputFile()));
+    }
+
+    @Test
+    void testWritesDoNotWaitForTheSavedOutput() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final OutputStream collector = BapSshExecOutput.collector(buildDirectory);
+        buildInfo.put(BapSshPublisherPlugin.BUILD_DIRECTORY_CONTEXT_KEY, buildDirectory.getAbsolutePath());
+        buildInfo.put(BapSshPublisherPlugin.EXEC_OUTPUT_CONTEXT_KEY, new FilterOutputStream(collector) {
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    throw new InterruptedIOException();
+                }
+                out.write(b, off, len);
+            }
+        });
+        final BapSshExecOutput output = new BapSshExecOutput(buildInfo, 1024, 1024, 1024, 64 * 1024);
+        // output that does not compress, so that the compressed stream reaches the collector
+        final byte[] text = new byte[BapSshExecOutput.MAX_FRAME_SIZE];
+        new Random(1).nextBytes(text);
+        final long start = System.currentTimeMillis();
+        // the drain is stuck on the collector, the writes overflow the buffer instead of waiting
+        for (int i = 0; i < 20; i++) {
+            output.write(text, 0, text.length);
+            Thread.sleep(BapSshExecOutput.DRAIN_INTERVAL / 10);
+        }
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        release.countDown();
+        output.finish();
+        final byte[] saved = readSaved(output.getOutputFile());
+        assertTrue(saved.length < 20 * text.length);
+        assertArrayEquals(text, Arrays.copyOfRange(saved, saved.length - text.length, saved.length));
+    }
+
+    @Test
+    void testCorruptFramesAreIgnored() throws Exception {
+        final OutputStream collector = BapSshExecOutput.collector(buildDirectory);
+        collector.write(new byte[] {(byte) 0xff, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15});
+        collector.close();
+        assertFalse(new File(buildDirectory, BapSshExecOutput.OUTPUT_DIRECTORY).exists());
+    }
+
+    private void putCollector() {
+        buildInfo.put(BapSshPublisherPlugin.BUILD_DIRECTORY_CONTEXT_KEY, buildDirectory.getAbsolutePath());
+        buildInfo.put(BapSshPublisherPlugin.EXEC_OUTPUT_CONTEXT_KEY, BapSshExecOutput.collector(buildDirectory));
+    }
+
+    private static byte[] text(final int length, final char first) {
+        final byte[] text = new byte[length];
+        for (int i = 0; i < text.length; i++)
+            text[i] = (byte) (first + i % 26);
+        return text;
+    }
+
+    private static byte[] readSaved(final File saved) throws Exception {
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(saved.toPath()))) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    @Test
+    void testRingBufferKeepsNewestBytes() {
+        final BapSshExecOutput.RingBuffer ring = new BapSshExecOutput.RingBuffer(4);
+        ring.overwrite(bytes("abc"), 0, 3);
+        ring.overwrite(bytes("def"), 0, 3);
+        assertArrayEquals(bytes("cdef"), ring.toByteArray());
+        assertTrue(ring.isWrapped());
+        assertEquals(0, ring.offer(bytes("xyz"), 0, 3));
+        assertArrayEquals(bytes("cd"), ring.take(2));
+        assertEquals(2, ring.offer(bytes("xyz"), 0, 3));
+        assertArrayEquals(bytes("efxy"), ring.toByteArray());
+    }
+
+    private static void write(final BapSshExecOutput output, final String text) {
+        final byte[] bytes = bytes(text);
+        output.write(bytes, 0, bytes.length);
+    }
+
+    private static byte[] bytes(final String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private String console() {
+        return new String(console.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BapSshFileDigestTest {
+
+    @TempDir
+    private File directory;
+
+    @Test
+    void testXxHash64KnownValues() throws Exception {
+        assertEquals("ef46db3751d8e999", xxh64(""));
+        assertEquals("d24ec4f1a98c6e5b", xxh64("a"));
+        assertEquals("44bc2cf5ad770999", xxh64("abc"));
+        assertEquals("fbcea83c8a378bf1", xxh64("Nobody inspects the spammish repetition"));
+    }
+
+    @Test
+    void testXxHash64IsIndependentOfUpdateSizes() {
+        final byte[] data = randomBytes(1000);
+        final BapSshXxHash64 whole = new BapSshXxHash64();
+        whole.update(data, 0, data.length);
+        final BapSshXxHash64 pieces = new BapSshXxHash64();
+        for (int offset = 0; offset < data.length; offset += 7)
+            pieces.update(data, offset, Math.min(7, data.length - offset));
+        assertArrayEquals(whole.digest(), pieces.digest());
+    }
+
+    @Test
+    void testDigestsMatchForSmallAndMappedFiles() throws Exception {
+        for (int size : new int[] {0, 100, BapSshFileDigest.READ_BUFFER_SIZE + 12345}) {
+            final byte[] data = randomBytes(size);
+            final File file = new File(directory, "file" + size);
+            Files.write(file.toPath(), data);
+            assertArrayEquals(MessageDigest.getInstance("MD5").digest(data), BapSshFileDigest.MD5.digest(file));
+            assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(data), BapSshFileDigest.SHA256.digest(file));
+            final BapSshXxHash64 expected = new BapSshXxHash64();
+            expected.update(data, 0, data.length);
+            assertArrayEquals(expected.digest(), BapSshFileDigest.XXH64.digest(file));
+        }
+    }
+
+    @Test
+    void testDigestOfTheStartOfAFile() throws Exception {
+        final byte[] data = randomBytes(BapSshFileDigest.READ_BUFFER_SIZE * 2);
+        final File file = new File(directory, "prefix");
+        Files.write(file.toPath(), data);
+        for (int length : new int[] {0, 100, BapSshFileDigest.READ_BUFFER_SIZE + 12345}) {
+            final MessageDigest expected = MessageDigest.getInstance("SHA-256");
+            expected.update(data, 0, length);
+            assertArrayEquals(expected.digest(), BapSshFileDigest.SHA256.digest(file, length));
+        }
+        assertArrayEquals(BapSshFileDigest.SHA256.digest(file), BapSshFileDigest.SHA256.digest(file, data.length + 1L));
+    }
+
+    @Test
+    void testUnknownNameFallsBackToMd5() {
+        assertEquals(BapSshFileDigest.MD5, BapSshFileDigest.fromName(null));
+        assertEquals(BapSshFileDigest.MD5, BapSshFileDigest.fromName("SHA-1"));
+        assertEquals(BapSshFileDigest.XXH64, BapSshFileDigest.fromName("XXH64"));
+        assertEquals(BapSshFileDigest.SHA256, BapSshFileDigest.fromName("SHA256"));
+    }
+
+    private File write(final String content) throws Exception {
+        final File file = File.createTempFile("digest", ".txt", directory);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private String xxh64(final String content) throws Exception {
+        return String.format("%016x", new BigInteger(1, BapSshFileDigest.XXH64.digest(write(content))));
+    }
+
+    private static byte[] randomBytes(final int size) {
+        final byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+}
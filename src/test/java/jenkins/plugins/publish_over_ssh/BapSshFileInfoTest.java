@@ -0,0 +1,85 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+import hudson.FilePath;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BapSshFileInfoTest {
+
+    @TempDir
+    private File directory;
+
+    @Test
+    void testScanDescribesTheIncludedFiles() throws Exception {
+        final File first = write("dir/first.txt", "first");
+        final File second = write("second.txt", "second file");
+        write("excluded.log", "excluded");
+        final FilePath base = new FilePath(directory);
+        final BapSshFileInfo files = BapSshFileInfo.scan(base, "**/*.txt", null, true);
+
+        assertEquals(2, files.size());
+        final int firstIndex = files.indexOf(new FilePath(first));
+        final int secondIndex = files.indexOf(new FilePath(second));
+        assertTrue(firstIndex >= 0);
+        assertTrue(secondIndex >= 0);
+        assertEquals(-1, files.indexOf(base.child("excluded.log")));
+        assertEquals(5, files.getSize(firstIndex));
+        assertEquals(11, files.getSize(secondIndex));
+        assertEquals(first.lastModified(), files.getLastModified(firstIndex));
+        assertEquals(BapSshFileInfo.mode(first.toPath()), files.getMode(firstIndex));
+        assertEquals(BapSshFileInfo.mode(first.getParentFile().toPath()), files.getDirectoryMode(firstIndex));
+        assertEquals(first.getAbsolutePath(), files.getFilePath(firstIndex).getRemote());
+    }
+
+    @Test
+    void testDigestsAreTheSameAsForSingleFiles() throws Exception {
+        for (int i = 0; i < 10; i++)
+            write("file" + i + ".bin", "content " + i);
+        final BapSshFileInfo files = BapSshFileInfo.scan(new FilePath(directory), "*.bin", null, true);
+        final int[] indexes = {0, 3, 9};
+
+        final byte[][] digests = files.digest(BapSshFileDigest.SHA256, indexes);
+        assertEquals(indexes.length, digests.length);
+        for (int i = 0; i < indexes.length; i++)
+            assertArrayEquals(BapSshFileDigest.SHA256.digest(files.getFilePath(indexes[i])), digests[i]);
+    }
+
+    private File write(final String name, final String content) throws Exception {
+        final File file = new File(directory, name);
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+}
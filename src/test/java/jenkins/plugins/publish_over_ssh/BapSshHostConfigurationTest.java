@@ -124,6 +124,7 @@ class BapSshHostConfigurationTest {
         expect(mockJSch.getSession(getHostConfig().getUsername(), getHostConfig().getHostname(), getHostConfig().getPort())).andReturn(mockSession);
         mockSession.setPassword(getHostConfig().getPassword());
         mockSession.setConfig((Properties) anyObject());
+        mockSession.setSocketFactory((SocketFactory) anyObject());
         mockSession.connect(getHostConfig().getTimeout());
         expect(mockSession.openChannel("sftp")).andReturn(mockSftp);
         mockSftp.connect(getHostConfig().getTimeout());
@@ -151,6 +152,7 @@ class BapSshHostConfigurationTest {
         expect(mockJSch.getSession(getHostConfig().getUsername(), getHostConfig().getHostname(), getHostConfig().getPort())).andReturn(mockSession);
         mockSession.setPassword(defaultKeyInfo.getPassphrase());
         mockSession.setConfig((Properties) anyObject());
+        mockSession.setSocketFactory((SocketFactory) anyObject());
         mockSession.connect(getHostConfig().getTimeout());
         expect(mockSession.openChannel("sftp")).andReturn(mockSftp);
         mockSftp.connect(getHostConfig().getTimeout());
@@ -179,6 +181,7 @@ class BapSshHostConfigurationTest {
         mockJSch.addIdentity(isA(String.class), aryEq(BapSshUtil.toBytes(testKey)), isNull(),
                 aryEq(BapSshUtil.toBytes(defaultKeyInfo.getPassphrase())));
         mockSession.setConfig((Properties) anyObject());
+        mockSession.setSocketFactory((SocketFactory) anyObject());
         mockSession.connect(getHostConfig().getTimeout());
         expect(mockSession.openChannel("sftp")).andReturn(mockSftp);
         mockSftp.connect(getHostConfig().getTimeout());
@@ -204,6 +207,7 @@ class BapSshHostConfigurationTest {
         expect(mockJSch.getSession(getHostConfig().getUsername(), getHostConfig().getHostname(), getHostConfig().getPort())).andReturn(mockSession);
         mockJSch.addIdentity(isA(String.class), aryEq(theKey.getContents()), isNull(), aryEq(BapSshUtil.toBytes(TEST_PASSPHRASE)));
         mockSession.setConfig((Properties) anyObject());
+        mockSession.setSocketFactory((SocketFactory) anyObject());
         mockSession.connect(getHostConfig().getTimeout());
         expect(mockSession.openChannel("sftp")).andReturn(mockSftp);
         mockSftp.connect(getHostConfig().getTimeout());
@@ -221,6 +225,7 @@ class BapSshHostConfigurationTest {
         expect(mockJSch.getSession(getHostConfig().getUsername(), getHostConfig().getHostname(), getHostConfig().getPort())).andReturn(mockSession);
         mockJSch.addIdentity(isA(String.class), aryEq(BapSshUtil.toBytes(testKey)), isNull(), aryEq(BapSshUtil.toBytes(TEST_PASSPHRASE)));
         mockSession.setConfig((Properties) anyObject());
+        mockSession.setSocketFactory((SocketFactory) anyObject());
         mockSession.connect(getHostConfig().getTimeout());
         expect(mockSession.openChannel("sftp")).andReturn(mockSftp);
         mockSftp.connect(getHostConfig().getTimeout());
@@ -239,11 +244,13 @@ class BapSshHostConfigurationTest {
         expect(mockJSch.getSession(getHostConfig().getUsername(), "jumphost", getHostConfig().getPort())).andReturn(mockSession2);
         mockJSch.addIdentity(isA(String.class), aryEq(BapSshUtil.toBytes(testKey)), isNull(), aryEq(BapSshUtil.toBytes(TEST_PASSPHRASE)));
         mockSession2.setConfig((Properties) anyObject());
+        mockSession2.setSocketFactory((SocketFactory) anyObject());
         mockSession2.connect(getHostConfig().getTimeout());
         expect(mockSession2.setPortForwardingL(0, "test.host.name", 22)).andReturn(23);
         expect(mockJSch.getSession(getHostConfig().getUsername(), BapSshHostConfiguration.LOCALHOST, 23)).andReturn(mockSession);
         mockJSch.addIdentity(isA(String.class), aryEq(BapSshUtil.toBytes(testKey)), isNull(), aryEq(BapSshUtil.toBytes(TEST_PASSPHRASE)));
         mockSession.setConfig((Properties) anyObject());
+        mockSession.setSocketFactory((SocketFactory) anyObject());
         mockSession.connect(getHostConfig().getTimeout());
         expect(mockSession.openChannel("sftp")).andReturn(mockSftp);
         mockSftp.connect(getHostConfig().getTimeout());
@@ -262,6 +269,7 @@ class BapSshHostConfigurationTest {
         expect(mockJSch.getSession(getHostConfig().getUsername(), getHostConfig().getHostname(), getHostConfig().getPort())).andReturn(mockSession);
         mockSession.setPassword(TEST_PASSPHRASE);
         mockSession.setConfig((Properties) anyObject());
+        mockSession.setSocketFactory((SocketFactory) anyObject());
         mockSession.connect(getHostConfig().getTimeout());
         expect(mockSession.openChannel("sftp")).andReturn(mockSftp);
         mockSftp.connect(getHostConfig().getTimeout());
@@ -280,6 +288,7 @@ class BapSshHostConfigurationTest {
         expect(mockJSch.getSession(getHostConfig().getUsername(), getHostConfig().getHostname(), getHostConfig().getPort())).andReturn(mockSession);
         mockSession.setPassword(TEST_PASSPHRASE);
         mockSession.setConfig((Properties) anyObject());
+        mockSession.setSocketFactory((SocketFactory) anyObject());
         mockSession.connect(getHostConfig().getTimeout());
         expect(mockSession.openChannel("sftp")).andReturn(mockSftp);
         final JSchException exception = new JSchException("meh");
@@ -296,6 +305,7 @@ class BapSshHostConfigurationTest {
         expect(mockJSch.getSession(getHostConfig().getUsername(), getHostConfig().getHostname(), getHostConfig().getPort())).andReturn(mockSession);
         mockSession.setPassword(TEST_PASSPHRASE);
         mockSession.setConfig((Properties) anyObject());
+        mockSession.setSocketFactory((SocketFactory) anyObject());
         mockSession.connect(getHostConfig().getTimeout());
         final JSchException exception = new JSchException("meh");
         expect(mockSession.openChannel("sftp")).andThrow(exception);
@@ -311,6 +321,7 @@ class BapSshHostConfigurationTest {
         expect(mockJSch.getSession(getHostConfig().getUsername(), getHostConfig().getJumpHost(), getHostConfig().getPort())).andReturn(mockSession2);
         mockSession2.setPassword(TEST_PASSPHRASE);
         mockSession2.setConfig((Properties) anyObject());
+        mockSession2.setSocketFactory((SocketFactory) anyObject());
         mockSession2.connect(getHostConfig().getTimeout());
         expect(mockSession2.setPortForwardingL(0, getHostConfig().getHostname(), getHostConfig().getPort())).andReturn(23);
 
@@ -319,6 +330,7 @@ class BapSshHostConfigurationTest {
         mockSession.setConfig((Properties) anyObject());
 
         final JSchException exception = new JSchException("meh");
+        mockSession.setSocketFactory((SocketFactory) anyObject());
         mockSession.connect(getHostConfig().getTimeout());
         expectLastCall().andThrow(exception);
         expect(mockSession.isConnected()).andReturn(false);
@@ -334,6 +346,7 @@ class BapSshHostConfigurationTest {
         mockSession.setPassword(TEST_PASSPHRASE);
         mockSession.setConfig((Properties) anyObject());
         final JSchException exception = new JSchException("meh");
+        mockSession.setSocketFactory((SocketFactory) anyObject());
         mockSession.connect(getHostConfig().getTimeout());
         expectLastCall().andThrow(exception);
         expect(mockSession.isConnected()).andReturn(false);
@@ -375,6 +388,7 @@ class BapSshHostConfigurationTest {
         expect(mockJSch.getSession(getHostConfig().getUsername(), getHostConfig().getHostname(), getHostConfig().getPort())).andReturn(mockSession);
         mockSession.setPassword(defaultKeyInfo.getPassphrase());
         mockSession.setConfig((Properties) anyObject());
+        mockSession.setSocketFactory((SocketFactory) anyObject());
         mockSession.connect(getHostConfig().getTimeout());
         mockControl.replay();
         getHostConfig().createClient(buildInfo, publisher);
@@ -392,6 +406,7 @@ class BapSshHostConfigurationTest {
         mockSession.setProxy(EasyMock.isA(ProxyHTTP.class));
         mockSession.setPassword(defaultKeyInfo.getPassphrase());
         mockSession.setConfig((Properties) anyObject());
+        mockSession.setSocketFactory((SocketFactory) anyObject());
         mockSession.connect(getHostConfig().getTimeout());
         expect(mockSession.openChannel("sftp")).andReturn(mockSftp);
         mockSftp.connect(getHostConfig().getTimeout());
@@ -411,6 +426,7 @@ class BapSshHostConfigurationTest {
         mockSession.setProxy(EasyMock.isA(ProxySOCKS4.class));
         mockSession.setPassword(defaultKeyInfo.getPassphrase());
         mockSession.setConfig((Properties) anyObject());
+        mockSession.setSocketFactory((SocketFactory) anyObject());
         mockSession.connect(getHostConfig().getTimeout());
         expect(mockSession.openChannel("sftp")).andReturn(mockSftp);
         mockSftp.connect(getHostConfig().getTimeout());
@@ -430,6 +446,7 @@ class BapSshHostConfigurationTest {
         mockSession.setProxy(EasyMock.isA(ProxySOCKS5.class));
         mockSession.setPassword(defaultKeyInfo.getPassphrase());
         mockSession.setConfig((Properties) anyObject());
+        mockSession.setSocketFactory((SocketFactory) anyObject());
         mockSession.connect(getHostConfig().getTimeout());
         expect(mockSession.openChannel("sftp")).andReturn(mockSftp);
         mockSftp.connect(getHostConfig().getTimeout());
@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import com.jcraft.jsch.Identity;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.KeyPair;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class BapSshIdentityCacheTest {
+
+    private static final String PASSPHRASE = "secret";
+
+    @TempDir
+    private File jenkinsHome;
+
+    private final BapSshIdentityCache cache = new BapSshIdentityCache();
+    private BPBuildInfo buildInfo;
+
+    @BeforeEach
+    void setUp() {
+        buildInfo = new BPBuildInfo(TaskListener.NULL, "", new FilePath(jenkinsHome), null, null);
+    }
+
+    @Test
+    void testInlineKeyIsDecodedOnce() throws Exception {
+        final KeyPair keyPair = KeyPair.genKeyPair(new JSch(), KeyPair.RSA, 2048);
+        final BapSshKeyInfo keyInfo = new BapSshKeyInfo(PASSPHRASE, privateKey(keyPair, PASSPHRASE), null);
+
+        final Identity identity = cache.getIdentity(buildInfo, keyInfo);
+        assertNotNull(identity);
+        assertFalse(identity.isEncrypted());
+        assertArrayEquals(keyPair.getPublicKeyBlob(), identity.getPublicKeyBlob());
+        assertSame(identity, cache.getIdentity(buildInfo, new BapSshKeyInfo(PASSPHRASE, keyInfo.getKey(), null)));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void testChangedPassphraseIsNotServedFromCache() throws Exception {
+        final String key = privateKey(KeyPair.genKeyPair(new JSch(), KeyPair.RSA, 2048), PASSPHRASE);
+        assertNotNull(cache.getIdentity(buildInfo, new BapSshKeyInfo(PASSPHRASE, key, null)));
+        assertNull(cache.getIdentity(buildInfo, new BapSshKeyInfo("wrong", key, null)));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void testKeyFileIsReloadedWhenChanged() throws Exception {
+        final File keyFile = new File(jenkinsHome, "id_rsa");
+        final BapSshKeyInfo keyInfo = new BapSshKeyInfo(null, null, "id_rsa");
+        Files.write(keyFile.toPath(), privateKey(KeyPair.genKeyPair(new JSch(), KeyPair.RSA, 2048), null).getBytes(StandardCharsets.UTF_8));
+
+        final Identity first = cache.getIdentity(buildInfo, keyInfo);
+        assertNotNull(first);
+        assertSame(first, cache.getIdentity(buildInfo, keyInfo));
+
+        final KeyPair replacement = KeyPair.genKeyPair(new JSch(), KeyPair.RSA, 3072);
+        Files.write(keyFile.toPath(), privateKey(replacement, null).getBytes(StandardCharsets.UTF_8));
+        keyFile.setLastModified(keyFile.lastModified() + 10000);
+
+        final Identity second = cache.getIdentity(buildInfo, keyInfo);
+        assertNotSame(first, second);
+        assertArrayEquals(replacement.getPublicKeyBlob(), second.getPublicKeyBlob());
+        assertEquals("id_rsa", keyInfo.getKeyPath());
+    }
+
+    @Test
+    void testUndecodableKeyIsLeftToJSch() {
+        assertNull(cache.getIdentity(buildInfo, new BapSshKeyInfo(null, "not a key", null)));
+        assertNull(cache.getIdentity(buildInfo, new BapSshKeyInfo(null, null, "missing")));
+        assertEquals(0, cache.size());
+    }
+
+    private static String privateKey(final KeyPair keyPair, final String passphrase) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (passphrase == null)
+            keyPair.writePrivateKey(out);
+        else
+            keyPair.writePrivateKey(out, BapSshUtil.toBytes(passphrase));
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import hudson.FilePath;
+import hudson.model.Result;
+import hudson.util.StreamTaskListener;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import jenkins.plugins.publish_over.BapPublisherException;
+import jenkins.plugins.publish_over_ssh.helper.BapSshTestHelper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BapSshParallelPublishTest {
+
+    private final ByteArrayOutputStream console = new ByteArrayOutputStream();
+    private final StreamTaskListener listener = new StreamTaskListener(console, StandardCharsets.UTF_8);
+
+    @Test
+    void testLinesArePrefixedAndOnlyWrittenWhenComplete() {
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+        final BapSshParallelPublish.PrefixedLineOutputStream out =
+                new BapSshParallelPublish.PrefixedLineOutputStream(new PrintStream(target, true), "[a] ");
+        out.write("one\ntw".getBytes(StandardCharsets.UTF_8), 0, 6);
+        assertEquals("[a] one\n", target.toString());
+        out.write('o');
+        out.write('\n');
+        out.write('x');
+        out.finish();
+        assertEquals("[a] one\n[a] two\n[a] x\n", target.toString());
+    }
+
+    @Test
+    void testHostsRunConcurrently() throws Exception {
+        final BapSshParallelPublish parallelPublish = new BapSshParallelPublish(listener, 2, true);
+        final CountDownLatch bothStarted = new CountDownLatch(2);
+        for (String host : new String[] {"host1", "host2"}) {
+            final BPBuildInfo hostBuildInfo = parallelPublish.createHostBuildInfo(host, BapSshTestHelper.createEmpty());
+            parallelPublish.submit(host, () -> {
+                bothStarted.countDown();
+                assertTrue(bothStarted.await(10, TimeUnit.SECONDS));
+                hostBuildInfo.println("done");
+            });
+        }
+        assertSame(Result.SUCCESS, parallelPublish.await(Result.FAILURE));
+        final String output = console.toString(StandardCharsets.UTF_8.name());
+        assertTrue(output.contains("[host1] " + Messages.console_message_prefix() + "done"));
+        assertTrue(output.contains("[host2] " + Messages.console_message_prefix() + "done"));
+        assertTrue(output.contains(Messages.console_parallel_summary()));
+    }
+
+    @Test
+    void testFailureReturnsFailResultAndOtherHostsContinue() throws Exception {
+        final BapSshParallelPublish parallelPublish = new BapSshParallelPublish(listener, 1, true);
+        final AtomicBoolean secondRan = new AtomicBoolean();
+        parallelPublish.createHostBuildInfo("host1", BapSshTestHelper.createEmpty());
+        parallelPublish.submit("host1", () -> {
+            throw new BapPublisherException("boom");
+        });
+        parallelPublish.createHostBuildInfo("host2", BapSshTestHelper.createEmpty());
+        parallelPublish.submit("host2", () -> secondRan.set(true));
+        assertSame(Result.UNSTABLE, parallelPublish.await(Result.UNSTABLE));
+        assertTrue(secondRan.get());
+        final String output = console.toString(StandardCharsets.UTF_8.name());
+        assertTrue(output.contains("[host1] " + Messages.console_message_prefix() + Messages.console_failure("boom")));
+    }
+
+    @Test
+    void testFailureSkipsQueuedHostsWithoutContinueOnError() throws Exception {
+        final BapSshParallelPublish parallelPublish = new BapSshParallelPublish(listener, 1, false);
+        final AtomicBoolean secondRan = new AtomicBoolean();
+        parallelPublish.createHostBuildInfo("host1", BapSshTestHelper.createEmpty());
+        parallelPublish.submit("host1", () -> {
+            throw new BapPublisherException("boom");
+        });
+        parallelPublish.createHostBuildInfo("host2", BapSshTestHelper.createEmpty());
+        parallelPublish.submit("host2", () -> secondRan.set(true));
+        assertSame(Result.FAILURE, parallelPublish.await(Result.FAILURE));
+        assertFalse(secondRan.get());
+        assertTrue(console.toString(StandardCharsets.UTF_8.name()).contains(Messages.console_parallel_skipped("host2")));
+    }
+
+    @Test
+    void testPublishersOfABuildStepShareTheParallelPublishUntilFinished() throws Exception {
+        final BPBuildInfo inline = BapSshTestHelper.createEmpty();
+        assertNull(BapSshParallelPublish.get(inline));
+        final BapSshParallelPublish.Settings settings = new BapSshParallelPublish.Settings(2, true);
+        final BPBuildInfo first = createBuildInfo(settings);
+        final BapSshParallelPublish parallelPublish = BapSshParallelPublish.get(first);
+        assertNotNull(parallelPublish);
+        assertSame(parallelPublish, BapSshParallelPublish.get(createBuildInfo(settings)));
+        assertNotSame(parallelPublish, BapSshParallelPublish.get(createBuildInfo(new BapSshParallelPublish.Settings(2, true))));
+        final AtomicBoolean ran = new AtomicBoolean();
+        parallelPublish.createHostBuildInfo("host1", first);
+        parallelPublish.submit("host1", () -> ran.set(true));
+        assertSame(Result.SUCCESS, BapSshParallelPublish.finish(null, settings, Result.FAILURE));
+        assertTrue(ran.get());
+        assertNotSame(parallelPublish, BapSshParallelPublish.get(first));
+        BapSshParallelPublish.cancel(null, settings);
+    }
+
+    @Test
+    void testHostBuildInfoHasTheContextOfTheBuildStep() {
+        final BapSshParallelPublish parallelPublish = new BapSshParallelPublish(listener, 1, true);
+        final BPBuildInfo buildInfo = BapSshTestHelper.createEmpty();
+        for (String key : BapSshPublisherPlugin.getContextKeys())
+            buildInfo.put(key, key);
+        final BPBuildInfo hostBuildInfo = parallelPublish.createHostBuildInfo("host1", buildInfo);
+        for (String key : BapSshPublisherPlugin.getContextKeys())
+            assertEquals(key, hostBuildInfo.get(key));
+        assertTrue(BapSshPublisherPlugin.getContextKeys().contains(BapSshPublisherPlugin.COMPLETED_UPLOADS_CONTEXT_KEY));
+        parallelPublish.cancel();
+    }
+
+    private BPBuildInfo createBuildInfo(final BapSshParallelPublish.Settings settings) {
+        final BPBuildInfo buildInfo = new BPBuildInfo(new BapSshParallelPublish.Listener(listener, settings), "",
+                new FilePath(new File("")), BapSshTestHelper.createEmptyBuildEnv(), null);
+        buildInfo.put(BapSshPublisherPlugin.PARALLEL_PUBLISH_CONTEXT_KEY, settings);
+        return buildInfo;
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import hudson.FilePath;
+import jenkins.plugins.publish_over.BapPublisherException;
+import jenkins.plugins.publish_over_ssh.helper.BapSshTestHelper;
+import jenkins.plugins.publish_over_ssh.helper.RandomFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class BapSshParallelUploadTest {
+
+    private static final String REMOTE_DIR = "/remote/dir";
+
+    @TempDir
+    private File baseDir;
+
+    private final ChannelSftp primary = mock(ChannelSftp.class);
+    private final ChannelSftp extra = mock(ChannelSftp.class);
+    private final Session session = mock(Session.class);
+    private final BapSshTransfer transfer = new BapSshTransfer("**/*", "", "", false, false, "", 10000);
+
+    @Test
+    void testLargestFilesAreUploadedFirst() throws Exception {
+        when(session.openChannel("sftp")).thenThrow(new JSchException("administratively prohibited"));
+        final BapSshParallelUpload upload = new BapSshParallelUpload(BapSshTestHelper.createEmpty(), 2, 1000);
+        queue(upload, "small", 10);
+        queue(upload, "large", 1000);
+        queue(upload, "medium", 100);
+
+        final List<String> uploaded = Collections.synchronizedList(new ArrayList<>());
+        upload.upload(primary, session, channel -> { }, (channel, t, filePath, remoteDirectory) -> {
+            assertEquals(primary, channel);
+            assertEquals(REMOTE_DIR, remoteDirectory);
+            uploaded.add(filePath.getName());
+        });
+        assertEquals(Arrays.asList("large", "medium", "small"), uploaded);
+        assertFalse(upload.hasQueuedFiles());
+    }
+
+    @Test
+    void testFilesAreSpreadOverTheChannels() throws Exception {
+        when(session.openChannel("sftp")).thenReturn(extra);
+        final BapSshParallelUpload upload = new BapSshParallelUpload(BapSshTestHelper.createEmpty(), 2, 1000);
+        queue(upload, "file1", 100);
+        queue(upload, "file2", 100);
+
+        final CyclicBarrier bothUploading = new CyclicBarrier(2);
+        final Set<ChannelSftp> used = Collections.synchronizedSet(new HashSet<>());
+        upload.upload(primary, session, channel -> { }, (channel, t, filePath, remoteDirectory) -> {
+            used.add(channel);
+            bothUploading.await(10, TimeUnit.SECONDS);
+        });
+        assertEquals(new HashSet<>(Arrays.asList(primary, extra)), used);
+        verify(extra).connect(1000);
+
+        when(extra.isConnected()).thenReturn(true);
+        upload.disconnect();
+        verify(extra).disconnect();
+    }
+
+    @Test
+    void testFailureIsReported() throws Exception {
+        final BapSshParallelUpload upload = new BapSshParallelUpload(BapSshTestHelper.createEmpty(), 2, 1000);
+        queue(upload, "file1", 100);
+
+        final BapPublisherException bpe = assertThrows(BapPublisherException.class, () ->
+                upload.upload(primary, session, channel -> { }, (channel, t, filePath, remoteDirectory) -> {
+                    throw new IllegalStateException("disk full");
+                }));
+        assertEquals(Messages.exception_parallelUpload("disk full"), bpe.getMessage());
+    }
+
+    @Test
+    void testExtraChannelsAreDiscardedAfterAFailure() throws Exception {
+        when(session.openChannel("sftp")).thenReturn(extra);
+        when(extra.isConnected()).thenReturn(true);
+        final BapSshParallelUpload upload = new BapSshParallelUpload(BapSshTestHelper.createEmpty(), 2, 1000);
+        queue(upload, "file1", 100);
+        queue(upload, "file2", 100);
+
+        final CyclicBarrier bothUploading = new CyclicBarrier(2);
+        final long start = System.currentTimeMillis();
+        assertThrows(BapPublisherException.class, () ->
+                upload.upload(primary, session, channel -> { }, (channel, t, filePath, remoteDirectory) -> {
+                    bothUploading.await(10, TimeUnit.SECONDS);
+                    if (channel == extra)
+                        throw new IllegalStateException("connection reset");
+                    Thread.sleep(10000);
+                }));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        verify(extra).disconnect();
+        assertEquals(Collections.singletonList(primary), upload.getChannels(primary));
+        upload.disconnect();
+    }
+
+    @Test
+    void testWorkerThreadsAreReusedForEachTransfer() throws Exception {
+        when(session.openChannel("sftp")).thenThrow(new JSchException("administratively prohibited"));
+        final BapSshParallelUpload upload = new BapSshParallelUpload(BapSshTestHelper.createEmpty(), 2, 1000);
+        final Set<Thread> workers = Collections.synchronizedSet(new HashSet<>());
+        for (int i = 0; i < 5; i++) {
+            queue(upload, "file" + i, 100);
+            upload.upload(primary, session, channel -> { }, (channel, t, filePath, remoteDirectory) ->
+                    workers.add(Thread.currentThread()));
+        }
+        assertTrue(workers.size() <= 2);
+        upload.disconnect();
+        for (Thread worker : workers) {
+            worker.join(10000);
+            assertFalse(worker.isAlive());
+        }
+    }
+
+    private void queue(final BapSshParallelUpload upload, final String name, final int size) throws Exception {
+        final RandomFile file = new RandomFile(new File(baseDir, name), size);
+        upload.queue(transfer, new FilePath(file.getFile()), REMOTE_DIR);
+    }
+
+}
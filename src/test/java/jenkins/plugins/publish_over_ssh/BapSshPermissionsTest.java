@@ -0,0 +1,161 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import com.jcraft.jsch.ChannelSftp;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import org.easymock.classextension.EasyMock;
+import org.easymock.classextension.IMocksControl;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BapSshPermissionsTest {
+
+    private final IMocksControl mockControl = EasyMock.createStrictControl();
+    private final ChannelSftp mockSftp = mockControl.createMock(ChannelSftp.class);
+    private final BPBuildInfo buildInfo = new BPBuildInfo(TaskListener.NULL, "", new FilePath(new File("")), null, null);
+
+    @Test
+    void testModesAreSetWithOneCommandForEachRunOfTheSameMode() {
+        final Map<String, Integer> targets = new LinkedHashMap<>();
+        targets.put("/www/a.sh", 0755);
+        targets.put("/www/b.sh", 0755);
+        targets.put("/www/it's.txt", 0644);
+        assertEquals(Arrays.asList("chmod 755 -- '/www/a.sh' '/www/b.sh' && chmod 644 -- '/www/it'\\''s.txt'"),
+                BapSshPermissions.commands(targets));
+    }
+
+    @Test
+    void testLongCommandsAreSplit() {
+        final Map<String, Integer> targets = new LinkedHashMap<>();
+        for (int i = 0; i < 5000; i++)
+            targets.put("/www/site/file" + i, 0644);
+        final List<String> commands = BapSshPermissions.commands(targets);
+        assertTrue(commands.size() > 1);
+        for (String command : commands) {
+            assertTrue(command.length() <= BapSshPermissions.MAX_COMMAND_LENGTH);
+            assertTrue(command.startsWith("chmod 644 -- "));
+        }
+    }
+
+    @Test
+    void testEachDirectoryIsChangedOnceAfterTheFiles() throws Exception {
+        final BapSshPermissions permissions = new BapSshPermissions();
+        permissions.setFileMode("/www/css/main.css", 0100644);
+        permissions.setDirectoryMode("/www/css", 0750);
+        permissions.setFileMode("/www/css/print.css", 0644);
+        permissions.setDirectoryMode("/www/css", 0750);
+        permissions.setDirectoryMode("/www", 0555);
+        final List<String> commands = new ArrayList<>();
+        mockControl.replay();
+
+        permissions.apply(buildInfo, Collections.singletonList(mockSftp), command -> commands.add(command));
+        assertEquals(Arrays.asList("chmod 644 -- '/www/css/main.css' '/www/css/print.css' && chmod 750 -- '/www/css'"
+                + " && chmod 555 -- '/www'"), commands);
+        assertTrue(permissions.isEmpty());
+        mockControl.verify();
+    }
+
+    @Test
+    void testModesAreSetOverSftpWhenTheCommandFails() throws Exception {
+        final BapSshPermissions permissions = new BapSshPermissions();
+        permissions.setFileMode("/www/index.html", 0644);
+        permissions.setDirectoryMode("/www", 0755);
+        mockSftp.chmod(0644, "/www/index.html");
+        mockSftp.chmod(0755, "/www");
+        mockControl.replay();
+
+        permissions.apply(buildInfo, Collections.singletonList(mockSftp), command -> false);
+        mockControl.verify();
+    }
+
+    @Test
+    void testModesAreSetOverSftpWithoutExec() throws Exception {
+        final BapSshPermissions permissions = new BapSshPermissions();
+        permissions.setFileMode("/www/index.html", 0644);
+        mockSftp.chmod(0644, "/www/index.html");
+        mockControl.replay();
+
+        permissions.apply(buildInfo, Collections.singletonList(mockSftp), null);
+        mockControl.verify();
+    }
+
+    @Test
+    void testModesAreSetOverAllChannelsWithTheDirectoriesLast() throws Exception {
+        final BapSshPermissions permissions = new BapSshPermissions();
+        for (int i = 0; i < 20; i++)
+            permissions.setFileMode("/www/site/file" + i, 0644);
+        permissions.setDirectoryMode("/www/site", 0750);
+        permissions.setDirectoryMode("/www", 0555);
+        final List<String> changed = new CopyOnWriteArrayList<>();
+        final RecordingSftp first = new RecordingSftp(changed);
+        final RecordingSftp second = new RecordingSftp(changed);
+
+        permissions.apply(buildInfo, Arrays.asList(first, second), null);
+        assertEquals(22, changed.size());
+        assertEquals("0750 /www/site", changed.get(20));
+        assertEquals("0555 /www", changed.get(21));
+        assertFalse(first.changed.isEmpty());
+        assertFalse(second.changed.isEmpty());
+        assertTrue(permissions.isEmpty());
+    }
+
+    private static final class RecordingSftp extends ChannelSftp {
+        private final List<String> all;
+        private final List<String> changed = new ArrayList<>();
+
+        RecordingSftp(final List<String> all) {
+            this.all = all;
+        }
+
+        @Override
+        public void chmod(final int permissions, final String path) {
+            try {
+                // a round trip to the server
+                Thread.sleep(10);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            final String change = "0" + Integer.toOctalString(permissions) + " " + path;
+            changed.add(change);
+            all.add(change);
+        }
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import jenkins.plugins.publish_over.BapPublisherException;
+import org.easymock.classextension.EasyMock;
+import org.easymock.classextension.IMocksControl;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.startsWith;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BapSshRemoteDeleteTest {
+
+    private static final String ROOT = "/srv/www";
+    private static final String SITE = ROOT + "/site";
+
+    private final IMocksControl mockControl = EasyMock.createNiceControl();
+    private final Session mockSession = mockControl.createMock(Session.class);
+    private final ChannelSftp mockSftp = mockControl.createMock(ChannelSftp.class);
+    private final ChannelSftp mockSftp2 = mockControl.createMock(ChannelSftp.class);
+    private final ChannelExec mockExec = mockControl.createMock(ChannelExec.class);
+    private final BPBuildInfo buildInfo = new BPBuildInfo(TaskListener.NULL, "", new FilePath(new File("")), null, null);
+
+    @Test
+    void testOnlyTheRootAndDirectoriesUnderItAreDeletedWithOneCommand() {
+        assertTrue(BapSshRemoteDelete.isInsideRoot(SITE, ROOT, true));
+        assertTrue(BapSshRemoteDelete.isInsideRoot(SITE + "/", ROOT + "/", false));
+        assertTrue(BapSshRemoteDelete.isInsideRoot(ROOT, ROOT, true));
+        assertFalse(BapSshRemoteDelete.isInsideRoot(ROOT, ROOT, false));
+        assertFalse(BapSshRemoteDelete.isInsideRoot("/srv/www2", ROOT, true));
+        assertFalse(BapSshRemoteDelete.isInsideRoot(SITE + "/../../etc", ROOT, true));
+        assertFalse(BapSshRemoteDelete.isInsideRoot("/", "/", true));
+        assertFalse(BapSshRemoteDelete.isInsideRoot("site", "site", true));
+        assertFalse(BapSshRemoteDelete.isInsideRoot(SITE, null, true));
+    }
+
+    @Test
+    void testCommandsQuoteTheDirectory() {
+        assertEquals("cd -P -- '/it'\\''s' && [ \"$(pwd -P)\" != / ] && find . -mindepth 1 -maxdepth 1 -exec rm -rf -- {} +",
+                BapSshRemoteDelete.command("/it's"));
+        assertEquals("nohup rm -rf -- '/srv/www/.site.deleting-1f' </dev/null >/dev/null 2>&1 &",
+                BapSshRemoteDelete.backgroundCommand("/srv/www/.site.deleting-1f"));
+        assertEquals("/srv/www/.site.deleting-1f", BapSshRemoteDelete.toAsideName(SITE + "/", "1f"));
+    }
+
+    @Test
+    void testContentsAreDeletedWithOneCommand() throws Exception {
+        expectExec(0);
+        mockExec.setCommand(BapSshRemoteDelete.command(SITE));
+        mockControl.replay();
+
+        new BapSshRemoteDelete(buildInfo, mockSession, true, 1, 0).deleteContents(mockSftp, SITE, ROOT);
+        mockControl.verify();
+    }
+
+    @Test
+    void testFailedCommandFallsBackToSftp() throws Exception {
+        expectExec(BapSshTarUpload.COMMAND_NOT_FOUND);
+        expect(mockSftp.ls(SITE)).andReturn(entries(file("index.html")));
+        mockSftp.rm(SITE + "/index.html");
+        mockControl.replay();
+
+        new BapSshRemoteDelete(buildInfo, mockSession, true, 1, 0).deleteContents(mockSftp, SITE, ROOT);
+        mockControl.verify();
+    }
+
+    @Test
+    void testTreeIsWalkedWithAbsolutePaths() throws Exception {
+        expect(mockSftp.ls(SITE)).andReturn(entries(file("."), file(".."), directory("css"), file("index.html")));
+        expect(mockSftp.ls(SITE + "/css")).andReturn(entries(file("main.css")));
+        mockSftp.rm(SITE + "/css/main.css");
+        mockSftp.rmdir(SITE + "/css");
+        mockSftp.rm(SITE + "/index.html");
+        mockControl.replay();
+
+        // without exec the directory does not need to be under the root
+        new BapSshRemoteDelete(buildInfo, mockSession, false, 1, 0).deleteContents(mockSftp, "/tmp/site", null);
+        mockControl.verify();
+    }
+
+    @Test
+    void testTreeIsWalkedOverSeveralChannels() throws Exception {
+        final Set<String> removed = ConcurrentHashMap.newKeySet();
+        expect(mockSession.openChannel("sftp")).andReturn(mockSftp2);
+        for (ChannelSftp channel : Arrays.asList(mockSftp, mockSftp2)) {
+            expect(channel.ls(SITE)).andReturn(entries(directory("css"), directory("js"), file("index.html"))).anyTimes();
+            expect(channel.ls(SITE + "/css")).andReturn(entries(file("main.css"))).anyTimes();
+            expect(channel.ls(SITE + "/js")).andReturn(entries(file("app.js"), file("lib.js"))).anyTimes();
+            channel.rm(startsWith(SITE));
+            expectLastCall().andAnswer(() -> removed.add((String) getCurrentArguments()[0])).anyTimes();
+            channel.rmdir(startsWith(SITE));
+            expectLastCall().andAnswer(() -> removed.add((String) getCurrentArguments()[0])).anyTimes();
+        }
+        mockSftp2.disconnect();
+        mockControl.replay();
+
+        new BapSshRemoteDelete(buildInfo, mockSession, false, 2, 0).deleteContents(mockSftp, SITE, ROOT);
+        assertEquals(new HashSet<>(Arrays.asList(SITE + "/css", SITE + "/css/main.css", SITE + "/js", SITE + "/js/app.js",
+                SITE + "/js/lib.js", SITE + "/index.html")), removed);
+        mockControl.verify();
+    }
+
+    @Test
+    void testFailedRemovalNamesTheFile() throws Exception {
+        expect(mockSftp.ls(SITE)).andReturn(entries(file("index.html")));
+        mockSftp.rm(SITE + "/index.html");
+        expectLastCall().andThrow(new SftpException(ChannelSftp.SSH_FX_PERMISSION_DENIED, "denied"));
+        mockControl.replay();
+
+        final BapPublisherException bpe = assertThrows(BapPublisherException.class,
+                () -> new BapSshRemoteDelete(buildInfo, mockSession, false, 1, 0).deleteContents(mockSftp, SITE, ROOT));
+        assertEquals(Messages.exception_client_dele(SITE + "/index.html"), bpe.getMessage());
+    }
+
+    @Test
+    void testDirectoryIsMovedAsideAndDeletedInTheBackground() throws Exception {
+        final SftpATTRS attrs = mockControl.createMock(SftpATTRS.class);
+        expect(mockSftp.stat(SITE)).andReturn(attrs);
+        expect(attrs.getPermissions()).andReturn(040750);
+        mockSftp.rename(eq(SITE), startsWith(ROOT + "/.site.deleting-"));
+        mockSftp.mkdir(SITE);
+        mockSftp.chmod(0750, SITE);
+        expectExec(0);
+        mockExec.setCommand(startsWith("nohup rm -rf -- '" + ROOT + "/.site.deleting-"));
+        mockControl.replay();
+
+        assertTrue(new BapSshRemoteDelete(buildInfo, mockSession, true, 1, 0).deleteInBackground(mockSftp, SITE, ROOT));
+        mockControl.verify();
+    }
+
+    @Test
+    void testRootIsNotDeletedInTheBackground() {
+        mockControl.replay();
+        assertFalse(new BapSshRemoteDelete(buildInfo, mockSession, true, 1, 0).deleteInBackground(mockSftp, ROOT, ROOT));
+        assertFalse(new BapSshRemoteDelete(buildInfo, mockSession, false, 1, 0).deleteInBackground(mockSftp, SITE, ROOT));
+    }
+
+    private void expectExec(final int exitStatus) throws Exception {
+        expect(mockSession.openChannel("exec")).andReturn(mockExec);
+        expect(mockExec.isClosed()).andReturn(true).anyTimes();
+        expect(mockExec.getExitStatus()).andReturn(exitStatus).anyTimes();
+    }
+
+    private Vector<ChannelSftp.LsEntry> entries(final ChannelSftp.LsEntry... entries) {
+        return new Vector<>(Arrays.asList(entries));
+    }
+
+    private ChannelSftp.LsEntry file(final String name) {
+        return entry(name, false);
+    }
+
+    private ChannelSftp.LsEntry directory(final String name) {
+        return entry(name, true);
+    }
+
+    private ChannelSftp.LsEntry entry(final String name, final boolean isDirectory) {
+        final ChannelSftp.LsEntry entry = mockControl.createMock(ChannelSftp.LsEntry.class);
+        final SftpATTRS attrs = mockControl.createMock(SftpATTRS.class);
+        expect(entry.getFilename()).andReturn(name).anyTimes();
+        expect(entry.getAttrs()).andReturn(attrs).anyTimes();
+        expect(attrs.isDir()).andReturn(isDirectory).anyTimes();
+        return entry;
+    }
+
+}
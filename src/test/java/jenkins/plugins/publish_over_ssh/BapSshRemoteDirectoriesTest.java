@@ -0,0 +1,73 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BapSshRemoteDirectoriesTest {
+
+    @Test
+    void testPathsAreResolvedAgainstTheWorkingDirectory() {
+        assertEquals("/home/bap/www/site", BapSshRemoteDirectories.resolve("/home/bap", "www/site/"));
+        assertEquals("/var/www", BapSshRemoteDirectories.resolve("/home/bap", "/var//www"));
+        assertEquals("/home/www", BapSshRemoteDirectories.resolve("/home/bap/", "./../www"));
+        assertEquals("/", BapSshRemoteDirectories.resolve("/home", "../.."));
+        assertEquals("/home", BapSshRemoteDirectories.parent("/home/bap"));
+        assertEquals("/", BapSshRemoteDirectories.parent("/home"));
+    }
+
+    @Test
+    void testMissingDirectoriesStopAtTheFirstKnownParent() {
+        final BapSshRemoteDirectories directories = new BapSshRemoteDirectories();
+        directories.add("/home/bap");
+        assertEquals(Arrays.asList("/home/bap/www/site", "/home/bap/www"), directories.missing("/home/bap/www/site"));
+        assertEquals(Collections.emptyList(), directories.missing("/home/bap"));
+        assertEquals(Arrays.asList("/var/www", "/var"), directories.missing("/var/www"));
+    }
+
+    @Test
+    void testDeletedDirectoriesAreForgotten() {
+        final BapSshRemoteDirectories directories = new BapSshRemoteDirectories();
+        directories.add("/www");
+        directories.add("/www/site");
+        directories.add("/www/site/css");
+        directories.add("/www/sites");
+        directories.forgetContents("/www/site");
+        assertTrue(directories.isKnown("/www/site"));
+        assertFalse(directories.isKnown("/www/site/css"));
+        assertTrue(directories.isKnown("/www/sites"));
+        directories.forget("/www");
+        assertFalse(directories.isKnown("/www"));
+        assertFalse(directories.isKnown("/www/sites"));
+    }
+
+}
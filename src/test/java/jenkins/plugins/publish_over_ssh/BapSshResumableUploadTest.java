@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.Session;
+import hudson.FilePath;
+import jenkins.plugins.publish_over_ssh.helper.BapSshTestHelper;
+import jenkins.plugins.publish_over_ssh.helper.BapSshTestServer;
+import jenkins.plugins.publish_over_ssh.helper.RandomFile;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BapSshResumableUploadTest {
+
+    private static final String REMOTE_PATH = "/file.bin";
+    private static final int SIZE = 2 * 1024 * 1024 + 17;
+    private static final int PARTIAL = 1024 * 1024 + 5;
+
+    @TempDir
+    private File directory;
+
+    private BapSshTestServer server;
+    private Session session;
+    private ChannelSftp sftp;
+    private RandomFile file;
+    private CountingInputStream sent;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        final File remote = new File(directory, "remote");
+        assertTrue(remote.mkdirs());
+        server = new BapSshTestServer(remote);
+        session = server.connect();
+        sftp = BapSshTestServer.openSftp(session);
+        file = new RandomFile(new File(new File(directory, "local"), "file.bin"), SIZE);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        sftp.disconnect();
+        session.disconnect();
+        server.close();
+    }
+
+    @Test
+    void testPartPathIsHiddenNextToTheFile() {
+        assertEquals("/dir/.file.bin.part", BapSshResumableUpload.partPath("/dir/file.bin"));
+    }
+
+    @Test
+    void testRetryContinuesFromThePartialUpload() throws Exception {
+        FileUtils.writeByteArrayToFile(partFile(), Arrays.copyOf(file.getContents(), PARTIAL));
+        upload(createUpload(new BapSshResumableUpload.Completed()));
+        assertEquals(SIZE - PARTIAL, sent.getByteCount());
+        assertArrayEquals(file.getContents(), FileUtils.readFileToByteArray(remoteFile()));
+        assertFalse(partFile().exists());
+    }
+
+    @Test
+    void testPartialUploadThatDoesNotMatchIsUploadedAgain() throws Exception {
+        final byte[] partial = Arrays.copyOf(file.getContents(), PARTIAL);
+        partial[PARTIAL - 1] ^= 1;
+        FileUtils.writeByteArrayToFile(partFile(), partial);
+        upload(createUpload(new BapSshResumableUpload.Completed()));
+        assertEquals(SIZE, sent.getByteCount());
+        assertArrayEquals(file.getContents(), FileUtils.readFileToByteArray(remoteFile()));
+    }
+
+    @Test
+    void testCompletedFileIsSkippedUntilItChanges() throws Exception {
+        final BapSshResumableUpload.Completed completed = new BapSshResumableUpload.Completed();
+        final FilePath filePath = new FilePath(file.getFile());
+        assertFalse(createUpload(completed).isComplete(sftp, filePath, REMOTE_PATH));
+        upload(createUpload(completed));
+        // a retry creates a new client that shares the files completed by the build
+        assertTrue(createUpload(completed).isComplete(sftp, filePath, REMOTE_PATH));
+        assertTrue(remoteFile().setLastModified(remoteFile().lastModified() - 60000));
+        assertFalse(createUpload(completed).isComplete(sftp, filePath, REMOTE_PATH));
+    }
+
+    @Test
+    void testFileUploadedWholeIsSkippedOnceRecorded() throws Exception {
+        final BapSshResumableUpload.Completed completed = new BapSshResumableUpload.Completed();
+        final FilePath filePath = new FilePath(file.getFile());
+        sftp.put(file.getFile().getPath(), REMOTE_PATH);
+        sftp.setMtime(REMOTE_PATH, BapSshTargetFiles.toSeconds(file.getFile().lastModified()));
+        assertFalse(createUpload(completed).isComplete(sftp, filePath, REMOTE_PATH));
+        createUpload(completed).completed(filePath, REMOTE_PATH, SIZE, file.getFile().lastModified());
+        assertTrue(createUpload(completed).isComplete(sftp, filePath, REMOTE_PATH));
+    }
+
+    private BapSshResumableUpload createUpload(final BapSshResumableUpload.Completed completed) {
+        // the test server does not run commands in a shell, so the partial uploads are read back
+        return new BapSshResumableUpload(BapSshTestHelper.createEmpty(true), session, 0, BapSshFileDigest.MD5, false, completed);
+    }
+
+    private void upload(final BapSshResumableUpload upload) throws Exception {
+        upload.upload(sftp, new FilePath(file.getFile()), REMOTE_PATH, in -> sent = new CountingInputStream(in), 0);
+    }
+
+    private File remoteFile() {
+        return new File(server.getRoot(), "file.bin");
+    }
+
+    private File partFile() {
+        return new File(server.getRoot(), ".file.bin.part");
+    }
+
+}
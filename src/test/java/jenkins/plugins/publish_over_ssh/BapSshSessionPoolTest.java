@@ -0,0 +1,185 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import jenkins.plugins.publish_over.BapPublisherException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class BapSshSessionPoolTest {
+
+    private static final String KEY = BapSshSessionPool.createKey("config", "user", "host", 22);
+    private static final String OTHER_KEY = BapSshSessionPool.createKey("other", "user", "host", 22);
+    private static final long IDLE_TIMEOUT = 60000;
+    private static final String ROOT = "/remote/root";
+
+    private final BapSshSessionPool pool = new BapSshSessionPool();
+
+    @Test
+    void testKeyDependsOnAllValues() {
+        assertEquals(KEY, BapSshSessionPool.createKey("config", "user", "host", 22));
+        assertFalse(KEY.equals(BapSshSessionPool.createKey("config", "user", "host", 23)));
+        assertFalse(BapSshSessionPool.createKey("ab", "c").equals(BapSshSessionPool.createKey("a", "bc")));
+    }
+
+    @Test
+    void testReleasedSessionIsLentAgain() throws Exception {
+        final ChannelSftp sftp = connectedSftp();
+        final BapSshSessionPool.PooledSession first = pool.borrow("config", KEY, 1, IDLE_TIMEOUT, 0);
+        assertFalse(first.isConnected());
+        first.attach(Collections.singletonList(connectedSession()));
+        first.setSftp(sftp, ROOT);
+        pool.release(first);
+
+        final BapSshSessionPool.PooledSession second = pool.borrow("config", KEY, 1, IDLE_TIMEOUT, 0);
+        assertSame(first, second);
+        assertTrue(second.isConnected());
+        verify(sftp).stat(ROOT);
+    }
+
+    @Test
+    void testSessionWithoutSftpIsCheckedByOpeningAChannel() throws Exception {
+        final Session session = connectedSession();
+        final Channel channel = mock(Channel.class);
+        when(session.openChannel("sftp")).thenReturn(channel);
+        final BapSshSessionPool.PooledSession first = pool.borrow("config", KEY, 1, IDLE_TIMEOUT, 0);
+        first.attach(Collections.singletonList(session));
+        pool.release(first);
+
+        assertSame(first, pool.borrow("config", KEY, 1, IDLE_TIMEOUT, 0));
+        verify(channel).connect(BapSshSessionPool.HEALTH_CHECK_TIMEOUT);
+        verify(channel).disconnect();
+    }
+
+    @Test
+    void testUnhealthySessionIsReplaced() throws Exception {
+        final Session session = connectedSession();
+        final ChannelSftp sftp = connectedSftp();
+        when(sftp.stat(ROOT)).thenThrow(new SftpException(ChannelSftp.SSH_FX_CONNECTION_LOST, "broken pipe"));
+        final BapSshSessionPool.PooledSession first = pool.borrow("config", KEY, 1, IDLE_TIMEOUT, 0);
+        first.attach(Collections.singletonList(session));
+        first.setSftp(sftp, ROOT);
+        pool.release(first);
+
+        final BapSshSessionPool.PooledSession second = pool.borrow("config", KEY, 1, IDLE_TIMEOUT, 0);
+        assertNotSame(first, second);
+        assertFalse(second.isConnected());
+        verify(session).disconnect();
+    }
+
+    @Test
+    void testHealthCheckDoesNotHoldUpOtherHosts() throws Exception {
+        final CountDownLatch checking = new CountDownLatch(1);
+        final CountDownLatch answer = new CountDownLatch(1);
+        final ChannelSftp sftp = connectedSftp();
+        when(sftp.stat(ROOT)).thenAnswer(invocation -> {
+            checking.countDown();
+            answer.await();
+            return mock(SftpATTRS.class);
+        });
+        final BapSshSessionPool.PooledSession first = pool.borrow("config", KEY, 1, IDLE_TIMEOUT, 0);
+        first.attach(Collections.singletonList(connectedSession()));
+        first.setSftp(sftp, ROOT);
+        pool.release(first);
+        final Thread slowHost = new Thread(() -> pool.borrow("config", KEY, 1, IDLE_TIMEOUT, 0));
+        slowHost.start();
+        try {
+            assertTrue(checking.await(10, TimeUnit.SECONDS));
+            final BapSshSessionPool.PooledSession other = pool.borrow("other", OTHER_KEY, 1, IDLE_TIMEOUT, 0);
+            pool.discard(other);
+        } finally {
+            answer.countDown();
+            slowHost.join();
+        }
+    }
+
+    @Test
+    void testLimitIsEnforced() {
+        pool.borrow("config", KEY, 1, IDLE_TIMEOUT, 0);
+        final BapPublisherException bpe = assertThrows(BapPublisherException.class, () -> pool.borrow("config", KEY, 1, IDLE_TIMEOUT, 100));
+        assertTrue(bpe.getMessage().contains("config"));
+    }
+
+    @Test
+    void testDiscardFreesSlot() {
+        final BapSshSessionPool.PooledSession first = pool.borrow("config", KEY, 1, IDLE_TIMEOUT, 0);
+        pool.discard(first);
+        assertEquals(0, pool.size(KEY));
+        pool.borrow("config", KEY, 1, IDLE_TIMEOUT, 100);
+        assertEquals(1, pool.size(KEY));
+    }
+
+    @Test
+    void testIdleSessionsAreEvicted() {
+        final Session session = connectedSession();
+        final BapSshSessionPool.PooledSession entry = pool.borrow("config", KEY, 0, IDLE_TIMEOUT, 0);
+        entry.attach(Collections.singletonList(session));
+        pool.release(entry);
+
+        assertEquals(0, pool.evictIdle(System.currentTimeMillis()));
+        assertEquals(1, pool.evictIdle(System.currentTimeMillis() + IDLE_TIMEOUT));
+        assertEquals(0, pool.size(KEY));
+        verify(session).disconnect();
+    }
+
+    @Test
+    void testLeasedSessionsAreNotEvicted() {
+        final BapSshSessionPool.PooledSession entry = pool.borrow("config", KEY, 0, IDLE_TIMEOUT, 0);
+        entry.attach(Collections.singletonList(connectedSession()));
+        assertEquals(0, pool.evictIdle(System.currentTimeMillis() + IDLE_TIMEOUT));
+        assertEquals(1, pool.size(KEY));
+    }
+
+    private static ChannelSftp connectedSftp() {
+        final ChannelSftp sftp = mock(ChannelSftp.class);
+        when(sftp.isConnected()).thenReturn(true);
+        return sftp;
+    }
+
+    private static Session connectedSession() {
+        final Session session = mock(Session.class);
+        when(session.isConnected()).thenReturn(true);
+        return session;
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.Session;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import jenkins.plugins.publish_over.BapPublisherException;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.easymock.classextension.EasyMock;
+import org.easymock.classextension.IMocksControl;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BapSshTarUploadTest {
+
+    private static final String REMOTE = "/var/www/site";
+
+    @TempDir
+    private File directory;
+
+    private final IMocksControl mockControl = EasyMock.createNiceControl();
+    private final Session mockSession = mockControl.createMock(Session.class);
+    private final ChannelExec mockExec = mockControl.createMock(ChannelExec.class);
+    private final BPBuildInfo buildInfo = new BPBuildInfo(TaskListener.NULL, "", new FilePath(new File("")), null, null);
+
+    @Test
+    void testNamesFollowRemovePrefixAndFlatten() {
+        assertEquals("images/logo.png", BapSshTarUpload.toName("target/site/images/logo.png", "target/site", false));
+        assertEquals("images/logo.png", BapSshTarUpload.toName("target\\site\\images\\logo.png", "/target/site/", false));
+        assertEquals("logo.png", BapSshTarUpload.toName("target/site/images/logo.png", null, true));
+        assertEquals("target/site/index.html", BapSshTarUpload.toName("target/site/index.html", "", false));
+        assertThrows(BapPublisherException.class, () -> BapSshTarUpload.toName("other/index.html", "target", false));
+    }
+
+    @Test
+    void testRemoteDirectories() {
+        assertEquals("/home/user", BapSshTarUpload.toRemoteDirectory("/home/user", null));
+        assertEquals("/home/user/www/site", BapSshTarUpload.toRemoteDirectory("/home/user", "/www/site/"));
+        assertEquals("/www", BapSshTarUpload.toRemoteDirectory("/", "www"));
+        assertEquals(REMOTE, BapSshTarUpload.toParentDirectory(REMOTE, "index.html"));
+        assertEquals(REMOTE + "/css/print", BapSshTarUpload.toParentDirectory(REMOTE, "css/print/main.css"));
+    }
+
+    @Test
+    void testCommandQuotesTheRemoteDirectory() {
+        assertEquals("mkdir -p '/it'\\''s' && cd '/it'\\''s' && tar -xof -", BapSshTarUpload.command("/it's", false, false));
+        assertEquals("mkdir -p '/www' && cd '/www' && tar -xzpof -", BapSshTarUpload.command("/www", true, true));
+    }
+
+    @Test
+    void testFilesAreStreamedAsOneArchive() throws Exception {
+        write("site/index.html", "<html/>");
+        write("site/css/main.css", "body {}");
+        final BapSshFileInfo files = BapSshFileInfo.scan(new FilePath(directory), "site/**", null, true);
+        final ByteArrayOutputStream stdin = expectTar(0);
+        mockControl.replay();
+
+        assertTrue(new BapSshTarUpload(buildInfo, mockSession, BapSshTransport.TAR_GZIP, null)
+                .upload(files, indexes(files), names(files), REMOTE, true, 0));
+        final Map<String, String> entries = readArchive(new GZIPInputStream(new ByteArrayInputStream(stdin.toByteArray())));
+        assertEquals("<html/>", entries.get("index.html"));
+        assertEquals("body {}", entries.get("css/main.css"));
+        // the directories are included with their permissions when keeping them
+        assertTrue(entries.containsKey("./"));
+        assertTrue(entries.containsKey("css/"));
+        mockControl.verify();
+    }
+
+    @Test
+    void testDirectoriesAreOnlyIncludedToKeepPermissions() throws Exception {
+        write("site/css/main.css", "body {}");
+        final BapSshFileInfo files = BapSshFileInfo.scan(new FilePath(directory), "site/**", null, true);
+        final ByteArrayOutputStream stdin = expectTar(0);
+        mockControl.replay();
+
+        assertTrue(new BapSshTarUpload(buildInfo, mockSession, BapSshTransport.TAR, null)
+                .upload(files, indexes(files), names(files), REMOTE, false, 0));
+        final Map<String, String> entries = readArchive(new ByteArrayInputStream(stdin.toByteArray()));
+        assertEquals(1, entries.size());
+        assertEquals("body {}", entries.get("css/main.css"));
+    }
+
+    @Test
+    void testMissingTarFallsBackToSftp() throws Exception {
+        write("site/index.html", "<html/>");
+        final BapSshFileInfo files = BapSshFileInfo.scan(new FilePath(directory), "site/**", null, true);
+        expectTar(BapSshTarUpload.COMMAND_NOT_FOUND);
+        mockControl.replay();
+
+        assertFalse(new BapSshTarUpload(buildInfo, mockSession, BapSshTransport.TAR, null)
+                .upload(files, indexes(files), names(files), REMOTE, false, 0));
+    }
+
+    @Test
+    void testFailedExtractionIsReported() throws Exception {
+        write("site/index.html", "<html/>");
+        final BapSshFileInfo files = BapSshFileInfo.scan(new FilePath(directory), "site/**", null, true);
+        expectTar(2);
+        mockControl.replay();
+
+        assertThrows(IOException.class, () -> new BapSshTarUpload(buildInfo, mockSession, BapSshTransport.TAR, null)
+                .upload(files, indexes(files), names(files), REMOTE, false, 0));
+    }
+
+    private ByteArrayOutputStream expectTar(final int exitStatus) throws Exception {
+        final ByteArrayOutputStream stdin = new ByteArrayOutputStream();
+        expect(mockSession.openChannel("exec")).andReturn(mockExec);
+        expect(mockExec.getOutputStream()).andReturn(stdin);
+        expect(mockExec.isClosed()).andReturn(true).anyTimes();
+        expect(mockExec.getExitStatus()).andReturn(exitStatus).anyTimes();
+        return stdin;
+    }
+
+    private static int[] indexes(final BapSshFileInfo files) {
+        final int[] indexes = new int[files.size()];
+        for (int i = 0; i < indexes.length; i++)
+            indexes[i] = i;
+        return indexes;
+    }
+
+    private static String[] names(final BapSshFileInfo files) {
+        final String[] names = new String[files.size()];
+        for (int i = 0; i < names.length; i++)
+            names[i] = BapSshTarUpload.toName(files.getPath(i), "site", false);
+        return names;
+    }
+
+    private static Map<String, String> readArchive(final InputStream in) throws IOException {
+        final Map<String, String> entries = new HashMap<>();
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(in)) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                final ByteArrayOutputStream content = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[1024];
+                int read;
+                while ((read = tar.read(buffer)) > 0)
+                    content.write(buffer, 0, read);
+                entries.put(entry.getName(), new String(content.toByteArray(), StandardCharsets.UTF_8));
+            }
+        }
+        return entries;
+    }
+
+    private void write(final String name, final String content) throws IOException {
+        final File file = new File(directory, name);
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpATTRS;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import org.easymock.classextension.EasyMock;
+import org.easymock.classextension.IMocksControl;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Vector;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BapSshTargetFilesTest {
+
+    private static final String REMOTE = "/var/www";
+
+    @TempDir
+    private File directory;
+
+    private final IMocksControl mockControl = EasyMock.createNiceControl();
+    private final ChannelSftp mockSftp = mockControl.createMock(ChannelSftp.class);
+    private final BPBuildInfo buildInfo = new BPBuildInfo(TaskListener.NULL, "", new FilePath(new File("")), null, null);
+
+    @Test
+    void testFilesAreComparedBySizeAndModificationTime() throws Exception {
+        final File same = write("same.txt", "content");
+        final File newer = write("newer.txt", "content");
+        final File resized = write("resized.txt", "content");
+        final File added = write("added.txt", "content");
+        final Vector<ChannelSftp.LsEntry> listing = new Vector<>(Arrays.asList(
+                entry("same.txt", 7, same.lastModified()),
+                entry("newer.txt", 7, newer.lastModified() - 10000),
+                entry("resized.txt", 6, resized.lastModified())));
+        expect(mockSftp.ls(REMOTE)).andReturn(listing).once();
+        mockControl.replay();
+
+        final BapSshTargetFiles stat = new BapSshTargetFiles(buildInfo, BapSshRemoteCompare.STAT, BapSshFileDigest.MD5, true);
+        assertEquals(BapSshTargetFiles.Decision.SKIP, stat.check(mockSftp, new FilePath(same), REMOTE, 7, same.lastModified()));
+        assertEquals(BapSshTargetFiles.Decision.UPLOAD, stat.check(mockSftp, new FilePath(newer), REMOTE, 7, newer.lastModified()));
+        assertEquals(BapSshTargetFiles.Decision.UPLOAD, stat.check(mockSftp, new FilePath(resized), REMOTE, 7, resized.lastModified()));
+        assertEquals(BapSshTargetFiles.Decision.UPLOAD, stat.check(mockSftp, new FilePath(added), REMOTE, 7, added.lastModified()));
+        assertFalse(stat.hasCandidates());
+        mockControl.verify();
+    }
+
+    @Test
+    void testFilesWithAnotherModificationTimeAreVerified() throws Exception {
+        final File newer = write("newer.txt", "content");
+        expect(mockSftp.ls(REMOTE)).andReturn(new Vector<>(Collections.singletonList(
+                entry("newer.txt", 7, newer.lastModified() - 10000)))).times(2);
+        mockControl.replay();
+
+        final BapSshTargetFiles checksum = new BapSshTargetFiles(buildInfo, BapSshRemoteCompare.CHECKSUM, BapSshFileDigest.MD5, true);
+        assertEquals(BapSshTargetFiles.Decision.VERIFY, checksum.check(mockSftp, new FilePath(newer), REMOTE, 7, newer.lastModified()));
+        assertTrue(checksum.hasCandidates());
+
+        final BapSshTargetFiles noExec = new BapSshTargetFiles(buildInfo, BapSshRemoteCompare.CHECKSUM, BapSshFileDigest.MD5, false);
+        assertEquals(BapSshTargetFiles.Decision.UPLOAD, noExec.check(mockSftp, new FilePath(newer), REMOTE, 7, newer.lastModified()));
+    }
+
+    @Test
+    void testCommandQuotesTheDirectoryAndFileNames() throws Exception {
+        final File file = write("it's.txt", "content");
+        final BapSshTargetFiles targetFiles = new BapSshTargetFiles(buildInfo, BapSshRemoteCompare.CHECKSUM, BapSshFileDigest.XXH64, true);
+        assertEquals("cd '/var/o'\\''brien' && xxhsum -H1 './it'\\''s.txt'", targetFiles.createCommand("/var/o'brien",
+                Collections.singletonList(new BapSshTargetFiles.Candidate(new FilePath(file), "/var/o'brien", 0))));
+    }
+
+    @Test
+    void testDigestOutputIsParsed() {
+        final Map<String, String> digests = BapSshTargetFiles.parseDigests(
+                "d41d8cd98f00b204e9800998ecf8427e  ./empty.txt\n"
+                + "9a0364b9e99bb480dd25e1f0284c8555 *./binary file.bin\n"
+                + "\\d41d8cd98f00b204e9800998ecf8427e  ./back\\\\slash\n"
+                + "md5sum: ./missing.txt: No such file or directory\n");
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e", digests.get("empty.txt"));
+        assertEquals("9a0364b9e99bb480dd25e1f0284c8555", digests.get("binary file.bin"));
+        assertNull(digests.get("back\\slash"));
+        assertEquals(2, digests.size());
+    }
+
+    @Test
+    void testUnknownNameFallsBackToNone() {
+        assertEquals(BapSshRemoteCompare.NONE, BapSshRemoteCompare.fromName(null));
+        assertEquals(BapSshRemoteCompare.CHECKSUM, BapSshRemoteCompare.fromName("CHECKSUM"));
+    }
+
+    private File write(final String name, final String content) throws Exception {
+        final File file = new File(directory, name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private ChannelSftp.LsEntry entry(final String name, final long size, final long lastModified) {
+        final SftpATTRS attrs = mockControl.createMock(SftpATTRS.class);
+        expect(attrs.getSize()).andReturn(size).anyTimes();
+        expect(attrs.getMTime()).andReturn(BapSshTargetFiles.toSeconds(lastModified)).anyTimes();
+        final ChannelSftp.LsEntry entry = mockControl.createMock(ChannelSftp.LsEntry.class);
+        expect(entry.getFilename()).andReturn(name).anyTimes();
+        expect(entry.getAttrs()).andReturn(attrs).anyTimes();
+        return entry;
+    }
+
+}
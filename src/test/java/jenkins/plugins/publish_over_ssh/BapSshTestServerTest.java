@@ -0,0 +1,133 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import hudson.FilePath;
+import jenkins.plugins.publish_over_ssh.helper.BapSshTestHelper;
+import jenkins.plugins.publish_over_ssh.helper.BapSshTestNetwork;
+import jenkins.plugins.publish_over_ssh.helper.BapSshTestServer;
+import jenkins.plugins.publish_over_ssh.helper.RandomFile;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.InputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Publishing to a real SSH server in this JVM, with the network conditions set by {@link BapSshTestNetwork}.
+ */
+class BapSshTestServerTest {
+
+    private static final long ROUND_TRIP_MILLIS = 50;
+
+    @TempDir
+    private File directory;
+
+    @Test
+    void testTransferFileUploadsTheFile() throws Exception {
+        final RandomFile file = new RandomFile(new File(directory, "local"), "file.bin");
+        try (BapSshTestServer server = new BapSshTestServer(remote())) {
+            transfer(server, file.getFile());
+            assertArrayEquals(file.getContents(), FileUtils.readFileToByteArray(new File(server.getRoot(), "file.bin")));
+            assertEquals(1, server.getSessions());
+            assertTrue(server.getSftpRequests() > 0);
+        }
+    }
+
+    @Test
+    void testEachRoundTripWaitsForTheLatency() throws Exception {
+        final RandomFile file = new RandomFile(new File(directory, "local"), "file.bin");
+        try (BapSshTestServer server = new BapSshTestServer(remote(), new BapSshTestNetwork().roundTrip(ROUND_TRIP_MILLIS))) {
+            final long start = System.currentTimeMillis();
+            transfer(server, file.getFile());
+            // connecting alone needs several round trips, the upload then at least opens and closes the file
+            assertTrue(System.currentTimeMillis() - start >= 5 * ROUND_TRIP_MILLIS);
+        }
+    }
+
+    @Test
+    void testUploadIsLimitedToTheBandwidth() throws Exception {
+        final RandomFile file = new RandomFile(new File(new File(directory, "local"), "file.bin"), 512 * 1024);
+        try (BapSshTestServer server = new BapSshTestServer(remote(), new BapSshTestNetwork().bandwidth(1024 * 1024))) {
+            final long start = System.currentTimeMillis();
+            transfer(server, file.getFile());
+            assertTrue(System.currentTimeMillis() - start >= 450);
+            assertEquals(file.getFile().length(), new File(server.getRoot(), "file.bin").length());
+        }
+    }
+
+    @Test
+    void testServerDelaysEachRequest() throws Exception {
+        final RandomFile file = new RandomFile(new File(directory, "local"), "file.bin");
+        try (BapSshTestServer server = new BapSshTestServer(remote(), new BapSshTestNetwork().requestDelay(20))) {
+            final long start = System.currentTimeMillis();
+            transfer(server, file.getFile());
+            assertTrue(System.currentTimeMillis() - start >= 20L * server.getSftpRequests());
+        }
+    }
+
+    @Test
+    void testConnectionsOverTheLimitAreRefused() throws Exception {
+        try (BapSshTestServer server = new BapSshTestServer(remote(), new BapSshTestNetwork().maxConnections(1))) {
+            final Session session = server.connect();
+            try {
+                assertThrows(JSchException.class, server::connect);
+                assertEquals(1, server.getRejectedConnections());
+                assertEquals(1, server.getPeakSessions());
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+
+    private File remote() {
+        final File remote = new File(directory, "remote");
+        assertTrue(remote.mkdirs());
+        return remote;
+    }
+
+    private static void transfer(final BapSshTestServer server, final File file) throws Exception {
+        final BapSshClient client = new BapSshClient(BapSshTestHelper.createEmpty(true), server.connect(), true, false);
+        try {
+            client.setSftp(BapSshTestServer.openSftp(client.getSession()));
+            assertTrue(client.changeDirectory("/"));
+            final FilePath filePath = new FilePath(file);
+            try (InputStream in = filePath.read()) {
+                client.transferFile(new BapSshTransfer("", "", "", false, false, "", 0), filePath, in);
+            }
+        } finally {
+            client.disconnect();
+        }
+    }
+
+}
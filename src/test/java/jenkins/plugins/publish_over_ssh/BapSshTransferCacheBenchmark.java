@@ -0,0 +1,127 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.publish_over_ssh;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opening, looking up and saving the index of the transfer cache as it grows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BapSshTransferCacheBenchmark {
+
+    private static final int DIGEST_LENGTH = BapSshFileDigest.MD5.getLength();
+    /** Files changed by one build in {@link #saveChanges}. */
+    private static final int CHANGES = 100;
+
+    @Param({"10000", "100000", "1000000"})
+    public int entries;
+
+    private File directory;
+    private File index;
+    private String[] keys;
+    private BapSshTransferCacheStore store;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void createIndex() throws IOException {
+        directory = Files.createTempDirectory("transfer-cache-benchmark").toFile();
+        index = new File(directory, "target" + BapSshTransferCache.CACHE_EXTENSION);
+        keys = new String[entries];
+        final BapSshTransferCacheStore created = BapSshTransferCacheStore.open(index, DIGEST_LENGTH);
+        for (int i = 0; i < entries; i++) {
+            keys[i] = "R\n/var/www/site\n/home/jenkins/workspace/job/target/site/file-" + i + ".html";
+            created.put(keys[i], row(i));
+        }
+        created.save();
+    }
+
+    @Setup(Level.Iteration)
+    public void openIndex() throws IOException {
+        store = BapSshTransferCacheStore.open(index, DIGEST_LENGTH);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteIndex() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    // the index classes are not visible to the code JMH generates in another package, so Object is returned
+    @Benchmark
+    public Object open() throws IOException {
+        return BapSshTransferCacheStore.open(index, DIGEST_LENGTH);
+    }
+
+    @Benchmark
+    public Object lookup() {
+        next = (next + 7919) % entries;
+        return store.get(keys[next]);
+    }
+
+    @Benchmark
+    public Object lookupMissing() {
+        return store.get("R\n/var/www/site\n/not/tracked-" + next++);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void saveChanges() throws IOException {
+        for (int i = 0; i < CHANGES; i++) {
+            next = (next + 7919) % entries;
+            store.put(keys[next], row(next + 1));
+        }
+        store.save();
+    }
+
+    private static BapSshTransferCacheRow row(final int value) {
+        final byte[] digest = new byte[DIGEST_LENGTH];
+        for (int i = 0; i < Integer.BYTES; i++)
+            digest[i] = (byte) (value >>> (i * 8));
+        return new BapSshTransferCacheRow(value, value, digest);
+    }
+
+}
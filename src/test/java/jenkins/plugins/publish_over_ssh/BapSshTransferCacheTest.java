@@ -0,0 +1,279 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import hudson.FilePath;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BapSshTransferCacheTest {
+
+    private static final String TARGET = "target";
+    private static final String REMOTE = "/remote";
+
+    @TempDir
+    private File jobDir;
+
+    private File indexFile() {
+        return BapSshTransferCache.getCacheFile(jobDir, TARGET);
+    }
+
+    @Test
+    void testChangesAreOnlyWrittenOnSave() throws Exception {
+        final BapSshTransferCacheStore store = BapSshTransferCacheStore.open(indexFile(), 16);
+        store.put("/a", row(1));
+        assertEquals(1, store.get("/a").LastModified);
+        assertFalse(indexFile().exists());
+        store.save();
+        assertEquals(1, BapSshTransferCacheStore.open(indexFile(), 16).get("/a").LastModified);
+    }
+
+    @Test
+    void testAppendedRecordsAreCompacted() throws Exception {
+        final BapSshTransferCacheStore store = BapSshTransferCacheStore.open(indexFile(), 16);
+        final int count = BapSshTransferCacheStore.MIN_COMPACT_RECORDS * 2;
+        for (int i = 0; i < count; i++)
+            store.put("/file" + i, row(i));
+        store.save();
+        assertEquals(BapSshTransferCacheStore.HEADER_SIZE + (long) count * BapSshTransferCacheStore.RECORD_SIZE, indexFile().length());
+
+        final BapSshTransferCacheStore reopened = BapSshTransferCacheStore.open(indexFile(), 16);
+        for (int i = 0; i < count; i++)
+            assertEquals(i, reopened.get("/file" + i).LastModified);
+        assertNull(reopened.get("/missing"));
+
+        reopened.put("/file1", row(1000));
+        reopened.save();
+        assertEquals(1000, BapSshTransferCacheStore.open(indexFile(), 16).get("/file1").LastModified);
+    }
+
+    @Test
+    void testOpenIndexCanBeCompactedAndDeleted() throws Exception {
+        final BapSshTransferCacheStore store = BapSshTransferCacheStore.open(indexFile(), 16);
+        final int count = BapSshTransferCacheStore.MIN_COMPACT_RECORDS * 2;
+        for (int i = 0; i < count; i++)
+            store.put("/file" + i, row(i));
+        store.save();
+        final BapSshTransferCacheStore reopened = BapSshTransferCacheStore.open(indexFile(), 16);
+        assertEquals(1, reopened.get("/file1").LastModified);
+
+        final BapSshTransferCacheStore writer = BapSshTransferCacheStore.open(indexFile(), 16);
+        for (int i = 0; i < count; i++)
+            writer.put("/other" + i, row(i));
+        writer.save();
+        assertEquals(BapSshTransferCacheStore.HEADER_SIZE + (long) count * 2 * BapSshTransferCacheStore.RECORD_SIZE, indexFile().length());
+        assertEquals(1, BapSshTransferCacheStore.open(indexFile(), 16).get("/other1").LastModified);
+
+        assertTrue(BapSshTransferCacheStore.delete(indexFile()));
+        assertFalse(indexFile().exists());
+        assertEquals(count - 1, reopened.get("/file" + (count - 1)).LastModified);
+    }
+
+    @Test
+    void testChangesOfALoadedIndexAreAppended() throws Exception {
+        final BapSshTransferCacheStore store = BapSshTransferCacheStore.open(indexFile(), 16);
+        store.put("/a", row(1));
+        store.save();
+        final BapSshTransferCacheStore loaded = BapSshTransferCacheStore.load(BapSshTransferCacheStore.readIndex(indexFile(), 16), 16);
+        assertEquals(1, loaded.get("/a").LastModified);
+
+        store.put("/b", row(2));
+        store.save();
+        loaded.put("/c", row(3));
+        BapSshTransferCacheStore.append(indexFile(), 16, loaded.takeChanges());
+        assertEquals(3, loaded.get("/c").LastModified);
+        assertEquals(0, loaded.takeChanges().length);
+
+        final BapSshTransferCacheStore reopened = BapSshTransferCacheStore.open(indexFile(), 16);
+        assertEquals(1, reopened.get("/a").LastModified);
+        assertEquals(2, reopened.get("/b").LastModified);
+        assertEquals(3, reopened.get("/c").LastModified);
+    }
+
+    @Test
+    void testPartialRecordIsIgnoredAndCutOff() throws Exception {
+        final BapSshTransferCacheStore store = BapSshTransferCacheStore.open(indexFile(), 16);
+        store.put("/a", row(1));
+        store.save();
+        try (RandomAccessFile file = new RandomAccessFile(indexFile(), "rw")) {
+            file.setLength(file.length() + 10);
+        }
+        final BapSshTransferCacheStore reopened = BapSshTransferCacheStore.open(indexFile(), 16);
+        assertEquals(1, reopened.get("/a").LastModified);
+        reopened.put("/b", row(2));
+        reopened.save();
+        assertEquals(0, (indexFile().length() - BapSshTransferCacheStore.HEADER_SIZE) % BapSshTransferCacheStore.RECORD_SIZE);
+        assertEquals(2, BapSshTransferCacheStore.open(indexFile(), 16).get("/b").LastModified);
+    }
+
+    @Test
+    void testIndexWithOtherDigestIsDiscarded() throws Exception {
+        final BapSshTransferCacheStore store = BapSshTransferCacheStore.open(indexFile(), 16);
+        store.put("/a", row(1));
+        store.save();
+        assertNull(BapSshTransferCacheStore.open(indexFile(), 32).get("/a"));
+        assertFalse(indexFile().exists());
+    }
+
+    @Test
+    void testUnchangedFileIsSkipped() throws Exception {
+        final File upload = new File(jobDir, "upload.txt");
+        Files.write(upload.toPath(), "content".getBytes(StandardCharsets.UTF_8));
+        final FilePath uploadPath = new FilePath(upload);
+
+        final BapSshTransferCache cache = new BapSshTransferCache(new FilePath(jobDir), TARGET, BapSshFileDigest.MD5);
+        assertTrue(cache.checkCachedResource(uploadPath, REMOTE));
+        cache.save();
+
+        assertFalse(new BapSshTransferCache(new FilePath(jobDir), TARGET, BapSshFileDigest.MD5).checkCachedResource(uploadPath, REMOTE));
+
+        Files.write(upload.toPath(), "changed".getBytes(StandardCharsets.UTF_8));
+        assertTrue(upload.setLastModified(upload.lastModified() + 10000));
+        assertTrue(new BapSshTransferCache(new FilePath(jobDir), TARGET, BapSshFileDigest.MD5).checkCachedResource(uploadPath, REMOTE));
+    }
+
+    @Test
+    void testSizeChangeIsDetectedWithoutNewerTimestamp() throws Exception {
+        final File upload = new File(jobDir, "upload.txt");
+        Files.write(upload.toPath(), "content".getBytes(StandardCharsets.UTF_8));
+        final long lastModified = upload.lastModified();
+        final FilePath uploadPath = new FilePath(upload);
+        final BapSshTransferCache cache = new BapSshTransferCache(new FilePath(jobDir), TARGET, BapSshFileDigest.XXH64);
+        assertTrue(cache.checkCachedResource(uploadPath, REMOTE));
+        cache.save();
+
+        Files.write(upload.toPath(), "longer content".getBytes(StandardCharsets.UTF_8));
+        assertTrue(upload.setLastModified(lastModified));
+        assertTrue(new BapSshTransferCache(new FilePath(jobDir), TARGET, BapSshFileDigest.XXH64).checkCachedResource(uploadPath, REMOTE));
+    }
+
+    @Test
+    void testTouchedFileIsNotUploadedAndNotHashedAgain() throws Exception {
+        final File upload = new File(jobDir, "upload.txt");
+        Files.write(upload.toPath(), "content".getBytes(StandardCharsets.UTF_8));
+        final FilePath uploadPath = new FilePath(upload);
+        final BapSshTransferCache cache = new BapSshTransferCache(new FilePath(jobDir), TARGET, BapSshFileDigest.MD5);
+        assertTrue(cache.checkCachedResource(uploadPath, REMOTE));
+        cache.save();
+
+        assertTrue(upload.setLastModified(upload.lastModified() + 10000));
+        final BapSshTransferCache touched = new BapSshTransferCache(new FilePath(jobDir), TARGET, BapSshFileDigest.MD5);
+        assertFalse(touched.checkCachedResource(uploadPath, REMOTE));
+        touched.save();
+
+        final BapSshTransferCacheRow row = BapSshTransferCacheStore.open(indexFile(), 16).get("R\n" + REMOTE + "\n" + upload.getAbsolutePath());
+        assertEquals(upload.lastModified(), row.LastModified);
+    }
+
+    @Test
+    void testPreparedHashesGiveTheSameDecisions() throws Exception {
+        final FilePath[] uploads = new FilePath[20];
+        for (int i = 0; i < uploads.length; i++) {
+            final File upload = new File(jobDir, "upload" + i + ".txt");
+            Files.write(upload.toPath(), ("content " + i).getBytes(StandardCharsets.UTF_8));
+            uploads[i] = new FilePath(upload);
+        }
+        final BapSshTransferCache cache = new BapSshTransferCache(new FilePath(jobDir), TARGET, BapSshFileDigest.XXH64);
+        cache.prepare(BapSshFileInfo.scan(new FilePath(jobDir), "upload*.txt", null, true));
+        for (FilePath upload : uploads)
+            assertTrue(cache.checkCachedResource(upload, REMOTE));
+        cache.save();
+
+        final File changed = new File(uploads[3].getRemote());
+        Files.write(changed.toPath(), "changed".getBytes(StandardCharsets.UTF_8));
+        assertTrue(changed.setLastModified(changed.lastModified() + 10000));
+        final BapSshTransferCache second = new BapSshTransferCache(new FilePath(jobDir), TARGET, BapSshFileDigest.XXH64);
+        second.prepare(BapSshFileInfo.scan(new FilePath(jobDir), "upload*.txt", null, true));
+        for (int i = 0; i < uploads.length; i++)
+            assertEquals(i == 3, second.checkCachedResource(uploads[i], REMOTE));
+    }
+
+    @Test
+    void testUploadsAreTrackedPerRemoteDirectoryAndTarget() throws Exception {
+        final File upload = new File(jobDir, "upload.txt");
+        Files.write(upload.toPath(), "content".getBytes(StandardCharsets.UTF_8));
+        final FilePath uploadPath = new FilePath(upload);
+        final BapSshTransferCache cache = new BapSshTransferCache(new FilePath(jobDir), TARGET, BapSshFileDigest.MD5);
+        assertTrue(cache.checkCachedResource(uploadPath, REMOTE));
+        assertTrue(cache.checkCachedResource(uploadPath, "/other"));
+        assertFalse(cache.checkCachedResource(uploadPath, REMOTE));
+        cache.save();
+
+        assertTrue(new BapSshTransferCache(new FilePath(jobDir), "other", BapSshFileDigest.MD5).checkCachedResource(uploadPath, REMOTE));
+        assertFalse(new BapSshTransferCache(new FilePath(jobDir), TARGET, BapSshFileDigest.MD5).checkCachedResource(uploadPath, "/other"));
+    }
+
+    @Test
+    void testUnscopedCachesAreDeleted() throws Exception {
+        for (String legacyName : BapSshTransferCache.LEGACY_CACHEFILENAMES)
+            Files.write(new File(jobDir, legacyName).toPath(), "{}".getBytes(StandardCharsets.UTF_8));
+        new BapSshTransferCache(new FilePath(jobDir), TARGET, BapSshFileDigest.MD5);
+        for (String legacyName : BapSshTransferCache.LEGACY_CACHEFILENAMES)
+            assertFalse(new File(jobDir, legacyName).exists());
+    }
+
+    @Test
+    void testInvalidateForgetsTheTarget() throws Exception {
+        final File upload = new File(jobDir, "upload.txt");
+        Files.write(upload.toPath(), "content".getBytes(StandardCharsets.UTF_8));
+        final FilePath uploadPath = new FilePath(upload);
+        final BapSshTransferCache cache = new BapSshTransferCache(new FilePath(jobDir), TARGET, BapSshFileDigest.MD5);
+        assertTrue(cache.checkCachedResource(uploadPath, REMOTE));
+        cache.save();
+
+        assertEquals(1, BapSshTransferCache.invalidate(Collections.singletonList(jobDir), TARGET));
+        assertEquals(0, BapSshTransferCache.invalidate(Collections.singletonList(jobDir), TARGET));
+        assertFalse(indexFile().exists());
+        assertTrue(new BapSshTransferCache(new FilePath(jobDir), TARGET, BapSshFileDigest.MD5).checkCachedResource(uploadPath, REMOTE));
+    }
+
+    @Test
+    void testTargetChangesWithTheServer() {
+        final String target = BapSshTransferCache.createTarget("my host", "example.com", 22, "user", "/var/www");
+        assertTrue(target.startsWith("my_host-"));
+        assertEquals(target, BapSshTransferCache.createTarget("my host", "example.com", 22, "user", "/var/www"));
+        assertFalse(target.equals(BapSshTransferCache.createTarget("my host", "example.org", 22, "user", "/var/www")));
+        assertFalse(target.equals(BapSshTransferCache.createTarget("my host", "example.com", 22, "user", "/srv")));
+    }
+
+    private static BapSshTransferCacheRow row(final long lastModified) {
+        final BapSshTransferCacheRow row = new BapSshTransferCacheRow();
+        row.LastModified = lastModified;
+        row.HashValue = new byte[16];
+        return row;
+    }
+
+}
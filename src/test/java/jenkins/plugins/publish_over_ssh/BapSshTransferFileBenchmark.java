@@ -0,0 +1,111 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jenkins.plugins.publish_over_ssh;
+
+import hudson.FilePath;
+import jenkins.plugins.publish_over_ssh.helper.BapSshTestHelper;
+import jenkins.plugins.publish_over_ssh.helper.BapSshTestServer;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploading one file with {@link BapSshClient#transferFile} to an SSH server in this JVM, end to end through JSch and
+ * SFTP but without a network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BapSshTransferFileBenchmark {
+
+    @Param({"65536", "1048576", "16777216"})
+    public int size;
+
+    private File directory;
+    private BapSshTestServer server;
+    private BapSshClient client;
+    private BapSshTransfer transfer;
+    private FilePath filePath;
+
+    @Setup(Level.Trial)
+    public void connect() throws Exception {
+        directory = Files.createTempDirectory("transfer-file-benchmark").toFile();
+        final File remote = new File(directory, "remote");
+        final File local = new File(directory, "local");
+        Files.createDirectories(remote.toPath());
+        Files.createDirectories(local.toPath());
+        final File file = new File(local, "file.bin");
+        final byte[] buffer = new byte[64 * 1024];
+        final Random random = new Random(size);
+        try (OutputStream out = Files.newOutputStream(file.toPath())) {
+            for (int written = 0; written < size; written += buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, Math.min(buffer.length, size - written));
+            }
+        }
+        filePath = new FilePath(file);
+        server = new BapSshTestServer(remote);
+        client = new BapSshClient(BapSshTestHelper.createEmpty(true), server.connect(), true, false);
+        client.setSftp(BapSshTestServer.openSftp(client.getSession()));
+        if (!client.changeDirectory("/"))
+            throw new IllegalStateException("Cannot change to the root of the test server");
+        transfer = new BapSshTransfer("", "", "", false, false, "", 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void disconnect() throws Exception {
+        client.disconnect();
+        server.close();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public void transferFile() throws Exception {
+        try (InputStream in = filePath.read()) {
+            client.transferFile(transfer, filePath, in);
+        }
+    }
+
+}
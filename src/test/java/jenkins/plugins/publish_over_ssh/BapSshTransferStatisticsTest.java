@@ -0,0 +1,143 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh;
+
+import hudson.model.Run;
+import org.easymock.classextension.EasyMock;
+import org.easymock.classextension.IMocksControl;
+import org.junit.jupiter.api.Test;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BapSshTransferStatisticsTest {
+
+    private final IMocksControl mockControl = EasyMock.createStrictControl();
+    private final Run<?, ?> mockRun = mockControl.createMock(Run.class);
+
+    @Test
+    void testTotalsAddUpTheTransfers() {
+        final BapSshTransferStatistics statistics = createStatistics("web");
+        assertEquals(3, statistics.getFilesUploaded());
+        assertEquals(3 * 1024 * 1024, statistics.getBytesUploaded());
+        assertEquals(1, statistics.getFilesSkipped());
+        assertEquals(100, statistics.getBytesSkipped());
+        assertEquals(2000, statistics.getUploadMillis());
+        assertEquals(15, statistics.getSkipCheckMillis());
+        assertEquals(250, statistics.getExecMillis());
+        assertEquals(1.5, statistics.getMegabytesPerSecond(), 0.001);
+        assertEquals(2.0, statistics.getTransfers().get(0).getMegabytesPerSecond(), 0.001);
+    }
+
+    @Test
+    void testNothingUploadedInNoTimeHasNoThroughput() {
+        assertEquals(0, new BapSshTransferStatistics().getMegabytesPerSecond(), 0);
+    }
+
+    @Test
+    void testJsonRoundTrip() throws Exception {
+        final byte[] json = createStatistics("web").toJson();
+        assertEquals('\n', json[json.length - 1]);
+        final BapSshTransferStatistics read = BapSshTransferStatistics.fromJson(json);
+        assertEquals("web", read.getConfigName());
+        assertEquals(12, read.getConnectMillis());
+        assertEquals(80, read.getHandshakeMillis());
+        assertEquals(7, read.getSftpOpenMillis());
+        assertEquals(2, read.getTransfers().size());
+        assertEquals(2, read.getTransfers().get(1).getIndex());
+        assertEquals(3, read.getFilesUploaded());
+        assertEquals(250, read.getExecMillis());
+    }
+
+    @Test
+    void testCollectorAddsEachLineToTheBuild() throws Exception {
+        final BapSshTransferStatisticsAction action = new BapSshTransferStatisticsAction();
+        expect(mockRun.getAction(BapSshTransferStatisticsAction.class)).andReturn(action);
+        mockRun.save();
+        expect(mockRun.getAction(BapSshTransferStatisticsAction.class)).andReturn(action);
+        mockRun.save();
+        mockControl.replay();
+
+        final byte[] first = createStatistics("web").toJson();
+        final byte[] second = createStatistics("db").toJson();
+        final byte[] both = new byte[first.length + second.length];
+        System.arraycopy(first, 0, both, 0, first.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        final OutputStream collector = BapSshTransferStatisticsAction.collector(mockRun);
+        // the lines arrive in pieces that do not follow the line ends
+        collector.write(both, 0, 10);
+        collector.write(both, 10, first.length);
+        collector.write(both, 10 + first.length, second.length - 10);
+        mockControl.verify();
+
+        final List<BapSshTransferStatistics> hosts = action.getHosts();
+        assertEquals(2, hosts.size());
+        assertEquals("web", hosts.get(0).getConfigName());
+        assertEquals("db", hosts.get(1).getConfigName());
+    }
+
+    @Test
+    void testCollectorAddsTheActionToTheBuild() throws Exception {
+        expect(mockRun.getAction(BapSshTransferStatisticsAction.class)).andReturn(null);
+        mockRun.addAction(EasyMock.isA(BapSshTransferStatisticsAction.class));
+        mockRun.save();
+        mockControl.replay();
+        BapSshTransferStatisticsAction.collector(mockRun).write(createStatistics("web").toJson());
+        mockControl.verify();
+    }
+
+    @Test
+    void testCollectorDropsLinesThatAreNotStatistics() throws Exception {
+        mockControl.replay();
+        final OutputStream collector = BapSshTransferStatisticsAction.collector(mockRun);
+        collector.write("not json\n".getBytes(StandardCharsets.UTF_8));
+        collector.write(new byte[BapSshTransferStatisticsAction.MAX_LINE_LENGTH + 1]);
+        collector.write('\n');
+        mockControl.verify();
+    }
+
+    private static BapSshTransferStatistics createStatistics(final String configName) {
+        final BapSshTransferStatistics statistics = new BapSshTransferStatistics();
+        statistics.setConfigName(configName);
+        statistics.addConnect(12, 80);
+        statistics.addSftpOpen(7);
+        final BapSshTransferStatistics.Transfer first = statistics.beginTransfer();
+        first.uploaded(1024 * 1024);
+        first.uploaded(1024 * 1024);
+        first.skipped(100);
+        first.addSkipCheck(15);
+        first.addUpload(1000);
+        final BapSshTransferStatistics.Transfer second = statistics.beginTransfer();
+        second.uploaded(1024 * 1024);
+        second.addUpload(1000);
+        second.addExec(250);
+        return statistics;
+    }
+
+}
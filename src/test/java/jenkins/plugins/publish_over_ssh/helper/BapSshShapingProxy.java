@@ -0,0 +1,215 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh.helper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A TCP proxy on the loopback interface that adds latency, caps the bandwidth and limits the number of connections
+ * to another port, as described by a {@link BapSshTestNetwork}.
+ */
+public class BapSshShapingProxy implements Closeable {
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+    /** Chunks read ahead of the writer, this is the window of the simulated link. */
+    private static final int QUEUE_CHUNKS = 64;
+    private static final Chunk END = new Chunk(0, new byte[0]);
+
+    private final BapSshTestNetwork network;
+    private final int targetPort;
+    private final ServerSocket serverSocket;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * @param network the conditions to simulate
+     * @param targetPort loopback port to forward the connections to
+     * @throws IOException if the proxy could not listen
+     */
+    public BapSshShapingProxy(final BapSshTestNetwork network, final int targetPort) throws IOException {
+        this.network = network;
+        this.targetPort = targetPort;
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        start("accept", this::accept);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return connections closed straight away because {@link BapSshTestNetwork#getMaxConnections()} were open
+     */
+    public int getRejectedConnections() {
+        return rejected.get();
+    }
+
+    private void accept() {
+        while (!closed) {
+            final Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (IOException ioe) {
+                return;
+            }
+            final int maxConnections = network.getMaxConnections();
+            // only this thread adds connections, so the count can not go over the limit between the check and the add
+            if (maxConnections > 0 && active.get() >= maxConnections) {
+                rejected.incrementAndGet();
+                closeQuietly(client);
+                continue;
+            }
+            active.incrementAndGet();
+            try {
+                final Socket server = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                final Connection connection = new Connection(client, server);
+                connection.pipe("upstream", client, server);
+                connection.pipe("downstream", server, client);
+            } catch (IOException ioe) {
+                active.decrementAndGet();
+                closeQuietly(client);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+    }
+
+    private static Thread start(final String name, final Runnable runnable) {
+        final Thread thread = new Thread(runnable, "BapSshShapingProxy " + name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void closeQuietly(final Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ioe) {
+            // nothing to do
+        }
+    }
+
+    private static void sleepUntil(final long nanoTime) throws InterruptedException {
+        final long wait = nanoTime - System.nanoTime();
+        if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    private static final class Chunk {
+        private final long due;
+        private final byte[] data;
+
+        Chunk(final long due, final byte[] data) {
+            this.due = due;
+            this.data = data;
+        }
+    }
+
+    /** Both directions of one proxied connection, the sockets are closed once both have finished. */
+    private final class Connection {
+        private final Socket client;
+        private final Socket server;
+        private final AtomicInteger open = new AtomicInteger(2);
+
+        Connection(final Socket client, final Socket server) {
+            this.client = client;
+            this.server = server;
+        }
+
+        void pipe(final String direction, final Socket from, final Socket to) throws IOException {
+            final InputStream in = from.getInputStream();
+            final OutputStream out = to.getOutputStream();
+            final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+            final long oneWayNanos = TimeUnit.MILLISECONDS.toNanos(network.getRoundTripMillis()) / 2;
+            start(direction + " read", () -> {
+                final byte[] buffer = new byte[CHUNK_SIZE];
+                try {
+                    int read;
+                    while ((read = in.read(buffer)) >= 0)
+                        queue.put(new Chunk(System.nanoTime() + oneWayNanos, Arrays.copyOf(buffer, read)));
+                } catch (IOException ioe) {
+                    // the connection has gone, the writer finishes on END
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                try {
+                    queue.put(END);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            start(direction + " write", () -> {
+                final long bytesPerSecond = network.getBytesPerSecond();
+                long nextSend = System.nanoTime();
+                try {
+                    Chunk chunk;
+                    while ((chunk = queue.take()) != END) {
+                        sleepUntil(Math.max(chunk.due, nextSend));
+                        out.write(chunk.data);
+                        out.flush();
+                        if (bytesPerSecond > 0)
+                            nextSend = Math.max(System.nanoTime(), nextSend) + chunk.data.length * 1000000000L / bytesPerSecond;
+                    }
+                    to.shutdownOutput();
+                } catch (IOException ioe) {
+                    // stop the reader, and make room in the queue for its END
+                    closeQuietly(from);
+                    queue.clear();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    finished();
+                }
+            });
+        }
+
+        private void finished() {
+            if (open.decrementAndGet() == 0) {
+                closeQuietly(client);
+                closeQuietly(server);
+                active.decrementAndGet();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh.helper;
+
+/**
+ * The network conditions a {@link BapSshTestServer} simulates. Zero for any of the settings leaves it out.
+ */
+public class BapSshTestNetwork {
+
+    private long roundTripMillis;
+    private long bytesPerSecond;
+    private long requestDelayMillis;
+    private int maxConnections;
+
+    /**
+     * @param roundTripMillis time added to every round trip, half of it to each direction
+     * @return this
+     */
+    public BapSshTestNetwork roundTrip(final long roundTripMillis) {
+        this.roundTripMillis = roundTripMillis;
+        return this;
+    }
+
+    /**
+     * @param bytesPerSecond the most bytes a connection carries each second in each direction
+     * @return this
+     */
+    public BapSshTestNetwork bandwidth(final long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * @param requestDelayMillis time the server takes before it handles each SFTP request or exec command
+     * @return this
+     */
+    public BapSshTestNetwork requestDelay(final long requestDelayMillis) {
+        this.requestDelayMillis = requestDelayMillis;
+        return this;
+    }
+
+    /**
+     * @param maxConnections the most connections open at the same time, the server closes any more straight away
+     * @return this
+     */
+    public BapSshTestNetwork maxConnections(final int maxConnections) {
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    public long getRoundTripMillis() {
+        return roundTripMillis;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long getRequestDelayMillis() {
+        return requestDelayMillis;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return true if connections have to go through a {@link BapSshShapingProxy}
+     */
+    public boolean isShaped() {
+        return roundTripMillis > 0 || bytesPerSecond > 0 || maxConnections > 0;
+    }
+
+    void delayRequest() {
+        if (requestDelayMillis > 0) {
+            try {
+                Thread.sleep(requestDelayMillis);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh.helper;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import org.apache.sshd.common.config.keys.KeyUtils;
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.common.session.SessionListener;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.server.shell.ProcessShellCommandFactory;
+import org.apache.sshd.sftp.server.SftpEventListener;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An SSH server with SFTP and exec in this JVM, serving a local directory as its file system, for tests and benchmarks
+ * that need a real server rather than mocks. A {@link BapSshTestNetwork} makes it behave like a server across a slower
+ * network, and the server counts the sessions and requests so that round trips and concurrency can be asserted on.
+ */
+public class BapSshTestServer implements Closeable {
+
+    public static final String USERNAME = "bap";
+    public static final String PASSWORD = "publish-over-ssh";
+
+    private final File root;
+    private final SshServer server;
+    private final BapSshShapingProxy proxy;
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final AtomicInteger openSessions = new AtomicInteger();
+    private final AtomicInteger peakSessions = new AtomicInteger();
+    private final AtomicInteger sftpRequests = new AtomicInteger();
+    private final AtomicInteger execCommands = new AtomicInteger();
+
+    /**
+     * @param root directory served as the root of the SFTP file system
+     * @throws IOException if the server could not be started
+     */
+    public BapSshTestServer(final File root) throws IOException {
+        this(root, new BapSshTestNetwork());
+    }
+
+    /**
+     * @param root directory served as the root of the SFTP file system
+     * @param network the conditions the connections to the server see
+     * @throws IOException if the server could not be started
+     */
+    public BapSshTestServer(final File root, final BapSshTestNetwork network) throws IOException {
+        this.root = root;
+        server = SshServer.setUpDefaultServer();
+        server.setHost("127.0.0.1");
+        server.setPort(0);
+        final SimpleGeneratorHostKeyProvider hostKeys = new SimpleGeneratorHostKeyProvider();
+        hostKeys.setAlgorithm(KeyUtils.RSA_ALGORITHM);
+        server.setKeyPairProvider(hostKeys);
+        server.setPasswordAuthenticator((username, password, session) -> USERNAME.equals(username) && PASSWORD.equals(password));
+        final SftpSubsystemFactory sftp = new SftpSubsystemFactory();
+        sftp.addSftpEventListener(new SftpEventListener() {
+            @Override
+            public void received(final ServerSession session, final int type, final int id) {
+                sftpRequests.incrementAndGet();
+                network.delayRequest();
+            }
+        });
+        server.setSubsystemFactories(Collections.singletonList(sftp));
+        server.setCommandFactory((channel, command) -> {
+            execCommands.incrementAndGet();
+            network.delayRequest();
+            return ProcessShellCommandFactory.INSTANCE.createCommand(channel, command);
+        });
+        server.setFileSystemFactory(new VirtualFileSystemFactory(root.toPath()));
+        server.addSessionListener(new SessionListener() {
+            @Override
+            public void sessionCreated(final org.apache.sshd.common.session.Session session) {
+                sessions.incrementAndGet();
+                peakSessions.accumulateAndGet(openSessions.incrementAndGet(), Math::max);
+            }
+
+            @Override
+            public void sessionClosed(final org.apache.sshd.common.session.Session session) {
+                openSessions.decrementAndGet();
+            }
+        });
+        server.start();
+        proxy = network.isShaped() ? new BapSshShapingProxy(network, server.getPort()) : null;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the port to connect to, the port of the {@link BapSshShapingProxy} when the network is shaped
+     */
+    public int getPort() {
+        return proxy == null ? server.getPort() : proxy.getPort();
+    }
+
+    /**
+     * @return sessions opened since the server started or the counters were reset
+     */
+    public int getSessions() {
+        return sessions.get();
+    }
+
+    /**
+     * @return the most sessions that were open at the same time
+     */
+    public int getPeakSessions() {
+        return peakSessions.get();
+    }
+
+    /**
+     * @return connections refused because {@link BapSshTestNetwork#getMaxConnections()} were open
+     */
+    public int getRejectedConnections() {
+        return proxy == null ? 0 : proxy.getRejectedConnections();
+    }
+
+    /**
+     * @return SFTP requests received, each is one round trip for a client that waits for the reply
+     */
+    public int getSftpRequests() {
+        return sftpRequests.get();
+    }
+
+    public int getExecCommands() {
+        return execCommands.get();
+    }
+
+    public void resetCounters() {
+        sessions.set(0);
+        peakSessions.set(openSessions.get());
+        sftpRequests.set(0);
+        execCommands.set(0);
+    }
+
+    /**
+     * @return a connected session to this server
+     * @throws JSchException if the session could not connect
+     */
+    public Session connect() throws JSchException {
+        final Session session = new JSch().getSession(USERNAME, "127.0.0.1", getPort());
+        session.setPassword(PASSWORD);
+        session.setConfig("StrictHostKeyChecking", "no");
+        session.connect();
+        return session;
+    }
+
+    /**
+     * @param session a connected session
+     * @return a connected SFTP channel
+     * @throws JSchException if the channel could not connect
+     */
+    public static ChannelSftp openSftp(final Session session) throws JSchException {
+        final ChannelSftp sftp = (ChannelSftp) session.openChannel("sftp");
+        sftp.connect();
+        return sftp;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (proxy != null) proxy.close();
+        server.stop(true);
+    }
+
+}
@@ -116,15 +116,16 @@ class IntegrationTest {
         final SftpATTRS mockAttrs = mock(SftpATTRS.class);
         when(mockAttrs.isDir()).thenReturn(true);
         when(mockSftp.stat(anyString())).thenReturn(mockAttrs);
+        when(mockSftp.pwd()).thenReturn("/testRemoteRoot");
 
         j.assertBuildStatusSuccess(project.scheduleBuild2(0).get());
 
         verify(mockJsch).addIdentity("TheKey", BapSshUtil.toBytes("key"), null, BapSshUtil.toBytes("passphrase"));
         verify(mockSession).connect(timeout);
         verify(mockSftp).connect(timeout);
-        verify(mockSftp).cd(transfer.getRemoteDirectory());
-        verify(mockSftp).cd("build-dir");
-        verify(mockSftp).put((InputStream) any(), eq(buildFileName));
+        verify(mockSftp).cd("/testRemoteRoot");
+        verify(mockSftp).stat("/testRemoteRoot/sub-home/build-dir");
+        verify(mockSftp).put((InputStream) any(), eq("/testRemoteRoot/sub-home/build-dir/" + buildFileName));
     }
 
 }
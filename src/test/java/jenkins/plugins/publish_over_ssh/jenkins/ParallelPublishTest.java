@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh.jenkins;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.slaves.DumbSlave;
+import jenkins.plugins.publish_over_ssh.BapSshCommonConfiguration;
+import jenkins.plugins.publish_over_ssh.BapSshHostConfiguration;
+import jenkins.plugins.publish_over_ssh.BapSshPublisher;
+import jenkins.plugins.publish_over_ssh.BapSshPublisherPlugin;
+import jenkins.plugins.publish_over_ssh.BapSshTransfer;
+import jenkins.plugins.publish_over_ssh.Messages;
+import jenkins.plugins.publish_over_ssh.helper.BapSshTestServer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@WithJenkins
+class ParallelPublishTest {
+
+    private static final String[] HOSTS = {"host1", "host2"};
+    private static final int TIMEOUT = 30000;
+
+    @TempDir
+    private File remote;
+
+    @Test
+    void testPublishersOnAnAgentRunInParallel(final JenkinsRule j) throws Exception {
+        try (BapSshTestServer server = new BapSshTestServer(remote)) {
+            final BapSshHostConfiguration[] hostConfigs = new BapSshHostConfiguration[HOSTS.length];
+            final ArrayList<BapSshPublisher> publishers = new ArrayList<>();
+            for (int i = 0; i < HOSTS.length; i++) {
+                hostConfigs[i] = JenkinsTestHelper.prepare(HOSTS[i], "127.0.0.1", BapSshTestServer.USERNAME,
+                        BapSshTestServer.PASSWORD, "/", "", server.getPort(), TIMEOUT, true, "", "", false);
+                final BapSshTransfer transfer = new BapSshTransfer("dist/**", null, HOSTS[i], "dist", false, false, "", 0,
+                        false, false, false, false, null);
+                publishers.add(new BapSshPublisher(HOSTS[i], false, new ArrayList<>(Collections.singletonList(transfer)),
+                        false, false, null, null, null));
+            }
+            new JenkinsTestHelper().setGlobalConfig(new BapSshCommonConfiguration("", "", "", false), hostConfigs);
+
+            final DumbSlave agent = j.createOnlineSlave();
+            final FreeStyleProject project = j.createFreeStyleProject();
+            project.setAssignedNode(agent);
+            project.getBuildersList().add(new TestBuilder() {
+                @Override
+                public boolean perform(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener)
+                        throws IOException, InterruptedException {
+                    build.getWorkspace().child("dist").child("file.txt").write("published from the agent", "UTF-8");
+                    return true;
+                }
+            });
+            final BapSshPublisherPlugin plugin = new BapSshPublisherPlugin(publishers, true, false, false, "master", null);
+            plugin.setParallel(true);
+            plugin.setMaxConcurrency(HOSTS.length);
+            project.getPublishersList().add(plugin);
+
+            final FreeStyleBuild build = j.buildAndAssertSuccess(project);
+            assertSame(agent, build.getBuiltOn());
+            // the summary and the prefixed output are only written when the hosts go through the parallel publish
+            j.assertLogContains(Messages.console_parallel_summary(), build);
+            for (String host : HOSTS) {
+                j.assertLogContains("[" + host + "] ", build);
+                assertTrue(new File(new File(server.getRoot(), host), "file.txt").isFile());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,217 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_ssh.jenkins;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import jenkins.plugins.publish_over_ssh.BapSshCommonConfiguration;
+import jenkins.plugins.publish_over_ssh.BapSshHostConfiguration;
+import jenkins.plugins.publish_over_ssh.BapSshPublisher;
+import jenkins.plugins.publish_over_ssh.BapSshPublisherPlugin;
+import jenkins.plugins.publish_over_ssh.BapSshTransfer;
+import jenkins.plugins.publish_over_ssh.BapSshTransferStatistics;
+import jenkins.plugins.publish_over_ssh.BapSshTransferStatisticsAction;
+import jenkins.plugins.publish_over_ssh.helper.BapSshTestNetwork;
+import jenkins.plugins.publish_over_ssh.helper.BapSshTestServer;
+import jenkins.plugins.publish_over_ssh.helper.RandomFile;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Many builds publishing to the same host at the same time, each scenario against a {@link BapSshTestServer} with its
+ * own network conditions, to reproduce the contention seen with busy controllers and to give a baseline to compare
+ * releases against. Run with {@code mvn -Pload test}.
+ *
+ * For each scenario the connect time percentiles, the throughput, the peak thread count and the peak heap are printed
+ * and written as JSON to the file named by the load.result system property. The load.files and load.fileSize system
+ * properties set the tree each build publishes.
+ */
+@WithJenkins
+@EnabledIfSystemProperty(named = "load.run", matches = "true")
+class PublishLoadTest {
+
+    private static final String CONFIG_NAME = "load";
+    private static final int TIMEOUT = 60000;
+    private static final long SAMPLE_MILLIS = 20;
+
+    private final int files = Integer.getInteger("load.files", 50);
+    private final int fileSize = Integer.getInteger("load.fileSize", 16 * 1024);
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    @Test
+    void testConcurrentBuilds(final JenkinsRule j) throws Exception {
+        final List<Map<String, Object>> results = new ArrayList<>();
+        results.add(run(j, "1 build", 1, new BapSshTestNetwork(), false, 0));
+        results.add(run(j, "10 builds", 10, new BapSshTestNetwork(), false, 0));
+        results.add(run(j, "50 builds", 50, new BapSshTestNetwork(), false, 0));
+        results.add(run(j, "50 builds, 20ms rtt, 10MB/s", 50, new BapSshTestNetwork().roundTrip(20).bandwidth(10 * 1024 * 1024), false, 0));
+        results.add(run(j, "50 builds, 10 connections", 50, new BapSshTestNetwork().maxConnections(10), false, 0));
+        // the server only sees a connection close a moment after the plugin lets the next one in, so leave some room
+        results.add(run(j, "50 builds, 10 connections, queued for 8", 50, new BapSshTestNetwork().maxConnections(10), false, 8));
+        results.add(run(j, "50 builds, reused sessions", 50, new BapSshTestNetwork().roundTrip(20), true, 0));
+        final File result = new File(System.getProperty("load.result", "target/load-result.json"));
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(result, results);
+    }
+
+    private Map<String, Object> run(final JenkinsRule j, final String name, final int builds, final BapSshTestNetwork network,
+                                    final boolean reuseSessions, final int maxConnections) throws Exception {
+        final File remote = Files.createTempDirectory("publish-load").toFile();
+        try (BapSshTestServer server = new BapSshTestServer(remote, network)) {
+            configure(server, reuseSessions, maxConnections);
+            j.jenkins.setNumExecutors(builds);
+            final List<FreeStyleProject> projects = new ArrayList<>();
+            for (int i = 0; i < builds; i++)
+                projects.add(createProject(j, "project" + i));
+
+            System.gc();
+            final long heapBefore = memory.getHeapMemoryUsage().getUsed();
+            final AtomicLong peakHeap = new AtomicLong(heapBefore);
+            threads.resetPeakThreadCount();
+            final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+            sampler.scheduleAtFixedRate(() -> peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max),
+                    0, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+            final long start = System.nanoTime();
+            final List<Future<FreeStyleBuild>> futures = new ArrayList<>();
+            try {
+                for (FreeStyleProject project : projects)
+                    futures.add(project.scheduleBuild2(0));
+                for (Future<FreeStyleBuild> future : futures)
+                    future.get(10, TimeUnit.MINUTES);
+            } finally {
+                sampler.shutdownNow();
+            }
+            final long wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            int failed = 0;
+            long bytes = 0;
+            final List<Long> connectMillis = new ArrayList<>();
+            for (Future<FreeStyleBuild> future : futures) {
+                final FreeStyleBuild build = future.get();
+                if (build.getResult() != Result.SUCCESS) failed++;
+                final BapSshTransferStatisticsAction action = build.getAction(BapSshTransferStatisticsAction.class);
+                if (action == null) continue;
+                for (BapSshTransferStatistics host : action.getHosts()) {
+                    if (!host.isSessionReused())
+                        connectMillis.add(host.getConnectMillis() + host.getHandshakeMillis());
+                    bytes += host.getBytesUploaded();
+                }
+            }
+            Collections.sort(connectMillis);
+
+            final Map<String, Object> result = new LinkedHashMap<>();
+            result.put("scenario", name);
+            result.put("builds", builds);
+            result.put("failedBuilds", failed);
+            result.put("sessions", server.getSessions());
+            result.put("peakSessions", server.getPeakSessions());
+            result.put("rejectedConnections", server.getRejectedConnections());
+            result.put("connectMillisP50", percentile(connectMillis, 50));
+            result.put("connectMillisP90", percentile(connectMillis, 90));
+            result.put("connectMillisP99", percentile(connectMillis, 99));
+            result.put("connectMillisMax", percentile(connectMillis, 100));
+            result.put("wallMillis", wallMillis);
+            result.put("bytesUploaded", bytes);
+            result.put("megabytesPerSecond", wallMillis == 0 ? 0 : bytes / (1024.0 * 1024) / (wallMillis / 1000.0));
+            result.put("peakThreads", threads.getPeakThreadCount());
+            result.put("peakHeapMegabytes", peakHeap.get() / (1024 * 1024));
+            result.put("heapGrowthMegabytes", (peakHeap.get() - heapBefore) / (1024 * 1024));
+            System.out.println("PublishLoadTest " + result);
+
+            // unless the server refuses connections that the plugin lets through, every build has to succeed
+            if (network.getMaxConnections() == 0 || maxConnections > 0 && maxConnections <= network.getMaxConnections())
+                assertEquals(0, failed, name);
+            for (FreeStyleProject project : projects)
+                project.delete();
+            return result;
+        } finally {
+            FileUtils.deleteDirectory(remote);
+        }
+    }
+
+    private void configure(final BapSshTestServer server, final boolean reuseSessions, final int maxConnections) throws Exception {
+        final BapSshHostConfiguration hostConfig = JenkinsTestHelper.prepare(CONFIG_NAME, "127.0.0.1", BapSshTestServer.USERNAME,
+                BapSshTestServer.PASSWORD, "/", "", server.getPort(), TIMEOUT, true, "", "", false);
+        hostConfig.setReuseSessions(reuseSessions);
+        hostConfig.setMaxSessions(10);
+        hostConfig.setMaxConnections(maxConnections);
+        new JenkinsTestHelper().setGlobalConfig(new BapSshCommonConfiguration("", "", "", false), hostConfig);
+    }
+
+    private FreeStyleProject createProject(final JenkinsRule j, final String name) throws IOException {
+        final FreeStyleProject project = j.createFreeStyleProject(name);
+        project.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener) {
+                final File dist = new File(build.getWorkspace().getRemote(), "dist");
+                for (int i = 0; i < files; i++)
+                    new RandomFile(new File(new File(dist, "dir" + i % 10), "file" + i + ".bin"), fileSize);
+                return true;
+            }
+        });
+        final BapSshTransfer transfer = new BapSshTransfer("dist/**", null, name, "dist", false, false, "", 0, false, false, false, false, null);
+        final BapSshPublisher publisher = new BapSshPublisher(CONFIG_NAME, false,
+                new ArrayList<>(Collections.singletonList(transfer)), false, false, null, null, null);
+        project.getPublishersList().add(new BapSshPublisherPlugin(
+                new ArrayList<>(Collections.singletonList(publisher)), false, false, false, "master", null));
+        return project;
+    }
+
+    private static long percentile(final List<Long> sorted, final int percentile) {
+        if (sorted.isEmpty()) return 0;
+        final int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+        return sorted.get(Math.max(rank, 1) - 1);
+    }
+
+}